@@ -0,0 +1,182 @@
+package com.edgedetection;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.edgedetection.memory.MatScope;
+import com.edgedetection.memory.NativeMemory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks the automatic Canny thresholds of an edge context, on a device
+ * with the native libraries. Inputs are uniform noise, whose gradient
+ * magnitudes grow with its amplitude.
+ */
+@RunWith(AndroidJUnit4.class)
+public class AutoThresholdTest {
+
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final int BLUR = 5;
+    // Passed to every call; ignored while auto thresholds are on
+    private static final int LOWER = 10;
+    private static final int UPPER = 200;
+
+    private final List<Long> mContexts = new ArrayList<>();
+    private MatScope mScope;
+    private Mat mWeak;
+    private Mat mStrong;
+
+    @BeforeClass
+    public static void loadLibraries() {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+        assumeTrue("edge_detection library not loaded", EdgeDetector.loadLibrary());
+    }
+
+    @Before
+    public void setUp() {
+        mScope = NativeMemory.scope("test.auto");
+        mWeak = noise(16, 1);
+        mStrong = noise(64, 2);
+    }
+
+    @After
+    public void tearDown() {
+        for (long context : mContexts) {
+            EdgeDetector.releaseContext(context);
+        }
+        mScope.close();
+    }
+
+    @Test
+    public void manualThresholdsAreReportedAsGiven() {
+        long context = newContext(false);
+        detect(context, 1, mStrong);
+        assertEquals(LOWER, thresholds(context)[0]);
+        assertEquals(UPPER, thresholds(context)[1]);
+    }
+
+    @Test
+    public void thresholdsFollowGradientStrength() {
+        long weak = newContext(true);
+        long strong = newContext(true);
+        detect(weak, 1, mWeak);
+        detect(strong, 1, mStrong);
+
+        int[] weakThresholds = thresholds(weak);
+        int[] strongThresholds = thresholds(strong);
+        assertTrue("Given thresholds ignored", weakThresholds[1] != UPPER);
+        assertTrue(weakThresholds[1] + " vs " + strongThresholds[1], weakThresholds[1] < strongThresholds[1]);
+        assertTrue(strongThresholds[1] <= 255);
+        for (int[] pair : new int[][] {weakThresholds, strongThresholds}) {
+            assertEquals("Lower is 0.4 of upper", Math.round(pair[1] * 0.4f), pair[0]);
+        }
+    }
+
+    @Test
+    public void estimateIsSmoothedOverFrames() {
+        int weakUpper = firstFrameUpper(mWeak);
+        int strongUpper = firstFrameUpper(mStrong);
+
+        long context = newContext(true);
+        detect(context, 1, mWeak);
+        assertEquals(weakUpper, thresholds(context)[1]);
+        detect(context, 2, mStrong);
+        int smoothed = thresholds(context)[1];
+        assertTrue(weakUpper + " < " + smoothed + " < " + strongUpper,
+                weakUpper < smoothed && smoothed < strongUpper);
+        // 0.2 of the way from the running value to the new estimate
+        assertEquals(weakUpper + 0.2f * (strongUpper - weakUpper), smoothed, 1);
+    }
+
+    @Test
+    public void thresholdOnlyRerunKeepsEstimate() {
+        long context = newContext(true);
+        detect(context, 1, mStrong);
+        int[] first = thresholds(context);
+
+        assertTrue("Gradients reused", EdgeDetector.detectEdgesCached(context, 1,
+                mStrong.getNativeObjAddr(), mScope.newMat().getNativeObjAddr(), LOWER + 5, UPPER - 5, BLUR));
+        int[] rerun = thresholds(context);
+        assertEquals(first[0], rerun[0]);
+        assertEquals(first[1], rerun[1]);
+    }
+
+    @Test
+    public void enablingStartsFromCachedFrame() {
+        long context = newContext(false);
+        detect(context, 1, mStrong);
+        assertEquals(UPPER, thresholds(context)[1]);
+
+        EdgeDetector.setAutoThreshold(context, true);
+        assertTrue(detect(context, 1, mStrong));
+        assertEquals(firstFrameUpper(mStrong), thresholds(context)[1]);
+
+        // Manual again, then back to the running average
+        EdgeDetector.setAutoThreshold(context, false);
+        detect(context, 1, mStrong);
+        assertEquals(UPPER, thresholds(context)[1]);
+        EdgeDetector.setAutoThreshold(context, true);
+        detect(context, 1, mStrong);
+        assertEquals(firstFrameUpper(mStrong), thresholds(context)[1]);
+    }
+
+    @Test
+    public void invalidArgumentsAreRejected() {
+        assertFalse(EdgeDetector.getThresholds(0, new int[2]));
+        assertFalse(EdgeDetector.getThresholds(newContext(true), new int[1]));
+        // No-op rather than a crash
+        EdgeDetector.setAutoThreshold(0, true);
+    }
+
+    private int firstFrameUpper(Mat input) {
+        long context = newContext(true);
+        detect(context, 1, input);
+        return thresholds(context)[1];
+    }
+
+    private long newContext(boolean auto) {
+        long context = EdgeDetector.createContext();
+        mContexts.add(context);
+        EdgeDetector.setAutoThreshold(context, auto);
+        return context;
+    }
+
+    private boolean detect(long context, long frameId, Mat input) {
+        return EdgeDetector.detectEdgesCached(context, frameId, input.getNativeObjAddr(),
+                mScope.newMat().getNativeObjAddr(), LOWER, UPPER, BLUR);
+    }
+
+    private static int[] thresholds(long context) {
+        int[] thresholds = new int[2];
+        assertTrue(EdgeDetector.getThresholds(context, thresholds));
+        return thresholds;
+    }
+
+    private Mat noise(int amplitude, long seed) {
+        Random random = new Random(seed);
+        byte[] pixels = new byte[WIDTH * HEIGHT];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (byte) (128 - amplitude / 2 + random.nextInt(amplitude));
+        }
+        Mat mat = mScope.newMat(HEIGHT, WIDTH, CvType.CV_8UC1);
+        mat.put(0, 0, pixels);
+        return mat;
+    }
+}
@@ -0,0 +1,122 @@
+package com.edgedetection;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.edgedetection.memory.MatScope;
+import com.edgedetection.memory.NativeMemory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Compares {@link EdgeDetector#detectEdgesBatch} with one
+ * {@link EdgeDetector#detectEdges} call per threshold pair, on a device with
+ * the native libraries.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DetectEdgesBatchTest {
+
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final int BLUR = 5;
+    // Rows above this hold the parameter overlay of detectEdges
+    private static final int OVERLAY_ROWS = 170;
+    private static final int[] PAIRS = {20, 60, 50, 150, 100, 250};
+
+    private MatScope mScope;
+    private Mat mInput;
+
+    @BeforeClass
+    public static void loadLibraries() {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+        assumeTrue("edge_detection library not loaded", EdgeDetector.loadLibrary());
+    }
+
+    @Before
+    public void setUp() {
+        mScope = NativeMemory.scope("test.batch");
+        // Squares over noise, so every threshold pair finds different edges
+        Random random = new Random(27);
+        byte[] pixels = new byte[WIDTH * HEIGHT * 4];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int value = ((x / 40 + y / 40) & 1) * 120 + 60 + random.nextInt(40);
+                int i = (y * WIDTH + x) * 4;
+                pixels[i] = (byte) value;
+                pixels[i + 1] = (byte) value;
+                pixels[i + 2] = (byte) value;
+                pixels[i + 3] = (byte) 255;
+            }
+        }
+        mInput = mScope.newMat(HEIGHT, WIDTH, CvType.CV_8UC4);
+        mInput.put(0, 0, pixels);
+    }
+
+    @After
+    public void tearDown() {
+        mScope.close();
+    }
+
+    @Test
+    public void matchesOneCallPerPair() {
+        ByteBuffer[] outputs = new ByteBuffer[PAIRS.length / 2];
+        for (int i = 0; i < outputs.length; i++) {
+            outputs[i] = ByteBuffer.allocateDirect(WIDTH * HEIGHT);
+        }
+        assertEquals(outputs.length, EdgeDetector.detectEdgesBatch(mInput.getNativeObjAddr(), PAIRS, outputs, BLUR));
+
+        int previousEdges = Integer.MAX_VALUE;
+        for (int i = 0; i < outputs.length; i++) {
+            Mat single = mScope.newMat();
+            EdgeDetector.detectEdges(mInput.getNativeObjAddr(), single.getNativeObjAddr(),
+                    PAIRS[2 * i], PAIRS[2 * i + 1], BLUR);
+            byte[] rgba = new byte[WIDTH * HEIGHT * 4];
+            single.get(0, 0, rgba);
+
+            int edges = 0;
+            for (int y = OVERLAY_ROWS; y < HEIGHT; y++) {
+                for (int x = 0; x < WIDTH; x++) {
+                    // Edges are white, the overlay text has no red
+                    byte expected = rgba[(y * WIDTH + x) * 4];
+                    byte actual = outputs[i].get(y * WIDTH + x);
+                    assertEquals("Pair " + i + " at " + x + "," + y, expected, actual);
+                    if (actual != 0) {
+                        edges++;
+                    }
+                }
+            }
+            assertTrue("Pair " + i + " found " + edges + " edge pixels", edges > 0 && edges < previousEdges);
+            previousEdges = edges;
+        }
+    }
+
+    @Test
+    public void mismatchedPairsWriteNothing() {
+        ByteBuffer[] outputs = {ByteBuffer.allocateDirect(WIDTH * HEIGHT)};
+        assertEquals(0, EdgeDetector.detectEdgesBatch(mInput.getNativeObjAddr(), new int[] {50, 150, 100}, outputs, BLUR));
+        assertEquals(0, EdgeDetector.detectEdgesBatch(mInput.getNativeObjAddr(), PAIRS, outputs, BLUR));
+    }
+
+    @Test
+    public void stopsAtFirstUnusableBuffer() {
+        ByteBuffer[] outputs = {
+            ByteBuffer.allocateDirect(WIDTH * HEIGHT),
+            ByteBuffer.allocate(WIDTH * HEIGHT),
+            ByteBuffer.allocateDirect(WIDTH * HEIGHT)
+        };
+        assertEquals(1, EdgeDetector.detectEdgesBatch(mInput.getNativeObjAddr(), PAIRS, outputs, BLUR));
+    }
+}
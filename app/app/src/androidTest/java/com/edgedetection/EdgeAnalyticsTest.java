@@ -0,0 +1,176 @@
+package com.edgedetection;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.edgedetection.memory.MatScope;
+import com.edgedetection.memory.NativeMemory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.util.function.BiPredicate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks the native edge statistics on frames that are bright on one side
+ * of a line, on a device with the native libraries.
+ */
+@RunWith(AndroidJUnit4.class)
+public class EdgeAnalyticsTest {
+
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+
+    private MatScope mScope;
+    private long mContext;
+    private final EdgeAnalytics mAnalytics = new EdgeAnalytics();
+
+    @BeforeClass
+    public static void loadLibraries() {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+        assumeTrue("edge_detection library not loaded", EdgeDetector.loadLibrary());
+    }
+
+    @Before
+    public void setUp() {
+        mScope = NativeMemory.scope("test.analytics");
+        mContext = EdgeDetector.createContext();
+        assertTrue(mAnalytics.attach(mContext));
+    }
+
+    @After
+    public void tearDown() {
+        mAnalytics.detach(mContext);
+        EdgeDetector.releaseContext(mContext);
+        mScope.close();
+    }
+
+    @Test
+    public void emptyBeforeFirstDetection() {
+        EdgeAnalytics analytics = new EdgeAnalytics();
+        assertEquals(-1, analytics.getFrameId());
+        assertEquals(0, analytics.getEdgeCount());
+        assertEquals(0, analytics.getDensity(), 0);
+        assertEquals(-1, analytics.getDominantOrientation());
+    }
+
+    @Test
+    public void verticalEdgeCountsInItsColumnOnly() {
+        // Bright right half: one vertical edge at x = WIDTH / 2
+        detect(7, frame((x, y) -> x >= WIDTH / 2));
+        assertEquals(7, mAnalytics.getFrameId());
+        assertEquals(WIDTH, mAnalytics.getWidth());
+        assertEquals(HEIGHT, mAnalytics.getHeight());
+
+        int edges = mAnalytics.getEdgeCount();
+        assertTrue("Edge pixels " + edges, edges >= HEIGHT - 4 && edges <= 2 * HEIGHT);
+        assertEquals((float) edges / (WIDTH * HEIGHT), mAnalytics.getDensity(), 1e-6f);
+        assertEquals(edges, cellTotal());
+        assertEquals(edges, orientationTotal());
+        for (int row = 0; row < EdgeAnalytics.GRID; row++) {
+            for (int column = 0; column < EdgeAnalytics.GRID; column++) {
+                boolean nearEdge = column == EdgeAnalytics.GRID / 2 - 1 || column == EdgeAnalytics.GRID / 2;
+                if (!nearEdge) {
+                    assertEquals("Cell " + column + "," + row, 0, mAnalytics.getCellCount(column, row));
+                }
+            }
+        }
+        // Horizontal gradient
+        assertEquals(0, mAnalytics.getDominantOrientation());
+    }
+
+    @Test
+    public void horizontalEdgeHasVerticalGradient() {
+        detect(1, frame((x, y) -> y >= HEIGHT / 2));
+        assertEquals(4, mAnalytics.getDominantOrientation());
+        assertEquals(mAnalytics.getEdgeCount(), orientationTotal());
+    }
+
+    @Test
+    public void diagonalEdgeFallsInSecondQuadrant() {
+        // Bright above the line y = x: the gradient points right and up,
+        // 135 degrees with y pointing down
+        detect(1, frame((x, y) -> x > y));
+        assertEquals(6, mAnalytics.getDominantOrientation());
+        assertEquals(135f, mAnalytics.getDominantOrientation() * EdgeAnalytics.DEGREES_PER_BIN, 0);
+    }
+
+    @Test
+    public void countsFollowProcessingScale() {
+        EdgeDetector.setProcessingScale(mContext, 2);
+        detect(3, frame((x, y) -> x >= WIDTH / 2));
+        assertEquals(WIDTH / 2, mAnalytics.getWidth());
+        assertEquals(HEIGHT / 2, mAnalytics.getHeight());
+        assertTrue(mAnalytics.getEdgeCount() <= HEIGHT);
+        assertEquals(mAnalytics.getEdgeCount(), cellTotal());
+    }
+
+    @Test
+    public void detachStopsUpdates() {
+        Mat frame = frame((x, y) -> x >= WIDTH / 2);
+        detect(1, frame);
+        int edges = mAnalytics.getEdgeCount();
+
+        mAnalytics.detach(mContext);
+        detect(2, frame((x, y) -> y >= HEIGHT / 2));
+        assertEquals(1, mAnalytics.getFrameId());
+        assertEquals(edges, mAnalytics.getEdgeCount());
+
+        assertTrue(mAnalytics.attach(mContext));
+        detect(3, frame);
+        assertEquals(3, mAnalytics.getFrameId());
+    }
+
+    @Test
+    public void attachNeedsContext() {
+        assertFalse(new EdgeAnalytics().attach(0));
+    }
+
+    private void detect(long frameId, Mat input) {
+        EdgeDetector.detectEdgesCached(mContext, frameId, input.getNativeObjAddr(),
+                mScope.newMat().getNativeObjAddr(), 50, 150, 5);
+    }
+
+    /**
+     * Dark frame, bright where the predicate holds.
+     */
+    private Mat frame(BiPredicate<Integer, Integer> bright) {
+        byte[] pixels = new byte[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                pixels[y * WIDTH + x] = (byte) (bright.test(x, y) ? 200 : 40);
+            }
+        }
+        Mat frame = mScope.newMat(HEIGHT, WIDTH, CvType.CV_8UC1);
+        frame.put(0, 0, pixels);
+        return frame;
+    }
+
+    private int cellTotal() {
+        int total = 0;
+        for (int row = 0; row < EdgeAnalytics.GRID; row++) {
+            for (int column = 0; column < EdgeAnalytics.GRID; column++) {
+                total += mAnalytics.getCellCount(column, row);
+            }
+        }
+        return total;
+    }
+
+    private int orientationTotal() {
+        int total = 0;
+        for (int bin = 0; bin < EdgeAnalytics.ORIENTATION_BINS; bin++) {
+            total += mAnalytics.getOrientationCount(bin);
+        }
+        return total;
+    }
+}
@@ -0,0 +1,217 @@
+package com.edgedetection;
+
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.edgedetection.memory.MatScope;
+import com.edgedetection.memory.NativeMemory;
+import com.edgedetection.stream.EdgeMapEncoder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Traces the edges of a drawn rectangle and a small blob, on a device with
+ * the native libraries, and checks the polylines and their wire encoding.
+ */
+@RunWith(AndroidJUnit4.class)
+public class EdgePolylinesTest {
+
+    private static final String TAG = "EdgePolylinesTest";
+
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+
+    private MatScope mScope;
+    private Mat mInput;
+    private long mContext;
+    private final EdgePolylines mPolylines = new EdgePolylines();
+
+    @BeforeClass
+    public static void loadLibraries() {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+        assumeTrue("edge_detection library not loaded", EdgeDetector.loadLibrary());
+    }
+
+    @Before
+    public void setUp() {
+        mScope = NativeMemory.scope("test.polylines");
+        mInput = mScope.newMat(HEIGHT, WIDTH, CvType.CV_8UC1);
+        mInput.setTo(new Scalar(40));
+        Imgproc.rectangle(mInput, new Point(60, 50), new Point(260, 190), new Scalar(200), -1);
+        // Outline of a few pixels only
+        Imgproc.rectangle(mInput, new Point(20, 20), new Point(22, 22), new Scalar(200), -1);
+        mContext = EdgeDetector.createContext();
+    }
+
+    @After
+    public void tearDown() {
+        EdgeDetector.releaseContext(mContext);
+        mScope.close();
+    }
+
+    @Test
+    public void extractFailsWithoutEdges() {
+        assertFalse(mPolylines.extract(mContext, 1f, 1));
+        assertEquals(0, mPolylines.getPolylineCount());
+        assertEquals(0, mPolylines.getPointCount());
+    }
+
+    @Test
+    public void everyEdgePixelIsTracedOnce() {
+        detect();
+        assertTrue(mPolylines.extract(mContext, 0f, 1));
+        assertEquals(WIDTH, mPolylines.getWidth());
+        assertEquals(HEIGHT, mPolylines.getHeight());
+        assertTrue(mPolylines.getPolylineCount() >= 2);
+
+        int[] points = mPolylines.getPoints();
+        int[] offsets = mPolylines.getOffsets();
+        assertEquals(0, offsets[0]);
+        assertEquals(mPolylines.getPointCount(), offsets[mPolylines.getPolylineCount()]);
+        Set<Integer> seen = new HashSet<>();
+        for (int i = 0; i < mPolylines.getPolylineCount(); i++) {
+            for (int p = offsets[i]; p < offsets[i + 1]; p++) {
+                int x = points[2 * p];
+                int y = points[2 * p + 1];
+                assertTrue(x >= 0 && x < WIDTH && y >= 0 && y < HEIGHT);
+                assertTrue("Pixel traced twice", seen.add(y * WIDTH + x));
+                if (p > offsets[i]) {
+                    // Untouched chains step to a neighbouring pixel
+                    assertTrue(Math.abs(x - points[2 * p - 2]) <= 1);
+                    assertTrue(Math.abs(y - points[2 * p - 1]) <= 1);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void shortChainsAreDroppedAndLongOnesSimplified() {
+        detect();
+        assertTrue(mPolylines.extract(mContext, 0f, 1));
+        int rawPolylines = mPolylines.getPolylineCount();
+        int rawPoints = mPolylines.getPointCount();
+
+        // The blob outline is shorter than 40 pixels, the rectangle far longer
+        assertTrue(mPolylines.extract(mContext, 0f, 40));
+        assertTrue(mPolylines.getPolylineCount() < rawPolylines);
+        for (int i = 0; i < mPolylines.getPolylineCount(); i++) {
+            assertTrue(mPolylines.getOffsets()[i + 1] - mPolylines.getOffsets()[i] >= 2);
+        }
+
+        assertTrue(mPolylines.extract(mContext, 1f, 40));
+        assertTrue("Straight sides collapse to corners: " + mPolylines.getPointCount() + " of " + rawPoints,
+                mPolylines.getPointCount() * 10 < rawPoints);
+    }
+
+    @Test
+    public void coordinatesFollowProcessingScale() {
+        EdgeDetector.setProcessingScale(mContext, 2);
+        detect();
+        assertTrue(mPolylines.extract(mContext, 1f, 1));
+        assertEquals(WIDTH / 2, mPolylines.getWidth());
+        assertEquals(HEIGHT / 2, mPolylines.getHeight());
+        for (int p = 0; p < mPolylines.getPointCount(); p++) {
+            assertTrue(mPolylines.getPoints()[2 * p] < WIDTH / 2);
+            assertTrue(mPolylines.getPoints()[2 * p + 1] < HEIGHT / 2);
+        }
+    }
+
+    @Test
+    public void copyFromDuplicatesContents() {
+        detect();
+        assertTrue(mPolylines.extract(mContext, 1f, 1));
+        EdgePolylines copy = new EdgePolylines();
+        copy.copyFrom(mPolylines);
+        assertEquals(mPolylines.getPolylineCount(), copy.getPolylineCount());
+        assertEquals(mPolylines.getPointCount(), copy.getPointCount());
+        assertEquals(mPolylines.getWidth(), copy.getWidth());
+        for (int i = 0; i < mPolylines.getPointCount() * 2; i++) {
+            assertEquals(mPolylines.getPoints()[i], copy.getPoints()[i]);
+        }
+
+        copy.clear();
+        assertEquals(0, copy.getPolylineCount());
+        assertEquals(0, copy.getPointCount());
+    }
+
+    @Test
+    public void polylineEncodingRoundTripsAndBeatsRle() {
+        detect();
+        // Every edge pixel, rasterised for the RLE comparison
+        assertTrue(mPolylines.extract(mContext, 0f, 1));
+        byte[] mask = new byte[WIDTH * HEIGHT];
+        for (int p = 0; p < mPolylines.getPointCount(); p++) {
+            mask[mPolylines.getPoints()[2 * p + 1] * WIDTH + mPolylines.getPoints()[2 * p]] = (byte) 0xFF;
+        }
+        EdgeMapEncoder encoder = new EdgeMapEncoder();
+        int rleBytes = encoder.encode(mask, WIDTH, HEIGHT, 7);
+
+        assertTrue(mPolylines.extract(mContext, 1f, 1));
+        int vectorBytes = encoder.encode(mPolylines, 7);
+        byte[] data = encoder.getBuffer();
+        assertEquals(EdgeMapEncoder.ENCODING_POLYLINES, data[3]);
+        assertEquals(7, EdgeMapEncoder.readFrameId(data));
+        assertEquals(WIDTH, EdgeMapEncoder.readWidth(data));
+        assertEquals(HEIGHT, EdgeMapEncoder.readHeight(data));
+
+        // Undo the varints and zigzag deltas
+        int[] pos = {EdgeMapEncoder.HEADER_SIZE};
+        assertEquals(mPolylines.getPolylineCount(), readVarint(data, pos));
+        int x = 0;
+        int y = 0;
+        int[] offsets = mPolylines.getOffsets();
+        for (int i = 0; i < mPolylines.getPolylineCount(); i++) {
+            assertEquals(offsets[i + 1] - offsets[i], readVarint(data, pos));
+            for (int p = offsets[i]; p < offsets[i + 1]; p++) {
+                x += unzigzag(readVarint(data, pos));
+                y += unzigzag(readVarint(data, pos));
+                assertEquals(mPolylines.getPoints()[2 * p], x);
+                assertEquals(mPolylines.getPoints()[2 * p + 1], y);
+            }
+        }
+        assertEquals(vectorBytes, pos[0]);
+
+        Log.i(TAG, "Polylines " + vectorBytes + " bytes, RLE " + rleBytes + " bytes");
+        assertTrue(vectorBytes + " vs " + rleBytes, vectorBytes < rleBytes);
+    }
+
+    private void detect() {
+        EdgeDetector.detectEdgesCached(mContext, 1, mInput.getNativeObjAddr(),
+                mScope.newMat().getNativeObjAddr(), 50, 150, 3);
+    }
+
+    private static int readVarint(byte[] data, int[] pos) {
+        int value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = data[pos[0]++] & 0xFF;
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
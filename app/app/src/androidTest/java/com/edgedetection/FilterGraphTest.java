@@ -0,0 +1,256 @@
+package com.edgedetection;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.edgedetection.memory.MatScope;
+import com.edgedetection.memory.NativeMemory;
+import com.edgedetection.metrics.PipelineMetrics;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks how {@link FilterGraph} plans are compiled, on a device with the
+ * native libraries.
+ */
+@RunWith(AndroidJUnit4.class)
+public class FilterGraphTest {
+
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    // Rows covered by the parameter text of detectEdgesCached
+    private static final int OVERLAY_ROWS = 170;
+
+    private MatScope mScope;
+    private Mat mInput;
+    private FilterGraph mGraph;
+
+    @BeforeClass
+    public static void loadLibraries() {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+        assumeTrue("edge_detection library not loaded", EdgeDetector.loadLibrary());
+    }
+
+    @Before
+    public void setUp() {
+        mScope = NativeMemory.scope("test.graph");
+        // Diagonal ramp with squares, so thresholds and edges have work to do
+        byte[] pixels = new byte[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int square = ((x / 40 + y / 40) & 1) * 96;
+                pixels[y * WIDTH + x] = (byte) ((x + y) / 4 + square);
+            }
+        }
+        mInput = mScope.newMat(HEIGHT, WIDTH, CvType.CV_8UC1);
+        mInput.put(0, 0, pixels);
+    }
+
+    @After
+    public void tearDown() {
+        if (mGraph != null) {
+            mGraph.release();
+        }
+        mScope.close();
+    }
+
+    @Test
+    public void adjacentPointOpsFuseIntoOneStep() {
+        mGraph = new FilterGraph("test-fuse");
+        int blurred = mGraph.gaussian(FilterGraph.SOURCE, 5, 0);
+        int binary = mGraph.threshold(blurred, 100, 255, FilterGraph.THRESH_BINARY);
+        mGraph.gain(mGraph.invert(binary), 0.5f, 10);
+
+        Mat output = mScope.newMat();
+        assertTrue(mGraph.apply(mInput, output));
+        assertEquals("gaussian+threshold+invert+gain", mGraph.getPlanDescription());
+        assertEquals(1, mGraph.getStepNs().length);
+        assertEquals("Blur writes straight into the output", 0, mGraph.getBufferCount());
+
+        // Same result as running the nodes one by one
+        Mat reference = mScope.newMat();
+        Imgproc.GaussianBlur(mInput, reference, new Size(5, 5), 0);
+        byte[] expected = pixels(reference);
+        for (int i = 0; i < expected.length; i++) {
+            int value = (expected[i] & 0xFF) > 100 ? 255 : 0;
+            expected[i] = (byte) Math.round((255 - value) * 0.5f + 10);
+        }
+        assertArrayEquals(expected, pixels(output));
+    }
+
+    @Test
+    public void pointOpOnSharedImageIsNotFused() {
+        mGraph = new FilterGraph("test-shared");
+        int blurred = mGraph.gaussian(FilterGraph.SOURCE, 5, 0);
+        int binary = mGraph.threshold(blurred, 100, 255, FilterGraph.THRESH_BINARY);
+        // The blurred image is read twice, so the threshold cannot overwrite it
+        mGraph.combine(blurred, binary, FilterGraph.COMBINE_MAX);
+
+        assertTrue(mGraph.apply(mInput, mScope.newMat()));
+        assertEquals("gaussian|threshold|combine", mGraph.getPlanDescription());
+        assertEquals(2, mGraph.getBufferCount());
+    }
+
+    @Test
+    public void intermediateBuffersAreReused() {
+        mGraph = new FilterGraph("test-buffers");
+        int blurred = mGraph.gaussian(FilterGraph.SOURCE, 5, 0);
+        int gradient = mGraph.sobel(blurred, 1, 0, 3);
+        int edges = mGraph.canny(gradient, 50, 150);
+        int closed = mGraph.morphology(edges, FilterGraph.MORPH_CLOSE, 3, FilterGraph.SHAPE_RECT);
+        mGraph.median(closed, 3);
+
+        Mat output = mScope.newMat();
+        assertTrue(mGraph.apply(mInput, output));
+        assertEquals("gaussian|sobel|canny|morphology|median", mGraph.getPlanDescription());
+        // Four intermediate images, but never more than two alive at once
+        assertEquals(2, mGraph.getBufferCount());
+
+        // Another frame runs on the same buffers and gives the same result
+        byte[] first = pixels(output);
+        assertTrue(mGraph.apply(mInput, output));
+        assertEquals(2, mGraph.getBufferCount());
+        assertArrayEquals(first, pixels(output));
+    }
+
+    @Test
+    public void replansOnlyWhenStructureChanges() {
+        mGraph = new FilterGraph("test-replan");
+        long replans = PipelineMetrics.counter("graph.test-replan.replans").get();
+        int blurred = mGraph.gaussian(FilterGraph.SOURCE, 5, 0);
+        int binary = mGraph.threshold(blurred, 100, 255, FilterGraph.THRESH_BINARY);
+
+        Mat output = mScope.newMat();
+        assertTrue(mGraph.apply(mInput, output));
+        assertEquals(replans + 1, replans());
+        byte[] before = pixels(output);
+
+        // Parameters only: same plan, new values
+        mGraph.setParameter(binary, 0, 200);
+        mGraph.setParameter(blurred, 0, 7);
+        assertTrue(mGraph.apply(mInput, output));
+        assertEquals(replans + 1, replans());
+        assertFalse("Parameters not applied", Arrays.equals(before, pixels(output)));
+
+        // A new node changes the structure
+        mGraph.invert(binary);
+        assertTrue(mGraph.apply(mInput, output));
+        assertEquals(replans + 2, replans());
+        assertEquals("gaussian+threshold+invert", mGraph.getPlanDescription());
+
+        // Rebuilt with the same nodes and other values: still the same plan
+        mGraph.clear();
+        mGraph.invert(mGraph.threshold(mGraph.gaussian(FilterGraph.SOURCE, 3, 0), 50, 255,
+                FilterGraph.THRESH_BINARY));
+        assertTrue(mGraph.apply(mInput, output));
+        assertEquals(replans + 2, replans());
+    }
+
+    @Test
+    public void contextsRunTheCannyChainByDefault() {
+        long context = EdgeDetector.createContext();
+        try {
+            Mat rgba = mScope.newMat();
+            EdgeDetector.detectEdgesCached(context, 1, mInput.getNativeObjAddr(), rgba.getNativeObjAddr(),
+                    50, 150, 5);
+            mGraph = FilterGraph.cannyChain("test-chain", 50, 150, 5);
+            Mat edges = mScope.newMat();
+            assertTrue(mGraph.apply(mInput, edges));
+            assertBelowOverlayEquals(pixels(edges), rgba);
+        } finally {
+            EdgeDetector.releaseContext(context);
+        }
+    }
+
+    @Test
+    public void attachedGraphReplacesTheChain() {
+        long context = EdgeDetector.createContext();
+        try {
+            Mat rgba = mScope.newMat();
+            EdgeDetector.detectEdgesCached(context, 1, mInput.getNativeObjAddr(), rgba.getNativeObjAddr(),
+                    50, 150, 5);
+
+            mGraph = new FilterGraph("test-attach");
+            mGraph.canny(mGraph.median(FilterGraph.SOURCE, 5), 0, 0);
+            assertTrue(mGraph.attachTo(context));
+            // Same frame, but the gradients came from the other graph
+            assertFalse("Gradients reused across graphs", EdgeDetector.detectEdgesCached(context, 1,
+                    mInput.getNativeObjAddr(), rgba.getNativeObjAddr(), 50, 150, 5));
+            // The call's thresholds replace those of the graph's Canny node
+            mGraph.setParameter(1, 0, 50);
+            mGraph.setParameter(1, 1, 150);
+            Mat edges = mScope.newMat();
+            assertTrue(mGraph.apply(mInput, edges));
+            assertBelowOverlayEquals(pixels(edges), rgba);
+
+            // Threshold changes do not touch the graph, so gradients are reused
+            assertTrue(EdgeDetector.detectEdgesCached(context, 1, mInput.getNativeObjAddr(),
+                    rgba.getNativeObjAddr(), 60, 160, 5));
+
+            assertTrue(EdgeDetector.setEdgeGraph(context, 0));
+            EdgeDetector.detectEdgesCached(context, 1, mInput.getNativeObjAddr(), rgba.getNativeObjAddr(),
+                    50, 150, 5);
+            FilterGraph chain = FilterGraph.cannyChain("test-chain", 50, 150, 5);
+            try {
+                assertTrue(chain.apply(mInput, edges));
+                assertBelowOverlayEquals(pixels(edges), rgba);
+            } finally {
+                chain.release();
+            }
+        } finally {
+            EdgeDetector.releaseContext(context);
+        }
+    }
+
+    @Test
+    public void attachRejectsGraphsNotEndingInCanny() {
+        long context = EdgeDetector.createContext();
+        try {
+            mGraph = new FilterGraph("test-attach-sobel");
+            mGraph.sobel(mGraph.gaussian(FilterGraph.SOURCE, 5, 0), 1, 0, 3);
+            assertFalse(mGraph.attachTo(context));
+        } finally {
+            EdgeDetector.releaseContext(context);
+        }
+    }
+
+    /**
+     * Compare an edge mask with the red channel of RGBA detection output,
+     * below the green parameter overlay.
+     */
+    private static void assertBelowOverlayEquals(byte[] edges, Mat rgba) {
+        assertEquals(CvType.CV_8UC4, rgba.type());
+        byte[] output = new byte[WIDTH * HEIGHT * 4];
+        rgba.get(0, 0, output);
+        for (int i = OVERLAY_ROWS * WIDTH; i < WIDTH * HEIGHT; i++) {
+            assertEquals("Pixel " + i, edges[i], output[4 * i]);
+        }
+    }
+
+    private static long replans() {
+        return PipelineMetrics.counter("graph.test-replan.replans").get();
+    }
+
+    private static byte[] pixels(Mat mat) {
+        assertEquals(CvType.CV_8UC1, mat.type());
+        byte[] pixels = new byte[WIDTH * HEIGHT];
+        mat.get(0, 0, pixels);
+        return pixels;
+    }
+}
@@ -0,0 +1,107 @@
+package com.edgedetection;
+
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.edgedetection.memory.NativeMemory;
+import com.edgedetection.soak.SyntheticFrameSource;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.core.Core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Throughput of {@link ParallelEdgeProcessor} against its worker count on
+ * the device, with OpenCV's own threading off as its documentation
+ * recommends. Results are logged under the {@code ParallelBenchmark} tag:
+ * <pre>
+ * ./gradlew :app:connectedDebugAndroidTest \
+ *     -Pandroid.testInstrumentationRunnerArguments.class=com.edgedetection.ParallelEdgeProcessorBenchmark
+ * adb logcat -s ParallelBenchmark
+ * </pre>
+ */
+@RunWith(AndroidJUnit4.class)
+public class ParallelEdgeProcessorBenchmark {
+
+    private static final String TAG = "ParallelBenchmark";
+
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 720;
+    private static final int WARMUP_FRAMES = 20;
+    private static final int FRAMES = 200;
+
+    @BeforeClass
+    public static void loadLibraries() {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+        assumeTrue("edge_detection library not loaded", EdgeDetector.loadLibrary());
+    }
+
+    @Test
+    public void workerScaling() throws InterruptedException {
+        int cores = Runtime.getRuntime().availableProcessors();
+        List<Integer> workerCounts = new ArrayList<>();
+        for (int workers = 1; workers < cores; workers *= 2) {
+            workerCounts.add(workers);
+        }
+        workerCounts.add(cores);
+
+        int openCvThreads = Core.getNumThreads();
+        Core.setNumThreads(1);
+        SyntheticFrameSource source = new SyntheticFrameSource(WIDTH, HEIGHT);
+        try {
+            double baseline = 0;
+            for (int workers : workerCounts) {
+                double fps = framesPerSecond(source, workers);
+                if (baseline == 0) {
+                    baseline = fps;
+                }
+                Log.i(TAG, String.format(Locale.US, "%dx%d, %d of %d cores: %.1f fps, %.2fx one worker",
+                        WIDTH, HEIGHT, workers, cores, fps, fps / baseline));
+            }
+        } finally {
+            source.close();
+            Core.setNumThreads(openCvThreads);
+        }
+    }
+
+    private static double framesPerSecond(SyntheticFrameSource source, int workers)
+            throws InterruptedException {
+        AtomicInteger withEdges = new AtomicInteger();
+        ParallelEdgeProcessor processor = new ParallelEdgeProcessor(workers, workers * 2, result -> {
+            if (result.getEdges() != null) {
+                withEdges.incrementAndGet();
+            }
+        });
+        try {
+            for (int i = 0; i < WARMUP_FRAMES; i++) {
+                processor.submit(NativeMemory.track("benchmark.input", source.next().clone()), 0);
+            }
+            processor.drain();
+            withEdges.set(0);
+
+            // Frames are copied as they are submitted, since the processor
+            // releases its inputs; the copy overlaps with the workers
+            long start = System.nanoTime();
+            for (int i = 0; i < FRAMES; i++) {
+                processor.submit(NativeMemory.track("benchmark.input", source.next().clone()), 0);
+            }
+            processor.drain();
+            long elapsedNs = System.nanoTime() - start;
+
+            assertEquals(FRAMES, withEdges.get());
+            return FRAMES * 1e9 / elapsedNs;
+        } finally {
+            processor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.edgedetection.memory;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.edgedetection.metrics.PipelineMetrics;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the Mat accounting on a device with OpenCV. The counters are
+ * global, so each test uses sites of its own and compares deltas.
+ */
+@RunWith(AndroidJUnit4.class)
+public class NativeMemoryTest {
+
+    @BeforeClass
+    public static void loadLibraries() {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    }
+
+    @Test
+    public void tracksLiveMatsPerSite() {
+        long allocated = counter("native.mats.allocated");
+        long released = counter("native.mats.released");
+
+        Mat small = NativeMemory.newMat("test.site.a", 10, 10, CvType.CV_8UC1);
+        Mat large = NativeMemory.newMat("test.site.a", 20, 10, CvType.CV_8UC4);
+        Mat other = NativeMemory.newMat("test.site.b");
+
+        Map<String, long[]> sites = NativeMemory.sample();
+        assertEquals(2, sites.get("test.site.a")[0]);
+        assertEquals(100 + 800, sites.get("test.site.a")[1]);
+        assertEquals(1, sites.get("test.site.b")[0]);
+        assertEquals(0, sites.get("test.site.b")[1]);
+        assertEquals(2, counter("native.mats.live.test.site.a"));
+        assertEquals(900, counter("native.bytes.live.test.site.a"));
+        assertEquals(3, counter("native.mats.allocated") - allocated);
+
+        NativeMemory.release(small);
+        NativeMemory.release(large);
+        NativeMemory.release(other);
+        sites = NativeMemory.sample();
+        assertFalse(sites.containsKey("test.site.a"));
+        assertEquals("Emptied site gauge reset", 0, counter("native.mats.live.test.site.a"));
+        assertEquals(0, counter("native.bytes.live.test.site.a"));
+        assertEquals(3, counter("native.mats.released") - released);
+        assertTrue(small.empty());
+    }
+
+    @Test
+    public void releaseAcceptsNullAndUntrackedMats() {
+        long released = counter("native.mats.released");
+        NativeMemory.release(null);
+
+        Mat untracked = new Mat(4, 4, CvType.CV_8UC1);
+        NativeMemory.release(untracked);
+        assertTrue(untracked.empty());
+        assertNull(NativeMemory.track("test.untracked", null));
+        assertEquals(0, counter("native.mats.released") - released);
+    }
+
+    @Test
+    public void scopeReleasesItsMatsOnClose() {
+        Mat kept;
+        Mat inner;
+        Mat adopted;
+        try (MatScope scope = NativeMemory.scope("test.scope")) {
+            inner = scope.newMat(8, 8, CvType.CV_8UC1);
+            adopted = scope.track(inner.clone());
+            kept = scope.detach(scope.newMat(8, 8, CvType.CV_8UC1));
+            assertEquals(3, NativeMemory.sample().get("test.scope")[0]);
+        }
+        assertTrue(inner.empty());
+        assertTrue(adopted.empty());
+        assertFalse("Detached Mat outlives the scope", kept.empty());
+        assertEquals(1, NativeMemory.sample().get("test.scope")[0]);
+
+        NativeMemory.release(kept);
+        assertFalse(NativeMemory.sample().containsKey("test.scope"));
+    }
+
+    @Test
+    public void warnsWhenMatsLeakEveryFrame() {
+        long warnings = counter("native.leak.warnings");
+        List<Mat> leaked = new ArrayList<>();
+        try {
+            // Enough frames for three growing samples whatever the phase of
+            // the frame count left by earlier tests
+            for (int i = 0; i < 5 * 120 && counter("native.leak.warnings") == warnings; i++) {
+                leaked.add(NativeMemory.newMat("test.leak", 1, 64, CvType.CV_8UC1));
+                NativeMemory.onFrame();
+            }
+            assertEquals(1, counter("native.leak.warnings") - warnings);
+        } finally {
+            for (Mat mat : leaked) {
+                NativeMemory.release(mat);
+            }
+        }
+    }
+
+    private static long counter(String name) {
+        return PipelineMetrics.counter(name).get();
+    }
+}
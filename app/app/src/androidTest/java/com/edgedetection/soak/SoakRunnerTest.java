@@ -0,0 +1,115 @@
+package com.edgedetection.soak;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.edgedetection.EdgeBitmap;
+import com.edgedetection.EdgeDetector;
+import com.edgedetection.memory.NativeMemory;
+import com.edgedetection.recording.EdgeRecorder;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.core.Core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Short soaks on a device with the native libraries, checking the CSV
+ * rather than the numbers in it.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SoakRunnerTest {
+
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+
+    @BeforeClass
+    public static void loadLibraries() {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+        assumeTrue("edge_detection library not loaded", EdgeDetector.loadLibrary());
+    }
+
+    @Test
+    public void writesHeaderAndOneRowPerInterval() throws IOException {
+        StringWriter out = new StringWriter();
+        SoakRunner runner = new SoakRunner(new SyntheticFrameSource(WIDTH, HEIGHT), 1600, 500, "test-build");
+        int samples = runner.run(out);
+        // Three full intervals and the last 100 ms
+        assertEquals(4, samples);
+
+        String[] lines = out.toString().split("\n");
+        assertEquals(2 + samples, lines.length);
+        assertTrue(lines[0], lines[0].startsWith("# soak label=test-build source=synthetic 320x240 "));
+        assertEquals(SoakRunner.COLUMNS, lines[1]);
+        int columns = SoakRunner.COLUMNS.split(",").length;
+        for (int i = 2; i < lines.length; i++) {
+            String[] fields = lines[i].split(",");
+            assertEquals(lines[i], columns, fields.length);
+            assertTrue("No frames in " + lines[i], Long.parseLong(fields[1]) > 0);
+            assertTrue("No edges in " + lines[i], Double.parseDouble(fields[fields.length - 1]) > 0);
+        }
+        assertEquals(1.6, Double.parseDouble(lines[lines.length - 1].split(",")[0]), 0.15);
+        // Every Mat of the run and the source released
+        assertFalse(NativeMemory.sample().containsKey("soak.edges"));
+        assertFalse(NativeMemory.sample().containsKey("soak.synthetic"));
+    }
+
+    @Test
+    public void stopEndsRunEarly() throws IOException, InterruptedException {
+        SoakRunner runner = new SoakRunner(new SyntheticFrameSource(WIDTH, HEIGHT), 60_000, 100, "stop");
+        Thread stopper = new Thread(() -> {
+            try {
+                Thread.sleep(350);
+            } catch (InterruptedException e) {
+                return;
+            }
+            runner.stop();
+        });
+        stopper.start();
+        long start = System.nanoTime();
+        int samples = runner.run(new StringWriter());
+        stopper.join();
+        assertTrue("Ran " + (System.nanoTime() - start) / 1_000_000 + " ms",
+                System.nanoTime() - start < 5_000_000_000L);
+        assertTrue(samples >= 2 && samples <= 5);
+    }
+
+    @Test
+    public void replaysRecording() throws IOException {
+        File directory = new File(System.getProperty("java.io.tmpdir"), "soak-recording-" + System.nanoTime());
+        EdgeRecorder recorder = new EdgeRecorder(directory, 4, 64 * 1024);
+        EdgeBitmap bitmap = new EdgeBitmap(WIDTH, HEIGHT);
+        for (int x = 0; x < WIDTH; x++) {
+            bitmap.set(x, HEIGHT / 2, true);
+        }
+        for (int i = 0; i < 3; i++) {
+            assertTrue(recorder.record(bitmap, i, i));
+        }
+        recorder.close();
+
+        try {
+            StringWriter out = new StringWriter();
+            new SoakRunner(new RecordingFrameSource(directory), 300, 100, "replay").run(out);
+            assertTrue(out.toString(), out.toString().contains("source=recording " + directory.getName() + " (3 frames)"));
+            assertFalse(NativeMemory.sample().containsKey("soak.recording.rgba"));
+        } finally {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyInterval() {
+        new SoakRunner(null, 1000, 0, "invalid");
+    }
+}
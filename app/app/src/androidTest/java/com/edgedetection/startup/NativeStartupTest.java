@@ -0,0 +1,80 @@
+package com.edgedetection.startup;
+
+import android.os.Looper;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.edgedetection.EdgeDetector;
+import com.edgedetection.memory.NativeMemory;
+import com.edgedetection.metrics.PipelineMetrics;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Starts the native side the way the activities do. Loading happens once
+ * per process, so the tests only rely on it being finished, not on which
+ * of them started it.
+ */
+@RunWith(AndroidJUnit4.class)
+public class NativeStartupTest {
+
+    private static final long TIMEOUT_S = 30;
+
+    @Test
+    public void listenersRunOnMainThreadOnceLoaded() throws InterruptedException {
+        NativeStartup.start();
+        CountDownLatch ready = new CountDownLatch(1);
+        AtomicBoolean loaded = new AtomicBoolean();
+        AtomicBoolean onMain = new AtomicBoolean();
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(() ->
+                NativeStartup.whenReady(success -> {
+                    loaded.set(success);
+                    onMain.set(Looper.myLooper() == Looper.getMainLooper());
+                    ready.countDown();
+                }));
+
+        assertTrue("Not ready in " + TIMEOUT_S + " s", ready.await(TIMEOUT_S, TimeUnit.SECONDS));
+        assertTrue(loaded.get());
+        assertTrue(onMain.get());
+        assertTrue(NativeStartup.isReady());
+        assertTrue(EdgeDetector.isLibraryLoaded());
+    }
+
+    @Test
+    public void lateListenerRunsRightAway() throws InterruptedException {
+        awaitReady();
+        boolean[] called = {false};
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(() ->
+                NativeStartup.whenReady(success -> called[0] = success));
+        assertTrue(called[0]);
+    }
+
+    @Test
+    public void loadsAndWarmsUpOnce() throws InterruptedException {
+        awaitReady();
+        NativeStartup.start();
+        NativeStartup.start();
+        assertEquals(1, PipelineMetrics.histogram("startup.load").getCount());
+        assertEquals(1, PipelineMetrics.histogram("startup.warmup").getCount());
+        // The warm-up frame and its output are released again
+        assertFalse(NativeMemory.sample().containsKey("startup.warmup"));
+    }
+
+    private static void awaitReady() throws InterruptedException {
+        NativeStartup.start();
+        CountDownLatch ready = new CountDownLatch(1);
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(() ->
+                NativeStartup.whenReady(success -> ready.countDown()));
+        assertTrue("Not ready in " + TIMEOUT_S + " s", ready.await(TIMEOUT_S, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,23 @@
+#version 300 es
+// Image coordinates need more than mediump to address wide frames exactly
+precision highp float;
+
+// Input from vertex shader
+in vec2 vTexCoord;
+
+// Packed edge map: one byte per 8 pixels, lowest bit first
+uniform sampler2D uTexture;
+
+// Unpacked image size in pixels
+uniform vec2 uImageSize;
+
+// Output color
+out vec4 fragColor;
+
+void main() {
+    ivec2 pixel = ivec2(min(vTexCoord * uImageSize, uImageSize - 1.0));
+    float byteValue = texelFetch(uTexture, ivec2(pixel.x >> 3, pixel.y), 0).r;
+    int bits = int(byteValue * 255.0 + 0.5);
+    float edge = float((bits >> (pixel.x & 7)) & 1);
+    fragColor = vec4(vec3(edge), 1.0);
+}
@@ -0,0 +1,11 @@
+#version 300 es
+precision mediump float;
+
+uniform vec4 uColor;
+
+// Output color
+out vec4 fragColor;
+
+void main() {
+    fragColor = uColor;
+}
@@ -0,0 +1,14 @@
+#version 300 es
+precision highp float;
+
+// Point of a traced edge, in pixels of the processed frame
+in vec2 aPosition;
+
+// Affine map from frame pixels to clip space, one row per output axis
+uniform vec3 uPixelToClipX;
+uniform vec3 uPixelToClipY;
+
+void main() {
+    vec3 pixel = vec3(aPosition, 1.0);
+    gl_Position = vec4(dot(uPixelToClipX, pixel), dot(uPixelToClipY, pixel), 0.0, 1.0);
+}
@@ -0,0 +1,39 @@
+#version 300 es
+// Image coordinates need more than mediump to address wide frames exactly
+precision highp float;
+
+// Input from vertex shader
+in vec2 vTexCoord;
+
+// Newest frame, either RGBA or a packed edge map
+uniform sampler2D uTexture;
+uniform bool uCurrentPacked;
+uniform vec2 uImageSize;
+
+// Accumulated result of previous frames, same size as the render target
+uniform sampler2D uHistory;
+
+// 1 = exponential moving average, 2 = peak hold with decay
+uniform int uMode;
+// Weight of the history; 0 passes the current frame through
+uniform float uDecay;
+
+// Output color
+out vec4 fragColor;
+
+vec3 currentColor() {
+    if (uCurrentPacked) {
+        ivec2 pixel = ivec2(min(vTexCoord * uImageSize, uImageSize - 1.0));
+        float byteValue = texelFetch(uTexture, ivec2(pixel.x >> 3, pixel.y), 0).r;
+        int bits = int(byteValue * 255.0 + 0.5);
+        return vec3(float((bits >> (pixel.x & 7)) & 1));
+    }
+    return texture(uTexture, vTexCoord).rgb;
+}
+
+void main() {
+    vec3 current = currentColor();
+    vec3 history = texelFetch(uHistory, ivec2(gl_FragCoord.xy), 0).rgb;
+    vec3 result = uMode == 2 ? max(current, history * uDecay) : mix(current, history, uDecay);
+    fragColor = vec4(result, 1.0);
+}
@@ -1,6 +1,14 @@
 #include <jni.h>
 #include <opencv2/opencv.hpp>
 #include <android/log.h>
+#include <algorithm>
+#include <cmath>
+#include <cstdlib>
+#include <cstring>
+#include <vector>
+
+#include "filter_graph.h"
+#include "hardware_buffer.h"
 
 #define LOG_TAG "EdgeDetection-Native"
 #define LOGI(...) __android_log_print(ANDROID_LOG_INFO, LOG_TAG, __VA_ARGS__)
@@ -8,6 +16,446 @@
 
 using namespace cv;
 
+/**
+ * Gaussian kernel sizes must be odd and at least 1
+ */
+static int normalizeKernelSize(int blurSize) {
+    int kernelSize = blurSize;
+    if (kernelSize < 1) {
+        kernelSize = 1;
+    }
+    if (kernelSize % 2 == 0) {
+        kernelSize += 1;
+    }
+    return kernelSize;
+}
+
+// Largest supported processing scale
+static const int MAX_PROCESSING_SCALE = 8;
+
+/**
+ * Size of a frame processed at 1/scale of its resolution; mirrored by
+ * EdgeDetector.scaledSize on the Java side
+ */
+static Size scaledSize(const Size &size, int scale) {
+    return Size(std::max(1, size.width / scale), std::max(1, size.height / scale));
+}
+
+/**
+ * Everything before Canny, run through the graph's plan, then the 3x3 Sobel
+ * pass Canny would run internally. The resulting derivatives can be fed to
+ * Canny(dx, dy, ...) any number of times, so only non-max suppression and
+ * hysteresis depend on thresholds. The graph must end in a Canny node,
+ * whose own parameters are ignored.
+ *
+ * With scale > 1 the luma is area-averaged down to 1/scale of the input size
+ * first, so the graph, Sobel and Canny touch scale^2 fewer pixels. Graph
+ * parameters are in processed pixels.
+ */
+static bool computeGradients(filtergraph::Plan &graph, const Mat &input, Mat &dx, Mat &dy, int scale = 1) {
+    Mat gray;
+    if (input.channels() == 4) {
+        cvtColor(input, gray, COLOR_RGBA2GRAY);
+    } else if (input.channels() == 3) {
+        cvtColor(input, gray, COLOR_RGB2GRAY);
+    } else {
+        gray = input;
+    }
+
+    if (scale > 1) {
+        // Box filter and decimation in one pass; pyrDown would add a 5x5
+        // Gaussian on top of the graph's own smoothing
+        Mat small;
+        resize(gray, small, scaledSize(gray.size(), scale), 0, 0, INTER_AREA);
+        gray = small;
+    }
+
+    Mat cannyInput;
+    if (!filtergraph::runToResult(graph, gray, cannyInput)) {
+        return false;
+    }
+
+    // Same aperture and border mode as Canny(image, ...) uses internally
+    Sobel(cannyInput, dx, CV_16S, 1, 0, 3, 1, 0, BORDER_REPLICATE);
+    Sobel(cannyInput, dy, CV_16S, 0, 1, 3, 1, 0, BORDER_REPLICATE);
+    return true;
+}
+
+/**
+ * Draw edges as RGBA with the current parameters overlaid. Edges processed
+ * at a reduced scale get a proportionally smaller overlay, so the text
+ * looks the same once the display upscales the frame.
+ */
+static void renderOutput(const Mat &edges, Mat &output,
+                         int lowerThreshold, int upperThreshold, int kernelSize, int scale = 1) {
+    // Convert edges back to RGBA for display
+    cvtColor(edges, output, COLOR_GRAY2RGBA);
+
+    // Optional: Add parameter text overlay on the output
+    String lowerText = "Lower: " + std::to_string(lowerThreshold);
+    String upperText = "Upper: " + std::to_string(upperThreshold);
+    String blurText = "Blur: " + std::to_string(kernelSize);
+
+    double fontScale = 1.0 / scale;
+    int thickness = std::max(1, 2 / scale);
+    putText(output, lowerText, Point(10 / scale, 50 / scale),
+            FONT_HERSHEY_SIMPLEX, fontScale, Scalar(0, 255, 0, 255), thickness);
+    putText(output, upperText, Point(10 / scale, 100 / scale),
+            FONT_HERSHEY_SIMPLEX, fontScale, Scalar(0, 255, 0, 255), thickness);
+    putText(output, blurText, Point(10 / scale, 150 / scale),
+            FONT_HERSHEY_SIMPLEX, fontScale, Scalar(0, 255, 0, 255), thickness);
+}
+
+// Auto thresholds: share of sampled pixels treated as non-edges, the upper
+// threshold sits at this percentile of the gradient magnitude
+static const float AUTO_NON_EDGE_FRACTION = 0.85f;
+// Lower threshold as a fraction of the upper one
+static const float AUTO_LOWER_RATIO = 0.4f;
+// Weight of the newest frame in the running threshold average
+static const float AUTO_SMOOTHING = 0.2f;
+// Gradient samples per frame for the histogram
+static const int AUTO_TARGET_SAMPLES = 65536;
+// L1 magnitudes of 3x3 Sobel derivatives on 8-bit input stay below 2048
+static const int AUTO_BIN_SHIFT = 3;
+static const int AUTO_BINS = 2048 >> AUTO_BIN_SHIFT;
+
+/**
+ * Estimate Canny thresholds from a histogram of the L1 gradient magnitude,
+ * the measure Canny itself thresholds. Only a regular grid of about
+ * AUTO_TARGET_SAMPLES derivatives is read, so this costs a small fraction
+ * of the Sobel pass that produced them.
+ */
+static void estimateThresholds(const Mat &dx, const Mat &dy, float &upper) {
+    int pixels = dx.rows * dx.cols;
+    int step = std::max(1, (int) std::ceil(std::sqrt((double) pixels / AUTO_TARGET_SAMPLES)));
+
+    int histogram[AUTO_BINS] = {0};
+    int samples = 0;
+    for (int y = step / 2; y < dx.rows; y += step) {
+        const short *rowX = dx.ptr<short>(y);
+        const short *rowY = dy.ptr<short>(y);
+        for (int x = step / 2; x < dx.cols; x += step) {
+            int magnitude = std::abs(rowX[x]) + std::abs(rowY[x]);
+            histogram[std::min(magnitude >> AUTO_BIN_SHIFT, AUTO_BINS - 1)]++;
+            samples++;
+        }
+    }
+    if (samples == 0) {
+        return;
+    }
+
+    int target = (int) (samples * AUTO_NON_EDGE_FRACTION);
+    int seen = 0;
+    int bin = 0;
+    while (bin < AUTO_BINS - 1 && seen + histogram[bin] <= target) {
+        seen += histogram[bin];
+        bin++;
+    }
+    float estimate = (float) ((bin + 1) << AUTO_BIN_SHIFT);
+    upper = upper < 0 ? estimate : upper + AUTO_SMOOTHING * (estimate - upper);
+}
+
+// 8-neighbourhood, 4-connected neighbours first so traced chains prefer
+// straight steps over diagonal shortcuts
+static const int NEIGHBOUR_DX[8] = {1, 0, -1, 0, 1, -1, -1, 1};
+static const int NEIGHBOUR_DY[8] = {0, 1, 0, -1, 1, 1, -1, -1};
+
+/**
+ * Follow unvisited edge pixels from (x, y), clearing each one, and append
+ * them to chain. remaining has a one-pixel zero border, so neighbours never
+ * need bounds checks; coordinates are in the unpadded image.
+ */
+static void followChain(Mat &remaining, int x, int y, std::vector<Point> &chain) {
+    while (true) {
+        int next = -1;
+        for (int i = 0; i < 8; i++) {
+            if (remaining.at<uchar>(y + 1 + NEIGHBOUR_DY[i], x + 1 + NEIGHBOUR_DX[i]) != 0) {
+                next = i;
+                break;
+            }
+        }
+        if (next < 0) {
+            return;
+        }
+        x += NEIGHBOUR_DX[next];
+        y += NEIGHBOUR_DY[next];
+        remaining.at<uchar>(y + 1, x + 1) = 0;
+        chain.push_back(Point(x, y));
+    }
+}
+
+/**
+ * Trace an edge mask into simplified polylines.
+ *
+ * Every edge pixel belongs to exactly one chain. A chain is grown in both
+ * directions from the first unvisited pixel found in raster order, so it
+ * does not matter whether that pixel is an end point or in the middle of a
+ * curve; at junctions one branch continues the chain and the others become
+ * chains of their own. Chains shorter than minLength pixels are dropped, the
+ * rest are simplified with Douglas-Peucker at the given tolerance.
+ *
+ * @param points Receives x, y pairs of every polyline back to back
+ * @param offsets Receives the first point index of each polyline, plus the total point count
+ */
+static void tracePolylines(const Mat &edges, double tolerance, int minLength,
+                           std::vector<int> &points, std::vector<int> &offsets) {
+    points.clear();
+    offsets.clear();
+    offsets.push_back(0);
+
+    Mat remaining;
+    copyMakeBorder(edges, remaining, 1, 1, 1, 1, BORDER_CONSTANT, Scalar(0));
+
+    std::vector<Point> forward;
+    std::vector<Point> backward;
+    std::vector<Point> simplified;
+    for (int y = 0; y < edges.rows; y++) {
+        const uchar *row = remaining.ptr<uchar>(y + 1) + 1;
+        for (int x = 0; x < edges.cols; x++) {
+            if (row[x] == 0) {
+                continue;
+            }
+            remaining.at<uchar>(y + 1, x + 1) = 0;
+            forward.assign(1, Point(x, y));
+            followChain(remaining, x, y, forward);
+            backward.clear();
+            followChain(remaining, x, y, backward);
+            if ((int) (forward.size() + backward.size()) < minLength) {
+                continue;
+            }
+
+            // Backward half reversed, then the forward half from the start pixel on
+            std::reverse(backward.begin(), backward.end());
+            backward.insert(backward.end(), forward.begin(), forward.end());
+            if (tolerance > 0) {
+                approxPolyDP(backward, simplified, tolerance, false);
+            } else {
+                simplified.swap(backward);
+            }
+            for (const Point &point : simplified) {
+                points.push_back(point.x);
+                points.push_back(point.y);
+            }
+            offsets.push_back((int) points.size() / 2);
+        }
+    }
+}
+
+// Edge analytics: cells per side of the density grid, and orientation bins
+// of 22.5 degrees each, centred on 0, 22.5, ... 157.5
+static const int ANALYTICS_GRID = 8;
+static const int ANALYTICS_ORIENTATION_BINS = 8;
+// Int offsets in the analytics buffer, mirrored by EdgeAnalytics; the frame
+// id is an int64 over the first two
+static const int ANALYTICS_FRAME_ID = 0;
+static const int ANALYTICS_WIDTH = 2;
+static const int ANALYTICS_HEIGHT = 3;
+static const int ANALYTICS_EDGE_COUNT = 4;
+static const int ANALYTICS_CELLS = 5;
+static const int ANALYTICS_ORIENTATIONS = ANALYTICS_CELLS + ANALYTICS_GRID * ANALYTICS_GRID;
+static const int ANALYTICS_INTS = ANALYTICS_ORIENTATIONS + ANALYTICS_ORIENTATION_BINS;
+// tan(11.25), tan(33.75), tan(56.25) and tan(78.75) in 1/32768, the bin
+// boundaries within a quadrant
+static const int ORIENTATION_TAN_Q15[4] = {6518, 21895, 49041, 164736};
+
+/**
+ * Orientation bin of a gradient, folded to [0, 180) degrees like Canny's
+ * own direction quantisation but twice as fine, without trigonometry.
+ */
+static inline int orientationBin(int dx, int dy) {
+    int ax = std::abs(dx);
+    int ay = std::abs(dy) << 15;
+    int bin = 0;
+    while (bin < 4 && ay >= ax * ORIENTATION_TAN_Q15[bin]) {
+        bin++;
+    }
+    // Opposite signs put the direction in the second quadrant
+    return (dx ^ dy) < 0 ? (ANALYTICS_ORIENTATION_BINS - bin) % ANALYTICS_ORIENTATION_BINS : bin;
+}
+
+/**
+ * Count edge pixels overall, per grid cell and per gradient orientation.
+ * Reads the 8-bit mask Canny just wrote, at processing scale, and the
+ * cached derivatives only at edge pixels, so it costs far less than a pass
+ * over the RGBA output.
+ */
+static void computeAnalytics(const Mat &edges, const Mat &dx, const Mat &dy, jlong frameId, jint *out) {
+    std::fill(out, out + ANALYTICS_INTS, 0);
+    // Direct buffers are only int-aligned on some runtimes
+    std::memcpy(out + ANALYTICS_FRAME_ID, &frameId, sizeof(frameId));
+    out[ANALYTICS_WIDTH] = edges.cols;
+    out[ANALYTICS_HEIGHT] = edges.rows;
+
+    jint *cells = out + ANALYTICS_CELLS;
+    jint *orientations = out + ANALYTICS_ORIENTATIONS;
+    int total = 0;
+    for (int y = 0; y < edges.rows; y++) {
+        const uchar *row = edges.ptr<uchar>(y);
+        const short *rowX = dx.ptr<short>(y);
+        const short *rowY = dy.ptr<short>(y);
+        jint *cellRow = cells + (y * ANALYTICS_GRID / edges.rows) * ANALYTICS_GRID;
+        // Column cell boundaries instead of a division per pixel
+        for (int c = 0; c < ANALYTICS_GRID; c++) {
+            int end = (c + 1) * edges.cols / ANALYTICS_GRID;
+            int count = 0;
+            for (int x = c * edges.cols / ANALYTICS_GRID; x < end; x++) {
+                if (row[x] != 0) {
+                    count++;
+                    orientations[orientationBin(rowX[x], rowY[x])]++;
+                }
+            }
+            cellRow[c] += count;
+            total += count;
+        }
+    }
+    out[ANALYTICS_EDGE_COUNT] = total;
+}
+
+// Smallest strip worth handing to a worker thread
+static const int MIN_STRIP_ROWS = 64;
+// Extra rows around each strip on top of the blur radius, covering the
+// Sobel aperture, non-max suppression and short hysteresis chains
+static const int STRIP_HALO_ROWS = 8;
+
+/**
+ * One horizontal band of a large image, processed independently with a halo
+ * of overlapping rows so that blur and gradients match the full-frame result
+ * away from the band edges.
+ */
+struct EdgeStrip {
+    int regionTop = 0;      // first input row including the halo
+    int regionBottom = 0;   // one past the last input row including the halo
+    int rowStart = 0;       // first output row owned by this strip
+    int rowEnd = 0;         // one past the last output row owned by this strip
+    Mat dx;
+    Mat dy;
+    Mat edges;
+    // Copy of the context's graph; strips run in parallel
+    filtergraph::Plan graph;
+};
+
+/**
+ * Staged pipeline state kept between calls. The Sobel derivatives depend
+ * only on the frame and the blur size, so while those stay the same a
+ * threshold change reruns just non-max suppression and hysteresis.
+ * A context must only be used from one thread at a time.
+ */
+struct EdgeContext {
+    // Processing scale for detectCached, set through setProcessingScale
+    int scale = 1;
+    jlong frameId = -1;
+    int kernelSize = -1;
+    int gradientScale = 1;
+    Size frameSize;
+    // Derive thresholds from each new frame instead of using the caller's
+    bool autoThreshold = false;
+    // Running average of the estimated upper threshold, -1 until the first frame
+    float autoUpper = -1;
+    // Thresholds used by the last detectCached call
+    int lowerThreshold = 0;
+    int upperThreshold = 0;
+    // Polylines traced from edges by the last extractPolylines call
+    std::vector<int> polylinePoints;
+    std::vector<int> polylineOffsets;
+    // Caller's direct buffer of ANALYTICS_INTS ints filled after each
+    // detection, null while analytics are off
+    jint *analytics = nullptr;
+    bool tiled = false;
+    // Graph run before Canny: the Gaussian and Canny chain, re-parameterised
+    // from each call's blur size, unless setEdgeGraph loaded another one
+    filtergraph::Plan defaultGraph;
+    filtergraph::Plan customGraph;
+    bool useCustomGraph = false;
+    // prefixVersion of the graph the cached gradients came from
+    int gradientGraphVersion = -1;
+    Mat dx;
+    Mat dy;
+    Mat edges;
+    std::vector<EdgeStrip> strips;
+};
+
+/**
+ * The graph to run for this call, with the default chain's blur set to the
+ * given kernel size.
+ */
+static filtergraph::Plan &activeGraph(EdgeContext *context, int kernelSize) {
+    if (context->useCustomGraph) {
+        return context->customGraph;
+    }
+    // Thresholds come from each call and are applied to the cached gradients
+    filtergraph::cannyChain(context->defaultGraph, kernelSize, 0, 0);
+    return context->defaultGraph;
+}
+
+static void layoutStrips(std::vector<EdgeStrip> &strips, int rows, int halo) {
+    int workers = std::max(1, getNumThreads());
+    int stripCount = std::max(1, std::min(workers * 2, rows / MIN_STRIP_ROWS));
+    strips.assign(stripCount, EdgeStrip());
+    for (int i = 0; i < stripCount; i++) {
+        EdgeStrip &strip = strips[i];
+        strip.rowStart = (int) ((long long) rows * i / stripCount);
+        strip.rowEnd = (int) ((long long) rows * (i + 1) / stripCount);
+        strip.regionTop = std::max(0, strip.rowStart - halo);
+        strip.regionBottom = std::min(rows, strip.rowEnd + halo);
+    }
+}
+
+/**
+ * Run Canny into context->edges at the context's processing scale, reusing
+ * the cached gradients when frameId, kernel size and scale match the
+ * previous call. Returns true if they were reused.
+ *
+ * In auto threshold mode the given thresholds are ignored; the ones derived
+ * from the gradients are stored in the context instead.
+ */
+static bool detectCached(EdgeContext *context, jlong frameId, const Mat &input,
+                         int kernelSize, int lowerThreshold, int upperThreshold) {
+    // The blur shrinks with the processing scale to cover the same part of the scene
+    filtergraph::Plan &graph = activeGraph(context,
+            context->scale > 1 ? normalizeKernelSize(kernelSize / context->scale) : kernelSize);
+    bool reuse = context->frameId == frameId
+            && context->kernelSize == kernelSize
+            && context->gradientScale == context->scale
+            && context->gradientGraphVersion == graph.prefixVersion
+            && context->frameSize == input.size()
+            && !context->tiled
+            && !context->dx.empty();
+
+    if (!reuse) {
+        context->strips.clear();
+        if (!computeGradients(graph, input, context->dx, context->dy, context->scale)) {
+            LOGE("detectCached: graph does not end in a Canny step");
+            context->dx.release();
+            context->edges.release();
+            context->frameId = -1;
+            return false;
+        }
+        context->gradientGraphVersion = graph.prefixVersion;
+        context->frameId = frameId;
+        context->kernelSize = kernelSize;
+        context->gradientScale = context->scale;
+        context->frameSize = input.size();
+        context->tiled = false;
+        if (context->autoThreshold) {
+            estimateThresholds(context->dx, context->dy, context->autoUpper);
+        }
+    }
+
+    if (context->autoThreshold && context->autoUpper > 0) {
+        upperThreshold = std::min(255, cvRound(context->autoUpper));
+        lowerThreshold = cvRound(upperThreshold * AUTO_LOWER_RATIO);
+    }
+    context->lowerThreshold = lowerThreshold;
+    context->upperThreshold = upperThreshold;
+
+    // Non-max suppression and hysteresis only
+    Canny(context->dx, context->dy, context->edges, lowerThreshold, upperThreshold);
+    if (context->analytics != nullptr) {
+        computeAnalytics(context->edges, context->dx, context->dy, frameId, context->analytics);
+    }
+    return reuse;
+}
+
 extern "C" {
 
 /**
@@ -29,52 +477,515 @@ Java_com_edgedetection_EdgeDetector_detectEdges(
         Mat &input = *(Mat *) inputAddr;
         Mat &output = *(Mat *) outputAddr;
 
-        // Convert RGBA to Grayscale
-        Mat gray;
-        cvtColor(input, gray, COLOR_RGBA2GRAY);
-
         // Ensure blur size is odd and at least 1
-        int kernelSize = blurSize;
-        if (kernelSize < 1) {
-            kernelSize = 1;
+        int kernelSize = normalizeKernelSize(blurSize);
+
+        // Gray, Gaussian blur and Canny, the chain contexts run by default;
+        // compiled once per thread and re-parameterised per call
+        static thread_local filtergraph::Plan graph;
+        filtergraph::cannyChain(graph, kernelSize, lowerThreshold, upperThreshold);
+        Mat edges;
+        if (!filtergraph::run(graph, input, edges)) {
+            LOGE("detectEdges: empty input");
+            return;
         }
-        if (kernelSize % 2 == 0) {
-            kernelSize += 1;
+
+        // Convert edges back to RGBA for display, with parameter overlay
+        renderOutput(edges, output, lowerThreshold, upperThreshold, kernelSize);
+
+    } catch (cv::Exception &e) {
+        LOGE("OpenCV Error: %s", e.what());
+    } catch (...) {
+        LOGE("Unknown error in edge detection");
+    }
+}
+
+/**
+ * Batch variant for threshold sweeps: gray, blur and Sobel run once for the
+ * input frame, then Canny hysteresis runs once per (lower, upper) pair.
+ * Each edge map is written as an 8-bit mask (0 or 255) straight into the
+ * caller's direct ByteBuffer, so no Java arrays are allocated per result.
+ *
+ * Returns the number of edge maps written.
+ */
+JNIEXPORT jint JNICALL
+Java_com_edgedetection_EdgeDetector_detectEdgesBatch(
+        JNIEnv *env,
+        jclass clazz,
+        jlong inputAddr,
+        jintArray thresholdPairs,
+        jobjectArray outputs,
+        jint blurSize) {
+
+    try {
+        Mat &input = *(Mat *) inputAddr;
+        if (input.empty()) {
+            LOGE("detectEdgesBatch: empty input");
+            return 0;
         }
 
-        // Apply Gaussian blur to reduce noise
-        Mat blurred;
-        GaussianBlur(gray, blurred, Size(kernelSize, kernelSize), 0);
+        jsize pairValues = env->GetArrayLength(thresholdPairs);
+        jsize outputCount = env->GetArrayLength(outputs);
+        if (pairValues % 2 != 0 || pairValues / 2 != outputCount) {
+            LOGE("detectEdgesBatch: %d threshold values for %d outputs", pairValues, outputCount);
+            return 0;
+        }
 
-        // Apply Canny edge detection
-        Mat edges;
-        Canny(blurred, edges, lowerThreshold, upperThreshold);
+        std::vector<jint> thresholds(pairValues);
+        env->GetIntArrayRegion(thresholdPairs, 0, pairValues, thresholds.data());
 
-        // Convert edges back to RGBA for display
-        cvtColor(edges, output, COLOR_GRAY2RGBA);
+        // Threshold-independent work, done once for the whole batch
+        filtergraph::Plan graph;
+        filtergraph::cannyChain(graph, normalizeKernelSize(blurSize), 0, 0);
+        Mat dx, dy;
+        computeGradients(graph, input, dx, dy);
 
-        // Optional: Add parameter text overlay on the output
-        String lowerText = "Lower: " + std::to_string(lowerThreshold);
-        String upperText = "Upper: " + std::to_string(upperThreshold);
-        String blurText = "Blur: " + std::to_string(kernelSize);
+        const jlong requiredBytes = (jlong) input.rows * input.cols;
+        jint written = 0;
+        for (jsize i = 0; i < outputCount; i++) {
+            jobject buffer = env->GetObjectArrayElement(outputs, i);
+            void *address = buffer != nullptr ? env->GetDirectBufferAddress(buffer) : nullptr;
+            jlong capacity = buffer != nullptr ? env->GetDirectBufferCapacity(buffer) : -1;
+            if (address == nullptr || capacity < requiredBytes) {
+                LOGE("detectEdgesBatch: output %d is not a direct buffer of %lld bytes",
+                     i, (long long) requiredBytes);
+                if (buffer != nullptr) {
+                    env->DeleteLocalRef(buffer);
+                }
+                break;
+            }
 
-        putText(output, lowerText, Point(10, 50),
-                FONT_HERSHEY_SIMPLEX, 1.0, Scalar(0, 255, 0, 255), 2);
-        putText(output, upperText, Point(10, 100),
-                FONT_HERSHEY_SIMPLEX, 1.0, Scalar(0, 255, 0, 255), 2);
-        putText(output, blurText, Point(10, 150),
-                FONT_HERSHEY_SIMPLEX, 1.0, Scalar(0, 255, 0, 255), 2);
+            // Canny writes in place because size and type already match
+            Mat edges(input.rows, input.cols, CV_8UC1, address);
+            Canny(dx, dy, edges, thresholds[2 * i], thresholds[2 * i + 1]);
+            written++;
 
-        // Clean up temporary matrices
-        gray.release();
-        blurred.release();
-        edges.release();
+            env->DeleteLocalRef(buffer);
+        }
+        return written;
 
     } catch (cv::Exception &e) {
         LOGE("OpenCV Error: %s", e.what());
     } catch (...) {
-        LOGE("Unknown error in edge detection");
+        LOGE("Unknown error in batch edge detection");
+    }
+    return 0;
+}
+
+JNIEXPORT jlong JNICALL
+Java_com_edgedetection_EdgeDetector_createContext(
+        JNIEnv *env,
+        jclass clazz) {
+    return (jlong) new EdgeContext();
+}
+
+JNIEXPORT void JNICALL
+Java_com_edgedetection_EdgeDetector_releaseContext(
+        JNIEnv *env,
+        jclass clazz,
+        jlong contextAddr) {
+    delete (EdgeContext *) contextAddr;
+}
+
+/**
+ * Process frames given to detectEdgesCached and detectEdgesToHardwareBuffer
+ * at 1/scale of their width and height. The tiled still path always runs at
+ * full resolution.
+ */
+JNIEXPORT void JNICALL
+Java_com_edgedetection_EdgeDetector_setProcessingScale(
+        JNIEnv *env,
+        jclass clazz,
+        jlong contextAddr,
+        jint scale) {
+    EdgeContext *context = (EdgeContext *) contextAddr;
+    if (context == nullptr) {
+        return;
+    }
+    context->scale = std::max(1, std::min((int) scale, MAX_PROCESSING_SCALE));
+    LOGI("Processing scale 1/%d", context->scale);
+}
+
+/**
+ * Let detectEdgesCached and detectEdgesToHardwareBuffer pick thresholds from
+ * each frame's gradient histogram, smoothed over time. Turning it off keeps
+ * the running average so switching back does not start from scratch.
+ */
+JNIEXPORT void JNICALL
+Java_com_edgedetection_EdgeDetector_setAutoThreshold(
+        JNIEnv *env,
+        jclass clazz,
+        jlong contextAddr,
+        jboolean enabled) {
+    EdgeContext *context = (EdgeContext *) contextAddr;
+    if (context == nullptr) {
+        return;
+    }
+    context->autoThreshold = enabled == JNI_TRUE;
+    if (context->autoThreshold && context->autoUpper < 0 && !context->dx.empty() && !context->tiled) {
+        // Start from the frame already cached rather than the next one
+        estimateThresholds(context->dx, context->dy, context->autoUpper);
+    }
+}
+
+/**
+ * Write the (lower, upper) thresholds used by the last detection into the
+ * first two elements of the array.
+ */
+JNIEXPORT jboolean JNICALL
+Java_com_edgedetection_EdgeDetector_getThresholds(
+        JNIEnv *env,
+        jclass clazz,
+        jlong contextAddr,
+        jintArray thresholds) {
+    EdgeContext *context = (EdgeContext *) contextAddr;
+    if (context == nullptr || env->GetArrayLength(thresholds) < 2) {
+        return JNI_FALSE;
+    }
+    jint values[2] = {context->lowerThreshold, context->upperThreshold};
+    env->SetIntArrayRegion(thresholds, 0, 2, values);
+    return JNI_TRUE;
+}
+
+/**
+ * Fill the direct buffer with edge analytics after every detectEdgesCached
+ * and detectEdgesToHardwareBuffer call on this context; null stops. The
+ * caller keeps the buffer alive while it is set.
+ */
+JNIEXPORT jboolean JNICALL
+Java_com_edgedetection_EdgeDetector_setAnalyticsBuffer(
+        JNIEnv *env,
+        jclass clazz,
+        jlong contextAddr,
+        jobject buffer) {
+    EdgeContext *context = (EdgeContext *) contextAddr;
+    if (context == nullptr) {
+        return JNI_FALSE;
+    }
+    if (buffer == nullptr) {
+        context->analytics = nullptr;
+        return JNI_TRUE;
+    }
+    void *address = env->GetDirectBufferAddress(buffer);
+    if (address == nullptr || env->GetDirectBufferCapacity(buffer) < (jlong) (ANALYTICS_INTS * sizeof(jint))) {
+        LOGE("setAnalyticsBuffer: need a direct buffer of %d bytes", (int) (ANALYTICS_INTS * sizeof(jint)));
+        return JNI_FALSE;
+    }
+    context->analytics = (jint *) address;
+    return JNI_TRUE;
+}
+
+/**
+ * Run detectEdgesCached, detectEdgesToHardwareBuffer and detectEdgesTiled
+ * through a copy of the given filter graph instead of the Gaussian and Canny
+ * chain; 0 restores the chain. The graph must end in a Canny node, whose
+ * thresholds are replaced by each call's; the blur size of the calls then
+ * only appears in the overlay. Changes to the graph need another call.
+ */
+JNIEXPORT jboolean JNICALL
+Java_com_edgedetection_EdgeDetector_setEdgeGraph(
+        JNIEnv *env,
+        jclass clazz,
+        jlong contextAddr,
+        jlong graphAddr) {
+    EdgeContext *context = (EdgeContext *) contextAddr;
+    filtergraph::Plan *graph = (filtergraph::Plan *) graphAddr;
+    if (context == nullptr) {
+        return JNI_FALSE;
+    }
+    if (graph == nullptr) {
+        context->useCustomGraph = false;
+        context->frameId = -1;
+        return JNI_TRUE;
+    }
+    if (filtergraph::resultType(*graph) != filtergraph::CANNY) {
+        LOGE("setEdgeGraph: the graph must end in a Canny node");
+        return JNI_FALSE;
+    }
+    try {
+        if (!filtergraph::copy(*graph, context->customGraph)) {
+            return JNI_FALSE;
+        }
+        // A different graph object may have the same version
+        if (!context->useCustomGraph) {
+            context->frameId = -1;
+        }
+        context->useCustomGraph = true;
+        return JNI_TRUE;
+    } catch (cv::Exception &e) {
+        LOGE("OpenCV Error: %s", e.what());
+    } catch (...) {
+        LOGE("Unknown error setting edge graph");
+    }
+    return JNI_FALSE;
+}
+
+/**
+ * Trace the edges of the last detectEdgesCached or detectEdgesToHardwareBuffer
+ * call into polylines, kept in the context until copyPolylines. Coordinates
+ * are in the processed frame, i.e. after the processing scale.
+ *
+ * sizes receives the polyline count, the point count and the width and
+ * height of the traced frame. Returns JNI_FALSE if there are no edges to trace.
+ */
+JNIEXPORT jboolean JNICALL
+Java_com_edgedetection_EdgeDetector_extractPolylines(
+        JNIEnv *env,
+        jclass clazz,
+        jlong contextAddr,
+        jfloat tolerance,
+        jint minLength,
+        jintArray sizes) {
+
+    try {
+        EdgeContext *context = (EdgeContext *) contextAddr;
+        if (context == nullptr || context->tiled || context->edges.empty()
+                || env->GetArrayLength(sizes) < 4) {
+            LOGE("extractPolylines: no cached edges");
+            return JNI_FALSE;
+        }
+        tracePolylines(context->edges, tolerance, minLength,
+                       context->polylinePoints, context->polylineOffsets);
+
+        jint values[4] = {
+            (jint) context->polylineOffsets.size() - 1,
+            (jint) context->polylinePoints.size() / 2,
+            context->edges.cols,
+            context->edges.rows
+        };
+        env->SetIntArrayRegion(sizes, 0, 4, values);
+        return JNI_TRUE;
+
+    } catch (cv::Exception &e) {
+        LOGE("OpenCV Error: %s", e.what());
+    } catch (...) {
+        LOGE("Unknown error in polyline extraction");
+    }
+    return JNI_FALSE;
+}
+
+/**
+ * Copy the polylines of the last extractPolylines call. points needs two
+ * ints per point, offsets one per polyline plus one.
+ */
+JNIEXPORT jboolean JNICALL
+Java_com_edgedetection_EdgeDetector_copyPolylines(
+        JNIEnv *env,
+        jclass clazz,
+        jlong contextAddr,
+        jintArray points,
+        jintArray offsets) {
+    EdgeContext *context = (EdgeContext *) contextAddr;
+    if (context == nullptr
+            || env->GetArrayLength(points) < (jsize) context->polylinePoints.size()
+            || env->GetArrayLength(offsets) < (jsize) context->polylineOffsets.size()) {
+        return JNI_FALSE;
+    }
+    env->SetIntArrayRegion(points, 0, (jsize) context->polylinePoints.size(),
+                           context->polylinePoints.data());
+    env->SetIntArrayRegion(offsets, 0, (jsize) context->polylineOffsets.size(),
+                           context->polylineOffsets.data());
+    return JNI_TRUE;
+}
+
+/**
+ * Same output as detectEdges, but reuses the gradients cached in the context
+ * when frameId, blur size and graph match the previous call. The output is
+ * 1/scale of the input size when a processing scale is set.
+ *
+ * Returns JNI_TRUE if the cached gradients were reused.
+ */
+JNIEXPORT jboolean JNICALL
+Java_com_edgedetection_EdgeDetector_detectEdgesCached(
+        JNIEnv *env,
+        jclass clazz,
+        jlong contextAddr,
+        jlong frameId,
+        jlong inputAddr,
+        jlong outputAddr,
+        jint lowerThreshold,
+        jint upperThreshold,
+        jint blurSize) {
+
+    try {
+        EdgeContext *context = (EdgeContext *) contextAddr;
+        Mat &input = *(Mat *) inputAddr;
+        Mat &output = *(Mat *) outputAddr;
+        if (context == nullptr || input.empty()) {
+            LOGE("detectEdgesCached: missing context or empty input");
+            return JNI_FALSE;
+        }
+
+        int kernelSize = normalizeKernelSize(blurSize);
+        bool reuse = detectCached(context, frameId, input, kernelSize, lowerThreshold, upperThreshold);
+        if (context->edges.empty()) {
+            return JNI_FALSE;
+        }
+        renderOutput(context->edges, output, context->lowerThreshold, context->upperThreshold,
+                     kernelSize, context->gradientScale);
+
+        return reuse ? JNI_TRUE : JNI_FALSE;
+
+    } catch (cv::Exception &e) {
+        LOGE("OpenCV Error: %s", e.what());
+    } catch (...) {
+        LOGE("Unknown error in cached edge detection");
+    }
+    return JNI_FALSE;
+}
+
+/**
+ * Same as detectEdgesCached, but the RGBA output is rendered straight into
+ * an AHardwareBuffer that the GL thread samples as an EGLImage texture, so
+ * the pixels are written once and never copied afterwards. The buffer must
+ * match the processed size, the input size divided by the processing scale,
+ * and must not be in use by the GPU.
+ *
+ * Returns JNI_FALSE if the buffer could not be written.
+ */
+JNIEXPORT jboolean JNICALL
+Java_com_edgedetection_EdgeDetector_detectEdgesToHardwareBuffer(
+        JNIEnv *env,
+        jclass clazz,
+        jlong contextAddr,
+        jlong frameId,
+        jlong inputAddr,
+        jlong bufferAddr,
+        jint lowerThreshold,
+        jint upperThreshold,
+        jint blurSize) {
+
+    void *buffer = (void *) bufferAddr;
+    bool locked = false;
+    bool written = false;
+    try {
+        EdgeContext *context = (EdgeContext *) contextAddr;
+        Mat &input = *(Mat *) inputAddr;
+        if (context == nullptr || buffer == nullptr || input.empty()) {
+            LOGE("detectEdgesToHardwareBuffer: missing context, buffer or input");
+            return JNI_FALSE;
+        }
+
+        int kernelSize = normalizeKernelSize(blurSize);
+        detectCached(context, frameId, input, kernelSize, lowerThreshold, upperThreshold);
+        if (context->edges.empty()) {
+            return JNI_FALSE;
+        }
+
+        Mat pixels;
+        locked = hwbuffer::lock(buffer, pixels);
+        if (!locked) {
+            return JNI_FALSE;
+        }
+        if (pixels.size() != context->edges.size()) {
+            LOGE("detectEdgesToHardwareBuffer: buffer is %dx%d, edges %dx%d",
+                 pixels.cols, pixels.rows, context->edges.cols, context->edges.rows);
+        } else {
+            // Same size and type, so cvtColor and putText write into the buffer in place
+            const uchar *address = pixels.data;
+            renderOutput(context->edges, pixels, context->lowerThreshold, context->upperThreshold,
+                         kernelSize, context->gradientScale);
+            written = pixels.data == address;
+        }
+
+    } catch (cv::Exception &e) {
+        LOGE("OpenCV Error: %s", e.what());
+    } catch (...) {
+        LOGE("Unknown error in hardware buffer edge detection");
+    }
+    if (locked && !hwbuffer::unlock(buffer)) {
+        written = false;
+    }
+    return written ? JNI_TRUE : JNI_FALSE;
+}
+
+/**
+ * Strip-tiled variant for large stills. The image is cut into horizontal
+ * strips that are run through the context's graph, differentiated and
+ * thresholded in parallel, each
+ * with a halo of overlapping rows. Per-strip gradients are cached in the
+ * context exactly like detectEdgesCached, so threshold-only changes on the
+ * same frameId skip the expensive stages.
+ *
+ * Hysteresis does not follow weak edges across strip boundaries further
+ * than the halo, so results can differ from full-frame Canny in rare spots.
+ * The output is a single-channel 8-bit edge mask without text overlay.
+ *
+ * Returns JNI_TRUE if the cached gradients were reused.
+ */
+JNIEXPORT jboolean JNICALL
+Java_com_edgedetection_EdgeDetector_detectEdgesTiled(
+        JNIEnv *env,
+        jclass clazz,
+        jlong contextAddr,
+        jlong frameId,
+        jlong inputAddr,
+        jlong outputAddr,
+        jint lowerThreshold,
+        jint upperThreshold,
+        jint blurSize) {
+
+    try {
+        EdgeContext *context = (EdgeContext *) contextAddr;
+        Mat &input = *(Mat *) inputAddr;
+        Mat &output = *(Mat *) outputAddr;
+        if (context == nullptr || input.empty()) {
+            LOGE("detectEdgesTiled: missing context or empty input");
+            return JNI_FALSE;
+        }
+
+        int kernelSize = normalizeKernelSize(blurSize);
+        filtergraph::Plan &graph = activeGraph(context, kernelSize);
+        bool reuse = context->frameId == frameId
+                && context->kernelSize == kernelSize
+                && context->gradientGraphVersion == graph.prefixVersion
+                && context->frameSize == input.size()
+                && context->tiled
+                && !context->strips.empty();
+
+        if (!reuse) {
+            context->dx.release();
+            context->dy.release();
+            context->edges.release();
+            layoutStrips(context->strips, input.rows, filtergraph::reach(graph) + STRIP_HALO_ROWS);
+            for (EdgeStrip &strip : context->strips) {
+                filtergraph::copy(graph, strip.graph);
+            }
+            context->gradientGraphVersion = graph.prefixVersion;
+            context->frameId = frameId;
+            context->kernelSize = kernelSize;
+            context->frameSize = input.size();
+            context->tiled = true;
+        }
+
+        output.create(input.rows, input.cols, CV_8UC1);
+
+        std::vector<EdgeStrip> &strips = context->strips;
+        parallel_for_(Range(0, (int) strips.size()), [&](const Range &range) {
+            for (int i = range.start; i < range.end; i++) {
+                EdgeStrip &strip = strips[i];
+                if (!reuse) {
+                    Mat region = input.rowRange(strip.regionTop, strip.regionBottom);
+                    computeGradients(strip.graph, region, strip.dx, strip.dy);
+                }
+                Canny(strip.dx, strip.dy, strip.edges, lowerThreshold, upperThreshold);
+
+                // Keep only the rows this strip owns, the halo belongs to its neighbours
+                int offset = strip.rowStart - strip.regionTop;
+                Mat owned = strip.edges.rowRange(offset, offset + strip.rowEnd - strip.rowStart);
+                Mat target = output.rowRange(strip.rowStart, strip.rowEnd);
+                owned.copyTo(target);
+            }
+        });
+
+        return reuse ? JNI_TRUE : JNI_FALSE;
+
+    } catch (cv::Exception &e) {
+        LOGE("OpenCV Error: %s", e.what());
+    } catch (...) {
+        LOGE("Unknown error in tiled edge detection");
     }
+    return JNI_FALSE;
 }
 
 } // extern "C"
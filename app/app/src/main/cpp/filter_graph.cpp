@@ -0,0 +1,563 @@
+#include "filter_graph.h"
+
+#include <jni.h>
+#include <android/log.h>
+#include <algorithm>
+#include <chrono>
+
+#define LOG_TAG "EdgeDetection-Graph"
+#define LOGI(...) __android_log_print(ANDROID_LOG_INFO, LOG_TAG, __VA_ARGS__)
+#define LOGE(...) __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, __VA_ARGS__)
+
+using namespace cv;
+
+namespace filtergraph {
+
+static const int STRUCTURE_PER_NODE = 3;
+
+// Slot of the last step, which writes into the caller's output
+static const int OUTPUT_SLOT = -2;
+
+static const char *const NODE_NAMES[NODE_TYPE_COUNT] = {
+    "gaussian", "median", "bilateral", "sobel", "scharr", "laplacian",
+    "canny", "morphology", "threshold", "invert", "gain", "combine"
+};
+
+static const int MORPH_OPERATIONS[] = {MORPH_ERODE, MORPH_DILATE, MORPH_OPEN, MORPH_CLOSE, MORPH_GRADIENT};
+static const int MORPH_SHAPES[] = {MORPH_RECT, MORPH_ELLIPSE, MORPH_CROSS};
+
+/**
+ * Nodes whose output pixel depends only on the same input pixel, so any
+ * run of them collapses into one 256-entry table
+ */
+static bool isPerPixel(int type) {
+    return type == THRESHOLD || type == INVERT || type == GAIN;
+}
+
+static int clampIndex(float value, int count) {
+    return std::max(0, std::min((int) value, count - 1));
+}
+
+/**
+ * Odd kernel size of at least 1
+ */
+static int oddKernel(float size) {
+    int kernelSize = std::max(1, (int) size);
+    return kernelSize % 2 == 0 ? kernelSize + 1 : kernelSize;
+}
+
+static uchar applyPixel(const Node &node, uchar value) {
+    switch (node.type) {
+        case THRESHOLD: {
+            // Same modes and comparison as cv::threshold on 8-bit input
+            bool above = value > node.params[0];
+            uchar maxValue = saturate_cast<uchar>(node.params[1]);
+            switch ((int) node.params[2]) {
+                case 1: return above ? 0 : maxValue;                              // binary inverted
+                case 2: return above ? saturate_cast<uchar>(node.params[0]) : value; // truncate
+                case 3: return above ? value : 0;                                 // to zero
+                case 4: return above ? 0 : value;                                 // to zero inverted
+                default: return above ? maxValue : 0;                             // binary
+            }
+        }
+        case INVERT:
+            return (uchar) (255 - value);
+        case GAIN:
+            return saturate_cast<uchar>(value * node.params[0] + node.params[1]);
+        default:
+            return value;
+    }
+}
+
+/**
+ * Compose per-pixel nodes into the step's lookup table. Rebuilt every run,
+ * since 256 entries cost less than checking whether parameters changed.
+ */
+static void buildLut(Step &step, const std::vector<Node> &nodes, bool includeHead) {
+    step.lut.create(1, 256, CV_8UC1);
+    uchar *table = step.lut.ptr();
+    for (int value = 0; value < 256; value++) {
+        uchar pixel = (uchar) value;
+        if (includeHead) {
+            pixel = applyPixel(nodes[step.node], pixel);
+        }
+        for (int fused : step.fused) {
+            pixel = applyPixel(nodes[fused], pixel);
+        }
+        table[value] = pixel;
+    }
+}
+
+/**
+ * Run a node that is not per-pixel. Derivatives are taken at 16 bits and
+ * stored as absolute values, so every node sees 8-bit input.
+ */
+static void applyNode(Step &step, const Node &node, const Mat &input, const Mat &second, Mat &output) {
+    const float *p = node.params;
+    switch (node.type) {
+        case GAUSSIAN: {
+            int kernelSize = oddKernel(p[0]);
+            GaussianBlur(input, output, Size(kernelSize, kernelSize), p[1]);
+            break;
+        }
+        case MEDIAN: {
+            int kernelSize = oddKernel(p[0]);
+            if (kernelSize < 3) {
+                input.copyTo(output);
+            } else {
+                medianBlur(input, output, kernelSize);
+            }
+            break;
+        }
+        case BILATERAL:
+            bilateralFilter(input, output, std::max(1, (int) p[0]), p[1], p[2]);
+            break;
+        case SOBEL: {
+            int xOrder = clampIndex(p[0], 3);
+            int yOrder = clampIndex(p[1], 3);
+            if (xOrder + yOrder == 0) {
+                xOrder = 1;
+            }
+            int kernelSize = p[2] > 0 ? std::min(oddKernel(p[2]), 7) : 3;
+            if (kernelSize <= std::max(xOrder, yOrder)) {
+                kernelSize = 3;
+            }
+            Sobel(input, step.derivative, CV_16S, xOrder, yOrder, kernelSize);
+            convertScaleAbs(step.derivative, output);
+            break;
+        }
+        case SCHARR: {
+            // Scharr is first order in exactly one direction
+            bool x = p[0] > 0 || p[1] <= 0;
+            Scharr(input, step.derivative, CV_16S, x ? 1 : 0, x ? 0 : 1);
+            convertScaleAbs(step.derivative, output);
+            break;
+        }
+        case LAPLACIAN:
+            Laplacian(input, step.derivative, CV_16S, std::min(oddKernel(p[0]), 7));
+            convertScaleAbs(step.derivative, output);
+            break;
+        case CANNY:
+            Canny(input, output, p[0], p[1]);
+            break;
+        case MORPHOLOGY: {
+            int kernelSize = std::max(1, (int) p[1]);
+            int shape = MORPH_SHAPES[clampIndex(p[2], 3)];
+            if (step.kernel.empty() || step.kernelSize != kernelSize || step.kernelShape != shape) {
+                step.kernel = getStructuringElement(shape, Size(kernelSize, kernelSize));
+                step.kernelSize = kernelSize;
+                step.kernelShape = shape;
+            }
+            morphologyEx(input, output, MORPH_OPERATIONS[clampIndex(p[0], 5)], step.kernel);
+            break;
+        }
+        case COMBINE:
+            switch ((int) p[0]) {
+                case 1: min(input, second, output); break;
+                case 2: add(input, second, output); break;
+                case 3: absdiff(input, second, output); break;
+                default: max(input, second, output); break;
+            }
+            break;
+        default:
+            break;
+    }
+}
+
+/**
+ * Turn nodes into steps and assign buffers. Only called when the graph
+ * structure changed.
+ */
+static void compile(Plan &plan) {
+    const std::vector<Node> &nodes = plan.nodes;
+    int nodeCount = (int) nodes.size();
+
+    // Everything the last node depends on, walking inputs backwards
+    std::vector<bool> live(nodeCount, false);
+    std::vector<int> consumers(nodeCount, 0);
+    live[nodeCount - 1] = true;
+    for (int i = nodeCount - 1; i >= 0; i--) {
+        if (!live[i]) {
+            continue;
+        }
+        if (nodes[i].input != SOURCE) {
+            live[nodes[i].input] = true;
+            consumers[nodes[i].input]++;
+        }
+        if (nodes[i].type == COMBINE && nodes[i].secondInput != SOURCE) {
+            live[nodes[i].secondInput] = true;
+            consumers[nodes[i].secondInput]++;
+        }
+    }
+
+    // A per-pixel node joins the step producing its input when nothing else
+    // reads that intermediate image; the step then applies it in place
+    std::vector<int> stepOf(nodeCount, -1);
+    std::vector<Step> &steps = plan.steps;
+    steps.clear();
+    for (int i = 0; i < nodeCount; i++) {
+        if (!live[i]) {
+            continue;
+        }
+        const Node &node = nodes[i];
+        if (isPerPixel(node.type) && node.input != SOURCE && consumers[node.input] == 1) {
+            Step &step = steps[stepOf[node.input]];
+            step.fused.push_back(i);
+            step.name += std::string("+") + NODE_NAMES[node.type];
+            stepOf[i] = stepOf[node.input];
+        } else {
+            Step step;
+            step.node = i;
+            step.name = NODE_NAMES[node.type];
+            stepOf[i] = (int) steps.size();
+            steps.push_back(step);
+        }
+    }
+
+    // Step reading each step's output last
+    int stepCount = (int) steps.size();
+    std::vector<int> lastUse(stepCount, -1);
+    for (int s = 0; s < stepCount; s++) {
+        const Node &node = nodes[steps[s].node];
+        if (node.input != SOURCE) {
+            lastUse[stepOf[node.input]] = s;
+        }
+        if (node.type == COMBINE && node.secondInput != SOURCE) {
+            lastUse[stepOf[node.secondInput]] = s;
+        }
+    }
+
+    // Inputs are freed only after the output is assigned, so a step never
+    // writes into a buffer it reads; bilateral and median need that
+    std::vector<int> freeSlots;
+    int slotCount = 0;
+    for (int s = 0; s < stepCount; s++) {
+        Step &step = steps[s];
+        const Node &node = nodes[step.node];
+        int inputStep = node.input != SOURCE ? stepOf[node.input] : -1;
+        int secondStep = node.type == COMBINE && node.secondInput != SOURCE ? stepOf[node.secondInput] : -1;
+        step.inputSlot = inputStep >= 0 ? steps[inputStep].outputSlot : SOURCE;
+        step.secondSlot = secondStep >= 0 ? steps[secondStep].outputSlot : SOURCE;
+
+        if (s == stepCount - 1) {
+            step.outputSlot = OUTPUT_SLOT;
+        } else if (!freeSlots.empty()) {
+            step.outputSlot = freeSlots.back();
+            freeSlots.pop_back();
+        } else {
+            step.outputSlot = slotCount++;
+        }
+
+        if (inputStep >= 0 && lastUse[inputStep] == s) {
+            freeSlots.push_back(step.inputSlot);
+        }
+        if (secondStep >= 0 && secondStep != inputStep && lastUse[secondStep] == s) {
+            freeSlots.push_back(step.secondSlot);
+        }
+    }
+
+    // Existing Mats keep their memory, so a replan at the same frame size
+    // allocates nothing
+    plan.slots.resize(slotCount);
+    plan.stepNs.assign(stepCount, 0);
+    plan.compileCount++;
+    LOGI("Filter graph planned: %s, %d nodes in %d steps, %d buffers",
+         describe(plan).c_str(), nodeCount, stepCount, slotCount);
+}
+
+bool configure(Plan &plan, const std::vector<int> &structure,
+               const std::vector<float> &params, bool &replanned) {
+    replanned = false;
+    int nodeCount = (int) structure.size() / STRUCTURE_PER_NODE;
+    if (nodeCount == 0 || (int) structure.size() != nodeCount * STRUCTURE_PER_NODE
+            || (int) params.size() != nodeCount * PARAMS_PER_NODE) {
+        LOGE("Filter graph: %d structure values and %d parameters do not describe whole nodes",
+             (int) structure.size(), (int) params.size());
+        return false;
+    }
+
+    std::vector<Node> nodes(nodeCount);
+    for (int i = 0; i < nodeCount; i++) {
+        Node &node = nodes[i];
+        node.type = structure[i * STRUCTURE_PER_NODE];
+        node.input = structure[i * STRUCTURE_PER_NODE + 1];
+        node.secondInput = node.type == COMBINE ? structure[i * STRUCTURE_PER_NODE + 2] : SOURCE;
+        // Inputs must come earlier, which also rules out cycles
+        if (node.type < 0 || node.type >= NODE_TYPE_COUNT
+                || node.input < SOURCE || node.input >= i
+                || node.secondInput < SOURCE || node.secondInput >= i) {
+            LOGE("Filter graph: invalid node %d (type %d, inputs %d, %d)",
+                 i, node.type, node.input, node.secondInput);
+            return false;
+        }
+        std::copy(params.begin() + i * PARAMS_PER_NODE, params.begin() + (i + 1) * PARAMS_PER_NODE,
+                  node.params);
+    }
+
+    bool sameStructure = nodes.size() == plan.nodes.size();
+    for (int i = 0; sameStructure && i < nodeCount; i++) {
+        sameStructure = nodes[i].type == plan.nodes[i].type
+                && nodes[i].input == plan.nodes[i].input
+                && nodes[i].secondInput == plan.nodes[i].secondInput;
+    }
+    bool prefixChanged = !sameStructure;
+    for (int i = 0; !prefixChanged && i < nodeCount - 1; i++) {
+        prefixChanged = !std::equal(nodes[i].params, nodes[i].params + PARAMS_PER_NODE, plan.nodes[i].params);
+    }
+    plan.nodes.swap(nodes);
+    if (!sameStructure) {
+        compile(plan);
+        replanned = true;
+    }
+    if (prefixChanged) {
+        plan.prefixVersion++;
+    }
+    return true;
+}
+
+bool cannyChain(Plan &plan, int kernelSize, int lowerThreshold, int upperThreshold) {
+    static const std::vector<int> structure = {
+        GAUSSIAN, SOURCE, SOURCE,
+        CANNY, 0, SOURCE
+    };
+    std::vector<float> params = {
+        (float) kernelSize, 0, 0, 0,
+        (float) lowerThreshold, (float) upperThreshold, 0, 0
+    };
+    bool replanned = false;
+    return configure(plan, structure, params, replanned);
+}
+
+bool copy(const Plan &from, Plan &to) {
+    std::vector<int> structure;
+    std::vector<float> params;
+    for (const Node &node : from.nodes) {
+        structure.push_back(node.type);
+        structure.push_back(node.input);
+        structure.push_back(node.secondInput);
+        params.insert(params.end(), node.params, node.params + PARAMS_PER_NODE);
+    }
+    bool replanned = false;
+    return configure(to, structure, params, replanned);
+}
+
+int resultType(const Plan &plan) {
+    return plan.nodes.empty() ? -1 : plan.nodes.back().type;
+}
+
+/**
+ * Rows a node reads above and below each output row
+ */
+static int nodeReach(const Node &node) {
+    const float *p = node.params;
+    switch (node.type) {
+        case GAUSSIAN:
+        case MEDIAN:
+        case LAPLACIAN:
+            return oddKernel(p[0]) / 2;
+        case BILATERAL:
+            return std::max(1, (int) p[0]) / 2;
+        case SOBEL:
+            return p[2] > 0 ? std::min(oddKernel(p[2]), 7) / 2 : 1;
+        case SCHARR:
+        case CANNY:
+            return 1;
+        case MORPHOLOGY: {
+            // Opening, closing and the gradient apply the kernel twice
+            int radius = std::max(1, (int) p[1]) / 2;
+            return clampIndex(p[0], 5) >= 2 ? 2 * radius : radius;
+        }
+        default:
+            return 0;
+    }
+}
+
+int reach(const Plan &plan) {
+    int rows = 0;
+    for (size_t s = 0; s + 1 < plan.steps.size(); s++) {
+        rows += nodeReach(plan.nodes[plan.steps[s].node]);
+    }
+    return rows;
+}
+
+/**
+ * Gray version of the input, converted into the plan's buffer if needed
+ */
+static const Mat &toGray(Plan &plan, const Mat &input) {
+    if (input.channels() == 4) {
+        cvtColor(input, plan.gray, COLOR_RGBA2GRAY);
+    } else if (input.channels() == 3) {
+        cvtColor(input, plan.gray, COLOR_RGB2GRAY);
+    }
+    return input.channels() == 1 ? input : plan.gray;
+}
+
+/**
+ * Run the steps before stepEnd; the last step writes into output.
+ */
+static void runSteps(Plan &plan, const Mat &source, int stepEnd, Mat &output) {
+    for (int s = 0; s < stepEnd; s++) {
+        auto start = std::chrono::steady_clock::now();
+        Step &step = plan.steps[s];
+        const Node &node = plan.nodes[step.node];
+        const Mat &stepInput = step.inputSlot == SOURCE ? source : plan.slots[step.inputSlot];
+        const Mat &stepSecond = step.secondSlot == SOURCE ? source : plan.slots[step.secondSlot];
+        Mat &stepOutput = step.outputSlot == OUTPUT_SLOT ? output : plan.slots[step.outputSlot];
+
+        if (isPerPixel(node.type)) {
+            buildLut(step, plan.nodes, true);
+            LUT(stepInput, step.lut, stepOutput);
+        } else {
+            applyNode(step, node, stepInput, stepSecond, stepOutput);
+            if (!step.fused.empty()) {
+                buildLut(step, plan.nodes, false);
+                LUT(stepOutput, step.lut, stepOutput);
+            }
+        }
+        plan.stepNs[s] = std::chrono::duration_cast<std::chrono::nanoseconds>(
+                std::chrono::steady_clock::now() - start).count();
+    }
+}
+
+bool run(Plan &plan, const Mat &input, Mat &output) {
+    if (plan.steps.empty() || input.empty()) {
+        return false;
+    }
+    runSteps(plan, toGray(plan, input), (int) plan.steps.size(), output);
+    return true;
+}
+
+bool runToResult(Plan &plan, const Mat &input, Mat &resultInput) {
+    // Only meaningful when the result node is a step of its own
+    if (plan.steps.empty() || input.empty() || !plan.steps.back().fused.empty()
+            || plan.steps.back().node != (int) plan.nodes.size() - 1) {
+        return false;
+    }
+    const Mat &source = toGray(plan, input);
+    int last = (int) plan.steps.size() - 1;
+    Mat unused;
+    runSteps(plan, source, last, unused);
+    plan.stepNs[last] = 0;
+    int slot = plan.steps[last].inputSlot;
+    resultInput = slot == SOURCE ? source : plan.slots[slot];
+    return true;
+}
+
+std::string describe(const Plan &plan) {
+    std::string description;
+    for (const Step &step : plan.steps) {
+        if (!description.empty()) {
+            description += '|';
+        }
+        description += step.name;
+    }
+    return description;
+}
+
+} // namespace filtergraph
+
+extern "C" {
+
+JNIEXPORT jlong JNICALL
+Java_com_edgedetection_EdgeDetector_createFilterGraph(
+        JNIEnv *env,
+        jclass clazz) {
+    return (jlong) new filtergraph::Plan();
+}
+
+JNIEXPORT void JNICALL
+Java_com_edgedetection_EdgeDetector_releaseFilterGraph(
+        JNIEnv *env,
+        jclass clazz,
+        jlong graphAddr) {
+    delete (filtergraph::Plan *) graphAddr;
+}
+
+/**
+ * Returns 1 if the plan was recompiled, 0 if only parameters changed and
+ * -1 if the description was rejected.
+ */
+JNIEXPORT jint JNICALL
+Java_com_edgedetection_EdgeDetector_configureFilterGraph(
+        JNIEnv *env,
+        jclass clazz,
+        jlong graphAddr,
+        jintArray structure,
+        jfloatArray params) {
+    filtergraph::Plan *plan = (filtergraph::Plan *) graphAddr;
+    if (plan == nullptr || structure == nullptr || params == nullptr) {
+        return -1;
+    }
+    std::vector<int> structureValues(env->GetArrayLength(structure));
+    std::vector<float> paramValues(env->GetArrayLength(params));
+    env->GetIntArrayRegion(structure, 0, (jsize) structureValues.size(), structureValues.data());
+    env->GetFloatArrayRegion(params, 0, (jsize) paramValues.size(), paramValues.data());
+
+    try {
+        bool replanned = false;
+        if (!filtergraph::configure(*plan, structureValues, paramValues, replanned)) {
+            return -1;
+        }
+        return replanned ? 1 : 0;
+    } catch (cv::Exception &e) {
+        LOGE("OpenCV Error: %s", e.what());
+    } catch (...) {
+        LOGE("Unknown error configuring filter graph");
+    }
+    return -1;
+}
+
+/**
+ * Returns JNI_FALSE if the graph is not configured or a stage failed.
+ */
+JNIEXPORT jboolean JNICALL
+Java_com_edgedetection_EdgeDetector_runFilterGraph(
+        JNIEnv *env,
+        jclass clazz,
+        jlong graphAddr,
+        jlong inputAddr,
+        jlong outputAddr,
+        jlongArray stepNs) {
+    filtergraph::Plan *plan = (filtergraph::Plan *) graphAddr;
+    if (plan == nullptr) {
+        return JNI_FALSE;
+    }
+    try {
+        Mat &input = *(Mat *) inputAddr;
+        Mat &output = *(Mat *) outputAddr;
+        if (!filtergraph::run(*plan, input, output)) {
+            return JNI_FALSE;
+        }
+        if (stepNs != nullptr) {
+            jsize count = std::min(env->GetArrayLength(stepNs), (jsize) plan->stepNs.size());
+            std::vector<jlong> values(plan->stepNs.begin(), plan->stepNs.begin() + count);
+            env->SetLongArrayRegion(stepNs, 0, count, values.data());
+        }
+        return JNI_TRUE;
+    } catch (cv::Exception &e) {
+        LOGE("OpenCV Error: %s", e.what());
+    } catch (...) {
+        LOGE("Unknown error running filter graph");
+    }
+    return JNI_FALSE;
+}
+
+JNIEXPORT jstring JNICALL
+Java_com_edgedetection_EdgeDetector_describeFilterGraph(
+        JNIEnv *env,
+        jclass clazz,
+        jlong graphAddr) {
+    filtergraph::Plan *plan = (filtergraph::Plan *) graphAddr;
+    return env->NewStringUTF(plan != nullptr ? filtergraph::describe(*plan).c_str() : "");
+}
+
+JNIEXPORT jint JNICALL
+Java_com_edgedetection_EdgeDetector_getFilterGraphBufferCount(
+        JNIEnv *env,
+        jclass clazz,
+        jlong graphAddr) {
+    filtergraph::Plan *plan = (filtergraph::Plan *) graphAddr;
+    return plan != nullptr ? (jint) plan->slots.size() : 0;
+}
+
+} // extern "C"
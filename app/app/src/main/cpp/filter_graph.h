@@ -0,0 +1,154 @@
+#ifndef EDGE_DETECTION_FILTER_GRAPH_H
+#define EDGE_DETECTION_FILTER_GRAPH_H
+
+#include <opencv2/opencv.hpp>
+#include <cstdint>
+#include <string>
+#include <vector>
+
+/**
+ * Configurable image filter chains, run from an execution plan compiled
+ * once per graph structure.
+ *
+ * A graph is a list of nodes, each reading the output of one or, for
+ * COMBINE, two earlier nodes or the grayscale source and producing an 8-bit
+ * single-channel image; the last node is the result. Compiling the graph
+ * drops nodes the result does not depend on, fuses per-pixel nodes into a
+ * lookup table applied in place after the node they follow, and assigns
+ * every step an output buffer from a pool, reusing buffers once their last
+ * reader has run. Changing only node parameters keeps the plan and its
+ * buffers.
+ *
+ * Node types and parameters are mirrored by FilterGraph on the Java side.
+ */
+namespace filtergraph {
+
+// Input index of nodes that read the grayscale source
+static const int SOURCE = -1;
+
+// Parameters per node, unused ones are ignored
+static const int PARAMS_PER_NODE = 4;
+
+enum NodeType {
+    GAUSSIAN = 0,     // kernel size, sigma
+    MEDIAN = 1,       // kernel size
+    BILATERAL = 2,    // diameter, sigma color, sigma space
+    SOBEL = 3,        // x order, y order, kernel size
+    SCHARR = 4,       // x order, y order
+    LAPLACIAN = 5,    // kernel size
+    CANNY = 6,        // lower threshold, upper threshold
+    MORPHOLOGY = 7,   // operation, kernel size, kernel shape
+    THRESHOLD = 8,    // threshold, max value, mode; per-pixel
+    INVERT = 9,       // per-pixel
+    GAIN = 10,        // gain, offset; per-pixel
+    COMBINE = 11,     // mode; reads a second input
+    NODE_TYPE_COUNT
+};
+
+struct Node {
+    int type = 0;
+    int input = SOURCE;
+    int secondInput = SOURCE;
+    float params[PARAMS_PER_NODE] = {0, 0, 0, 0};
+};
+
+/**
+ * One unit of execution: a node, or a run of per-pixel nodes with no
+ * non-per-pixel node to attach to, followed by any per-pixel nodes fused
+ * into it.
+ */
+struct Step {
+    int node = 0;
+    std::vector<int> fused;
+    // Buffer slots, SOURCE for the grayscale input; the last step writes
+    // straight into the caller's output
+    int inputSlot = SOURCE;
+    int secondSlot = SOURCE;
+    int outputSlot = 0;
+    std::string name;
+    // Scratch kept between runs
+    cv::Mat lut;
+    cv::Mat kernel;
+    int kernelSize = 0;
+    int kernelShape = -1;
+    cv::Mat derivative;
+};
+
+/**
+ * A compiled graph. Must only be used from one thread at a time.
+ */
+struct Plan {
+    std::vector<Node> nodes;
+    std::vector<Step> steps;
+    std::vector<cv::Mat> slots;
+    cv::Mat gray;
+    // Duration of each step in the last run
+    std::vector<int64_t> stepNs;
+    int compileCount = 0;
+    // Bumped whenever the input of the last node may change: on recompiling
+    // and on parameter changes of any other node
+    int prefixVersion = 0;
+};
+
+/**
+ * Load a graph description: three ints per node (type, input, second
+ * input) and PARAMS_PER_NODE floats per node. The plan is only recompiled
+ * if types or inputs differ from the current graph; otherwise just the
+ * parameters are updated.
+ *
+ * @param replanned Set to whether the plan was recompiled
+ * @return False if the description is invalid; the previous graph is kept
+ */
+bool configure(Plan &plan, const std::vector<int> &structure,
+               const std::vector<float> &params, bool &replanned);
+
+/**
+ * Load the gray, Gaussian and Canny chain that edge contexts run unless
+ * given another graph; mirrors FilterGraph.cannyChain. Only parameters
+ * change between calls, so the plan is compiled once.
+ */
+bool cannyChain(Plan &plan, int kernelSize, int lowerThreshold, int upperThreshold);
+
+/**
+ * Load the graph of another plan into this one, keeping this plan's
+ * buffers; recompiles only if the structure differs.
+ */
+bool copy(const Plan &from, Plan &to);
+
+/**
+ * Type of the result node, or -1 for an empty plan.
+ */
+int resultType(const Plan &plan);
+
+/**
+ * Rows of context the steps before the result node read around each
+ * output row, summed along the plan; callers splitting an image into bands
+ * overlap them by at least this much.
+ */
+int reach(const Plan &plan);
+
+/**
+ * Run the plan on an RGBA, RGB or gray image. The output becomes an 8-bit
+ * single-channel image of the input size and must not share memory with the
+ * input.
+ */
+bool run(Plan &plan, const cv::Mat &input, cv::Mat &output);
+
+/**
+ * Run every step but the last, for callers that run the result node
+ * themselves, e.g. Canny from cached gradients.
+ *
+ * @param resultInput Set to the image the result node reads; it points into
+ *                    the plan's buffers and stays valid until the next run
+ */
+bool runToResult(Plan &plan, const cv::Mat &input, cv::Mat &resultInput);
+
+/**
+ * Step names in execution order separated by '|', fused nodes joined by '+',
+ * e.g. "gaussian|sobel+threshold|canny".
+ */
+std::string describe(const Plan &plan);
+
+} // namespace filtergraph
+
+#endif // EDGE_DETECTION_FILTER_GRAPH_H
@@ -0,0 +1,231 @@
+#include "hardware_buffer.h"
+
+#include <jni.h>
+#include <dlfcn.h>
+#include <mutex>
+#include <android/hardware_buffer.h>
+#include <android/log.h>
+#include <EGL/egl.h>
+#include <EGL/eglext.h>
+#include <GLES2/gl2.h>
+#include <GLES2/gl2ext.h>
+
+#define LOG_TAG "EdgeDetection-HwBuffer"
+#define LOGI(...) __android_log_print(ANDROID_LOG_INFO, LOG_TAG, __VA_ARGS__)
+#define LOGE(...) __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, __VA_ARGS__)
+
+namespace hwbuffer {
+
+// AHardwareBuffer entry points, API 26+
+typedef int (*AllocateFn)(const AHardwareBuffer_Desc *, AHardwareBuffer **);
+typedef void (*ReleaseFn)(AHardwareBuffer *);
+typedef void (*DescribeFn)(const AHardwareBuffer *, AHardwareBuffer_Desc *);
+typedef int (*LockFn)(AHardwareBuffer *, uint64_t, int32_t, const ARect *, void **);
+typedef int (*UnlockFn)(AHardwareBuffer *, int32_t *);
+
+// EGL and GLES extension entry points
+typedef EGLClientBuffer (*GetNativeClientBufferFn)(const AHardwareBuffer *);
+typedef EGLImageKHR (*CreateImageFn)(EGLDisplay, EGLContext, EGLenum, EGLClientBuffer, const EGLint *);
+typedef EGLBoolean (*DestroyImageFn)(EGLDisplay, EGLImageKHR);
+typedef void (*ImageTargetTextureFn)(GLenum, GLeglImageOES);
+
+static std::once_flag sLoadOnce;
+static AllocateFn sAllocate = nullptr;
+static ReleaseFn sRelease = nullptr;
+static DescribeFn sDescribe = nullptr;
+static LockFn sLock = nullptr;
+static UnlockFn sUnlock = nullptr;
+
+static std::once_flag sLoadEglOnce;
+static GetNativeClientBufferFn sGetNativeClientBuffer = nullptr;
+static CreateImageFn sCreateImage = nullptr;
+static DestroyImageFn sDestroyImage = nullptr;
+static ImageTargetTextureFn sImageTargetTexture = nullptr;
+
+static void load() {
+    void *library = dlopen("libandroid.so", RTLD_NOW);
+    if (library == nullptr) {
+        LOGE("Cannot open libandroid.so: %s", dlerror());
+        return;
+    }
+    sAllocate = (AllocateFn) dlsym(library, "AHardwareBuffer_allocate");
+    sRelease = (ReleaseFn) dlsym(library, "AHardwareBuffer_release");
+    sDescribe = (DescribeFn) dlsym(library, "AHardwareBuffer_describe");
+    sLock = (LockFn) dlsym(library, "AHardwareBuffer_lock");
+    sUnlock = (UnlockFn) dlsym(library, "AHardwareBuffer_unlock");
+    LOGI("AHardwareBuffer %s", isSupported() ? "available" : "not available");
+}
+
+static void loadEgl() {
+    sGetNativeClientBuffer = (GetNativeClientBufferFn) eglGetProcAddress("eglGetNativeClientBufferANDROID");
+    sCreateImage = (CreateImageFn) eglGetProcAddress("eglCreateImageKHR");
+    sDestroyImage = (DestroyImageFn) eglGetProcAddress("eglDestroyImageKHR");
+    sImageTargetTexture = (ImageTargetTextureFn) eglGetProcAddress("glEGLImageTargetTexture2DOES");
+}
+
+bool isSupported() {
+    std::call_once(sLoadOnce, load);
+    return sAllocate != nullptr && sRelease != nullptr && sDescribe != nullptr
+            && sLock != nullptr && sUnlock != nullptr;
+}
+
+bool isImportSupported() {
+    if (!isSupported() || eglGetCurrentContext() == EGL_NO_CONTEXT) {
+        return false;
+    }
+    std::call_once(sLoadEglOnce, loadEgl);
+    return sGetNativeClientBuffer != nullptr && sCreateImage != nullptr
+            && sDestroyImage != nullptr && sImageTargetTexture != nullptr;
+}
+
+void *allocate(int width, int height) {
+    if (!isSupported() || width <= 0 || height <= 0) {
+        return nullptr;
+    }
+    AHardwareBuffer_Desc desc = {};
+    desc.width = (uint32_t) width;
+    desc.height = (uint32_t) height;
+    desc.layers = 1;
+    desc.format = AHARDWAREBUFFER_FORMAT_R8G8B8A8_UNORM;
+    desc.usage = AHARDWAREBUFFER_USAGE_CPU_WRITE_OFTEN | AHARDWAREBUFFER_USAGE_GPU_SAMPLED_IMAGE;
+
+    AHardwareBuffer *buffer = nullptr;
+    int result = sAllocate(&desc, &buffer);
+    if (result != 0 || buffer == nullptr) {
+        LOGE("AHardwareBuffer_allocate %dx%d failed: %d", width, height, result);
+        return nullptr;
+    }
+    return buffer;
+}
+
+void release(void *buffer) {
+    if (buffer != nullptr && isSupported()) {
+        sRelease((AHardwareBuffer *) buffer);
+    }
+}
+
+bool lock(void *buffer, cv::Mat &pixels) {
+    if (buffer == nullptr || !isSupported()) {
+        return false;
+    }
+    AHardwareBuffer *hardwareBuffer = (AHardwareBuffer *) buffer;
+    AHardwareBuffer_Desc desc = {};
+    sDescribe(hardwareBuffer, &desc);
+
+    // No fence to wait for: the GL thread only returns a buffer for writing
+    // after the GPU signalled that it finished reading it
+    void *address = nullptr;
+    int result = sLock(hardwareBuffer, AHARDWAREBUFFER_USAGE_CPU_WRITE_OFTEN, -1, nullptr, &address);
+    if (result != 0 || address == nullptr) {
+        LOGE("AHardwareBuffer_lock failed: %d", result);
+        return false;
+    }
+    // Stride is in pixels
+    pixels = cv::Mat((int) desc.height, (int) desc.width, CV_8UC4, address, (size_t) desc.stride * 4);
+    return true;
+}
+
+bool unlock(void *buffer) {
+    if (buffer == nullptr || !isSupported()) {
+        return false;
+    }
+    // Without a fence pointer unlock returns once CPU writes are visible
+    int result = sUnlock((AHardwareBuffer *) buffer, nullptr);
+    if (result != 0) {
+        LOGE("AHardwareBuffer_unlock failed: %d", result);
+        return false;
+    }
+    return true;
+}
+
+void *createImage(void *buffer) {
+    if (buffer == nullptr || !isImportSupported()) {
+        return nullptr;
+    }
+    EGLClientBuffer clientBuffer = sGetNativeClientBuffer((const AHardwareBuffer *) buffer);
+    if (clientBuffer == nullptr) {
+        LOGE("eglGetNativeClientBufferANDROID failed: 0x%x", eglGetError());
+        return nullptr;
+    }
+    const EGLint attributes[] = {EGL_IMAGE_PRESERVED_KHR, EGL_TRUE, EGL_NONE};
+    EGLImageKHR image = sCreateImage(eglGetCurrentDisplay(), EGL_NO_CONTEXT,
+                                     EGL_NATIVE_BUFFER_ANDROID, clientBuffer, attributes);
+    if (image == EGL_NO_IMAGE_KHR) {
+        LOGE("eglCreateImageKHR failed: 0x%x", eglGetError());
+        return nullptr;
+    }
+    return image;
+}
+
+bool bindImage(void *image) {
+    if (image == nullptr || !isImportSupported()) {
+        return false;
+    }
+    sImageTargetTexture(GL_TEXTURE_2D, (GLeglImageOES) image);
+    GLenum error = glGetError();
+    if (error != GL_NO_ERROR) {
+        LOGE("glEGLImageTargetTexture2DOES failed: 0x%x", error);
+        return false;
+    }
+    return true;
+}
+
+void destroyImage(void *image) {
+    if (image != nullptr && isImportSupported()) {
+        sDestroyImage(eglGetCurrentDisplay(), (EGLImageKHR) image);
+    }
+}
+
+} // namespace hwbuffer
+
+extern "C" {
+
+JNIEXPORT jboolean JNICALL
+Java_com_edgedetection_EdgeDetector_isHardwareBufferSupported(
+        JNIEnv *env,
+        jclass clazz) {
+    return hwbuffer::isSupported() ? JNI_TRUE : JNI_FALSE;
+}
+
+JNIEXPORT jlong JNICALL
+Java_com_edgedetection_EdgeDetector_allocateHardwareBuffer(
+        JNIEnv *env,
+        jclass clazz,
+        jint width,
+        jint height) {
+    return (jlong) hwbuffer::allocate(width, height);
+}
+
+JNIEXPORT void JNICALL
+Java_com_edgedetection_EdgeDetector_releaseHardwareBuffer(
+        JNIEnv *env,
+        jclass clazz,
+        jlong bufferAddr) {
+    hwbuffer::release((void *) bufferAddr);
+}
+
+JNIEXPORT jlong JNICALL
+Java_com_edgedetection_EdgeDetector_createHardwareBufferImage(
+        JNIEnv *env,
+        jclass clazz,
+        jlong bufferAddr) {
+    return (jlong) hwbuffer::createImage((void *) bufferAddr);
+}
+
+JNIEXPORT jboolean JNICALL
+Java_com_edgedetection_EdgeDetector_bindHardwareBufferImage(
+        JNIEnv *env,
+        jclass clazz,
+        jlong imageAddr) {
+    return hwbuffer::bindImage((void *) imageAddr) ? JNI_TRUE : JNI_FALSE;
+}
+
+JNIEXPORT void JNICALL
+Java_com_edgedetection_EdgeDetector_destroyHardwareBufferImage(
+        JNIEnv *env,
+        jclass clazz,
+        jlong imageAddr) {
+    hwbuffer::destroyImage((void *) imageAddr);
+}
+
+} // extern "C"
@@ -0,0 +1,58 @@
+#ifndef EDGE_DETECTION_HARDWARE_BUFFER_H
+#define EDGE_DETECTION_HARDWARE_BUFFER_H
+
+#include <opencv2/opencv.hpp>
+
+/**
+ * Thin wrapper over AHardwareBuffer and its EGLImage import.
+ *
+ * The app supports API 24 while AHardwareBuffer arrived in API 26, so every
+ * entry point is resolved at runtime and the functions below fail cleanly
+ * when it is missing. Buffers are RGBA8888, CPU-writable and GPU-sampleable.
+ */
+namespace hwbuffer {
+
+/**
+ * True if AHardwareBuffer and the EGL/GLES extensions needed to sample one
+ * as a texture are available. The EGL part can only be checked with a
+ * current context, see isImportSupported.
+ */
+bool isSupported();
+
+/**
+ * Must be called on a thread with a current EGL context.
+ */
+bool isImportSupported();
+
+/**
+ * @return Opaque AHardwareBuffer pointer, or nullptr on failure
+ */
+void *allocate(int width, int height);
+
+void release(void *buffer);
+
+/**
+ * Lock the buffer for CPU writes and wrap it in a Mat sharing its memory,
+ * including the row padding the allocator may have added.
+ */
+bool lock(void *buffer, cv::Mat &pixels);
+
+bool unlock(void *buffer);
+
+/**
+ * Create an EGLImage for the buffer in the current display.
+ *
+ * @return Opaque EGLImageKHR, or nullptr on failure
+ */
+void *createImage(void *buffer);
+
+/**
+ * Attach the image as the storage of the GL_TEXTURE_2D bound to the active unit.
+ */
+bool bindImage(void *image);
+
+void destroyImage(void *image);
+
+} // namespace hwbuffer
+
+#endif // EDGE_DETECTION_HARDWARE_BUFFER_H
@@ -0,0 +1,31 @@
+#ifndef EDGE_DETECTION_HOST_ANDROID_LOG_H
+#define EDGE_DETECTION_HOST_ANDROID_LOG_H
+
+#include <cstdarg>
+#include <cstdio>
+
+/**
+ * The part of the NDK log API the library uses, writing to stderr, for
+ * host builds only.
+ */
+enum android_LogPriority {
+    ANDROID_LOG_VERBOSE = 2,
+    ANDROID_LOG_DEBUG,
+    ANDROID_LOG_INFO,
+    ANDROID_LOG_WARN,
+    ANDROID_LOG_ERROR
+};
+
+static inline int __android_log_print(int priority, const char *tag, const char *format, ...) {
+    static const char LEVELS[] = "??VDIWE";
+    char level = priority >= 0 && priority <= ANDROID_LOG_ERROR ? LEVELS[priority] : '?';
+    fprintf(stderr, "%c/%s: ", level, tag);
+    va_list args;
+    va_start(args, format);
+    int written = vfprintf(stderr, format, args);
+    va_end(args);
+    fputc('\n', stderr);
+    return written;
+}
+
+#endif // EDGE_DETECTION_HOST_ANDROID_LOG_H
@@ -0,0 +1,56 @@
+#include "../hardware_buffer.h"
+
+#include <jni.h>
+
+/**
+ * Hardware buffers for host builds: there are none, so callers take the
+ * same paths as on devices before API 26.
+ */
+namespace hwbuffer {
+
+bool isSupported() {
+    return false;
+}
+
+bool isImportSupported() {
+    return false;
+}
+
+void *allocate(int width, int height) {
+    return nullptr;
+}
+
+void release(void *buffer) {
+}
+
+bool lock(void *buffer, cv::Mat &pixels) {
+    return false;
+}
+
+bool unlock(void *buffer) {
+    return false;
+}
+
+void *createImage(void *buffer) {
+    return nullptr;
+}
+
+bool bindImage(void *image) {
+    return false;
+}
+
+void destroyImage(void *image) {
+}
+
+} // namespace hwbuffer
+
+extern "C" {
+
+JNIEXPORT jboolean JNICALL
+Java_com_edgedetection_EdgeDetector_isHardwareBufferSupported(
+        JNIEnv *env,
+        jclass clazz) {
+    return JNI_FALSE;
+}
+
+} // extern "C"
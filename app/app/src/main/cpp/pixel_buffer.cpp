@@ -0,0 +1,44 @@
+#include <jni.h>
+#include <stdint.h>
+#include <GLES2/gl2.h>
+
+// The Java GLES bindings only take client memory or a Buffer for the pixels
+// of glTexImage2D and glTexSubImage2D. With a pixel unpack buffer bound the
+// pointer is an offset into that buffer, so these pass it through as one.
+
+extern "C" {
+
+JNIEXPORT void JNICALL
+Java_com_edgedetection_EdgeDetector_texImage2DFromPixelBuffer(
+        JNIEnv *env,
+        jclass clazz,
+        jint target,
+        jint level,
+        jint internalFormat,
+        jint width,
+        jint height,
+        jint format,
+        jint type,
+        jlong offset) {
+    glTexImage2D((GLenum) target, level, internalFormat, width, height, 0,
+                 (GLenum) format, (GLenum) type, (const void *) (intptr_t) offset);
+}
+
+JNIEXPORT void JNICALL
+Java_com_edgedetection_EdgeDetector_texSubImage2DFromPixelBuffer(
+        JNIEnv *env,
+        jclass clazz,
+        jint target,
+        jint level,
+        jint x,
+        jint y,
+        jint width,
+        jint height,
+        jint format,
+        jint type,
+        jlong offset) {
+    glTexSubImage2D((GLenum) target, level, x, y, width, height,
+                    (GLenum) format, (GLenum) type, (const void *) (intptr_t) offset);
+}
+
+} // extern "C"
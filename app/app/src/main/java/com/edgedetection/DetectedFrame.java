@@ -0,0 +1,48 @@
+package com.edgedetection;
+
+import org.opencv.core.Mat;
+
+/**
+ * A frame that went through a pool of detection workers, as delivered by
+ * {@link ParallelEdgeProcessor} and {@link StreamManager}. The Mats are only
+ * valid while the listener that receives the frame runs; copy anything
+ * needed afterwards.
+ */
+public class DetectedFrame {
+    final long mSequence;
+    final long mCaptureTimeNs;
+    final Mat mInput;
+    // Set by FrameDetector on the worker
+    Mat mEdges;
+    long mProcessingNs;
+
+    DetectedFrame(long sequence, long captureTimeNs, Mat input) {
+        mSequence = sequence;
+        mCaptureTimeNs = captureTimeNs;
+        mInput = input;
+    }
+
+    public long getSequence() {
+        return mSequence;
+    }
+
+    public long getCaptureTimeNs() {
+        return mCaptureTimeNs;
+    }
+
+    public Mat getInput() {
+        return mInput;
+    }
+
+    /**
+     * @return RGBA edges as produced by {@link EdgeDetector#detectEdgesCached},
+     *         or null if detection failed
+     */
+    public Mat getEdges() {
+        return mEdges != null && !mEdges.empty() ? mEdges : null;
+    }
+
+    public long getProcessingNs() {
+        return mProcessingNs;
+    }
+}
@@ -0,0 +1,126 @@
+package com.edgedetection;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Per-frame edge statistics computed by the native detection itself.
+ *
+ * Once attached to a context, every detection on it fills a preallocated
+ * direct buffer with the edge pixel count, counts on a
+ * {@code GRID} x {@code GRID} grid of regions and a histogram of gradient
+ * directions in {@code ORIENTATION_BINS} bins of 22.5 degrees. The getters
+ * read the buffer in place, so nothing is allocated or copied per frame.
+ * Counts are in pixels of the processed frame.
+ *
+ * Directions are those of the gradient, across the edge, in image
+ * coordinates with y pointing down: bin 0 is a horizontal gradient, i.e. a
+ * vertical edge, and bin 4 a vertical gradient.
+ *
+ * Read on the thread running the detections, after they return.
+ */
+public final class EdgeAnalytics {
+
+    public static final int GRID = 8;
+    public static final int ORIENTATION_BINS = 8;
+    public static final float DEGREES_PER_BIN = 180f / ORIENTATION_BINS;
+
+    // Int offsets in the buffer, mirrored in edge_detection.cpp
+    private static final int FRAME_ID = 0;
+    private static final int WIDTH = 2;
+    private static final int HEIGHT = 3;
+    private static final int EDGE_COUNT = 4;
+    private static final int CELLS = 5;
+    private static final int ORIENTATIONS = CELLS + GRID * GRID;
+    private static final int INTS = ORIENTATIONS + ORIENTATION_BINS;
+
+    public static final int BUFFER_BYTES = INTS * 4;
+
+    private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(BUFFER_BYTES).order(ByteOrder.nativeOrder());
+
+    public EdgeAnalytics() {
+        mBuffer.putLong(FRAME_ID * 4, -1);
+    }
+
+    /**
+     * Start filling this from the detections on a context. One instance can
+     * be attached to only one context at a time.
+     *
+     * @return False if the native side rejected the buffer
+     */
+    public boolean attach(long contextAddr) {
+        return EdgeDetector.setAnalyticsBuffer(contextAddr, mBuffer);
+    }
+
+    public void detach(long contextAddr) {
+        EdgeDetector.setAnalyticsBuffer(contextAddr, null);
+    }
+
+    /**
+     * Frame id passed to the detection that filled this, -1 before the first.
+     */
+    public long getFrameId() {
+        return mBuffer.getLong(FRAME_ID * 4);
+    }
+
+    public int getWidth() {
+        return mBuffer.getInt(WIDTH * 4);
+    }
+
+    public int getHeight() {
+        return mBuffer.getInt(HEIGHT * 4);
+    }
+
+    public int getEdgeCount() {
+        return mBuffer.getInt(EDGE_COUNT * 4);
+    }
+
+    /**
+     * Share of edge pixels in the whole frame.
+     */
+    public float getDensity() {
+        long pixels = (long) getWidth() * getHeight();
+        return pixels > 0 ? (float) getEdgeCount() / pixels : 0;
+    }
+
+    public int getCellCount(int column, int row) {
+        return mBuffer.getInt((CELLS + row * GRID + column) * 4);
+    }
+
+    /**
+     * Share of edge pixels in one grid cell; cells split the frame the way
+     * the native side does, so edge cells may be a pixel wider.
+     */
+    public float getCellDensity(int column, int row) {
+        int width = getWidth();
+        int height = getHeight();
+        int cellWidth = (column + 1) * width / GRID - column * width / GRID;
+        int cellHeight = (row + 1) * height / GRID - row * height / GRID;
+        int pixels = cellWidth * cellHeight;
+        return pixels > 0 ? (float) getCellCount(column, row) / pixels : 0;
+    }
+
+    /**
+     * Edge pixels whose gradient points within 11.25 degrees of
+     * {@code bin * DEGREES_PER_BIN}, either way along the line.
+     */
+    public int getOrientationCount(int bin) {
+        return mBuffer.getInt((ORIENTATIONS + bin) * 4);
+    }
+
+    /**
+     * Most frequent orientation bin, -1 without edges.
+     */
+    public int getDominantOrientation() {
+        int best = -1;
+        int bestCount = 0;
+        for (int bin = 0; bin < ORIENTATION_BINS; bin++) {
+            int count = getOrientationCount(bin);
+            if (count > bestCount) {
+                best = bin;
+                bestCount = count;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,226 @@
+package com.edgedetection;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Binary edge map packed one bit per pixel.
+ *
+ * Canny output is either edge or background, so storing it as 8-bit masks or
+ * RGBA frames wastes 8x to 32x the memory and bandwidth. Pixels are packed
+ * into 64-bit words, least significant bit first, and every row starts on a
+ * word boundary so rows can be processed a word at a time and uploaded as a
+ * byte texture without repacking.
+ *
+ * Not thread-safe.
+ */
+public final class EdgeBitmap {
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mWordsPerRow;
+    private final long[] mWords;
+
+    public EdgeBitmap(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid edge bitmap " + width + "x" + height);
+        }
+        mWidth = width;
+        mHeight = height;
+        mWordsPerRow = (width + 63) >>> 6;
+        mWords = new long[mWordsPerRow * height];
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getWordsPerRow() {
+        return mWordsPerRow;
+    }
+
+    /**
+     * Bytes per row when written with {@link #writeTo(ByteBuffer)}.
+     */
+    public int getRowBytes() {
+        return mWordsPerRow * 8;
+    }
+
+    /**
+     * Backing words, row-major with {@link #getWordsPerRow()} words per row.
+     * Padding bits past the width of each row are always zero.
+     */
+    public long[] getWords() {
+        return mWords;
+    }
+
+    public boolean sameSize(EdgeBitmap other) {
+        return other.mWidth == mWidth && other.mHeight == mHeight;
+    }
+
+    public boolean get(int x, int y) {
+        return (mWords[y * mWordsPerRow + (x >>> 6)] & (1L << x)) != 0;
+    }
+
+    public void set(int x, int y, boolean edge) {
+        int index = y * mWordsPerRow + (x >>> 6);
+        if (edge) {
+            mWords[index] |= 1L << x;
+        } else {
+            mWords[index] &= ~(1L << x);
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(mWords, 0L);
+    }
+
+    public void copyFrom(EdgeBitmap other) {
+        checkSameSize(other);
+        System.arraycopy(other.mWords, 0, mWords, 0, mWords.length);
+    }
+
+    /**
+     * Pack a row-major 8-bit mask where any non-zero byte is an edge.
+     */
+    public void pack(byte[] mask) {
+        if (mask.length < mWidth * mHeight) {
+            throw new IllegalArgumentException("Mask too small for " + mWidth + "x" + mHeight);
+        }
+        int src = 0;
+        int dst = 0;
+        for (int y = 0; y < mHeight; y++) {
+            for (int x = 0; x < mWidth; x += 64) {
+                int bits = Math.min(64, mWidth - x);
+                long word = 0;
+                for (int b = 0; b < bits; b++) {
+                    // 1 for any non-zero byte, without a branch
+                    word |= (long) (-(mask[src++] & 0xFF) >>> 31) << b;
+                }
+                mWords[dst++] = word;
+            }
+        }
+    }
+
+    /**
+     * Expand into a row-major 8-bit mask of 0 and 255.
+     */
+    public void unpack(byte[] mask) {
+        if (mask.length < mWidth * mHeight) {
+            throw new IllegalArgumentException("Mask too small for " + mWidth + "x" + mHeight);
+        }
+        int dst = 0;
+        int src = 0;
+        for (int y = 0; y < mHeight; y++) {
+            for (int x = 0; x < mWidth; x += 64) {
+                int bits = Math.min(64, mWidth - x);
+                long word = mWords[src++];
+                for (int b = 0; b < bits; b++) {
+                    mask[dst++] = (byte) -((int) (word >>> b) & 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Number of edge pixels.
+     */
+    public int popcount() {
+        int count = 0;
+        for (long word : mWords) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    /**
+     * Fraction of pixels that are edges, 0 to 1.
+     */
+    public double density() {
+        return popcount() / (double) (mWidth * mHeight);
+    }
+
+    /**
+     * Union with another edge map of the same size, e.g. to accumulate edges over frames.
+     */
+    public void or(EdgeBitmap other) {
+        checkSameSize(other);
+        long[] words = other.mWords;
+        for (int i = 0; i < mWords.length; i++) {
+            mWords[i] |= words[i];
+        }
+    }
+
+    /**
+     * Intersection with another edge map of the same size, e.g. to keep only stable edges.
+     */
+    public void and(EdgeBitmap other) {
+        checkSameSize(other);
+        long[] words = other.mWords;
+        for (int i = 0; i < mWords.length; i++) {
+            mWords[i] &= words[i];
+        }
+    }
+
+    /**
+     * Export alternating background / edge run lengths in row-major order,
+     * starting with background (possibly 0). Rows are not separated, so a run
+     * may continue from the end of one row into the next.
+     *
+     * @param runs Output of at least width * height + 1 entries
+     * @return Number of runs written
+     */
+    public int exportRuns(int[] runs) {
+        int count = 0;
+        int run = 0;
+        boolean edge = false;
+        int index = 0;
+        for (int y = 0; y < mHeight; y++) {
+            for (int x = 0; x < mWidth; x += 64) {
+                int bits = Math.min(64, mWidth - x);
+                long word = mWords[index++];
+                int pos = 0;
+                while (pos < bits) {
+                    // Length of the stretch matching the current state, a word at a time
+                    long same = (edge ? ~word : word) >>> pos;
+                    int length = same == 0 ? 64 : Long.numberOfTrailingZeros(same);
+                    int step = Math.min(length, bits - pos);
+                    run += step;
+                    pos += step;
+                    if (pos < bits) {
+                        runs[count++] = run;
+                        run = 0;
+                        edge = !edge;
+                    }
+                }
+            }
+        }
+        runs[count++] = run;
+        return count;
+    }
+
+    /**
+     * Write the packed rows little-endian, {@link #getRowBytes()} bytes per
+     * row, so byte k of a row holds pixels 8k to 8k + 7 with the lowest bit
+     * first.
+     */
+    public void writeTo(ByteBuffer buffer) {
+        ByteOrder order = buffer.order();
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.asLongBuffer().put(mWords);
+        buffer.position(buffer.position() + mWords.length * 8);
+        buffer.order(order);
+    }
+
+    private void checkSameSize(EdgeBitmap other) {
+        if (!sameSize(other)) {
+            throw new IllegalArgumentException("Edge bitmap size mismatch: " + mWidth + "x" + mHeight
+                    + " vs " + other.mWidth + "x" + other.mHeight);
+        }
+    }
+}
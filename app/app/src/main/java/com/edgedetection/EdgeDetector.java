@@ -2,13 +2,26 @@ package com.edgedetection;
 
 import android.util.Log;
 
+import java.nio.ByteBuffer;
+
 public class EdgeDetector {
     
     private static final String TAG = "EdgeDetector";
-    private static boolean libraryLoaded = false;
+    private static volatile boolean libraryLoaded = false;
 
-    // Load native library
-    static {
+    /**
+     * Load the native library unless it already is. Blocks for the whole
+     * load, so it is left to {@link com.edgedetection.startup.NativeStartup}
+     * on a background thread rather than done in a static initializer on
+     * whichever thread touches this class first. Native methods must not be
+     * called before this succeeds.
+     *
+     * @return Whether the library is loaded
+     */
+    public static synchronized boolean loadLibrary() {
+        if (libraryLoaded) {
+            return true;
+        }
         try {
             System.loadLibrary("edge_detection");
             libraryLoaded = true;
@@ -18,6 +31,7 @@ public class EdgeDetector {
             Log.e(TAG, "Failed to load native library: " + e.getMessage());
             e.printStackTrace();
         }
+        return libraryLoaded;
     }
     
     public static boolean isLibraryLoaded() {
@@ -40,5 +54,304 @@ public class EdgeDetector {
         int upperThreshold,
         int blurSize
     );
-}
 
+    /**
+     * Run Canny for several threshold pairs over one input frame in a single
+     * native call. Gray conversion, blur and the Sobel gradients are computed
+     * once and shared by every pair, which makes threshold sweeps much cheaper
+     * than calling {@link #detectEdges} per combination.
+     *
+     * @param inputAddr Native address of input Mat (RGBA)
+     * @param thresholdPairs Flattened (lower, upper) pairs, two values per output
+     * @param outputs Direct buffers of at least width * height bytes; each receives
+     *                an 8-bit edge mask (0 or 255) for the matching pair
+     * @param blurSize Gaussian blur kernel size
+     * @return Number of edge maps written
+     */
+    public static native int detectEdgesBatch(
+        long inputAddr,
+        int[] thresholdPairs,
+        ByteBuffer[] outputs,
+        int blurSize
+    );
+
+    /**
+     * Create a native context that caches the Sobel gradients of the last
+     * processed frame. A context is not thread-safe; give each processing
+     * thread its own and free it with {@link #releaseContext(long)}.
+     *
+     * @return Native context handle
+     */
+    public static native long createContext();
+
+    /**
+     * @param contextAddr Handle returned by {@link #createContext()}
+     */
+    public static native void releaseContext(long contextAddr);
+
+    /**
+     * Run {@link #detectEdgesCached} and {@link #detectEdgesToHardwareBuffer}
+     * at a reduced resolution. The luma is area-averaged down by {@code scale}
+     * in each dimension before blur, Sobel and Canny, so their cost drops by
+     * roughly scale squared, and the output Mat or buffer is
+     * {@link #scaledSize(int, int)} of the input. The renderer upscales the
+     * edges for display.
+     *
+     * @param contextAddr Handle returned by {@link #createContext()}
+     * @param scale Integer downscale factor, 1 (full resolution) to 8
+     */
+    public static native void setProcessingScale(long contextAddr, int scale);
+
+    /**
+     * Let {@link #detectEdgesCached} and {@link #detectEdgesToHardwareBuffer}
+     * choose the Canny thresholds themselves. Each new frame's gradient
+     * magnitudes are histogrammed on a sparse grid, a by-product of the
+     * Sobel pass the detection runs anyway; the upper threshold follows a
+     * high percentile of that histogram, averaged over frames, and the lower
+     * one is a fixed fraction of it. The thresholds passed to the detection
+     * calls are ignored while this is on.
+     *
+     * @param contextAddr Handle returned by {@link #createContext()}
+     */
+    public static native void setAutoThreshold(long contextAddr, boolean enabled);
+
+    /**
+     * Read back the thresholds the last detection on this context used,
+     * e.g. to show the automatic ones on the sliders.
+     *
+     * @param thresholds Receives lower and upper threshold in its first two elements
+     * @return False if the context or array is invalid
+     */
+    public static native boolean getThresholds(long contextAddr, int[] thresholds);
+
+    /**
+     * Have every {@link #detectEdgesCached} and {@link #detectEdgesToHardwareBuffer}
+     * call on this context write edge statistics into the buffer, counted
+     * natively right after Canny from the edge mask and the cached
+     * gradients; {@link EdgeAnalytics} owns such a buffer and reads it.
+     *
+     * @param buffer Direct buffer in native byte order of at least
+     *               {@link EdgeAnalytics#BUFFER_BYTES}, or null to stop
+     * @return False if the context or buffer is invalid
+     */
+    public static native boolean setAnalyticsBuffer(long contextAddr, ByteBuffer buffer);
+
+    /**
+     * Run {@link #detectEdgesCached}, {@link #detectEdgesToHardwareBuffer} and
+     * {@link #detectEdgesTiled} on this context through a copy of the graph
+     * instead of {@link FilterGraph#cannyChain}; use
+     * {@link FilterGraph#attachTo(long)} rather than calling this directly.
+     *
+     * @param graphAddr Configured plan ending in a Canny node, or 0 for the Canny chain
+     * @return False if the graph does not end in a Canny node
+     */
+    public static native boolean setEdgeGraph(long contextAddr, long graphAddr);
+
+    /**
+     * Trace the edges of the last {@link #detectEdgesCached} or
+     * {@link #detectEdgesToHardwareBuffer} call on this context into
+     * simplified polylines. They stay in the context until
+     * {@link #copyPolylines}; {@link EdgePolylines#extract} wraps both calls.
+     *
+     * @param tolerance Douglas-Peucker tolerance in pixels, 0 keeps every traced pixel
+     * @param minLength Chains of fewer edge pixels are dropped
+     * @param sizes Receives polyline count, point count, frame width and frame height
+     * @return False if the context has no edges to trace
+     */
+    public static native boolean extractPolylines(long contextAddr, float tolerance, int minLength, int[] sizes);
+
+    /**
+     * @param points At least two ints per point; receives x, y pairs
+     * @param offsets At least one int per polyline plus one; receives the
+     *                first point index of each polyline and the point count
+     */
+    public static native boolean copyPolylines(long contextAddr, int[] points, int[] offsets);
+
+    /**
+     * Largest integer scale that keeps the processed width at or above
+     * {@code targetWidth}.
+     */
+    public static int processingScaleFor(int frameWidth, int targetWidth) {
+        if (targetWidth <= 0) {
+            return 1;
+        }
+        return Math.max(1, Math.min(frameWidth / targetWidth, 8));
+    }
+
+    /**
+     * Dimension of a frame processed at the given scale; matches the native rounding.
+     */
+    public static int scaledSize(int size, int scale) {
+        return Math.max(1, size / Math.max(1, scale));
+    }
+
+    /**
+     * Same as {@link #detectEdges}, but when {@code frameId} and the blur size
+     * match the previous call on this context the cached gradients are reused
+     * and only non-max suppression and hysteresis run again. Callers must use
+     * a new frameId whenever the pixels of the input change.
+     *
+     * @param contextAddr Handle returned by {@link #createContext()}
+     * @param frameId Identifier of the input frame contents
+     * @param inputAddr  Native address of input Mat (RGBA)
+     * @param outputAddr Native address of output Mat (edges)
+     * @param lowerThreshold Lower threshold for Canny algorithm
+     * @param upperThreshold Upper threshold for Canny algorithm
+     * @param blurSize Gaussian blur kernel size
+     * @return True if cached gradients were reused
+     */
+    public static native boolean detectEdgesCached(
+        long contextAddr,
+        long frameId,
+        long inputAddr,
+        long outputAddr,
+        int lowerThreshold,
+        int upperThreshold,
+        int blurSize
+    );
+
+    /**
+     * Edge detection for large stills. The image is split into horizontal
+     * strips that are processed in parallel, and the per-strip gradients are
+     * cached in the context so threshold-only changes on the same frameId are
+     * cheap. The output is a single-channel 8-bit edge mask (CV_8UC1) without
+     * the parameter overlay.
+     *
+     * @param contextAddr Handle returned by {@link #createContext()}
+     * @param frameId Identifier of the input frame contents
+     * @param inputAddr  Native address of input Mat (RGBA)
+     * @param outputAddr Native address of output Mat, (re)allocated as CV_8UC1
+     * @param lowerThreshold Lower threshold for Canny algorithm
+     * @param upperThreshold Upper threshold for Canny algorithm
+     * @param blurSize Gaussian blur kernel size
+     * @return True if cached gradients were reused
+     */
+    public static native boolean detectEdgesTiled(
+        long contextAddr,
+        long frameId,
+        long inputAddr,
+        long outputAddr,
+        int lowerThreshold,
+        int upperThreshold,
+        int blurSize
+    );
+
+    /**
+     * Whether AHardwareBuffer is available (API 26+). Sampling one as a
+     * texture additionally needs EGL extensions that can only be checked on
+     * the GL thread, see {@link #createHardwareBufferImage(long)}.
+     */
+    public static native boolean isHardwareBufferSupported();
+
+    /**
+     * Allocate an RGBA8888 buffer that the CPU writes and the GPU samples.
+     *
+     * @return AHardwareBuffer handle, or 0 on failure
+     */
+    public static native long allocateHardwareBuffer(int width, int height);
+
+    /**
+     * Drop the caller's reference; EGLImages created from the buffer keep their own.
+     */
+    public static native void releaseHardwareBuffer(long bufferAddr);
+
+    /**
+     * Create an EGLImage for a hardware buffer. Must be called on a thread
+     * with a current EGL context.
+     *
+     * @return EGLImage handle, or 0 if the buffer cannot be imported
+     */
+    public static native long createHardwareBufferImage(long bufferAddr);
+
+    /**
+     * Make the GL_TEXTURE_2D bound to the active unit sample the image.
+     */
+    public static native boolean bindHardwareBufferImage(long imageAddr);
+
+    public static native void destroyHardwareBufferImage(long imageAddr);
+
+    /**
+     * glTexImage2D reading its pixels from the bound GL_PIXEL_UNPACK_BUFFER,
+     * which the Java bindings have no overload for. Needs a current GLES3 context.
+     *
+     * @param offset Byte offset of the first pixel in the buffer
+     */
+    public static native void texImage2DFromPixelBuffer(int target, int level, int internalFormat,
+                                                        int width, int height, int format, int type, long offset);
+
+    /**
+     * glTexSubImage2D reading its pixels from the bound GL_PIXEL_UNPACK_BUFFER.
+     *
+     * @param offset Byte offset of the first pixel in the buffer
+     */
+    public static native void texSubImage2DFromPixelBuffer(int target, int level, int x, int y,
+                                                           int width, int height, int format, int type, long offset);
+
+    /**
+     * Same as {@link #detectEdgesCached}, but the RGBA output is rendered
+     * straight into a hardware buffer instead of a Mat, so the GL thread can
+     * sample it without any copy or upload. The buffer must match the input
+     * size divided by the processing scale, see {@link #scaledSize(int, int)},
+     * and must not be read by the GPU while this runs.
+     *
+     * @param contextAddr Handle returned by {@link #createContext()}
+     * @param frameId Identifier of the input frame contents
+     * @param inputAddr Native address of input Mat (RGBA)
+     * @param bufferAddr Handle returned by {@link #allocateHardwareBuffer(int, int)}
+     * @param lowerThreshold Lower threshold for Canny algorithm
+     * @param upperThreshold Upper threshold for Canny algorithm
+     * @param blurSize Gaussian blur kernel size
+     * @return False if the buffer could not be written
+     */
+    public static native boolean detectEdgesToHardwareBuffer(
+        long contextAddr,
+        long frameId,
+        long inputAddr,
+        long bufferAddr,
+        int lowerThreshold,
+        int upperThreshold,
+        int blurSize
+    );
+
+    /**
+     * Create an empty filter graph plan; {@link FilterGraph} wraps this and
+     * the calls below. Free it with {@link #releaseFilterGraph(long)}.
+     *
+     * @return Native plan handle
+     */
+    public static native long createFilterGraph();
+
+    public static native void releaseFilterGraph(long graphAddr);
+
+    /**
+     * Load a graph description. The plan is only recompiled when node types
+     * or inputs change; parameter changes are applied to the existing plan.
+     *
+     * @param structure Type, input and second input of each node
+     * @param params {@link FilterGraph#PARAMS_PER_NODE} parameters per node
+     * @return 1 if the plan was recompiled, 0 if only parameters changed,
+     *         -1 if the description is invalid
+     */
+    public static native int configureFilterGraph(long graphAddr, int[] structure, float[] params);
+
+    /**
+     * Run a configured graph on an RGBA, RGB or gray Mat.
+     *
+     * @param outputAddr Native address of output Mat; receives an 8-bit
+     *                   single-channel image and must not share memory with the input
+     * @param stepNs Receives the duration of each plan step, may be null
+     * @return False if the graph is not configured or a stage failed
+     */
+    public static native boolean runFilterGraph(long graphAddr, long inputAddr, long outputAddr, long[] stepNs);
+
+    /**
+     * Plan steps separated by '|', fused nodes joined by '+'.
+     */
+    public static native String describeFilterGraph(long graphAddr);
+
+    /**
+     * Intermediate buffers of the compiled plan; the last step writes into
+     * the caller's output and needs none.
+     */
+    public static native int getFilterGraphBufferCount(long graphAddr);
+}
@@ -0,0 +1,107 @@
+package com.edgedetection;
+
+/**
+ * Edges as simplified polylines instead of pixels.
+ *
+ * Points of all polylines are stored back to back in one int array as x, y
+ * pairs, and polyline i spans points {@code getOffsets()[i]} up to
+ * {@code getOffsets()[i + 1]}. There are no per-point or per-line objects, and
+ * the arrays are reused and only grow, so extracting every frame does not
+ * allocate once the largest frame has been seen. Coordinates are pixels of
+ * the processed frame, which may be smaller than the camera frame.
+ *
+ * Not thread-safe.
+ */
+public final class EdgePolylines {
+
+    private final int[] mSizes = new int[4];
+    private int[] mPoints = new int[0];
+    private int[] mOffsets = new int[1];
+    private int mPolylineCount = 0;
+    private int mPointCount = 0;
+    private int mWidth = 0;
+    private int mHeight = 0;
+
+    /**
+     * Trace the edges last detected on a native context.
+     *
+     * @param contextAddr Handle returned by {@link EdgeDetector#createContext()}
+     * @param tolerance Simplification tolerance in pixels
+     * @param minLength Edge chains of fewer pixels are dropped as noise
+     * @return False if there were no edges to trace; the previous contents are then cleared
+     */
+    public boolean extract(long contextAddr, float tolerance, int minLength) {
+        if (!EdgeDetector.extractPolylines(contextAddr, tolerance, minLength, mSizes)) {
+            clear();
+            return false;
+        }
+        ensureCapacity(mSizes[0], mSizes[1]);
+        if (!EdgeDetector.copyPolylines(contextAddr, mPoints, mOffsets)) {
+            clear();
+            return false;
+        }
+        mPolylineCount = mSizes[0];
+        mPointCount = mSizes[1];
+        mWidth = mSizes[2];
+        mHeight = mSizes[3];
+        return true;
+    }
+
+    public void copyFrom(EdgePolylines other) {
+        ensureCapacity(other.mPolylineCount, other.mPointCount);
+        System.arraycopy(other.mPoints, 0, mPoints, 0, other.mPointCount * 2);
+        System.arraycopy(other.mOffsets, 0, mOffsets, 0, other.mPolylineCount + 1);
+        mPolylineCount = other.mPolylineCount;
+        mPointCount = other.mPointCount;
+        mWidth = other.mWidth;
+        mHeight = other.mHeight;
+    }
+
+    public void clear() {
+        mPolylineCount = 0;
+        mPointCount = 0;
+        mOffsets[0] = 0;
+    }
+
+    public int getPolylineCount() {
+        return mPolylineCount;
+    }
+
+    public int getPointCount() {
+        return mPointCount;
+    }
+
+    /**
+     * x, y pairs; only the first {@link #getPointCount()} pairs are valid.
+     */
+    public int[] getPoints() {
+        return mPoints;
+    }
+
+    /**
+     * First point index of each polyline followed by the point count;
+     * {@link #getPolylineCount()} + 1 entries are valid.
+     */
+    public int[] getOffsets() {
+        return mOffsets;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    private void ensureCapacity(int polylineCount, int pointCount) {
+        // Half again as much as needed, so counts creeping up frame by frame
+        // do not reallocate every time
+        if (mPoints.length < pointCount * 2) {
+            mPoints = new int[pointCount * 3];
+        }
+        if (mOffsets.length < polylineCount + 1) {
+            mOffsets = new int[polylineCount * 3 / 2 + 1];
+        }
+    }
+}
@@ -0,0 +1,347 @@
+package com.edgedetection;
+
+import android.util.Log;
+
+import com.edgedetection.metrics.LatencyHistogram;
+import com.edgedetection.metrics.PipelineMetrics;
+
+import org.opencv.core.Mat;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A configurable filter chain run natively, generalising the gray, blur
+ * and Canny sequence of {@link EdgeDetector#detectEdges}. Edge contexts run
+ * that sequence as a compiled graph too, and can be given another one with
+ * {@link #attachTo(long)}.
+ *
+ * Nodes are added in order and each reads the grayscale source or the
+ * output of earlier nodes; the methods adding a node return its index for
+ * use as a later input, and the last node added is the result:
+ * <pre>
+ * FilterGraph graph = new FilterGraph("edges");
+ * int blurred = graph.gaussian(FilterGraph.SOURCE, 5, 0);
+ * int edges = graph.canny(blurred, 50, 150);
+ * graph.apply(input, output);
+ * </pre>
+ * The native side compiles the graph into a plan that reuses buffers
+ * between steps and folds threshold, invert and gain nodes into the step
+ * before them. Adding nodes recompiles the plan on the next
+ * {@link #apply}, while {@link #setParameter} only updates the values, so
+ * sliders can drive a graph every frame. Step timings are recorded as
+ * {@code graph.<name>.<step>.<nodes>} histograms.
+ *
+ * Not thread-safe; {@link #release()} frees the native plan.
+ */
+public final class FilterGraph {
+
+    private static final String TAG = "FilterGraph";
+
+    /** Input index of the grayscale source image. */
+    public static final int SOURCE = -1;
+
+    // Node types, mirrored by filtergraph::NodeType
+    public static final int GAUSSIAN = 0;
+    public static final int MEDIAN = 1;
+    public static final int BILATERAL = 2;
+    public static final int SOBEL = 3;
+    public static final int SCHARR = 4;
+    public static final int LAPLACIAN = 5;
+    public static final int CANNY = 6;
+    public static final int MORPHOLOGY = 7;
+    public static final int THRESHOLD = 8;
+    public static final int INVERT = 9;
+    public static final int GAIN = 10;
+    public static final int COMBINE = 11;
+
+    // Morphology operations and kernel shapes
+    public static final int MORPH_ERODE = 0;
+    public static final int MORPH_DILATE = 1;
+    public static final int MORPH_OPEN = 2;
+    public static final int MORPH_CLOSE = 3;
+    public static final int MORPH_GRADIENT = 4;
+    public static final int SHAPE_RECT = 0;
+    public static final int SHAPE_ELLIPSE = 1;
+    public static final int SHAPE_CROSS = 2;
+
+    // Threshold modes, as in Imgproc.THRESH_*
+    public static final int THRESH_BINARY = 0;
+    public static final int THRESH_BINARY_INV = 1;
+    public static final int THRESH_TRUNC = 2;
+    public static final int THRESH_TOZERO = 3;
+    public static final int THRESH_TOZERO_INV = 4;
+
+    // Ways to combine two inputs pixel by pixel
+    public static final int COMBINE_MAX = 0;
+    public static final int COMBINE_MIN = 1;
+    public static final int COMBINE_ADD = 2;
+    public static final int COMBINE_ABSDIFF = 3;
+
+    public static final int PARAMS_PER_NODE = 4;
+    private static final int STRUCTURE_PER_NODE = 3;
+
+    private final String mName;
+    private int[] mStructure = new int[0];
+    private float[] mParams = new float[0];
+    private int mNodeCount = 0;
+    // What the native plan has not seen yet
+    private boolean mStructureChanged = false;
+    private boolean mParamsChanged = false;
+
+    private long mPlan = 0;
+    private String mDescription = "";
+    private long[] mStepNs = new long[0];
+    private LatencyHistogram[] mStepTimes = new LatencyHistogram[0];
+    private final AtomicLong mReplans;
+
+    /**
+     * @param name Prefix of the metrics recorded for this graph
+     */
+    public FilterGraph(String name) {
+        mName = name;
+        mReplans = PipelineMetrics.counter("graph." + name + ".replans");
+    }
+
+    /**
+     * The chain {@link EdgeDetector#detectEdges} runs, without the RGBA
+     * conversion and text overlay, and the one edge contexts run until
+     * another graph is attached with {@link #attachTo(long)}.
+     */
+    public static FilterGraph cannyChain(String name, int lowerThreshold, int upperThreshold, int blurSize) {
+        FilterGraph graph = new FilterGraph(name);
+        graph.canny(graph.gaussian(SOURCE, blurSize, 0), lowerThreshold, upperThreshold);
+        return graph;
+    }
+
+    /**
+     * @param sigma Standard deviation, 0 derives it from the kernel size
+     */
+    public int gaussian(int input, int kernelSize, float sigma) {
+        return addNode(GAUSSIAN, input, SOURCE, kernelSize, sigma, 0, 0);
+    }
+
+    public int median(int input, int kernelSize) {
+        return addNode(MEDIAN, input, SOURCE, kernelSize, 0, 0, 0);
+    }
+
+    public int bilateral(int input, int diameter, float sigmaColor, float sigmaSpace) {
+        return addNode(BILATERAL, input, SOURCE, diameter, sigmaColor, sigmaSpace, 0);
+    }
+
+    /**
+     * Absolute derivative, saturated to 8 bits. Combine an x and a y node
+     * with {@link #COMBINE_ADD} for an L1 gradient magnitude.
+     */
+    public int sobel(int input, int xOrder, int yOrder, int kernelSize) {
+        return addNode(SOBEL, input, SOURCE, xOrder, yOrder, kernelSize, 0);
+    }
+
+    /**
+     * First derivative in x if {@code horizontal}, in y otherwise.
+     */
+    public int scharr(int input, boolean horizontal) {
+        return addNode(SCHARR, input, SOURCE, horizontal ? 1 : 0, horizontal ? 0 : 1, 0, 0);
+    }
+
+    public int laplacian(int input, int kernelSize) {
+        return addNode(LAPLACIAN, input, SOURCE, kernelSize, 0, 0, 0);
+    }
+
+    public int canny(int input, int lowerThreshold, int upperThreshold) {
+        return addNode(CANNY, input, SOURCE, lowerThreshold, upperThreshold, 0, 0);
+    }
+
+    /**
+     * @param operation One of the MORPH_* constants
+     * @param shape One of the SHAPE_* constants
+     */
+    public int morphology(int input, int operation, int kernelSize, int shape) {
+        return addNode(MORPHOLOGY, input, SOURCE, operation, kernelSize, shape, 0);
+    }
+
+    /**
+     * @param mode One of the THRESH_* constants
+     */
+    public int threshold(int input, int threshold, int maxValue, int mode) {
+        return addNode(THRESHOLD, input, SOURCE, threshold, maxValue, mode, 0);
+    }
+
+    public int invert(int input) {
+        return addNode(INVERT, input, SOURCE, 0, 0, 0, 0);
+    }
+
+    /**
+     * Pixel * gain + offset, saturated.
+     */
+    public int gain(int input, float gain, float offset) {
+        return addNode(GAIN, input, SOURCE, gain, offset, 0, 0);
+    }
+
+    /**
+     * @param mode One of the COMBINE_* constants
+     */
+    public int combine(int first, int second, int mode) {
+        return addNode(COMBINE, first, second, mode, 0, 0, 0);
+    }
+
+    /**
+     * Change one parameter of a node, in the order the node's method takes
+     * them. Does not recompile the plan.
+     */
+    public void setParameter(int node, int index, float value) {
+        if (node < 0 || node >= mNodeCount || index < 0 || index >= PARAMS_PER_NODE) {
+            throw new IllegalArgumentException("No parameter " + index + " on node " + node);
+        }
+        int position = node * PARAMS_PER_NODE + index;
+        if (mParams[position] != value) {
+            mParams[position] = value;
+            mParamsChanged = true;
+        }
+    }
+
+    public int getNodeCount() {
+        return mNodeCount;
+    }
+
+    /**
+     * Steps of the compiled plan, e.g. {@code "gaussian|sobel+threshold"};
+     * empty until the first {@link #apply}.
+     */
+    public String getPlanDescription() {
+        return mDescription;
+    }
+
+    /**
+     * Intermediate buffers of the compiled plan, shared between steps whose
+     * outputs are not needed at the same time; 0 until the first
+     * {@link #apply}.
+     */
+    public int getBufferCount() {
+        return mPlan != 0 ? EdgeDetector.getFilterGraphBufferCount(mPlan) : 0;
+    }
+
+    /**
+     * Duration of each plan step in the last {@link #apply}.
+     */
+    public long[] getStepNs() {
+        return mStepNs;
+    }
+
+    /**
+     * Run the graph.
+     *
+     * @param input RGBA, RGB or gray image
+     * @param output Receives the last node's 8-bit single-channel result;
+     *               must not share memory with the input
+     * @return False if the library is missing, the graph is empty or invalid, or a stage failed
+     */
+    public boolean apply(Mat input, Mat output) {
+        if (!prepare()) {
+            return false;
+        }
+
+        if (!EdgeDetector.runFilterGraph(mPlan, input.getNativeObjAddr(), output.getNativeObjAddr(), mStepNs)) {
+            return false;
+        }
+        for (int i = 0; i < mStepTimes.length; i++) {
+            mStepTimes[i].record(mStepNs[i]);
+        }
+        return true;
+    }
+
+    /**
+     * Have an edge context run this graph in place of {@link #cannyChain}.
+     * The context keeps a copy, so call again after changing the graph. The
+     * last node must be a Canny node; its thresholds are replaced by those
+     * passed to each detection call, so sliders and automatic thresholds
+     * keep working, while the smoothing before it is up to the graph.
+     *
+     * @param contextAddr Handle returned by {@link EdgeDetector#createContext()}
+     * @return False if the library is missing or the graph is empty, invalid
+     *         or does not end in Canny
+     */
+    public boolean attachTo(long contextAddr) {
+        if (!prepare()) {
+            return false;
+        }
+        return EdgeDetector.setEdgeGraph(contextAddr, mPlan);
+    }
+
+    /**
+     * Send pending node and parameter changes to the native plan.
+     */
+    private boolean prepare() {
+        if (!EdgeDetector.isLibraryLoaded() || mNodeCount == 0) {
+            return false;
+        }
+        if (mPlan == 0) {
+            mPlan = EdgeDetector.createFilterGraph();
+            mStructureChanged = true;
+        }
+        if (mStructureChanged || mParamsChanged) {
+            int result = EdgeDetector.configureFilterGraph(mPlan,
+                    Arrays.copyOf(mStructure, mNodeCount * STRUCTURE_PER_NODE),
+                    Arrays.copyOf(mParams, mNodeCount * PARAMS_PER_NODE));
+            if (result < 0) {
+                Log.e(TAG, "Graph " + mName + " rejected");
+                return false;
+            }
+            mStructureChanged = false;
+            mParamsChanged = false;
+            if (result > 0) {
+                onReplanned();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Drop every node; the next {@link #apply} needs new ones.
+     */
+    public void clear() {
+        mNodeCount = 0;
+        mStructureChanged = true;
+    }
+
+    public void release() {
+        if (mPlan != 0) {
+            EdgeDetector.releaseFilterGraph(mPlan);
+            mPlan = 0;
+        }
+    }
+
+    private int addNode(int type, int input, int secondInput, float p0, float p1, float p2, float p3) {
+        if (input < SOURCE || input >= mNodeCount || secondInput < SOURCE || secondInput >= mNodeCount) {
+            throw new IllegalArgumentException("Node inputs must be SOURCE or earlier nodes, got "
+                    + input + " and " + secondInput + " for node " + mNodeCount);
+        }
+        if (mStructure.length < (mNodeCount + 1) * STRUCTURE_PER_NODE) {
+            mStructure = Arrays.copyOf(mStructure, (mNodeCount + 4) * STRUCTURE_PER_NODE);
+            mParams = Arrays.copyOf(mParams, (mNodeCount + 4) * PARAMS_PER_NODE);
+        }
+        int s = mNodeCount * STRUCTURE_PER_NODE;
+        mStructure[s] = type;
+        mStructure[s + 1] = input;
+        mStructure[s + 2] = secondInput;
+        int p = mNodeCount * PARAMS_PER_NODE;
+        mParams[p] = p0;
+        mParams[p + 1] = p1;
+        mParams[p + 2] = p2;
+        mParams[p + 3] = p3;
+        mStructureChanged = true;
+        return mNodeCount++;
+    }
+
+    private void onReplanned() {
+        mReplans.incrementAndGet();
+        mDescription = EdgeDetector.describeFilterGraph(mPlan);
+        String[] steps = mDescription.split("\\|");
+        mStepNs = new long[steps.length];
+        mStepTimes = new LatencyHistogram[steps.length];
+        for (int i = 0; i < steps.length; i++) {
+            mStepTimes[i] = PipelineMetrics.histogram("graph." + mName + "." + i + "." + steps[i]);
+        }
+        Log.i(TAG, "Graph " + mName + " planned as " + mDescription);
+    }
+}
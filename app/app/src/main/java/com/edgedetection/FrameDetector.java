@@ -0,0 +1,91 @@
+package com.edgedetection;
+
+import android.util.Log;
+
+import org.opencv.core.Mat;
+
+/**
+ * Detection on a native context of its own, for the pooled processors:
+ * each worker of {@link ParallelEdgeProcessor} and each stream of
+ * {@link StreamManager} owns one, so frames never share cached state.
+ *
+ * Not thread-safe; used by one thread at a time.
+ */
+class FrameDetector {
+
+    private static final String TAG = "FrameDetector";
+
+    interface Factory {
+        FrameDetector create(String name);
+    }
+
+    /**
+     * Where the output Mat of a frame comes from, asked only when detection runs.
+     */
+    interface OutputSource {
+        Mat obtain();
+    }
+
+    private final String mName;
+    private long mContext = 0;
+    private int mContextScale = 1;
+
+    FrameDetector(String name) {
+        mName = name;
+    }
+
+    /**
+     * Detect the edges of a frame into {@link DetectedFrame#mEdges}. The
+     * context has seen no earlier frame with this sequence, so it doubles as
+     * frameId. Leaves the edges unset if the library is not loaded or the
+     * input is empty.
+     *
+     * @return Time spent, also stored in the frame
+     */
+    long process(DetectedFrame frame, int lowerThreshold, int upperThreshold, int blurSize,
+                 int processingScale, OutputSource outputs) {
+        long start = System.nanoTime();
+        try {
+            detect(frame, lowerThreshold, upperThreshold, blurSize, processingScale, outputs);
+        } catch (Exception e) {
+            Log.e(TAG, "Error processing frame " + frame.mSequence + " of " + mName + ": " + e.getMessage(), e);
+        }
+        frame.mProcessingNs = System.nanoTime() - start;
+        return frame.mProcessingNs;
+    }
+
+    private void detect(DetectedFrame frame, int lowerThreshold, int upperThreshold, int blurSize,
+                        int processingScale, OutputSource outputs) {
+        if (!EdgeDetector.isLibraryLoaded() || frame.mInput == null || frame.mInput.empty()) {
+            return;
+        }
+        if (mContext == 0) {
+            mContext = EdgeDetector.createContext();
+            mContextScale = 1;
+        }
+        if (processingScale != mContextScale) {
+            EdgeDetector.setProcessingScale(mContext, processingScale);
+            mContextScale = processingScale;
+        }
+        frame.mEdges = outputs.obtain();
+        EdgeDetector.detectEdgesCached(
+            mContext,
+            frame.mSequence,
+            frame.mInput.getNativeObjAddr(),
+            frame.mEdges.getNativeObjAddr(),
+            lowerThreshold,
+            upperThreshold,
+            blurSize
+        );
+    }
+
+    /**
+     * Free the native context; a later frame creates a new one.
+     */
+    void release() {
+        if (mContext != 0) {
+            EdgeDetector.releaseContext(mContext);
+            mContext = 0;
+        }
+    }
+}
@@ -2,14 +2,25 @@ package com.edgedetection;
 
 import android.Manifest;
 import android.content.pm.PackageManager;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraManager;
+import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
 import android.util.Log;
+import android.view.Display;
+import android.view.Surface;
 import android.view.SurfaceView;
 import android.view.WindowManager;
+import android.widget.Button;
 import android.widget.SeekBar;
+import android.widget.Switch;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import androidx.activity.result.ActivityResultLauncher;
+import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
@@ -17,48 +28,123 @@ import androidx.core.content.ContextCompat;
 
 import org.opencv.android.CameraBridgeViewBase;
 import org.opencv.android.JavaCameraView;
+import org.opencv.core.Core;
 import org.opencv.core.Mat;
 
+import com.edgedetection.memory.NativeMemory;
+import com.edgedetection.metrics.FrameLatencyTracker;
+import com.edgedetection.metrics.LatencyHistogram;
+import com.edgedetection.metrics.PipelineMetrics;
 import com.edgedetection.opengl.EdgeDetectionGLView;
+import com.edgedetection.opengl.TemporalEdgeFilter;
+import com.edgedetection.output.EdgeBufferQueue;
+import com.edgedetection.recording.EdgeRecorder;
+import com.edgedetection.startup.NativeStartup;
+import com.edgedetection.stream.EdgeMapEncoder;
+import com.edgedetection.stream.EdgeStreamServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class MainActivity extends AppCompatActivity implements CameraBridgeViewBase.CvCameraViewListener2 {
 
     private static final String TAG = "EdgeDetection";
     private static final int CAMERA_PERMISSION_REQUEST = 1;
+    // Live edges are computed at about this width and upscaled for display
+    private static final int PROCESSING_WIDTH = 640;
+    // Polyline simplification in processed pixels, and shorter chains dropped as noise
+    private static final float POLYLINE_TOLERANCE = 1.5f;
+    private static final int POLYLINE_MIN_LENGTH = 10;
     
-    // Load OpenCV library statically
-    static {
-        try {
-            System.loadLibrary("opencv_java4");
-            Log.i("EdgeDetection", "OpenCV library loaded successfully!");
-        } catch (UnsatisfiedLinkError e) {
-            Log.e("EdgeDetection", "Failed to load OpenCV library: " + e.getMessage());
-        }
-    }
-
     private EdgeDetectionGLView cameraView;
     private JavaCameraView opencvCameraView;
     private SeekBar lowerThresholdBar;
     private SeekBar upperThresholdBar;
     private SeekBar blurBar;
+    private SeekBar smoothingBar;
     private TextView lowerThresholdText;
     private TextView upperThresholdText;
     private TextView blurText;
+    private TextView smoothingText;
     private TextView fpsText;
-
+    private TextView latencyText;
+    private Button freezeButton;
+    private Button loadStillButton;
+    private Switch streamSwitch;
+    private Switch recordSwitch;
+    private Switch autoThresholdSwitch;
+    private Switch vectorSwitch;
+
+    private FrameLatencyTracker latencyTracker;
+    private long frameDeadlineMs = FrameLatencyTracker.DEFAULT_DEADLINE_MS;
+
+    // Owned by the camera view, valid until the next frame
     private Mat rgba;
     private Mat edges;
 
+    // Native context caching gradients between calls, and the id of the frame in it
+    private long edgeContext;
+    private long frameSequence = 0;
+    private int processingScale = 1;
+    // Filled by the native detection on edgeContext, exported as metrics
+    private final EdgeAnalytics edgeAnalytics = new EdgeAnalytics();
+    private final AtomicLong edgeDensityPermille = PipelineMetrics.counter("analytics.edge_density_permille");
+    private final AtomicLong dominantOrientation = PipelineMetrics.counter("analytics.dominant_orientation_deg");
+
+    // Freeze-frame and still image analysis
+    private StillImageAnalyzer stillAnalyzer;
+    private volatile boolean freezeRequested = false;
+    private volatile boolean frozen = false;
+    // Registered before onStart, as the Activity Result API requires
+    private final ActivityResultLauncher<String[]> pickStill =
+            registerForActivityResult(new ActivityResultContracts.OpenDocument(), this::onStillPicked);
+
+    // Live stream to the web viewer; server is null while streaming is off
+    private volatile EdgeStreamServer streamServer;
+    // Bumped on every start and stop under streamLock, so a server that
+    // finishes starting after streaming was switched off is closed, not kept
+    private final Object streamLock = new Object();
+    private int streamGeneration = 0;
+    private final EdgeMapEncoder streamEncoder = new EdgeMapEncoder();
+    private Mat streamMask;
+    private byte[] streamMaskData;
+    private EdgeBitmap streamBitmap;
+    // Frame whose edges streamBitmap holds, so streaming and recording pack once
+    private long packedFrameId = -1;
+
+    // Edge maps written to app storage; null while recording is off
+    private volatile EdgeRecorder edgeRecorder;
+
     private int lowerThreshold = 50;
     private int upperThreshold = 150;
     private int blurValue = 5;
+    // Set on the UI thread, applied to the edge context by the camera thread
+    private volatile boolean autoThreshold = false;
+    private boolean contextAutoThreshold = false;
+    private final int[] autoThresholds = new int[2];
+    // Edges traced into polylines instead of shown as pixels
+    private volatile boolean vectorEdges = false;
+    private final EdgePolylines polylines = new EdgePolylines();
+    private final LatencyHistogram polylineExtractTime = PipelineMetrics.histogram("vector.extract");
+    // Temporal smoothing strength in percent of history kept per frame, 0 is off
+    private int smoothingValue = 0;
 
     private long lastFrameTime = 0;
     private double fps = 0;
 
+    // The camera starts once resumed and the native side is ready
+    private boolean resumed = false;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+
+        // Load the native libraries while the views inflate
+        NativeStartup.start();
         
         // Keep screen on
         getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
@@ -73,7 +159,20 @@ public class MainActivity extends AppCompatActivity implements CameraBridgeViewB
         lowerThresholdText = findViewById(R.id.lower_threshold_text);
         upperThresholdText = findViewById(R.id.upper_threshold_text);
         blurText = findViewById(R.id.blur_text);
+        smoothingBar = findViewById(R.id.smoothing_bar);
+        smoothingText = findViewById(R.id.smoothing_text);
         fpsText = findViewById(R.id.fps_text);
+        latencyText = findViewById(R.id.latency_text);
+        freezeButton = findViewById(R.id.freeze_button);
+        loadStillButton = findViewById(R.id.load_still_button);
+        streamSwitch = findViewById(R.id.stream_switch);
+        recordSwitch = findViewById(R.id.record_switch);
+        autoThresholdSwitch = findViewById(R.id.auto_threshold_switch);
+        vectorSwitch = findViewById(R.id.vector_switch);
+
+        // Drop frames that would be shown later than the deadline
+        cameraView.setFrameDeadlineMs(frameDeadlineMs);
+        latencyTracker = cameraView.getLatencyTracker();
 
         // Set up OpenCV camera view (hidden, used only for camera capture)
         try {
@@ -91,6 +190,16 @@ public class MainActivity extends AppCompatActivity implements CameraBridgeViewB
         // Set up seekbars
         setupSeekBars();
 
+        // Set up freeze-frame and still image controls
+        setupStillControls();
+
+        // Set up live streaming to the web viewer
+        streamSwitch.setOnCheckedChangeListener((buttonView, isChecked) -> setStreaming(isChecked));
+        recordSwitch.setOnCheckedChangeListener((buttonView, isChecked) -> setRecording(isChecked));
+
+        // Polylines are traced from the Mat, so they take the regular path
+        vectorSwitch.setOnCheckedChangeListener((buttonView, isChecked) -> vectorEdges = isChecked);
+
         // Request camera permission
         if (ContextCompat.checkSelfPermission(this, Manifest.permission.CAMERA) 
                 != PackageManager.PERMISSION_GRANTED) {
@@ -102,10 +211,12 @@ public class MainActivity extends AppCompatActivity implements CameraBridgeViewB
         }
 
         // Check if native library loaded
-        if (!EdgeDetector.isLibraryLoaded()) {
-            Toast.makeText(this, "Failed to load native library! Check Logcat.", Toast.LENGTH_LONG).show();
-            Log.e(TAG, "Native library not loaded - edge detection will not work!");
-        }
+        NativeStartup.whenReady(loaded -> {
+            if (!loaded) {
+                Toast.makeText(this, "Failed to load native library! Check Logcat.", Toast.LENGTH_LONG).show();
+                Log.e(TAG, "Native library not loaded - edge detection will not work!");
+            }
+        });
 
         Log.i(TAG, "Edge Detection App Started!");
     }
@@ -120,6 +231,7 @@ public class MainActivity extends AppCompatActivity implements CameraBridgeViewB
             public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
                 lowerThreshold = progress;
                 lowerThresholdText.setText("Lower: " + lowerThreshold);
+                updateStill();
             }
 
             @Override
@@ -138,6 +250,7 @@ public class MainActivity extends AppCompatActivity implements CameraBridgeViewB
             public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
                 upperThreshold = progress;
                 upperThresholdText.setText("Upper: " + upperThreshold);
+                updateStill();
             }
 
             @Override
@@ -159,6 +272,7 @@ public class MainActivity extends AppCompatActivity implements CameraBridgeViewB
                     blurValue += 1;
                 }
                 blurText.setText("Blur: " + blurValue);
+                updateStill();
             }
 
             @Override
@@ -167,6 +281,351 @@ public class MainActivity extends AppCompatActivity implements CameraBridgeViewB
             @Override
             public void onStopTrackingTouch(SeekBar seekBar) {}
         });
+
+        // Auto thresholds drive the sliders, which stay visible but read-only
+        autoThresholdSwitch.setOnCheckedChangeListener((buttonView, isChecked) -> {
+            autoThreshold = isChecked;
+            lowerThresholdBar.setEnabled(!isChecked);
+            upperThresholdBar.setEnabled(!isChecked);
+        });
+
+        // Smoothing SeekBar, averages edges over frames on the GPU
+        smoothingBar.setMax(95);
+        smoothingBar.setProgress(smoothingValue);
+        updateSmoothing();
+        smoothingBar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
+            @Override
+            public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+                smoothingValue = progress;
+                updateSmoothing();
+            }
+
+            @Override
+            public void onStartTrackingTouch(SeekBar seekBar) {}
+
+            @Override
+            public void onStopTrackingTouch(SeekBar seekBar) {}
+        });
+    }
+
+    private void updateSmoothing() {
+        if (smoothingValue == 0) {
+            smoothingText.setText("Smoothing: Off");
+            cameraView.setTemporalFilter(TemporalEdgeFilter.Mode.OFF, 0f);
+        } else {
+            smoothingText.setText("Smoothing: " + smoothingValue + "%");
+            cameraView.setTemporalFilter(TemporalEdgeFilter.Mode.AVERAGE, smoothingValue / 100f);
+        }
+    }
+
+    private void setupStillControls() {
+        stillAnalyzer = new StillImageAnalyzer(new StillImageAnalyzer.Listener() {
+            @Override
+            public void onStillProcessed(byte[] mask, int width, int height, long elapsedMs) {
+                if (!frozen) {
+                    // Went back to live preview while this pass was running
+                    return;
+                }
+                cameraView.showStillImage(mask, width, height);
+                runOnUiThread(() -> fpsText.setText("Still " + width + "x" + height + ": " + elapsedMs + "ms"));
+            }
+
+            @Override
+            public void onStillFailed(String message) {
+                runOnUiThread(() -> {
+                    Toast.makeText(MainActivity.this, "Still analysis failed: " + message, Toast.LENGTH_LONG).show();
+                    resumeLive();
+                });
+            }
+        });
+
+        // Freeze on the next camera frame, or go back to live preview
+        freezeButton.setOnClickListener(v -> {
+            if (frozen || freezeRequested) {
+                resumeLive();
+            } else {
+                freezeRequested = true;
+                freezeButton.setText("Live");
+            }
+        });
+
+        loadStillButton.setOnClickListener(v -> pickStill.launch(new String[] {"image/*"}));
+    }
+
+    /**
+     * Freeze and analyse the picked image; uri is null if the picker was cancelled.
+     */
+    private void onStillPicked(Uri uri) {
+        if (uri != null) {
+            freezeRequested = false;
+            frozen = true;
+            freezeButton.setText("Live");
+            stillAnalyzer.analyzeStill(getContentResolver(), uri,
+                    lowerThreshold, upperThreshold, blurValue);
+        }
+    }
+
+    private void updateStill() {
+        if (frozen && stillAnalyzer != null) {
+            stillAnalyzer.update(lowerThreshold, upperThreshold, blurValue);
+        }
+    }
+
+    private void resumeLive() {
+        freezeRequested = false;
+        frozen = false;
+        stillAnalyzer.clear();
+        cameraView.clearStillImage();
+        freezeButton.setText("Freeze");
+    }
+
+    private void setStreaming(boolean enabled) {
+        if (!enabled) {
+            EdgeStreamServer server = cancelStreaming();
+            if (server != null) {
+                new Thread(server::close, "EdgeStreamClose").start();
+            }
+            return;
+        }
+
+        int generation;
+        synchronized (streamLock) {
+            generation = ++streamGeneration;
+        }
+        // Binding counts as network I/O, keep it off the UI thread
+        new Thread(() -> {
+            EdgeStreamServer server = new EdgeStreamServer();
+            try {
+                server.start();
+            } catch (IOException e) {
+                Log.e(TAG, "Error starting stream server: " + e.getMessage(), e);
+                if (isCurrentStream(generation)) {
+                    runOnUiThread(() -> {
+                        Toast.makeText(this, "Failed to start stream: " + e.getMessage(), Toast.LENGTH_LONG).show();
+                        streamSwitch.setChecked(false);
+                    });
+                }
+                return;
+            }
+            boolean current;
+            synchronized (streamLock) {
+                current = generation == streamGeneration;
+                if (current) {
+                    streamServer = server;
+                }
+            }
+            if (!current) {
+                // Switched off, or switched off and on again, while binding
+                server.close();
+                return;
+            }
+            int port = server.getPort();
+            Log.i(TAG, "Streaming edge maps on port " + port);
+            runOnUiThread(() -> Toast.makeText(this,
+                    "Streaming on port " + port, Toast.LENGTH_SHORT).show());
+        }, "EdgeStreamStart").start();
+    }
+
+    /**
+     * Stop streaming and cancel any start still in progress.
+     *
+     * @return The running server, which the caller must close, or null
+     */
+    private EdgeStreamServer cancelStreaming() {
+        synchronized (streamLock) {
+            streamGeneration++;
+            EdgeStreamServer server = streamServer;
+            streamServer = null;
+            return server;
+        }
+    }
+
+    private boolean isCurrentStream(int generation) {
+        synchronized (streamLock) {
+            return generation == streamGeneration;
+        }
+    }
+
+    private void setRecording(boolean enabled) {
+        if (!enabled) {
+            closeRecorder(true);
+            return;
+        }
+
+        File root = getExternalFilesDir("recordings");
+        if (root == null) {
+            root = new File(getFilesDir(), "recordings");
+        }
+        File directory = new File(root, new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date()));
+        try {
+            edgeRecorder = new EdgeRecorder(directory);
+            Log.i(TAG, "Recording edge maps to " + directory);
+        } catch (IOException e) {
+            Log.e(TAG, "Error starting recorder: " + e.getMessage(), e);
+            Toast.makeText(this, "Failed to start recording: " + e.getMessage(), Toast.LENGTH_LONG).show();
+            recordSwitch.setChecked(false);
+        }
+    }
+
+    /**
+     * Close the recorder on a thread of its own, since closing drains its
+     * queue and may take up to its close timeout.
+     */
+    private void closeRecorder(boolean announce) {
+        EdgeRecorder recorder = edgeRecorder;
+        edgeRecorder = null;
+        if (recorder == null) {
+            return;
+        }
+        new Thread(() -> {
+            recorder.close();
+            if (announce) {
+                runOnUiThread(() -> Toast.makeText(this,
+                        "Saved to " + recorder.getDirectory(), Toast.LENGTH_LONG).show());
+            }
+        }, "EdgeRecorderClose").start();
+    }
+
+    /**
+     * Apply the auto threshold switch to the edge context and mirror the
+     * thresholds it picked for the previous frame on the sliders, so that
+     * switching back to manual starts from them.
+     */
+    private void syncAutoThresholds() {
+        if (edgeContext == 0) {
+            return;
+        }
+        boolean enabled = autoThreshold;
+        if (enabled != contextAutoThreshold) {
+            EdgeDetector.setAutoThreshold(edgeContext, enabled);
+            contextAutoThreshold = enabled;
+        }
+        if (!enabled || !EdgeDetector.getThresholds(edgeContext, autoThresholds)) {
+            return;
+        }
+        int lower = autoThresholds[0];
+        int upper = autoThresholds[1];
+        // Zero until the context has processed a frame
+        if (upper > 0 && (lower != lowerThreshold || upper != upperThreshold)) {
+            runOnUiThread(() -> {
+                if (autoThreshold) {
+                    lowerThresholdBar.setProgress(lower);
+                    upperThresholdBar.setProgress(upper);
+                }
+            });
+        }
+    }
+
+    /**
+     * Run edge detection into a hardware buffer that the renderer samples
+     * without the Mat readback, packing and texture upload of the regular path.
+     *
+     * @return false if the frame has to take the regular path instead
+     */
+    private boolean renderToHardwareBuffer(long captureTimeNs) {
+        EdgeBufferQueue output = cameraView.getHardwareOutput();
+        if (output == null || !EdgeDetector.isLibraryLoaded() || edgeContext == 0) {
+            return false;
+        }
+        EdgeBufferQueue.Slot slot = output.dequeue(
+                EdgeDetector.scaledSize(rgba.cols(), processingScale),
+                EdgeDetector.scaledSize(rgba.rows(), processingScale));
+        if (slot == null) {
+            return false;
+        }
+
+        boolean written = EdgeDetector.detectEdgesToHardwareBuffer(
+            edgeContext,
+            ++frameSequence,
+            rgba.getNativeObjAddr(),
+            slot.getBuffer(),
+            lowerThreshold,
+            upperThreshold,
+            blurValue
+        );
+        if (!written) {
+            output.cancel(slot);
+            return false;
+        }
+        if (latencyTracker.isExpired(captureTimeNs)) {
+            latencyTracker.recordDrop(FrameLatencyTracker.Stage.DETECT);
+            output.cancel(slot);
+            return true;
+        }
+        output.queue(slot, captureTimeNs);
+        return true;
+    }
+
+    /**
+     * Trace the edges of the current frame and draw them as lines.
+     */
+    private void showPolylines(long captureTimeNs) {
+        long extractStart = System.nanoTime();
+        if (!polylines.extract(edgeContext, POLYLINE_TOLERANCE, POLYLINE_MIN_LENGTH)) {
+            return;
+        }
+        polylineExtractTime.record(System.nanoTime() - extractStart);
+        cameraView.updatePolylines(polylines, captureTimeNs);
+    }
+
+    /**
+     * Send the binary edge mask and frame stats to connected web viewers.
+     */
+    private void publishToStream(EdgeStreamServer server, Mat processedFrame, long frameId,
+                                 double processingMs, long captureTimeNs) {
+        int width = processedFrame.cols();
+        int height = processedFrame.rows();
+        double latencyMs = (System.nanoTime() - captureTimeNs) / 1_000_000.0;
+
+        if (!server.hasClients()) {
+            server.updateStats(EdgeStreamServer.formatStats(frameId, fps, width, height,
+                    processingMs, latencyMs, 0, 0));
+            return;
+        }
+
+        long encodeStart = System.nanoTime();
+        int length = streamEncoder.encode(packEdges(processedFrame), (int) frameId);
+        double encodeMs = (System.nanoTime() - encodeStart) / 1_000_000.0;
+
+        server.publish(streamEncoder.getBuffer(), length, EdgeStreamServer.formatStats(
+                frameId, fps, width, height, processingMs, latencyMs, length, encodeMs));
+    }
+
+    /**
+     * Export the statistics the native detection gathered for the frame just
+     * processed, so alerts can watch them without another pass over the pixels.
+     */
+    private void publishAnalytics() {
+        if (edgeAnalytics.getFrameId() != frameSequence) {
+            return;
+        }
+        edgeDensityPermille.set(Math.round(edgeAnalytics.getDensity() * 1000));
+        int bin = edgeAnalytics.getDominantOrientation();
+        dominantOrientation.set(bin < 0 ? -1 : Math.round(bin * EdgeAnalytics.DEGREES_PER_BIN));
+    }
+
+    /**
+     * The current frame's edges as a packed bitmap, packed at most once per frame.
+     */
+    private EdgeBitmap packEdges(Mat processedFrame) {
+        if (packedFrameId == frameSequence && streamBitmap != null) {
+            return streamBitmap;
+        }
+        int width = processedFrame.cols();
+        int height = processedFrame.rows();
+        // Edges are white in every channel, the green overlay text is not in red
+        if (streamMask == null) {
+            streamMask = NativeMemory.newMat("stream.mask");
+        }
+        Core.extractChannel(processedFrame, streamMask, 0);
+        if (streamBitmap == null || streamBitmap.getWidth() != width || streamBitmap.getHeight() != height) {
+            streamBitmap = new EdgeBitmap(width, height);
+            streamMaskData = new byte[width * height];
+        }
+        streamMask.get(0, 0, streamMaskData);
+        streamBitmap.pack(streamMaskData);
+        packedFrameId = frameSequence;
+        return streamBitmap;
     }
 
     @Override
@@ -185,25 +644,92 @@ public class MainActivity extends AppCompatActivity implements CameraBridgeViewB
 
     @Override
     public void onCameraViewStarted(int width, int height) {
-        rgba = new Mat();
-        edges = new Mat(height, width, org.opencv.core.CvType.CV_8UC4);
-        Log.i(TAG, "Camera started: " + width + "x" + height);
+        processingScale = EdgeDetector.processingScaleFor(width, PROCESSING_WIDTH);
+        edges = NativeMemory.newMat("main.edges",
+                EdgeDetector.scaledSize(height, processingScale),
+                EdgeDetector.scaledSize(width, processingScale),
+                org.opencv.core.CvType.CV_8UC4);
+        if (EdgeDetector.isLibraryLoaded()) {
+            edgeContext = EdgeDetector.createContext();
+            EdgeDetector.setProcessingScale(edgeContext, processingScale);
+            edgeAnalytics.attach(edgeContext);
+            contextAutoThreshold = false;
+        }
+        cameraView.setFrameRotation(getFrameRotation());
+        Log.i(TAG, "Camera started: " + width + "x" + height + ", processing at 1/" + processingScale);
+    }
+
+    /**
+     * Clockwise rotation that turns frames from the back camera, the one
+     * JavaCameraView opens first, upright on the current display.
+     */
+    private int getFrameRotation() {
+        // The camera view is attached by now and holds the activity's display
+        Display display = Build.VERSION.SDK_INT >= Build.VERSION_CODES.R
+                ? getDisplay() : opencvCameraView.getDisplay();
+        int displayDegrees;
+        switch (display != null ? display.getRotation() : Surface.ROTATION_0) {
+            case Surface.ROTATION_90:
+                displayDegrees = 90;
+                break;
+            case Surface.ROTATION_180:
+                displayDegrees = 180;
+                break;
+            case Surface.ROTATION_270:
+                displayDegrees = 270;
+                break;
+            default:
+                displayDegrees = 0;
+                break;
+        }
+
+        CameraManager manager = getSystemService(CameraManager.class);
+        try {
+            for (String id : manager.getCameraIdList()) {
+                CameraCharacteristics characteristics = manager.getCameraCharacteristics(id);
+                Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
+                Integer orientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+                if (facing != null && facing == CameraCharacteristics.LENS_FACING_BACK && orientation != null) {
+                    return (orientation - displayDegrees + 360) % 360;
+                }
+            }
+        } catch (CameraAccessException e) {
+            Log.e(TAG, "Error reading camera orientation: " + e.getMessage(), e);
+        }
+        return 0;
     }
 
     @Override
     public void onCameraViewStopped() {
-        if (rgba != null) {
-            rgba.release();
-        }
-        if (edges != null) {
-            edges.release();
+        // rgba belongs to the camera view, which reuses it for the next frame
+        rgba = null;
+        NativeMemory.release(edges);
+        edges = null;
+        NativeMemory.release(streamMask);
+        streamMask = null;
+        if (edgeContext != 0) {
+            EdgeDetector.releaseContext(edgeContext);
+            edgeContext = 0;
         }
     }
 
     @Override
     public Mat onCameraFrame(CameraBridgeViewBase.CvCameraViewFrame inputFrame) {
+        // Stamp the frame so every stage can measure how stale it is
+        long captureTimeNs = System.nanoTime();
         try {
             rgba = inputFrame.rgba();
+            NativeMemory.onFrame();
+
+            // Hand the current frame to the still analyzer and stop live processing
+            if (freezeRequested) {
+                freezeRequested = false;
+                frozen = true;
+                stillAnalyzer.analyzeFrame(NativeMemory.track("still.image", rgba.clone()), lowerThreshold, upperThreshold, blurValue);
+            }
+            if (frozen) {
+                return null;
+            }
 
             // Calculate FPS
             long currentTime = System.currentTimeMillis();
@@ -213,12 +739,29 @@ public class MainActivity extends AppCompatActivity implements CameraBridgeViewB
             lastFrameTime = currentTime;
 
             // Update FPS on UI thread
-            runOnUiThread(() -> fpsText.setText(String.format("FPS: %.1f", fps)));
+            runOnUiThread(() -> {
+                fpsText.setText(String.format("FPS: %.1f", fps));
+                latencyText.setText(latencyTracker.getOverlayText());
+            });
+
+            syncAutoThresholds();
+
+            // Nothing needs the pixels on the CPU unless streaming or recording,
+            // so render straight into a buffer the GPU samples in place
+            if (streamServer == null && edgeRecorder == null && !vectorEdges
+                    && renderToHardwareBuffer(captureTimeNs)) {
+                NativeStartup.onFrameProcessed();
+                publishAnalytics();
+                return null;
+            }
 
             // Call C++ edge detection if library is loaded
             Mat processedFrame;
-            if (EdgeDetector.isLibraryLoaded()) {
-                EdgeDetector.detectEdges(
+            long detectStart = System.nanoTime();
+            if (EdgeDetector.isLibraryLoaded() && edgeContext != 0) {
+                EdgeDetector.detectEdgesCached(
+                    edgeContext,
+                    ++frameSequence,
                     rgba.getNativeObjAddr(),
                     edges.getNativeObjAddr(),
                     lowerThreshold,
@@ -226,15 +769,50 @@ public class MainActivity extends AppCompatActivity implements CameraBridgeViewB
                     blurValue
                 );
                 processedFrame = edges;
+                NativeStartup.onFrameProcessed();
+                publishAnalytics();
             } else {
                 // If native library not loaded, just return original frame
                 processedFrame = rgba;
             }
+            double processingMs = (System.nanoTime() - detectStart) / 1_000_000.0;
+
+            EdgeStreamServer server = streamServer;
+            if (server != null && processedFrame == edges) {
+                try {
+                    publishToStream(server, processedFrame, frameSequence, processingMs, captureTimeNs);
+                } catch (Exception e) {
+                    Log.e(TAG, "Error streaming frame: " + e.getMessage(), e);
+                }
+            }
+
+            // Only copied here, encoded and written on the recorder's thread
+            EdgeRecorder recorder = edgeRecorder;
+            if (recorder != null && processedFrame == edges) {
+                try {
+                    recorder.record(packEdges(processedFrame), frameSequence, captureTimeNs);
+                } catch (Exception e) {
+                    Log.e(TAG, "Error recording frame: " + e.getMessage(), e);
+                }
+            }
+            
+            // Skip the upload if detection alone already blew the deadline
+            if (latencyTracker.isExpired(captureTimeNs)) {
+                latencyTracker.recordDrop(FrameLatencyTracker.Stage.DETECT);
+                return null;
+            }
             
             // Update OpenGL ES texture with processed frame
             if (cameraView != null && processedFrame != null) {
                 try {
-                    cameraView.updateFrame(processedFrame);
+                    if (processedFrame == edges && vectorEdges) {
+                        showPolylines(captureTimeNs);
+                    } else if (processedFrame == edges) {
+                        // Binary edges go up as a packed 1-bit texture
+                        cameraView.updateEdges(processedFrame, captureTimeNs);
+                    } else {
+                        cameraView.updateFrame(processedFrame, captureTimeNs);
+                    }
                 } catch (Exception e) {
                     Log.e(TAG, "Error updating OpenGL frame: " + e.getMessage(), e);
                 }
@@ -251,17 +829,27 @@ public class MainActivity extends AppCompatActivity implements CameraBridgeViewB
     @Override
     protected void onResume() {
         super.onResume();
-        if (opencvCameraView != null) {
-            opencvCameraView.enableView();
+        if (cameraView != null) {
+            cameraView.onResume();
         }
+        resumed = true;
+        NativeStartup.whenReady(loaded -> {
+            if (resumed && opencvCameraView != null) {
+                opencvCameraView.enableView();
+            }
+        });
     }
 
     @Override
     protected void onPause() {
         super.onPause();
+        resumed = false;
         if (opencvCameraView != null) {
             opencvCameraView.disableView();
         }
+        if (cameraView != null) {
+            cameraView.onPause();
+        }
     }
 
     @Override
@@ -270,6 +858,14 @@ public class MainActivity extends AppCompatActivity implements CameraBridgeViewB
         if (opencvCameraView != null) {
             opencvCameraView.disableView();
         }
+        if (stillAnalyzer != null) {
+            stillAnalyzer.shutdown();
+        }
+        EdgeStreamServer server = cancelStreaming();
+        if (server != null) {
+            server.close();
+        }
+        closeRecorder(false);
         if (cameraView != null) {
             cameraView.cleanup();
         }
@@ -15,25 +15,37 @@ import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 
+import com.edgedetection.memory.NativeMemory;
+import com.edgedetection.soak.RecordingFrameSource;
+import com.edgedetection.soak.SoakRunner;
+import com.edgedetection.soak.SyntheticFrameSource;
+import com.edgedetection.startup.NativeStartup;
+
 import org.opencv.android.CameraBridgeViewBase;
 import org.opencv.android.JavaCameraView;
 import org.opencv.core.Mat;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
 public class MainActivityFallback extends AppCompatActivity implements CameraBridgeViewBase.CvCameraViewListener2 {
 
     private static final String TAG = "EdgeDetectionFallback";
     private static final int CAMERA_PERMISSION_REQUEST = 1;
+    // Launch extras that run a soak benchmark instead of the camera
+    private static final String EXTRA_SOAK_MINUTES = "soak_minutes";
+    private static final String EXTRA_SOAK_INTERVAL = "soak_interval_s";
+    private static final String EXTRA_SOAK_RECORDING = "soak_recording";
+    private static final String EXTRA_SOAK_LABEL = "soak_label";
+    private static final int SOAK_WIDTH = 640;
+    private static final int SOAK_HEIGHT = 480;
     
-    // Load OpenCV library statically
-    static {
-        try {
-            System.loadLibrary("opencv_java4");
-            Log.i("EdgeDetection", "OpenCV library loaded successfully!");
-        } catch (UnsatisfiedLinkError e) {
-            Log.e("EdgeDetection", "Failed to load OpenCV library: " + e.getMessage());
-        }
-    }
-
     private JavaCameraView cameraView;
     private SeekBar lowerThresholdBar;
     private SeekBar upperThresholdBar;
@@ -53,9 +65,17 @@ public class MainActivityFallback extends AppCompatActivity implements CameraBri
     private long lastFrameTime = 0;
     private double fps = 0;
 
+    // The camera starts once resumed and the native side is ready
+    private boolean resumed = false;
+    // Set while a soak benchmark runs, so leaving the activity stops it
+    private volatile SoakRunner soakRunner;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+
+        // Load the native libraries while the views inflate
+        NativeStartup.start();
         
         // Keep screen on
         getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
@@ -90,14 +110,73 @@ public class MainActivityFallback extends AppCompatActivity implements CameraBri
         }
 
         // Check if native library loaded
-        if (!EdgeDetector.isLibraryLoaded()) {
-            Toast.makeText(this, "Failed to load native library! Check Logcat.", Toast.LENGTH_LONG).show();
-            Log.e(TAG, "Native library not loaded - edge detection will not work!");
-        }
+        NativeStartup.whenReady(loaded -> {
+            if (!loaded) {
+                Toast.makeText(this, "Failed to load native library! Check Logcat.", Toast.LENGTH_LONG).show();
+                Log.e(TAG, "Native library not loaded - edge detection will not work!");
+            } else {
+                startSoakIfRequested();
+            }
+        });
 
         Log.i(TAG, "Edge Detection App Started (Fallback Mode)!");
     }
 
+    /**
+     * Run a soak benchmark in place of the camera when launched with e.g.
+     * {@code adb shell am start -n com.edgedetection/.MainActivityFallback --ei soak_minutes 720},
+     * optionally with {@code --ei soak_interval_s}, {@code --es soak_recording <dir>}
+     * and {@code --es soak_label <build>}. The time series goes to the app's
+     * external files under {@code soak/}.
+     */
+    private void startSoakIfRequested() {
+        if (!isSoakRequested()) {
+            return;
+        }
+        int minutes = getIntent().getIntExtra(EXTRA_SOAK_MINUTES, 0);
+        int intervalSeconds = Math.max(1, getIntent().getIntExtra(EXTRA_SOAK_INTERVAL, 10));
+        String recording = getIntent().getStringExtra(EXTRA_SOAK_RECORDING);
+        String label = getIntent().getStringExtra(EXTRA_SOAK_LABEL);
+
+        File directory = getExternalFilesDir("soak");
+        if (directory == null) {
+            directory = new File(getFilesDir(), "soak");
+        }
+        File output = new File(directory, "soak-"
+                + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date()) + ".csv");
+        if (cameraView != null) {
+            cameraView.disableView();
+        }
+
+        new Thread(() -> {
+            try {
+                if (!output.getParentFile().isDirectory() && !output.getParentFile().mkdirs()) {
+                    throw new IOException("Cannot create " + output.getParentFile());
+                }
+                SoakRunner.FrameSource source = recording != null
+                        ? new RecordingFrameSource(new File(recording))
+                        : new SyntheticFrameSource(SOAK_WIDTH, SOAK_HEIGHT);
+                SoakRunner runner = new SoakRunner(source, minutes * 60_000L, intervalSeconds * 1000L,
+                        label != null ? label : "device");
+                soakRunner = runner;
+                Log.i(TAG, "Soak running for " + minutes + " min from " + source.describe() + " into " + output);
+                try (Writer out = new BufferedWriter(new FileWriter(output))) {
+                    int samples = runner.run(out);
+                    Log.i(TAG, "Soak finished with " + samples + " samples in " + output);
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Soak failed: " + e.getMessage(), e);
+            } finally {
+                soakRunner = null;
+            }
+            runOnUiThread(() -> Toast.makeText(this, "Soak ended: " + output, Toast.LENGTH_LONG).show());
+        }, "SoakRunner").start();
+    }
+
+    private boolean isSoakRequested() {
+        return getIntent().getIntExtra(EXTRA_SOAK_MINUTES, 0) > 0;
+    }
+
     private void setupSeekBars() {
         // Lower Threshold SeekBar
         lowerThresholdBar.setMax(255);
@@ -162,25 +241,23 @@ public class MainActivityFallback extends AppCompatActivity implements CameraBri
     @Override
     public void onCameraViewStarted(int width, int height) {
         Log.d(TAG, "Camera view started: " + width + "x" + height);
-        rgba = new Mat();
-        edges = new Mat();
+        edges = NativeMemory.newMat("fallback.edges");
     }
 
     @Override
     public void onCameraViewStopped() {
         Log.d(TAG, "Camera view stopped");
-        if (rgba != null) {
-            rgba.release();
-        }
-        if (edges != null) {
-            edges.release();
-        }
+        // rgba belongs to the camera view
+        rgba = null;
+        NativeMemory.release(edges);
+        edges = null;
     }
 
     @Override
     public Mat onCameraFrame(CameraBridgeViewBase.CvCameraViewFrame inputFrame) {
         try {
             rgba = inputFrame.rgba();
+            NativeMemory.onFrame();
 
             // Calculate FPS
             long currentTime = System.currentTimeMillis();
@@ -201,6 +278,7 @@ public class MainActivityFallback extends AppCompatActivity implements CameraBri
                     upperThreshold,
                     blurValue
                 );
+                NativeStartup.onFrameProcessed();
                 return edges;
             } else {
                 // If native library not loaded, just return original frame
@@ -215,14 +293,18 @@ public class MainActivityFallback extends AppCompatActivity implements CameraBri
     @Override
     protected void onResume() {
         super.onResume();
-        if (cameraView != null) {
-            cameraView.enableView();
-        }
+        resumed = true;
+        NativeStartup.whenReady(loaded -> {
+            if (resumed && cameraView != null && !isSoakRequested()) {
+                cameraView.enableView();
+            }
+        });
     }
 
     @Override
     protected void onPause() {
         super.onPause();
+        resumed = false;
         if (cameraView != null) {
             cameraView.disableView();
         }
@@ -231,6 +313,9 @@ public class MainActivityFallback extends AppCompatActivity implements CameraBri
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        if (soakRunner != null) {
+            soakRunner.stop();
+        }
         if (cameraView != null) {
             cameraView.disableView();
         }
@@ -0,0 +1,333 @@
+package com.edgedetection;
+
+import android.util.Log;
+
+import com.edgedetection.memory.NativeMemory;
+import com.edgedetection.metrics.LatencyHistogram;
+import com.edgedetection.metrics.PipelineMetrics;
+
+import org.opencv.core.Mat;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput mode for replay and batch processing: whole frames are
+ * processed concurrently on a pool of workers and handed back strictly in
+ * submission order.
+ *
+ * Each worker owns a native context, so frames never share cached state and
+ * the pool scales with the number of cores instead of with the strip count
+ * of a single frame. At most {@code maxInFlight} frames are queued, being
+ * processed or waiting for an earlier frame; {@link #submit} blocks beyond
+ * that, so a slow listener throttles the producer instead of letting
+ * results pile up. For the best scaling, run with OpenCV's own threading
+ * reduced ({@code Core.setNumThreads}) so workers do not compete with it.
+ */
+public class ParallelEdgeProcessor {
+
+    private static final String TAG = "ParallelEdgeProcessor";
+
+    /**
+     * Receives results in submission order. Called from whichever worker
+     * completed the next frame in sequence, one call at a time.
+     */
+    public interface Listener {
+        void onFrameProcessed(Result result);
+    }
+
+    /**
+     * A processed frame; see {@link DetectedFrame}.
+     */
+    public static final class Result extends DetectedFrame {
+        private final int mLowerThreshold;
+        private final int mUpperThreshold;
+        private final int mBlurSize;
+        private long mCompletedNs;
+
+        private Result(long sequence, long captureTimeNs, Mat input,
+                       int lowerThreshold, int upperThreshold, int blurSize) {
+            super(sequence, captureTimeNs, input);
+            mLowerThreshold = lowerThreshold;
+            mUpperThreshold = upperThreshold;
+            mBlurSize = blurSize;
+        }
+    }
+
+    // Queued to stop a worker
+    private static final Result STOP = new Result(-1, 0, null, 0, 0, 0);
+
+    private final Listener mListener;
+    private final FrameDetector.Factory mDetectors;
+    private final int mMaxInFlight;
+    private final Worker[] mWorkers;
+    private final BlockingQueue<Result> mQueue = new LinkedBlockingQueue<>();
+    private final AtomicInteger mRunningWorkers;
+
+    // Guarded by mLock
+    private final Object mLock = new Object();
+    private final Result[] mReorder;
+    private final ArrayDeque<Mat> mFreeOutputs = new ArrayDeque<>();
+    private long mNextSequence = 0;
+    private long mNextDelivery = 0;
+    private int mInFlight = 0;
+    private boolean mDelivering = false;
+    private boolean mShutdown = false;
+
+    private volatile int mLowerThreshold = 50;
+    private volatile int mUpperThreshold = 150;
+    private volatile int mBlurSize = 5;
+    private volatile int mProcessingScale = 1;
+
+    private final LatencyHistogram mProcessTime = PipelineMetrics.histogram("parallel.process");
+    private final LatencyHistogram mReorderWait = PipelineMetrics.histogram("parallel.reorder.wait");
+    private final LatencyHistogram mSubmitWait = PipelineMetrics.histogram("parallel.submit.wait");
+    private final AtomicLong mDelivered = PipelineMetrics.counter("parallel.frames.delivered");
+    private final AtomicLong mRejected = PipelineMetrics.counter("parallel.frames.rejected");
+
+    /**
+     * @param workerCount Worker threads, typically the number of cores
+     * @param maxInFlight Frames accepted before {@link #submit} blocks; at
+     *                    least workerCount to keep every worker busy
+     */
+    public ParallelEdgeProcessor(int workerCount, int maxInFlight, Listener listener) {
+        this(workerCount, maxInFlight, listener, FrameDetector::new);
+    }
+
+    ParallelEdgeProcessor(int workerCount, int maxInFlight, Listener listener, FrameDetector.Factory detectors) {
+        if (workerCount < 1 || maxInFlight < workerCount) {
+            throw new IllegalArgumentException("Need at least one worker and maxInFlight >= workerCount, got "
+                    + workerCount + " and " + maxInFlight);
+        }
+        mListener = listener;
+        mDetectors = detectors;
+        mMaxInFlight = maxInFlight;
+        mReorder = new Result[maxInFlight];
+        mWorkers = new Worker[workerCount];
+        mRunningWorkers = new AtomicInteger(workerCount);
+        for (int i = 0; i < workerCount; i++) {
+            mWorkers[i] = new Worker(i);
+            mWorkers[i].start();
+        }
+        Log.i(TAG, "Started " + workerCount + " workers, " + maxInFlight + " frames in flight");
+    }
+
+    /**
+     * Parameters for frames submitted from now on.
+     */
+    public void setParameters(int lowerThreshold, int upperThreshold, int blurSize) {
+        mLowerThreshold = lowerThreshold;
+        mUpperThreshold = upperThreshold;
+        mBlurSize = blurSize;
+    }
+
+    /**
+     * @see EdgeDetector#setProcessingScale(long, int)
+     */
+    public void setProcessingScale(int scale) {
+        mProcessingScale = scale;
+    }
+
+    /**
+     * Queue a frame, blocking while the in-flight window is full. Takes
+     * ownership of the Mat, which is released through {@link NativeMemory}
+     * once the listener has seen the result.
+     *
+     * @return Sequence number of the frame
+     */
+    public long submit(Mat frame, long captureTimeNs) throws InterruptedException {
+        long waitStart = System.nanoTime();
+        Result job;
+        synchronized (mLock) {
+            while (mInFlight >= mMaxInFlight && !mShutdown) {
+                mLock.wait();
+            }
+            job = enqueueLocked(frame, captureTimeNs);
+        }
+        mSubmitWait.record(System.nanoTime() - waitStart);
+        if (job == null) {
+            throw new IllegalStateException("Processor is shut down");
+        }
+        return job.mSequence;
+    }
+
+    /**
+     * Queue a frame unless the in-flight window is full. On success takes
+     * ownership of the Mat like {@link #submit}.
+     *
+     * @return Sequence number of the frame, or -1 if it was not accepted
+     */
+    public long trySubmit(Mat frame, long captureTimeNs) {
+        synchronized (mLock) {
+            if (mInFlight < mMaxInFlight) {
+                Result job = enqueueLocked(frame, captureTimeNs);
+                if (job != null) {
+                    return job.mSequence;
+                }
+            }
+        }
+        mRejected.incrementAndGet();
+        return -1;
+    }
+
+    /**
+     * Block until every submitted frame has been delivered.
+     */
+    public void drain() throws InterruptedException {
+        synchronized (mLock) {
+            while (mInFlight > 0) {
+                mLock.wait();
+            }
+        }
+    }
+
+    /**
+     * Stop the workers once the queued frames are delivered and free their
+     * native contexts. Further submissions are refused.
+     */
+    public void shutdown() {
+        synchronized (mLock) {
+            if (mShutdown) {
+                return;
+            }
+            mShutdown = true;
+            mLock.notifyAll();
+        }
+        for (int i = 0; i < mWorkers.length; i++) {
+            mQueue.add(STOP);
+        }
+    }
+
+    public int getWorkerCount() {
+        return mWorkers.length;
+    }
+
+    /**
+     * Fraction of its lifetime the worker spent processing frames, 0 to 1.
+     */
+    public double getUtilisation(int worker) {
+        Worker w = mWorkers[worker];
+        long lifetimeNs = System.nanoTime() - w.mStartNs;
+        return lifetimeNs <= 0 ? 0.0 : Math.min(1.0, w.mBusyNs.get() / (double) lifetimeNs);
+    }
+
+    private Result enqueueLocked(Mat frame, long captureTimeNs) {
+        if (mShutdown) {
+            return null;
+        }
+        Result job = new Result(mNextSequence++, captureTimeNs, frame,
+                mLowerThreshold, mUpperThreshold, mBlurSize);
+        mInFlight++;
+        mQueue.add(job);
+        return job;
+    }
+
+    /**
+     * Park a finished frame in the reorder buffer and deliver every frame
+     * that is now next in sequence. Only one thread delivers at a time; the
+     * others just leave their results behind for it.
+     */
+    private void complete(Result job) {
+        job.mCompletedNs = System.nanoTime();
+        synchronized (mLock) {
+            // Never collides: sequences in flight span fewer than mMaxInFlight
+            mReorder[(int) (job.mSequence % mMaxInFlight)] = job;
+            if (mDelivering) {
+                return;
+            }
+            mDelivering = true;
+        }
+
+        while (true) {
+            Result next;
+            synchronized (mLock) {
+                int index = (int) (mNextDelivery % mMaxInFlight);
+                next = mReorder[index];
+                if (next == null) {
+                    mDelivering = false;
+                    return;
+                }
+                mReorder[index] = null;
+                mNextDelivery++;
+            }
+
+            mReorderWait.record(System.nanoTime() - next.mCompletedNs);
+            try {
+                mListener.onFrameProcessed(next);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Listener failed on frame " + next.mSequence + ": " + e.getMessage(), e);
+            }
+            mDelivered.incrementAndGet();
+
+            NativeMemory.release(next.mInput);
+            synchronized (mLock) {
+                if (next.mEdges != null) {
+                    mFreeOutputs.push(next.mEdges);
+                }
+                mInFlight--;
+                mLock.notifyAll();
+            }
+        }
+    }
+
+    private Mat obtainOutput() {
+        synchronized (mLock) {
+            Mat output = mFreeOutputs.poll();
+            if (output != null) {
+                return output;
+            }
+        }
+        return NativeMemory.newMat("parallel.edges");
+    }
+
+    private void releaseOutputs() {
+        synchronized (mLock) {
+            while (!mFreeOutputs.isEmpty()) {
+                NativeMemory.release(mFreeOutputs.pop());
+            }
+        }
+    }
+
+    private final class Worker extends Thread {
+        private final int mIndex;
+        private final AtomicLong mBusyNs;
+        private final long mStartNs = System.nanoTime();
+        private final FrameDetector mDetector;
+
+        Worker(int index) {
+            super("EdgeWorker-" + index);
+            mIndex = index;
+            mBusyNs = PipelineMetrics.counter("parallel.worker." + index + ".busy_ns");
+            mDetector = mDetectors.create(getName());
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Result job = mQueue.take();
+                    if (job == STOP) {
+                        break;
+                    }
+                    long elapsedNs = mDetector.process(job, job.mLowerThreshold, job.mUpperThreshold,
+                            job.mBlurSize, mProcessingScale, ParallelEdgeProcessor.this::obtainOutput);
+                    mProcessTime.record(elapsedNs);
+                    mBusyNs.addAndGet(elapsedNs);
+                    complete(job);
+                }
+            } catch (InterruptedException e) {
+                Log.w(TAG, "Worker " + mIndex + " interrupted");
+            } finally {
+                mDetector.release();
+                // Every frame ahead of the stop markers has been delivered
+                // once the last worker leaves, so no output is still in use
+                if (mRunningWorkers.decrementAndGet() == 0) {
+                    releaseOutputs();
+                }
+            }
+        }
+    }
+}
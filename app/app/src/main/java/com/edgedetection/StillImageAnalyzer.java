@@ -0,0 +1,200 @@
+package com.edgedetection;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.util.Log;
+
+import com.edgedetection.memory.NativeMemory;
+import com.edgedetection.metrics.LatencyHistogram;
+import com.edgedetection.metrics.PipelineMetrics;
+
+import org.opencv.android.Utils;
+import org.opencv.core.Mat;
+
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs edge detection on a frozen camera frame or a full-resolution still
+ * on a background thread, using the strip-tiled native path.
+ *
+ * All native state is confined to a single worker thread. Parameter changes
+ * are coalesced: while one pass is queued, further requests only update the
+ * parameters it will use. Gradients stay cached in the native context, so
+ * moving the threshold sliders reruns only non-max suppression and
+ * hysteresis.
+ */
+public class StillImageAnalyzer {
+
+    private static final String TAG = "StillImageAnalyzer";
+
+    /**
+     * Receives each processed edge mask on the worker thread.
+     */
+    public interface Listener {
+        /**
+         * @param mask Row-major 8-bit edge mask, width * height bytes
+         */
+        void onStillProcessed(byte[] mask, int width, int height, long elapsedMs);
+
+        void onStillFailed(String message);
+    }
+
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final AtomicBoolean mPassQueued = new AtomicBoolean(false);
+    private final Listener mListener;
+
+    private final LatencyHistogram mProcessTime = PipelineMetrics.histogram("still.process");
+    private final AtomicLong mGradientReuse = PipelineMetrics.counter("still.gradients.reused");
+
+    // Parameters for the next pass, written by any thread
+    private volatile int mLowerThreshold;
+    private volatile int mUpperThreshold;
+    private volatile int mBlurSize;
+
+    // Worker thread only
+    private Mat mImage;
+    private Mat mEdges;
+    private long mContext;
+    private long mFrameId = 0;
+
+    public StillImageAnalyzer(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Analyse a camera frame. Takes ownership of the Mat, which is released
+     * through {@link NativeMemory}.
+     */
+    public void analyzeFrame(Mat rgbaFrame, int lowerThreshold, int upperThreshold, int blurSize) {
+        setParameters(lowerThreshold, upperThreshold, blurSize);
+        mExecutor.execute(() -> {
+            replaceImage(rgbaFrame);
+            runPass();
+        });
+    }
+
+    /**
+     * Decode a full-resolution still and analyse it.
+     */
+    public void analyzeStill(ContentResolver resolver, Uri uri,
+                             int lowerThreshold, int upperThreshold, int blurSize) {
+        setParameters(lowerThreshold, upperThreshold, blurSize);
+        mExecutor.execute(() -> {
+            Mat image = decodeStill(resolver, uri);
+            if (image == null) {
+                mListener.onStillFailed("Could not decode image");
+                return;
+            }
+            replaceImage(image);
+            runPass();
+        });
+    }
+
+    /**
+     * Rerun detection on the current image with new parameters.
+     */
+    public void update(int lowerThreshold, int upperThreshold, int blurSize) {
+        setParameters(lowerThreshold, upperThreshold, blurSize);
+        if (mPassQueued.compareAndSet(false, true)) {
+            mExecutor.execute(this::runPass);
+        }
+    }
+
+    /**
+     * Drop the current image and its cached gradients.
+     */
+    public void clear() {
+        mExecutor.execute(() -> replaceImage(null));
+    }
+
+    public void shutdown() {
+        clear();
+        mExecutor.execute(() -> {
+            NativeMemory.release(mEdges);
+            mEdges = null;
+            if (mContext != 0) {
+                EdgeDetector.releaseContext(mContext);
+                mContext = 0;
+            }
+        });
+        mExecutor.shutdown();
+    }
+
+    private void setParameters(int lowerThreshold, int upperThreshold, int blurSize) {
+        mLowerThreshold = lowerThreshold;
+        mUpperThreshold = upperThreshold;
+        mBlurSize = blurSize;
+    }
+
+    private void replaceImage(Mat image) {
+        NativeMemory.release(mImage);
+        mImage = image;
+        mFrameId++;
+    }
+
+    private void runPass() {
+        mPassQueued.set(false);
+        if (mImage == null || !EdgeDetector.isLibraryLoaded()) {
+            return;
+        }
+
+        try {
+            if (mContext == 0) {
+                mContext = EdgeDetector.createContext();
+            }
+            if (mEdges == null) {
+                mEdges = NativeMemory.newMat("still.edges");
+            }
+
+            long start = System.nanoTime();
+            boolean reused = EdgeDetector.detectEdgesTiled(
+                mContext,
+                mFrameId,
+                mImage.getNativeObjAddr(),
+                mEdges.getNativeObjAddr(),
+                mLowerThreshold,
+                mUpperThreshold,
+                mBlurSize
+            );
+            long elapsedNs = System.nanoTime() - start;
+            mProcessTime.record(elapsedNs);
+            if (reused) {
+                mGradientReuse.incrementAndGet();
+            }
+
+            byte[] mask = new byte[(int) mEdges.total()];
+            mEdges.get(0, 0, mask);
+            Log.d(TAG, "Processed still " + mEdges.cols() + "x" + mEdges.rows()
+                    + " in " + elapsedNs / 1_000_000 + "ms (gradients reused: " + reused + ")");
+            mListener.onStillProcessed(mask, mEdges.cols(), mEdges.rows(), elapsedNs / 1_000_000);
+        } catch (Exception e) {
+            Log.e(TAG, "Error processing still: " + e.getMessage(), e);
+            mListener.onStillFailed(e.getMessage());
+        }
+    }
+
+    private static Mat decodeStill(ContentResolver resolver, Uri uri) {
+        try (InputStream stream = resolver.openInputStream(uri)) {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            Bitmap bitmap = BitmapFactory.decodeStream(stream, null, options);
+            if (bitmap == null) {
+                return null;
+            }
+            Mat image = NativeMemory.newMat("still.image");
+            Utils.bitmapToMat(bitmap, image);
+            bitmap.recycle();
+            Log.i(TAG, "Loaded still " + image.cols() + "x" + image.rows());
+            return image;
+        } catch (Exception | OutOfMemoryError e) {
+            Log.e(TAG, "Error loading still: " + e.getMessage());
+            return null;
+        }
+    }
+}
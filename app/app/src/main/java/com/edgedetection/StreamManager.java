@@ -0,0 +1,396 @@
+package com.edgedetection;
+
+import android.util.Log;
+
+import com.edgedetection.memory.NativeMemory;
+import com.edgedetection.metrics.LatencyHistogram;
+import com.edgedetection.metrics.PipelineMetrics;
+
+import org.opencv.core.Mat;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Edge detection for several independent sources at once, such as the
+ * cameras of an inspection rig or clips on a replay server.
+ *
+ * Each {@link Stream} has its own parameters, native context, output Mat
+ * and a queue of at most {@code maxPendingPerStream} frames, so a stream
+ * never holds more than that many inputs plus the one being processed. A
+ * fixed pool of workers serves all streams round-robin: a worker takes the
+ * stream at the head of the ready queue, processes one frame and puts the
+ * stream back at the tail if it has more, so a fast source cannot starve
+ * the others. A stream is processed by one worker at a time, which keeps
+ * its context single-threaded and its results in submission order.
+ *
+ * Throughput is published in aggregate as {@code streams.*} and per stream
+ * as {@code streams.<name>.*}.
+ */
+public class StreamManager {
+
+    private static final String TAG = "StreamManager";
+
+    /**
+     * Receives a stream's results in submission order, on a worker thread.
+     * Different streams may be delivered concurrently.
+     */
+    public interface Listener {
+        void onFrameProcessed(Stream stream, Frame frame);
+    }
+
+    /**
+     * A processed frame; see {@link DetectedFrame}.
+     */
+    public static final class Frame extends DetectedFrame {
+        private final long mQueuedNs = System.nanoTime();
+
+        private Frame(long sequence, long captureTimeNs, Mat input) {
+            super(sequence, captureTimeNs, input);
+        }
+    }
+
+    /**
+     * One source with its own parameters and buffers. Created by
+     * {@link #addStream}.
+     */
+    public final class Stream {
+        private final String mName;
+        private final Listener mListener;
+        private final long mAddedNs = System.nanoTime();
+
+        // Guarded by mLock
+        private final ArrayDeque<Frame> mPending = new ArrayDeque<>();
+        private long mNextSequence = 0;
+        private boolean mReady = false;
+        private boolean mProcessing = false;
+        private boolean mClosed = false;
+
+        private volatile int mLowerThreshold = 50;
+        private volatile int mUpperThreshold = 150;
+        private volatile int mBlurSize = 5;
+        private volatile int mProcessingScale = 1;
+
+        // Only touched by the worker processing the stream, or once closed
+        private final FrameDetector mDetector;
+        private Mat mEdges;
+
+        private final AtomicLong mProcessed;
+        private final AtomicLong mDropped;
+        private final LatencyHistogram mProcessTime;
+        private final LatencyHistogram mQueueWait;
+
+        private Stream(String name, Listener listener) {
+            mName = name;
+            mListener = listener;
+            mDetector = mDetectors.create(name);
+            mProcessed = PipelineMetrics.counter("streams." + name + ".frames.processed");
+            mDropped = PipelineMetrics.counter("streams." + name + ".frames.dropped");
+            mProcessTime = PipelineMetrics.histogram("streams." + name + ".process");
+            mQueueWait = PipelineMetrics.histogram("streams." + name + ".queue.wait");
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * Parameters for frames processed from now on.
+         */
+        public void setParameters(int lowerThreshold, int upperThreshold, int blurSize) {
+            mLowerThreshold = lowerThreshold;
+            mUpperThreshold = upperThreshold;
+            mBlurSize = blurSize;
+        }
+
+        /**
+         * @see EdgeDetector#setProcessingScale(long, int)
+         */
+        public void setProcessingScale(int scale) {
+            mProcessingScale = scale;
+        }
+
+        /**
+         * Queue a frame for a live source: if the stream's queue is full the
+         * oldest frame is dropped to make room, so results stay current.
+         * Takes ownership of the Mat, which is released through
+         * {@link NativeMemory} once processed or dropped.
+         *
+         * @return Sequence number of the frame, or -1 if the stream is closed
+         */
+        public long offer(Mat frame, long captureTimeNs) {
+            Frame dropped = null;
+            long sequence;
+            synchronized (mLock) {
+                if (mClosed || mShutdown) {
+                    sequence = -1;
+                } else {
+                    if (mPending.size() >= mMaxPendingPerStream) {
+                        dropped = mPending.poll();
+                    }
+                    sequence = enqueueLocked(frame, captureTimeNs);
+                }
+            }
+            if (sequence < 0) {
+                NativeMemory.release(frame);
+            } else if (dropped != null) {
+                NativeMemory.release(dropped.mInput);
+                mDropped.incrementAndGet();
+                mTotalDropped.incrementAndGet();
+            }
+            return sequence;
+        }
+
+        /**
+         * Queue a frame for a replay source, blocking while the stream's
+         * queue is full so every frame is processed. Takes ownership of the
+         * Mat like {@link #offer}.
+         *
+         * @return Sequence number of the frame
+         */
+        public long submit(Mat frame, long captureTimeNs) throws InterruptedException {
+            long sequence;
+            synchronized (mLock) {
+                while (mPending.size() >= mMaxPendingPerStream && !mClosed && !mShutdown) {
+                    mLock.wait();
+                }
+                sequence = mClosed || mShutdown ? -1 : enqueueLocked(frame, captureTimeNs);
+            }
+            if (sequence < 0) {
+                NativeMemory.release(frame);
+                throw new IllegalStateException("Stream " + mName + " is closed");
+            }
+            return sequence;
+        }
+
+        public int getPendingCount() {
+            synchronized (mLock) {
+                return mPending.size();
+            }
+        }
+
+        public long getProcessedCount() {
+            return mProcessed.get();
+        }
+
+        public long getDroppedCount() {
+            return mDropped.get();
+        }
+
+        /**
+         * Frames processed per second since the stream was added.
+         */
+        public double getFramesPerSecond() {
+            long elapsedNs = System.nanoTime() - mAddedNs;
+            return elapsedNs <= 0 ? 0.0 : mProcessed.get() * 1e9 / elapsedNs;
+        }
+
+        private long enqueueLocked(Mat frame, long captureTimeNs) {
+            Frame queued = new Frame(mNextSequence++, captureTimeNs, frame);
+            mPending.add(queued);
+            if (!mReady && !mProcessing) {
+                mReady = true;
+                mReadyStreams.add(this);
+                mLock.notifyAll();
+            }
+            return queued.mSequence;
+        }
+
+        private void process(Frame frame) {
+            mQueueWait.record(System.nanoTime() - frame.mQueuedNs);
+            long elapsedNs = mDetector.process(frame, mLowerThreshold, mUpperThreshold, mBlurSize,
+                    mProcessingScale, this::obtainOutput);
+            mProcessTime.record(elapsedNs);
+            mTotalProcessTime.record(elapsedNs);
+        }
+
+        private Mat obtainOutput() {
+            if (mEdges == null) {
+                mEdges = NativeMemory.newMat("streams." + mName + ".edges");
+            }
+            return mEdges;
+        }
+
+        /**
+         * Free the native state once no worker uses it any more.
+         */
+        private void releaseResources() {
+            mDetector.release();
+            NativeMemory.release(mEdges);
+            mEdges = null;
+        }
+    }
+
+    private final int mMaxPendingPerStream;
+    private final FrameDetector.Factory mDetectors;
+    private final Thread[] mWorkers;
+    private final long mCreatedNs = System.nanoTime();
+
+    // Guarded by mLock
+    private final Object mLock = new Object();
+    private final ArrayDeque<Stream> mReadyStreams = new ArrayDeque<>();
+    private final List<Stream> mStreams = new ArrayList<>();
+    private boolean mShutdown = false;
+
+    private final AtomicLong mTotalProcessed = PipelineMetrics.counter("streams.frames.processed");
+    private final AtomicLong mTotalDropped = PipelineMetrics.counter("streams.frames.dropped");
+    private final AtomicLong mActiveStreams = PipelineMetrics.counter("streams.active");
+    private final LatencyHistogram mTotalProcessTime = PipelineMetrics.histogram("streams.process");
+
+    /**
+     * @param workerCount Worker threads shared by all streams, typically the number of cores
+     * @param maxPendingPerStream Frames a stream may queue before {@link Stream#offer}
+     *                            drops and {@link Stream#submit} blocks
+     */
+    public StreamManager(int workerCount, int maxPendingPerStream) {
+        this(workerCount, maxPendingPerStream, FrameDetector::new);
+    }
+
+    StreamManager(int workerCount, int maxPendingPerStream, FrameDetector.Factory detectors) {
+        if (workerCount < 1 || maxPendingPerStream < 1) {
+            throw new IllegalArgumentException("Need at least one worker and one pending frame, got "
+                    + workerCount + " and " + maxPendingPerStream);
+        }
+        mMaxPendingPerStream = maxPendingPerStream;
+        mDetectors = detectors;
+        mWorkers = new Thread[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            mWorkers[i] = new Thread(this::runWorker, "StreamWorker-" + i);
+            mWorkers[i].start();
+        }
+        Log.i(TAG, "Started " + workerCount + " workers, " + maxPendingPerStream + " frames per stream");
+    }
+
+    /**
+     * @param name Unique name, used in metric names
+     */
+    public Stream addStream(String name, Listener listener) {
+        Stream stream = new Stream(name, listener);
+        synchronized (mLock) {
+            if (mShutdown) {
+                throw new IllegalStateException("Manager is shut down");
+            }
+            for (Stream existing : mStreams) {
+                if (existing.mName.equals(name)) {
+                    throw new IllegalArgumentException("Stream " + name + " already exists");
+                }
+            }
+            mStreams.add(stream);
+            mActiveStreams.set(mStreams.size());
+        }
+        return stream;
+    }
+
+    /**
+     * Close a stream. Queued frames are dropped; a frame being processed is
+     * still delivered, after which the stream's native state is freed.
+     */
+    public void removeStream(Stream stream) {
+        List<Frame> dropped;
+        boolean idle;
+        synchronized (mLock) {
+            if (stream.mClosed) {
+                return;
+            }
+            stream.mClosed = true;
+            mStreams.remove(stream);
+            mActiveStreams.set(mStreams.size());
+            if (stream.mReady) {
+                mReadyStreams.remove(stream);
+                stream.mReady = false;
+            }
+            dropped = new ArrayList<>(stream.mPending);
+            stream.mPending.clear();
+            idle = !stream.mProcessing;
+            // Wake producers blocked in submit
+            mLock.notifyAll();
+        }
+        for (Frame frame : dropped) {
+            NativeMemory.release(frame.mInput);
+        }
+        if (idle) {
+            stream.releaseResources();
+        }
+    }
+
+    public List<Stream> getStreams() {
+        synchronized (mLock) {
+            return new ArrayList<>(mStreams);
+        }
+    }
+
+    /**
+     * Frames processed per second over all streams since the manager started.
+     */
+    public double getFramesPerSecond() {
+        long elapsedNs = System.nanoTime() - mCreatedNs;
+        return elapsedNs <= 0 ? 0.0 : mTotalProcessed.get() * 1e9 / elapsedNs;
+    }
+
+    /**
+     * Remove every stream and stop the workers once they finish their
+     * current frame.
+     */
+    public void shutdown() {
+        for (Stream stream : getStreams()) {
+            removeStream(stream);
+        }
+        synchronized (mLock) {
+            mShutdown = true;
+            mLock.notifyAll();
+        }
+    }
+
+    private void runWorker() {
+        try {
+            while (true) {
+                Stream stream;
+                Frame frame;
+                synchronized (mLock) {
+                    while (mReadyStreams.isEmpty() && !mShutdown) {
+                        mLock.wait();
+                    }
+                    if (mReadyStreams.isEmpty()) {
+                        break;
+                    }
+                    stream = mReadyStreams.poll();
+                    stream.mReady = false;
+                    stream.mProcessing = true;
+                    frame = stream.mPending.poll();
+                    // A slot in the stream's queue is free for submit
+                    mLock.notifyAll();
+                }
+
+                stream.process(frame);
+                try {
+                    stream.mListener.onFrameProcessed(stream, frame);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Listener of " + stream.mName + " failed on frame " + frame.mSequence
+                            + ": " + e.getMessage(), e);
+                }
+                NativeMemory.release(frame.mInput);
+                stream.mProcessed.incrementAndGet();
+                mTotalProcessed.incrementAndGet();
+
+                boolean closed;
+                synchronized (mLock) {
+                    stream.mProcessing = false;
+                    closed = stream.mClosed;
+                    // Back of the line, so every ready stream gets a turn first
+                    if (!closed && !stream.mPending.isEmpty()) {
+                        stream.mReady = true;
+                        mReadyStreams.add(stream);
+                        mLock.notifyAll();
+                    }
+                }
+                if (closed) {
+                    stream.releaseResources();
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.w(TAG, Thread.currentThread().getName() + " interrupted");
+        }
+    }
+}
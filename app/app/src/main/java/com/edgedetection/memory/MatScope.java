@@ -0,0 +1,55 @@
+package com.edgedetection.memory;
+
+import org.opencv.core.Mat;
+
+import java.util.ArrayList;
+
+/**
+ * Owns the temporary Mats of one block of code and releases them, newest
+ * first, when closed. Meant for try-with-resources; not thread-safe.
+ */
+public final class MatScope implements AutoCloseable {
+
+    private final String mSite;
+    private final ArrayList<Mat> mMats = new ArrayList<>();
+
+    MatScope(String site) {
+        mSite = site;
+    }
+
+    public Mat newMat() {
+        return track(new Mat());
+    }
+
+    public Mat newMat(int rows, int cols, int type) {
+        return track(new Mat(rows, cols, type));
+    }
+
+    /**
+     * Take ownership of a Mat created elsewhere, e.g. by {@link Mat#clone()}.
+     */
+    public Mat track(Mat mat) {
+        if (mat != null) {
+            NativeMemory.track(mSite, mat);
+            mMats.add(mat);
+        }
+        return mat;
+    }
+
+    /**
+     * Hand a Mat out of the scope; the caller becomes responsible for
+     * releasing it through {@link NativeMemory#release(Mat)}.
+     */
+    public Mat detach(Mat mat) {
+        mMats.remove(mat);
+        return mat;
+    }
+
+    @Override
+    public void close() {
+        for (int i = mMats.size() - 1; i >= 0; i--) {
+            NativeMemory.release(mMats.get(i));
+        }
+        mMats.clear();
+    }
+}
@@ -0,0 +1,200 @@
+package com.edgedetection.memory;
+
+import android.util.Log;
+
+import com.edgedetection.metrics.PipelineMetrics;
+
+import org.opencv.core.Mat;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Accounting for native OpenCV allocations made from Java.
+ *
+ * A {@link Mat} holds its pixels outside the Java heap, so the GC neither
+ * sees the memory nor hurries to finalize a dropped Mat. Every Mat the app
+ * creates goes through here with the call site that owns it and is released
+ * explicitly, either by {@link #release(Mat)} or by closing the
+ * {@link MatScope} it was created in.
+ *
+ * Live Mats and bytes are published per call site as
+ * {@code native.mats.live.<site>} and {@code native.bytes.live.<site>}, plus
+ * the totals without a suffix. {@link #onFrame()} samples the totals
+ * periodically and logs a warning with the per-site breakdown when they keep
+ * growing.
+ */
+public final class NativeMemory {
+
+    private static final String TAG = "NativeMemory";
+
+    // Frames between samples of the live totals
+    private static final int SAMPLE_INTERVAL_FRAMES = 120;
+    // Consecutive growing samples before a leak is reported
+    private static final int GROWTH_SAMPLES = 3;
+
+    // Mat identity -> call site; Mat overrides neither equals nor hashCode,
+    // but identity makes that explicit
+    private static final Map<Mat, String> sLive = new IdentityHashMap<>();
+
+    private static final AtomicLong sAllocated = PipelineMetrics.counter("native.mats.allocated");
+    private static final AtomicLong sReleased = PipelineMetrics.counter("native.mats.released");
+    private static final AtomicLong sLiveMats = PipelineMetrics.counter("native.mats.live");
+    private static final AtomicLong sLiveBytes = PipelineMetrics.counter("native.bytes.live");
+    private static final AtomicLong sLeakWarnings = PipelineMetrics.counter("native.leak.warnings");
+
+    // Sites that have had a gauge published, guarded by the class lock
+    private static final Set<String> sKnownSites = new TreeSet<>();
+
+    // Camera thread only
+    private static int sFrames = 0;
+    private static long sLastSampleBytes = 0;
+    private static int sGrowingSamples = 0;
+
+    private NativeMemory() {
+    }
+
+    public static Mat newMat(String site) {
+        return track(site, new Mat());
+    }
+
+    public static Mat newMat(String site, int rows, int cols, int type) {
+        return track(site, new Mat(rows, cols, type));
+    }
+
+    /**
+     * Account for a Mat created elsewhere, e.g. by {@link Mat#clone()}.
+     * Whoever releases it must do so through {@link #release(Mat)}.
+     */
+    public static Mat track(String site, Mat mat) {
+        if (mat == null) {
+            return null;
+        }
+        synchronized (sLive) {
+            sLive.put(mat, site);
+        }
+        sAllocated.incrementAndGet();
+        return mat;
+    }
+
+    /**
+     * Release a Mat's native memory now. Untracked and null Mats are accepted
+     * so callers need no special cases for Mats they did not allocate.
+     */
+    public static void release(Mat mat) {
+        if (mat == null) {
+            return;
+        }
+        boolean tracked;
+        synchronized (sLive) {
+            tracked = sLive.remove(mat) != null;
+        }
+        if (tracked) {
+            sReleased.incrementAndGet();
+        }
+        mat.release();
+    }
+
+    /**
+     * Start a scope whose Mats are all released when it closes:
+     * <pre>
+     * try (MatScope scope = NativeMemory.scope("site")) {
+     *     Mat tmp = scope.newMat();
+     *     ...
+     * }
+     * </pre>
+     */
+    public static MatScope scope(String site) {
+        return new MatScope(site);
+    }
+
+    /**
+     * Called once per camera frame. Every {@code SAMPLE_INTERVAL_FRAMES}
+     * frames the gauges are refreshed and the totals compared to the previous
+     * sample; a Mat leaked once per frame shows up after a few samples, while
+     * buffers resized once on a resolution change do not.
+     */
+    public static void onFrame() {
+        if (++sFrames < SAMPLE_INTERVAL_FRAMES) {
+            return;
+        }
+        sFrames = 0;
+
+        Map<String, long[]> sites = sample();
+        long bytes = sLiveBytes.get();
+        if (bytes > sLastSampleBytes) {
+            sGrowingSamples++;
+        } else {
+            sGrowingSamples = 0;
+        }
+        sLastSampleBytes = bytes;
+
+        if (sGrowingSamples >= GROWTH_SAMPLES) {
+            sGrowingSamples = 0;
+            sLeakWarnings.incrementAndGet();
+            Log.w(TAG, "Native memory grew for " + GROWTH_SAMPLES * SAMPLE_INTERVAL_FRAMES
+                    + " frames: " + sLiveMats.get() + " Mats, " + bytes / 1024 + " KiB live "
+                    + format(sites));
+        }
+    }
+
+    /**
+     * Refresh the live gauges now.
+     *
+     * @return Live Mat count and bytes per call site
+     */
+    public static synchronized Map<String, long[]> sample() {
+        Map<String, long[]> sites = new TreeMap<>();
+        synchronized (sLive) {
+            for (Map.Entry<Mat, String> entry : sLive.entrySet()) {
+                long[] totals = sites.get(entry.getValue());
+                if (totals == null) {
+                    totals = new long[2];
+                    sites.put(entry.getValue(), totals);
+                }
+                // Sized now rather than at allocation: OpenCV reallocates
+                // output Mats in place when a frame size changes
+                Mat mat = entry.getKey();
+                totals[0]++;
+                totals[1] += mat.total() * mat.elemSize();
+            }
+        }
+
+        long mats = 0;
+        long bytes = 0;
+        for (Map.Entry<String, long[]> entry : sites.entrySet()) {
+            long[] totals = entry.getValue();
+            PipelineMetrics.counter("native.mats.live." + entry.getKey()).set(totals[0]);
+            PipelineMetrics.counter("native.bytes.live." + entry.getKey()).set(totals[1]);
+            mats += totals[0];
+            bytes += totals[1];
+        }
+        // Sites that are empty now would keep their last value otherwise
+        for (String site : sKnownSites) {
+            if (!sites.containsKey(site)) {
+                PipelineMetrics.counter("native.mats.live." + site).set(0);
+                PipelineMetrics.counter("native.bytes.live." + site).set(0);
+            }
+        }
+        sKnownSites.addAll(sites.keySet());
+        sLiveMats.set(mats);
+        sLiveBytes.set(bytes);
+        return sites;
+    }
+
+    private static String format(Map<String, long[]> sites) {
+        StringBuilder sb = new StringBuilder("(");
+        for (Map.Entry<String, long[]> entry : sites.entrySet()) {
+            if (sb.length() > 1) {
+                sb.append(", ");
+            }
+            sb.append(entry.getKey()).append(": ").append(entry.getValue()[0])
+                    .append(" / ").append(entry.getValue()[1] / 1024).append(" KiB");
+        }
+        return sb.append(')').toString();
+    }
+}
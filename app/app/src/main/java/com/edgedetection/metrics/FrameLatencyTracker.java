@@ -0,0 +1,116 @@
+package com.edgedetection.metrics;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks capture-to-present latency and enforces a per-frame deadline.
+ *
+ * Every frame is stamped with {@link System#nanoTime()} when the camera hands
+ * it over. Each pipeline stage asks {@link #isExpired(long)} before doing
+ * work and records a drop when the frame is already too old to be worth
+ * showing. The renderer records the final latency once the frame is drawn.
+ */
+public class FrameLatencyTracker {
+
+    public static final long DEFAULT_DEADLINE_MS = 100;
+
+    /**
+     * Pipeline stage at which a frame was discarded.
+     */
+    public enum Stage {
+        /** Frame was already stale once edge detection finished. */
+        DETECT("detect"),
+        /** Frame went stale while waiting for the GL thread. */
+        UPLOAD("upload"),
+        /** A newer frame replaced it before the GL thread picked it up. */
+        SUPERSEDED("superseded");
+
+        private final String mName;
+
+        Stage(String name) {
+            mName = name;
+        }
+
+        public String getName() {
+            return mName;
+        }
+    }
+
+    private final LatencyHistogram mLatency = PipelineMetrics.histogram("latency.capture_to_present");
+    private final AtomicLong mPresented = PipelineMetrics.counter("frames.presented");
+    private final AtomicLong[] mDrops = new AtomicLong[Stage.values().length];
+
+    private volatile long mDeadlineNs = TimeUnit.MILLISECONDS.toNanos(DEFAULT_DEADLINE_MS);
+
+    public FrameLatencyTracker() {
+        for (Stage stage : Stage.values()) {
+            mDrops[stage.ordinal()] = PipelineMetrics.counter("frames.dropped." + stage.getName());
+        }
+    }
+
+    /**
+     * @param deadlineMs maximum acceptable capture-to-present age; 0 disables dropping
+     */
+    public void setDeadlineMs(long deadlineMs) {
+        mDeadlineNs = TimeUnit.MILLISECONDS.toNanos(Math.max(0, deadlineMs));
+    }
+
+    public long getDeadlineMs() {
+        return TimeUnit.NANOSECONDS.toMillis(mDeadlineNs);
+    }
+
+    public boolean isExpired(long captureTimeNs) {
+        long deadline = mDeadlineNs;
+        return deadline > 0 && System.nanoTime() - captureTimeNs > deadline;
+    }
+
+    public void recordDrop(Stage stage) {
+        mDrops[stage.ordinal()].incrementAndGet();
+    }
+
+    public void recordPresented(long captureTimeNs) {
+        mLatency.record(System.nanoTime() - captureTimeNs);
+        mPresented.incrementAndGet();
+    }
+
+    public long getPresentedCount() {
+        return mPresented.get();
+    }
+
+    public long getDropCount(Stage stage) {
+        return mDrops[stage.ordinal()].get();
+    }
+
+    public long getTotalDropCount() {
+        long total = 0;
+        for (AtomicLong drops : mDrops) {
+            total += drops.get();
+        }
+        return total;
+    }
+
+    public LatencyHistogram getLatency() {
+        return mLatency;
+    }
+
+    /**
+     * Short one-line summary suitable for an on-screen overlay.
+     */
+    public String getOverlayText() {
+        return String.format(Locale.US, "Latency p50: %.0fms p95: %.0fms  Dropped: %d",
+                mLatency.getPercentileMs(50), mLatency.getPercentileMs(95), getTotalDropCount());
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("latency[").append(mLatency).append("] presented=").append(mPresented.get());
+        for (Stage stage : Stage.values()) {
+            sb.append(" dropped.").append(stage.getName()).append('=').append(getDropCount(stage));
+        }
+        sb.append(" deadline=").append(getDeadlineMs()).append("ms");
+        return sb.toString();
+    }
+}
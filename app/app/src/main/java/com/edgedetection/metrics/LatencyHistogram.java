@@ -0,0 +1,105 @@
+package com.edgedetection.metrics;
+
+/**
+ * Fixed-bucket latency histogram.
+ *
+ * Samples are recorded in O(1) without allocation so it is safe to call from
+ * the camera and GL threads every frame. Values below 10ms are bucketed at
+ * 10us resolution, values up to 1s at 1ms resolution, anything above that
+ * lands in a single overflow bucket.
+ */
+public class LatencyHistogram {
+
+    private static final long FINE_BUCKET_NS = 10_000L;        // 10us
+    private static final int FINE_BUCKETS = 1000;              // 0 - 10ms
+    private static final long COARSE_BUCKET_NS = 1_000_000L;   // 1ms
+    private static final int COARSE_BUCKETS = 990;             // 10ms - 1s
+    private static final int TOTAL_BUCKETS = FINE_BUCKETS + COARSE_BUCKETS + 1;
+
+    private final long[] mBuckets = new long[TOTAL_BUCKETS];
+    private long mCount;
+    private long mSumNs;
+    private long mMaxNs;
+
+    public synchronized void record(long latencyNs) {
+        if (latencyNs < 0) {
+            latencyNs = 0;
+        }
+        mBuckets[bucketIndex(latencyNs)]++;
+        mCount++;
+        mSumNs += latencyNs;
+        if (latencyNs > mMaxNs) {
+            mMaxNs = latencyNs;
+        }
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    public synchronized double getMeanMs() {
+        return mCount == 0 ? 0.0 : (mSumNs / (double) mCount) / 1_000_000.0;
+    }
+
+    public synchronized double getMaxMs() {
+        return mMaxNs / 1_000_000.0;
+    }
+
+    /**
+     * @param percentile value in [0, 100]
+     * @return upper bound of the bucket containing the requested percentile, in ms
+     */
+    public synchronized double getPercentileMs(double percentile) {
+        if (mCount == 0) {
+            return 0.0;
+        }
+        long target = (long) Math.ceil(mCount * Math.min(100.0, Math.max(0.0, percentile)) / 100.0);
+        if (target < 1) {
+            target = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i < TOTAL_BUCKETS; i++) {
+            seen += mBuckets[i];
+            if (seen >= target) {
+                return Math.min(bucketUpperBoundNs(i), mMaxNs) / 1_000_000.0;
+            }
+        }
+        return getMaxMs();
+    }
+
+    public synchronized void reset() {
+        java.util.Arrays.fill(mBuckets, 0);
+        mCount = 0;
+        mSumNs = 0;
+        mMaxNs = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(java.util.Locale.US,
+                "n=%d mean=%.2fms p50=%.2fms p95=%.2fms p99=%.2fms max=%.2fms",
+                mCount, getMeanMs(), getPercentileMs(50), getPercentileMs(95),
+                getPercentileMs(99), getMaxMs());
+    }
+
+    private static int bucketIndex(long ns) {
+        if (ns < FINE_BUCKET_NS * FINE_BUCKETS) {
+            return (int) (ns / FINE_BUCKET_NS);
+        }
+        long coarse = (ns - FINE_BUCKET_NS * FINE_BUCKETS) / COARSE_BUCKET_NS;
+        if (coarse < COARSE_BUCKETS) {
+            return FINE_BUCKETS + (int) coarse;
+        }
+        return TOTAL_BUCKETS - 1;
+    }
+
+    private long bucketUpperBoundNs(int index) {
+        if (index < FINE_BUCKETS) {
+            return (index + 1) * FINE_BUCKET_NS;
+        }
+        if (index < FINE_BUCKETS + COARSE_BUCKETS) {
+            return FINE_BUCKET_NS * FINE_BUCKETS + (index - FINE_BUCKETS + 1) * COARSE_BUCKET_NS;
+        }
+        return mMaxNs;
+    }
+}
@@ -0,0 +1,66 @@
+package com.edgedetection.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide registry of named pipeline counters and latency histograms.
+ *
+ * Stages look up their metric once and keep the reference, so recording a
+ * value on the hot path is a single atomic add or histogram insert. Kept free
+ * of Android classes so the same numbers can be read from the app UI, Logcat
+ * or an offline tool.
+ */
+public final class PipelineMetrics {
+
+    private static final ConcurrentHashMap<String, AtomicLong> sCounters = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, LatencyHistogram> sHistograms = new ConcurrentHashMap<>();
+
+    private PipelineMetrics() {
+    }
+
+    public static AtomicLong counter(String name) {
+        return sCounters.computeIfAbsent(name, key -> new AtomicLong());
+    }
+
+    public static LatencyHistogram histogram(String name) {
+        return sHistograms.computeIfAbsent(name, key -> new LatencyHistogram());
+    }
+
+    public static Map<String, Long> counterSnapshot() {
+        Map<String, Long> snapshot = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> entry : sCounters.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().get());
+        }
+        return snapshot;
+    }
+
+    public static Map<String, LatencyHistogram> histograms() {
+        return new TreeMap<>(sHistograms);
+    }
+
+    /**
+     * Multi-line, human readable dump of every registered metric.
+     */
+    public static String summary() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Long> entry : counterSnapshot().entrySet()) {
+            sb.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+        }
+        for (Map.Entry<String, LatencyHistogram> entry : histograms().entrySet()) {
+            sb.append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    public static void reset() {
+        for (AtomicLong counter : sCounters.values()) {
+            counter.set(0);
+        }
+        for (LatencyHistogram histogram : sHistograms.values()) {
+            histogram.reset();
+        }
+    }
+}
@@ -4,7 +4,17 @@ import android.content.Context;
 import android.opengl.GLSurfaceView;
 import android.util.AttributeSet;
 import android.util.Log;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
 
+import com.edgedetection.EdgeBitmap;
+import com.edgedetection.EdgePolylines;
+import com.edgedetection.memory.MatScope;
+import com.edgedetection.memory.NativeMemory;
+import com.edgedetection.metrics.FrameLatencyTracker;
+import com.edgedetection.output.EdgeBufferQueue;
+
+import org.opencv.core.Core;
 import org.opencv.core.Mat;
 
 public class EdgeDetectionGLView extends GLSurfaceView {
@@ -12,6 +22,16 @@ public class EdgeDetectionGLView extends GLSurfaceView {
     private static final String TAG = "EdgeDetectionGLView";
     private EdgeDetectionRenderer mRenderer;
     
+    // Pan and pinch-zoom for still images
+    private ScaleGestureDetector mScaleDetector;
+    private float mLastTouchX;
+    private float mLastTouchY;
+    
+    // Reused by updateEdges on the camera thread
+    private Mat mEdgeMask;
+    private byte[] mEdgeMaskData;
+    private EdgeBitmap mEdgeBitmap;
+    
     public EdgeDetectionGLView(Context context) {
         super(context);
         init();
@@ -25,47 +45,210 @@ public class EdgeDetectionGLView extends GLSurfaceView {
     private void init() {
         Log.d(TAG, "Initializing EdgeDetectionGLView");
         
-        // Set OpenGL ES version to 2.0
+        // ES 2 configs are accepted for ES 3 contexts; the factory asks for
+        // version 3 first and records whether it had to settle for 2
         setEGLContextClientVersion(2);
+        GlContextFactory contextFactory = new GlContextFactory();
+        setEGLContextFactory(contextFactory);
         
         // Set renderer
-        mRenderer = new EdgeDetectionRenderer(getContext());
+        mRenderer = new EdgeDetectionRenderer(getContext(), contextFactory);
         setRenderer(mRenderer);
         
+        // Keep shaders and textures across pause instead of rebuilding them
+        // on every resume; the renderer recreates them lazily if the driver
+        // drops the context anyway
+        setPreserveEGLContextOnPause(true);
+        
         // Set render mode to continuous rendering
         setRenderMode(GLSurfaceView.RENDERMODE_CONTINUOUSLY);
         
+        mScaleDetector = new ScaleGestureDetector(getContext(),
+                new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+                    @Override
+                    public boolean onScale(ScaleGestureDetector detector) {
+                        mRenderer.zoomStill(detector.getScaleFactor(),
+                                detector.getFocusX(), detector.getFocusY());
+                        return true;
+                    }
+                });
+        
         Log.d(TAG, "EdgeDetectionGLView initialized");
     }
     
     public void updateFrame(Mat frame) {
+        updateFrame(frame, System.nanoTime());
+    }
+    
+    /**
+     * @param captureTimeNs {@link System#nanoTime()} at which the camera delivered the frame
+     */
+    public void updateFrame(Mat frame, long captureTimeNs) {
         if (mRenderer != null && frame != null) {
             // Convert Mat to byte array
             byte[] imageData = matToByteArray(frame);
             if (imageData != null) {
-                mRenderer.updateTexture(imageData, frame.cols(), frame.rows());
+                mRenderer.updateTexture(imageData, frame.cols(), frame.rows(), captureTimeNs);
             }
         }
     }
     
-    private byte[] matToByteArray(Mat mat) {
+    /**
+     * Upload a processed edge frame as a 1-bit packed map instead of RGBA.
+     * Edges and the overlay text are both white in the green channel, so that
+     * channel alone is packed and drawn white on black.
+     *
+     * @param edges RGBA output of the native edge detector
+     * @param captureTimeNs {@link System#nanoTime()} at which the camera delivered the frame
+     */
+    public void updateEdges(Mat edges, long captureTimeNs) {
+        if (mRenderer == null || edges == null || edges.empty()) {
+            return;
+        }
         try {
+            if (mEdgeMask == null) {
+                mEdgeMask = NativeMemory.newMat("view.edgeMask");
+            }
+            Core.extractChannel(edges, mEdgeMask, 1);
+            
+            int width = edges.cols();
+            int height = edges.rows();
+            if (mEdgeBitmap == null || mEdgeBitmap.getWidth() != width || mEdgeBitmap.getHeight() != height) {
+                mEdgeBitmap = new EdgeBitmap(width, height);
+                mEdgeMaskData = new byte[width * height];
+            }
+            mEdgeMask.get(0, 0, mEdgeMaskData);
+            mEdgeBitmap.pack(mEdgeMaskData);
+            
+            mRenderer.updateEdgeBitmap(mEdgeBitmap, captureTimeNs);
+        } catch (Exception e) {
+            Log.e(TAG, "Error packing edge frame: " + e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * Show traced edges, drawn as lines instead of a texture.
+     *
+     * @param captureTimeNs {@link System#nanoTime()} at which the camera delivered the frame
+     */
+    public void updatePolylines(EdgePolylines polylines, long captureTimeNs) {
+        if (mRenderer == null || polylines == null) {
+            return;
+        }
+        mRenderer.updatePolylines(polylines, captureTimeNs);
+    }
+    
+    /**
+     * Smooth edge flicker on the GPU instead of raising the blur.
+     *
+     * @param decay Weight of the history per frame, 0 to 1; higher is smoother but lags more
+     */
+    public void setTemporalFilter(TemporalEdgeFilter.Mode mode, float decay) {
+        mRenderer.setTemporalFilter(mode, decay);
+    }
+    
+    /**
+     * @param rotation Clockwise rotation in degrees that turns a camera frame upright
+     */
+    public void setFrameRotation(int rotation) {
+        mRenderer.setFrameRotation(rotation);
+    }
+    
+    /**
+     * Letterbox or crop live frames whose aspect ratio differs from the view.
+     */
+    public void setScaleMode(FrameTransform.ScaleMode scaleMode) {
+        mRenderer.setScaleMode(scaleMode);
+    }
+    
+    /**
+     * @return Queue for rendering edges straight into GPU-sampled buffers, or
+     *         null if frames have to go through {@link #updateEdges} instead
+     */
+    public EdgeBufferQueue getHardwareOutput() {
+        return mRenderer.getHardwareOutput();
+    }
+    
+    public FrameLatencyTracker getLatencyTracker() {
+        return mRenderer.getLatencyTracker();
+    }
+    
+    /**
+     * Frames older than this when they reach a pipeline stage are dropped.
+     *
+     * @param deadlineMs maximum capture-to-present age; 0 disables dropping
+     */
+    public void setFrameDeadlineMs(long deadlineMs) {
+        mRenderer.getLatencyTracker().setDeadlineMs(deadlineMs);
+    }
+    
+    /**
+     * Show a single-channel image with pan and zoom instead of the live frame.
+     * Only the tiles on screen are uploaded, so the image may exceed
+     * GL_MAX_TEXTURE_SIZE.
+     *
+     * @param pixels Row-major 8-bit pixels, width * height bytes
+     */
+    public void showStillImage(byte[] pixels, int width, int height) {
+        mRenderer.showStillImage(pixels, width, height);
+    }
+    
+    public void clearStillImage() {
+        mRenderer.clearStillImage();
+    }
+    
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        if (!mRenderer.isShowingStill()) {
+            return super.onTouchEvent(event);
+        }
+        
+        mScaleDetector.onTouchEvent(event);
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+                mLastTouchX = event.getX();
+                mLastTouchY = event.getY();
+                break;
+            case MotionEvent.ACTION_MOVE:
+                // Single-finger drag pans; pinches are handled by the scale detector
+                if (!mScaleDetector.isInProgress() && event.getPointerCount() == 1) {
+                    mRenderer.panStill(event.getX() - mLastTouchX, event.getY() - mLastTouchY);
+                }
+                mLastTouchX = event.getX();
+                mLastTouchY = event.getY();
+                break;
+            case MotionEvent.ACTION_POINTER_UP:
+                // Avoid a jump when one finger of a pinch lifts
+                mLastTouchX = event.getX();
+                mLastTouchY = event.getY();
+                break;
+            default:
+                break;
+        }
+        return true;
+    }
+    
+    private byte[] matToByteArray(Mat mat) {
+        try (MatScope scope = NativeMemory.scope("view.upload")) {
             if (mat == null || mat.empty()) {
                 Log.w(TAG, "Mat is null or empty");
                 return null;
             }
             
-            // Ensure the Mat is RGBA format
-            Mat rgbaMat = new Mat();
+            // Ensure the Mat is RGBA format; converted copies are released
+            // with the scope instead of waiting for the finalizer
+            Mat rgbaMat;
             if (mat.channels() == 1) {
+                rgbaMat = scope.newMat();
                 // Convert grayscale to RGBA
                 org.opencv.imgproc.Imgproc.cvtColor(mat, rgbaMat, org.opencv.imgproc.Imgproc.COLOR_GRAY2RGBA);
             } else if (mat.channels() == 3) {
+                rgbaMat = scope.newMat();
                 // Convert BGR to RGBA
                 org.opencv.imgproc.Imgproc.cvtColor(mat, rgbaMat, org.opencv.imgproc.Imgproc.COLOR_BGR2RGBA);
             } else if (mat.channels() == 4) {
-                // Already RGBA
-                rgbaMat = mat.clone();
+                // Already RGBA; read it directly unless it is a view with row gaps
+                rgbaMat = mat.isContinuous() ? mat : scope.track(mat.clone());
             } else {
                 Log.w(TAG, "Unsupported Mat format with " + mat.channels() + " channels");
                 return null;
@@ -97,13 +280,19 @@ public class EdgeDetectionGLView extends GLSurfaceView {
     
     @Override
     public void onResume() {
+        mRenderer.onResume();
         super.onResume();
         Log.d(TAG, "GLView resumed");
     }
     
     public void cleanup() {
+        NativeMemory.release(mEdgeMask);
+        mEdgeMask = null;
         if (mRenderer != null) {
-            mRenderer.cleanup();
+            // GL calls need the context, which only the GL thread has. If the
+            // thread has already exited the context went with it, and so did
+            // every object the renderer created.
+            queueEvent(mRenderer::cleanup);
         }
     }
 }
@@ -2,14 +2,21 @@ package com.edgedetection.opengl;
 
 import android.content.Context;
 import android.opengl.GLES20;
+import android.opengl.GLES30;
 import android.opengl.GLSurfaceView;
-import android.opengl.Matrix;
 import android.util.Log;
 
+import com.edgedetection.EdgeBitmap;
+import com.edgedetection.EdgeDetector;
+import com.edgedetection.EdgePolylines;
+import com.edgedetection.metrics.FrameLatencyTracker;
+import com.edgedetection.metrics.LatencyHistogram;
+import com.edgedetection.metrics.PipelineMetrics;
+import com.edgedetection.output.EdgeBufferQueue;
+import com.edgedetection.output.HardwareBufferBackend;
+
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
-import java.nio.IntBuffer;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
@@ -17,24 +24,21 @@ import javax.microedition.khronos.opengles.GL10;
 public class EdgeDetectionRenderer implements GLSurfaceView.Renderer {
     
     private static final String TAG = "EdgeDetectionRenderer";
+    private static final int LATENCY_LOG_INTERVAL = 300;
+    private static final float MIN_STILL_ZOOM = 0.5f;
+    private static final float MAX_STILL_ZOOM = 64.0f;
     
-    // Shader program
+    // Shader program; aPosition and aTexCoord are bound to the QuadMesh locations
     private int mProgram;
     
-    // Attribute locations
-    private int mPositionHandle;
-    private int mTexCoordHandle;
-    
     // Uniform locations
     private int mTextureHandle;
-    private int mMVPMatrixHandle;
     
-    // Matrices
-    private final float[] mMVPMatrix = new float[16];
-    private final float[] mProjectionMatrix = new float[16];
-    private final float[] mViewMatrix = new float[16];
+    // Program that unpacks 1-bit edge maps in the fragment shader
+    private int mPackedProgram;
+    private int mPackedImageSizeHandle;
     
-    // Vertex data for a full-screen quad
+    // Vertex data for a full-screen quad, replaced by the frame transform once a frame arrives
     private static final float[] VERTEX_DATA = {
         // X, Y, Z, U, V
         -1.0f, -1.0f, 0.0f, 0.0f, 1.0f,  // Bottom left
@@ -43,25 +47,177 @@ public class EdgeDetectionRenderer implements GLSurfaceView.Renderer {
          1.0f,  1.0f, 0.0f, 1.0f, 0.0f   // Top right
     };
     
-    private FloatBuffer mVertexBuffer;
+    // Program that draws traced edge polylines in frame pixel coordinates
+    private int mPolylineProgram;
+    private int mPolylinePixelToClipXHandle;
+    private int mPolylinePixelToClipYHandle;
+    private static final float POLYLINE_LINE_WIDTH = 2.0f;
+    
+    // Binding cache and the full-screen quad in a vertex buffer
+    private final GlStateCache mState = new GlStateCache();
+    private final QuadMesh mScreenQuad;
     
     // Texture
     private int mTextureId;
     private int mTextureWidth = 0;
     private int mTextureHeight = 0;
     
-    // Context for loading shaders
-    private Context mContext;
+    // Texture holding a packed edge map, one byte per 8 pixels
+    private int mPackedTextureId;
+    private ByteBuffer mPackedUploadBuffer;
+    // Whether the most recent live frame came from the packed path
+    private boolean mLivePacked = false;
+    // Packed frames expanded to RGBA when the packed program is unavailable
+    private byte[] mUnpackedMask;
+    private byte[] mUnpackedFrame;
+    // Whether the most recent live frame is traced polylines instead of an image
+    private boolean mLivePolylines = false;
+    private final PolylineMesh mPolylineMesh;
+    private int mLiveWidth;
+    private int mLiveHeight;
+    // Image size in the live texture, only the visible crop when mLiveCropped
+    private int mLiveImageWidth;
+    private int mLiveImageHeight;
+    private boolean mLiveCropped = false;
+    
+    // Upright, undistorted placement of live frames, recomputed only on size changes
+    private final FrameTransform mTransform = new FrameTransform();
+    private volatile int mFrameRotation = 0;
+    private volatile FrameTransform.ScaleMode mScaleMode = FrameTransform.ScaleMode.FILL;
+    private volatile boolean mCropUpload = true;
+    // Transform generation and crop state the screen quad was last built for
+    private int mQuadGeneration = -1;
+    private boolean mQuadCropped = false;
+    private final AtomicLong mUploadBytes = PipelineMetrics.counter("upload.bytes");
+    
+    // GLES3 uploads go through pixel buffer rings so the GL thread does not
+    // wait for the driver to copy each frame; GLES2 uploads directly
+    private final PboTextureUploader mLiveUploader = new PboTextureUploader();
+    private final PboTextureUploader mPackedUploader = new PboTextureUploader();
+    private final LatencyHistogram mUploadTime = PipelineMetrics.histogram("upload.time");
+    
+    // Frames rendered natively into hardware buffers and sampled in place, with
+    // no copy or upload at all. Created with the first context, or the first
+    // frame after the native library finished loading, if the device
+    // supports it; disabled again if the buffers cannot be imported.
+    private volatile EdgeBufferQueue mHardwareQueue;
+    private boolean mHardwareSupportChecked = false;
+    private volatile boolean mHardwareOutputEnabled = true;
+    private final HardwareBufferTexture[] mHardwareTextures = new HardwareBufferTexture[EdgeBufferQueue.DEFAULT_SLOT_COUNT];
+    // Texture of the hardware buffer shown as the live frame, 0 when the live frame was uploaded
+    private int mLiveHardwareTexture = 0;
+    
+    // Blends live frames over time to suppress edge flicker
+    private final TemporalEdgeFilter mTemporal;
+    
+    // Latest frame handed over by the camera thread, consumed on the GL thread
+    private final Object mFrameLock = new Object();
+    private byte[] mPendingData;
+    private int mPendingWidth;
+    private int mPendingHeight;
+    private long mPendingCaptureTimeNs;
+    
+    // Packed edge maps are copied into mPendingBitmap and swapped with
+    // mUploadBitmap on the GL thread, so neither side allocates per frame
+    private EdgeBitmap mPendingBitmap;
+    private EdgeBitmap mUploadBitmap;
+    private boolean mPendingBitmapReady = false;
+    
+    // Polylines are double buffered the same way
+    private EdgePolylines mPendingPolylines = new EdgePolylines();
+    private EdgePolylines mUploadPolylines = new EdgePolylines();
+    private boolean mPendingPolylinesReady = false;
+    
+    // Capture-to-present latency and deadline-based frame dropping
+    private final FrameLatencyTracker mLatencyTracker = new FrameLatencyTracker();
     
-    public EdgeDetectionRenderer(Context context) {
-        mContext = context;
+    // Still image shown through tiled textures instead of the live frame.
+    // Pending data and pan/zoom state are guarded by mFrameLock.
+    private TiledTexturePyramid mStill;
+    // Built on the caller's thread, no textures until drawn
+    private TiledTexturePyramid mPendingStill;
+    private boolean mStillClearPending = false;
+    private volatile boolean mStillActive = false;
+    private int mStillWidth;
+    private int mStillHeight;
+    private float mStillZoom = 1.0f;
+    private float mStillCenterX;
+    private float mStillCenterY;
+    
+    // Surface size and texture limits of the current context
+    private volatile int mViewWidth;
+    private volatile int mViewHeight;
+    private volatile int mMaxTextureSize = 2048;
+    
+    // Loads shaders, reusing cached sources and program binaries
+    private final ShaderManager mShaderManager;
+    private final GlContextFactory mContextFactory;
+    
+    // GL objects, created lazily and rebuilt on first use after context loss.
+    // The int fields above hold their names in the current context.
+    private final GlResourceManager mResources = new GlResourceManager(mState);
+    private final GlResourceManager.Resource mProgramResource;
+    private final GlResourceManager.Resource mPackedProgramResource;
+    private final GlResourceManager.Resource mTemporalProgramResource;
+    private final GlResourceManager.Resource mPolylineProgramResource;
+    private final GlResourceManager.Resource mTextureResource;
+    private final GlResourceManager.Resource mPackedTextureResource;
+    
+    // Time from onResume to the first frame presented afterwards
+    private final LatencyHistogram mResumeToFirstFrame = PipelineMetrics.histogram("lifecycle.resume_to_first_frame");
+    private volatile long mResumeTimeNs = 0;
+    
+    /**
+     * @param contextFactory Factory the view creates contexts with, telling
+     *                       which GLES version each context got
+     */
+    public EdgeDetectionRenderer(Context context, GlContextFactory contextFactory) {
+        mContextFactory = contextFactory;
+        mShaderManager = new ShaderManager(context);
+        mScreenQuad = new QuadMesh("quad.screen", VERTEX_DATA, mResources, mState);
+        mTemporal = new TemporalEdgeFilter(mResources, mState);
+        mPolylineMesh = new PolylineMesh("mesh.polylines", mResources, mState);
+        for (int i = 0; i < mHardwareTextures.length; i++) {
+            mHardwareTextures[i] = new HardwareBufferTexture(mState);
+        }
         
-        // Initialize vertex buffer
-        ByteBuffer bb = ByteBuffer.allocateDirect(VERTEX_DATA.length * 4);
-        bb.order(ByteOrder.nativeOrder());
-        mVertexBuffer = bb.asFloatBuffer();
-        mVertexBuffer.put(VERTEX_DATA);
-        mVertexBuffer.position(0);
+        mProgramResource = mResources.create("program.edges", () -> {
+            int program = createProgram("shaders/vertex_shader.glsl", "shaders/fragment_shader.glsl");
+            if (program != 0) {
+                // Texture unit 0 is the only sampler and never changes
+                mTextureHandle = GLES20.glGetUniformLocation(program, "uTexture");
+                mState.useProgram(program);
+                GLES20.glUniform1i(mTextureHandle, 0);
+            }
+            return program;
+        }, this::deleteProgram);
+        mPackedProgramResource = mResources.create("program.packed_edges", () -> {
+            int program = createProgram("shaders/vertex_shader.glsl", "shaders/packed_edges_fragment_shader.glsl");
+            if (program != 0) {
+                mPackedImageSizeHandle = GLES20.glGetUniformLocation(program, "uImageSize");
+                mState.useProgram(program);
+                GLES20.glUniform1i(GLES20.glGetUniformLocation(program, "uTexture"), 0);
+            }
+            return program;
+        }, this::deleteProgram);
+        mTemporalProgramResource = mResources.create("program.temporal", () -> {
+            int program = createProgram("shaders/vertex_shader.glsl", "shaders/temporal_fragment_shader.glsl");
+            mTemporal.setProgram(program);
+            return program;
+        }, this::deleteProgram);
+        mPolylineProgramResource = mResources.create("program.polylines", () -> {
+            int program = createProgram("shaders/polyline_vertex_shader.glsl", "shaders/polyline_fragment_shader.glsl");
+            if (program != 0) {
+                mPolylinePixelToClipXHandle = GLES20.glGetUniformLocation(program, "uPixelToClipX");
+                mPolylinePixelToClipYHandle = GLES20.glGetUniformLocation(program, "uPixelToClipY");
+                mState.useProgram(program);
+                GLES20.glUniform4f(GLES20.glGetUniformLocation(program, "uColor"), 1f, 1f, 1f, 1f);
+            }
+            return program;
+        }, this::deleteProgram);
+        mTextureResource = mResources.texture("texture.live", GLES20.GL_LINEAR, GLES20.GL_LINEAR);
+        // Packed bytes must never be filtered, each texel holds 8 pixels
+        mPackedTextureResource = mResources.texture("texture.packed_edges", GLES20.GL_NEAREST, GLES20.GL_NEAREST);
     }
     
     @Override
@@ -75,11 +231,35 @@ public class EdgeDetectionRenderer implements GLSurfaceView.Renderer {
         GLES20.glEnable(GLES20.GL_BLEND);
         GLES20.glBlendFunc(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
         
-        // Load and compile shaders
-        loadShaders();
+        // Objects from a previous context are gone; forget them so they are
+        // recreated lazily when first drawn
+        mTemporal.onContextLost();
+        mLiveUploader.onContextLost();
+        mPackedUploader.onContextLost();
+        mResources.onContextCreated();
+        mShaderManager.onContextCreated(mContextFactory.getClientVersion());
+        mState.onContextCreated(mShaderManager.isGles3());
         
-        // Generate texture
-        generateTexture();
+        // Hardware buffers outlive the context, only their textures and fences are lost
+        for (HardwareBufferTexture texture : mHardwareTextures) {
+            texture.onContextLost();
+        }
+        mLiveHardwareTexture = 0;
+        if (mHardwareQueue != null) {
+            mHardwareQueue.onContextLost();
+        } else {
+            createHardwareQueue();
+        }
+        
+        // Tiles of a still image must stay within the driver's texture limit
+        int[] maxTextureSize = new int[1];
+        GLES20.glGetIntegerv(GLES20.GL_MAX_TEXTURE_SIZE, maxTextureSize, 0);
+        if (maxTextureSize[0] > 0) {
+            mMaxTextureSize = maxTextureSize[0];
+        }
+        if (mStill != null) {
+            mStill.onContextLost();
+        }
     }
     
     @Override
@@ -87,140 +267,433 @@ public class EdgeDetectionRenderer implements GLSurfaceView.Renderer {
         Log.d(TAG, "Surface changed: " + width + "x" + height);
         
         GLES20.glViewport(0, 0, width, height);
-        
-        // Set up projection matrix
-        float ratio = (float) width / height;
-        Matrix.frustumM(mProjectionMatrix, 0, -ratio, ratio, -1, 1, 3, 7);
-        
-        // Set up view matrix
-        Matrix.setLookAtM(mViewMatrix, 0, 0, 0, -3, 0f, 0f, 0f, 0f, 1.0f, 0.0f);
-        
-        // Calculate MVP matrix
-        Matrix.multiplyMM(mMVPMatrix, 0, mProjectionMatrix, 0, mViewMatrix, 0);
+        mViewWidth = width;
+        mViewHeight = height;
     }
     
     @Override
     public void onDrawFrame(GL10 gl) {
-        // Clear the screen
-        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        acquireResources();
+        createHardwareQueue();
         
-        // Use the shader program
-        GLES20.glUseProgram(mProgram);
+        // Upload the newest frame, unless it is already too old to show
+        long presentedCaptureTimeNs = 0;
+        byte[] frameData;
+        int frameWidth;
+        int frameHeight;
+        long captureTimeNs;
+        EdgeBitmap bitmap = null;
+        EdgePolylines polylines = null;
+        synchronized (mFrameLock) {
+            frameData = mPendingData;
+            frameWidth = mPendingWidth;
+            frameHeight = mPendingHeight;
+            captureTimeNs = mPendingCaptureTimeNs;
+            mPendingData = null;
+            if (mPendingBitmapReady) {
+                EdgeBitmap swap = mUploadBitmap;
+                mUploadBitmap = mPendingBitmap;
+                mPendingBitmap = swap;
+                mPendingBitmapReady = false;
+                bitmap = mUploadBitmap;
+            }
+            if (mPendingPolylinesReady) {
+                EdgePolylines swap = mUploadPolylines;
+                mUploadPolylines = mPendingPolylines;
+                mPendingPolylines = swap;
+                mPendingPolylinesReady = false;
+                polylines = mUploadPolylines;
+            }
+        }
         
-        // Set MVP matrix
-        GLES20.glUniformMatrix4fv(mMVPMatrixHandle, 1, false, mMVPMatrix, 0);
+        // A hardware buffer frame is already in GPU memory; binding it is free,
+        // so it is shown even when late rather than dropped at the upload stage
+        EdgeBufferQueue.Slot hardwareSlot = mHardwareQueue != null ? mHardwareQueue.acquire() : null;
+        if (hardwareSlot != null) {
+            int texture = mHardwareTextures[hardwareSlot.getIndex()].bind(hardwareSlot);
+            if (texture == 0) {
+                Log.w(TAG, "Cannot sample hardware buffers, falling back to texture uploads");
+                mHardwareOutputEnabled = false;
+            } else {
+                mLiveHardwareTexture = texture;
+                mLivePacked = false;
+                mLivePolylines = false;
+                mLiveCropped = false;
+                mLiveWidth = mLiveImageWidth = hardwareSlot.getWidth();
+                mLiveHeight = mLiveImageHeight = hardwareSlot.getHeight();
+                presentedCaptureTimeNs = hardwareSlot.getCaptureTimeNs();
+            }
+        }
         
-        // Set vertex attributes
-        mVertexBuffer.position(0);
-        GLES20.glVertexAttribPointer(mPositionHandle, 3, GLES20.GL_FLOAT, false, 5 * 4, mVertexBuffer);
-        GLES20.glEnableVertexAttribArray(mPositionHandle);
+        if (polylines != null) {
+            if (mLatencyTracker.isExpired(captureTimeNs)) {
+                mLatencyTracker.recordDrop(FrameLatencyTracker.Stage.UPLOAD);
+            } else {
+                // Buffered here, uploaded by the first draw
+                mPolylineMesh.setPolylines(polylines);
+                mLiveHardwareTexture = 0;
+                mLivePacked = false;
+                mLivePolylines = true;
+                mLiveCropped = false;
+                mLiveWidth = mLiveImageWidth = polylines.getWidth();
+                mLiveHeight = mLiveImageHeight = polylines.getHeight();
+                presentedCaptureTimeNs = captureTimeNs;
+            }
+        } else if (frameData != null || bitmap != null) {
+            if (mLatencyTracker.isExpired(captureTimeNs)) {
+                mLatencyTracker.recordDrop(FrameLatencyTracker.Stage.UPLOAD);
+            } else {
+                long uploadStart = System.nanoTime();
+                // Without the packed program the bitmap could not be drawn,
+                // so it goes through the RGBA path instead
+                boolean packed = bitmap != null && mPackedProgram != 0;
+                boolean uploaded;
+                if (packed) {
+                    uploaded = uploadPackedTexture(bitmap);
+                } else if (bitmap != null) {
+                    uploaded = uploadTexture(unpackToRgba(bitmap), bitmap.getWidth(), bitmap.getHeight());
+                } else {
+                    uploaded = uploadTexture(frameData, frameWidth, frameHeight);
+                }
+                mUploadTime.record(System.nanoTime() - uploadStart);
+                if (uploaded) {
+                    mLiveHardwareTexture = 0;
+                    mLivePacked = packed;
+                    mLivePolylines = false;
+                    mLiveWidth = bitmap != null ? bitmap.getWidth() : frameWidth;
+                    mLiveHeight = bitmap != null ? bitmap.getHeight() : frameHeight;
+                    presentedCaptureTimeNs = captureTimeNs;
+                }
+            }
+        }
         
-        mVertexBuffer.position(3);
-        GLES20.glVertexAttribPointer(mTexCoordHandle, 2, GLES20.GL_FLOAT, false, 5 * 4, mVertexBuffer);
-        GLES20.glEnableVertexAttribArray(mTexCoordHandle);
+        // Blend the new frame into the history before anything is drawn on
+        // screen; polylines are vectors and are always drawn as they are
+        if (mTemporal.isEnabled() && !mLivePolylines) {
+            if (presentedCaptureTimeNs != 0) {
+                mTemporal.accumulate(mLivePacked ? mPackedTextureId : liveTexture(), mLivePacked,
+                        mLiveImageWidth, mLiveImageHeight, mViewWidth, mViewHeight);
+            }
+        } else {
+            mTemporal.release();
+        }
         
-        // Bind texture
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextureId);
-        GLES20.glUniform1i(mTextureHandle, 0);
+        applyPendingStill();
         
-        // Draw the quad
-        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        // Clear the screen
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        
+        if (mStill != null) {
+            mState.useProgram(mProgram);
+            drawStill();
+        } else if (mLivePolylines) {
+            drawPolylines();
+        } else if (mTemporal.isEnabled() && mTemporal.getResultTexture() != 0) {
+            drawTexture(mTemporal.getResultTexture());
+        } else if (mLivePacked && mPackedProgram != 0) {
+            drawPackedFrame();
+        } else {
+            drawTexture(liveTexture());
+        }
         
-        // Disable vertex arrays
-        GLES20.glDisableVertexAttribArray(mPositionHandle);
-        GLES20.glDisableVertexAttribArray(mTexCoordHandle);
+        // Capture-to-present latency for the frame uploaded this pass
+        if (presentedCaptureTimeNs != 0) {
+            long resumeTimeNs = mResumeTimeNs;
+            if (resumeTimeNs != 0) {
+                mResumeTimeNs = 0;
+                long elapsedNs = System.nanoTime() - resumeTimeNs;
+                mResumeToFirstFrame.record(elapsedNs);
+                Log.i(TAG, "First frame " + elapsedNs / 1_000_000 + "ms after resume");
+            }
+            mLatencyTracker.recordPresented(presentedCaptureTimeNs);
+            if (mLatencyTracker.getPresentedCount() % LATENCY_LOG_INTERVAL == 0) {
+                Log.i(TAG, "Frame latency: " + mLatencyTracker + ", GL state changes "
+                        + mState.getChangeCount() + " (" + mState.getRedundantCount() + " skipped)");
+            }
+        }
     }
     
-    private void loadShaders() {
-        // Load vertex shader
-        String vertexShaderCode = loadShaderFromAssets("shaders/vertex_shader.glsl");
-        int vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, vertexShaderCode);
-        
-        // Load fragment shader
-        String fragmentShaderCode = loadShaderFromAssets("shaders/fragment_shader.glsl");
-        int fragmentShader = loadShader(GLES20.GL_FRAGMENT_SHADER, fragmentShaderCode);
-        
-        // Create program
-        mProgram = GLES20.glCreateProgram();
-        GLES20.glAttachShader(mProgram, vertexShader);
-        GLES20.glAttachShader(mProgram, fragmentShader);
-        GLES20.glLinkProgram(mProgram);
-        
-        // Check linking status
-        int[] linkStatus = new int[1];
-        GLES20.glGetProgramiv(mProgram, GLES20.GL_LINK_STATUS, linkStatus, 0);
-        if (linkStatus[0] != GLES20.GL_TRUE) {
-            String error = GLES20.glGetProgramInfoLog(mProgram);
-            Log.e(TAG, "Shader program linking failed: " + error);
-            GLES20.glDeleteProgram(mProgram);
-            mProgram = 0;
+    /**
+     * Look up, and after context loss recreate, the GL objects used this frame.
+     */
+    private void acquireResources() {
+        mProgram = mProgramResource.get();
+        mPackedProgram = mPackedProgramResource.get();
+        mTextureId = mTextureResource.get();
+        mPackedTextureId = mPackedTextureResource.get();
+        if (mTemporal.getMode() != TemporalEdgeFilter.Mode.OFF) {
+            mTemporalProgramResource.get();
+        }
+    }
+    
+    /**
+     * Create the hardware buffer queue once the device is known to support
+     * it. The surface can be created while the native library is still
+     * loading, so this is retried per frame until the library is there.
+     */
+    private void createHardwareQueue() {
+        if (mHardwareQueue != null || mHardwareSupportChecked || !EdgeDetector.isLibraryLoaded()) {
             return;
         }
-        
-        // Get attribute and uniform locations
-        mPositionHandle = GLES20.glGetAttribLocation(mProgram, "aPosition");
-        mTexCoordHandle = GLES20.glGetAttribLocation(mProgram, "aTexCoord");
-        mTextureHandle = GLES20.glGetUniformLocation(mProgram, "uTexture");
-        mMVPMatrixHandle = GLES20.glGetUniformLocation(mProgram, "uMVPMatrix");
-        
-        Log.d(TAG, "Shaders loaded successfully");
+        mHardwareSupportChecked = true;
+        if (HardwareBufferBackend.isSupported()) {
+            mHardwareQueue = new EdgeBufferQueue(new HardwareBufferBackend(mShaderManager.isGles3()),
+                    EdgeBufferQueue.DEFAULT_SLOT_COUNT);
+        }
     }
     
-    private String loadShaderFromAssets(String filename) {
-        try {
-            java.io.InputStream inputStream = mContext.getAssets().open(filename);
-            java.util.Scanner scanner = new java.util.Scanner(inputStream).useDelimiter("\\A");
-            String shaderCode = scanner.hasNext() ? scanner.next() : "";
-            scanner.close();
-            inputStream.close();
-            return shaderCode;
-        } catch (Exception e) {
-            Log.e(TAG, "Error loading shader from assets: " + e.getMessage());
-            return "";
+    /**
+     * RGBA texture holding the live frame.
+     */
+    private int liveTexture() {
+        return mLiveHardwareTexture != 0 ? mLiveHardwareTexture : mTextureId;
+    }
+    
+    private void drawTexture(int textureId) {
+        updateScreenQuad();
+        mState.useProgram(mProgram);
+        mState.bindTexture(0, textureId);
+        mScreenQuad.draw();
+    }
+    
+    private void drawPackedFrame() {
+        updateScreenQuad();
+        mState.useProgram(mPackedProgram);
+        mState.bindTexture(0, mPackedTextureId);
+        GLES20.glUniform2f(mPackedImageSizeHandle, mUploadBitmap.getWidth(), mUploadBitmap.getHeight());
+        mScreenQuad.draw();
+    }
+    
+    private void drawPolylines() {
+        // Only built once polylines are actually shown
+        mPolylineProgram = mPolylineProgramResource.get();
+        mTransform.update(mLiveWidth, mLiveHeight, mViewWidth, mViewHeight, mFrameRotation, mScaleMode);
+        if (!mTransform.isValid() || mPolylineProgram == 0) {
+            return;
         }
+        mState.useProgram(mPolylineProgram);
+        GLES20.glUniform3fv(mPolylinePixelToClipXHandle, 1, mTransform.getPixelToClipX(), 0);
+        GLES20.glUniform3fv(mPolylinePixelToClipYHandle, 1, mTransform.getPixelToClipY(), 0);
+        GLES20.glLineWidth(POLYLINE_LINE_WIDTH);
+        mPolylineMesh.draw();
     }
     
-    private int loadShader(int type, String shaderCode) {
-        int shader = GLES20.glCreateShader(type);
-        GLES20.glShaderSource(shader, shaderCode);
-        GLES20.glCompileShader(shader);
-        
-        // Check compilation status
-        int[] compileStatus = new int[1];
-        GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compileStatus, 0);
-        if (compileStatus[0] != GLES20.GL_TRUE) {
-            String error = GLES20.glGetShaderInfoLog(shader);
-            Log.e(TAG, "Shader compilation failed: " + error);
-            GLES20.glDeleteShader(shader);
-            return 0;
+    /**
+     * Point the screen quad at the visible part of the live texture. Vertices
+     * are only rewritten when the transform or the crop state changed.
+     */
+    private void updateScreenQuad() {
+        mTransform.update(mLiveWidth, mLiveHeight, mViewWidth, mViewHeight, mFrameRotation, mScaleMode);
+        if (!mTransform.isValid()) {
+            return;
+        }
+        if (mTransform.getGeneration() != mQuadGeneration || mLiveCropped != mQuadCropped) {
+            mScreenQuad.setVertices(mLiveCropped ? mTransform.getCroppedVertices() : mTransform.getVertices());
+            mQuadGeneration = mTransform.getGeneration();
+            mQuadCropped = mLiveCropped;
         }
-        
-        return shader;
     }
     
-    private void generateTexture() {
-        int[] textures = new int[1];
-        GLES20.glGenTextures(1, textures, 0);
-        mTextureId = textures[0];
-        
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextureId);
-        
-        // Set texture parameters
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
-        
-        Log.d(TAG, "Texture generated with ID: " + mTextureId);
+    private void deleteProgram(int program) {
+        // GL keeps a deleted program alive while it is current
+        mState.invalidate();
+        GLES20.glDeleteProgram(program);
     }
     
-    public void updateTexture(byte[] imageData, int width, int height) {
-        if (mTextureId == 0) {
-            Log.w(TAG, "Texture not initialized");
+    private void drawStill() {
+        float scale;
+        float centerX;
+        float centerY;
+        synchronized (mFrameLock) {
+            scale = baseStillScale() * mStillZoom;
+            centerX = mStillCenterX;
+            centerY = mStillCenterY;
+        }
+        mStill.draw(QuadMesh.POSITION_LOCATION, QuadMesh.TEX_COORD_LOCATION, mTextureHandle,
+                mViewWidth, mViewHeight, scale, centerX, centerY);
+    }
+    
+    /**
+     * Swap in a newly processed still, or drop the current one, on the GL thread.
+     */
+    private void applyPendingStill() {
+        TiledTexturePyramid still;
+        boolean clear;
+        synchronized (mFrameLock) {
+            still = mPendingStill;
+            clear = mStillClearPending;
+            mPendingStill = null;
+            mStillClearPending = false;
+        }
+        if ((clear || still != null) && mStill != null) {
+            mStill.release();
+            mStill = null;
+        }
+        if (still != null) {
+            mStill = still;
+        }
+    }
+    
+    private int createProgram(String vertexShaderFile, String fragmentShaderFile) {
+        return mShaderManager.getProgram(vertexShaderFile, fragmentShaderFile);
+    }
+    
+    /**
+     * Show a single-channel image, such as a still edge mask, in place of the
+     * live frame. Pan and zoom are kept when a still of the same size is
+     * replaced, so reprocessing with new thresholds does not reset the view.
+     * The coarse levels are built on the calling thread, not the GL thread.
+     *
+     * @param pixels Row-major 8-bit pixels, width * height bytes
+     */
+    public void showStillImage(byte[] pixels, int width, int height) {
+        if (pixels == null || width <= 0 || height <= 0 || pixels.length < width * height) {
+            Log.w(TAG, "Invalid still image: " + width + "x" + height);
             return;
         }
-        
+        TiledTexturePyramid still = new TiledTexturePyramid(pixels, width, height, mMaxTextureSize, mState);
+        synchronized (mFrameLock) {
+            if (!mStillActive || width != mStillWidth || height != mStillHeight) {
+                mStillZoom = 1.0f;
+                mStillCenterX = width / 2f;
+                mStillCenterY = height / 2f;
+            }
+            mStillWidth = width;
+            mStillHeight = height;
+            mPendingStill = still;
+            mStillClearPending = false;
+            mStillActive = true;
+        }
+    }
+    
+    /**
+     * Return to showing live frames.
+     */
+    public void clearStillImage() {
+        synchronized (mFrameLock) {
+            mPendingStill = null;
+            mStillClearPending = true;
+            mStillActive = false;
+        }
+    }
+    
+    public boolean isShowingStill() {
+        return mStillActive;
+    }
+    
+    /**
+     * @param dx Horizontal drag distance in screen pixels
+     * @param dy Vertical drag distance in screen pixels
+     */
+    public void panStill(float dx, float dy) {
+        synchronized (mFrameLock) {
+            float scale = baseStillScale() * mStillZoom;
+            if (!mStillActive || scale <= 0) {
+                return;
+            }
+            mStillCenterX = clamp(mStillCenterX - dx / scale, 0, mStillWidth);
+            mStillCenterY = clamp(mStillCenterY - dy / scale, 0, mStillHeight);
+        }
+    }
+    
+    /**
+     * Zoom around a focus point, keeping the image pixel under it in place.
+     *
+     * @param factor Relative zoom change, greater than 1 zooms in
+     * @param focusX Focus x in screen pixels
+     * @param focusY Focus y in screen pixels
+     */
+    public void zoomStill(float factor, float focusX, float focusY) {
+        synchronized (mFrameLock) {
+            float baseScale = baseStillScale();
+            if (!mStillActive || baseScale <= 0) {
+                return;
+            }
+            float oldScale = baseScale * mStillZoom;
+            float imageX = mStillCenterX + (focusX - mViewWidth / 2f) / oldScale;
+            float imageY = mStillCenterY + (focusY - mViewHeight / 2f) / oldScale;
+            
+            mStillZoom = clamp(mStillZoom * factor, MIN_STILL_ZOOM, MAX_STILL_ZOOM);
+            float newScale = baseScale * mStillZoom;
+            mStillCenterX = clamp(imageX - (focusX - mViewWidth / 2f) / newScale, 0, mStillWidth);
+            mStillCenterY = clamp(imageY - (focusY - mViewHeight / 2f) / newScale, 0, mStillHeight);
+        }
+    }
+    
+    /**
+     * Screen pixels per image pixel when the whole still fits in the view.
+     */
+    private float baseStillScale() {
+        if (mStillWidth <= 0 || mStillHeight <= 0 || mViewWidth <= 0 || mViewHeight <= 0) {
+            return 0;
+        }
+        return Math.min(mViewWidth / (float) mStillWidth, mViewHeight / (float) mStillHeight);
+    }
+    
+    private static float clamp(float value, float min, float max) {
+        return Math.max(min, Math.min(max, value));
+    }
+    
+    /**
+     * Queue for rendering edges straight into GPU-sampled hardware buffers.
+     *
+     * @return Queue to write frames into from the camera thread, or null if
+     *         hardware buffers are unsupported and frames must be uploaded
+     */
+    public EdgeBufferQueue getHardwareOutput() {
+        EdgeBufferQueue queue = mHardwareQueue;
+        return mHardwareOutputEnabled && queue != null && !queue.isClosed() ? queue : null;
+    }
+    
+    /**
+     * Orientation of live frames; safe to call from any thread.
+     *
+     * @param rotation Clockwise rotation in degrees that turns a camera frame upright
+     */
+    public void setFrameRotation(int rotation) {
+        mFrameRotation = rotation;
+    }
+    
+    /**
+     * Letterbox or crop live frames whose aspect ratio differs from the view.
+     */
+    public void setScaleMode(FrameTransform.ScaleMode scaleMode) {
+        mScaleMode = scaleMode;
+    }
+    
+    /**
+     * Upload only the visible part of cropped RGBA frames. On by default; has
+     * no effect on ES2 contexts or packed edge maps.
+     */
+    public void setCropUpload(boolean enabled) {
+        mCropUpload = enabled;
+    }
+    
+    /**
+     * Blend live frames over time; safe to call from any thread.
+     *
+     * @param decay Weight of the history per frame, 0 to 1
+     */
+    public void setTemporalFilter(TemporalEdgeFilter.Mode mode, float decay) {
+        mTemporal.setDecay(decay);
+        mTemporal.setMode(mode);
+    }
+    
+    public FrameLatencyTracker getLatencyTracker() {
+        return mLatencyTracker;
+    }
+    
+    public void updateTexture(byte[] imageData, int width, int height) {
+        updateTexture(imageData, width, height, System.nanoTime());
+    }
+    
+    /**
+     * Hand a frame over to the GL thread. Only the newest frame is kept; an
+     * older frame that has not been drawn yet is dropped.
+     *
+     * @param captureTimeNs {@link System#nanoTime()} at which the camera delivered the frame
+     */
+    public void updateTexture(byte[] imageData, int width, int height, long captureTimeNs) {
         if (imageData == null || imageData.length == 0) {
             Log.w(TAG, "Invalid image data");
             return;
@@ -231,36 +704,224 @@ public class EdgeDetectionRenderer implements GLSurfaceView.Renderer {
             return;
         }
         
+        synchronized (mFrameLock) {
+            if (mPendingData != null || mPendingBitmapReady) {
+                mLatencyTracker.recordDrop(FrameLatencyTracker.Stage.SUPERSEDED);
+            }
+            mPendingBitmapReady = false;
+            mPendingPolylinesReady = false;
+            mPendingData = imageData;
+            mPendingWidth = width;
+            mPendingHeight = height;
+            mPendingCaptureTimeNs = captureTimeNs;
+        }
+    }
+    
+    /**
+     * Hand a packed edge map over to the GL thread. The bitmap is copied, so
+     * the caller may reuse it immediately.
+     *
+     * @param captureTimeNs {@link System#nanoTime()} at which the camera delivered the frame
+     */
+    public void updateEdgeBitmap(EdgeBitmap bitmap, long captureTimeNs) {
+        synchronized (mFrameLock) {
+            if (mPendingData != null || mPendingBitmapReady) {
+                mLatencyTracker.recordDrop(FrameLatencyTracker.Stage.SUPERSEDED);
+            }
+            if (mPendingBitmap == null || !mPendingBitmap.sameSize(bitmap)) {
+                mPendingBitmap = new EdgeBitmap(bitmap.getWidth(), bitmap.getHeight());
+            }
+            mPendingBitmap.copyFrom(bitmap);
+            mPendingBitmapReady = true;
+            mPendingPolylinesReady = false;
+            mPendingData = null;
+            mPendingCaptureTimeNs = captureTimeNs;
+        }
+    }
+    
+    /**
+     * Hand traced edges over to the GL thread, to be drawn as line strips
+     * instead of an image. The polylines are copied, so the caller may reuse
+     * them immediately.
+     *
+     * @param captureTimeNs {@link System#nanoTime()} at which the camera delivered the frame
+     */
+    public void updatePolylines(EdgePolylines polylines, long captureTimeNs) {
+        synchronized (mFrameLock) {
+            if (mPendingData != null || mPendingBitmapReady || mPendingPolylinesReady) {
+                mLatencyTracker.recordDrop(FrameLatencyTracker.Stage.SUPERSEDED);
+            }
+            mPendingPolylines.copyFrom(polylines);
+            mPendingPolylinesReady = true;
+            mPendingBitmapReady = false;
+            mPendingData = null;
+            mPendingCaptureTimeNs = captureTimeNs;
+        }
+    }
+    
+    private boolean uploadPackedTexture(EdgeBitmap bitmap) {
+        if (mPackedTextureId == 0) {
+            Log.w(TAG, "Packed texture not initialized");
+            return false;
+        }
+        
+        // 32x less data than the RGBA path for the same frame, so it is never cropped
+        int rowBytes = bitmap.getRowBytes();
+        int size = rowBytes * bitmap.getHeight();
+        ByteBuffer mapped = mShaderManager.isGles3() ? mPackedUploader.begin(size) : null;
+        if (mapped != null) {
+            bitmap.writeTo(mapped);
+            if (!mPackedUploader.finish(mState, mPackedTextureId, GLES20.GL_LUMINANCE, rowBytes, bitmap.getHeight())) {
+                return false;
+            }
+        } else {
+            if (mPackedUploadBuffer == null || mPackedUploadBuffer.capacity() < size) {
+                mPackedUploadBuffer = ByteBuffer.allocateDirect(size);
+            }
+            mPackedUploadBuffer.clear();
+            bitmap.writeTo(mPackedUploadBuffer);
+            mPackedUploadBuffer.position(0);
+            
+            mState.bindTexture(0, mPackedTextureId);
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_LUMINANCE, rowBytes, bitmap.getHeight(), 0,
+                    GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, mPackedUploadBuffer);
+            mPackedUploader.invalidateTexture();
+        }
+        
+        int error = GLES20.glGetError();
+        if (error != GLES20.GL_NO_ERROR) {
+            Log.e(TAG, "OpenGL error uploading packed edges: " + error);
+            return false;
+        }
+        mUploadBytes.addAndGet(size);
+        mLiveImageWidth = bitmap.getWidth();
+        mLiveImageHeight = bitmap.getHeight();
+        mLiveCropped = false;
+        return true;
+    }
+    
+    /**
+     * Expand a packed edge map to white-on-black RGBA.
+     */
+    private byte[] unpackToRgba(EdgeBitmap bitmap) {
+        int pixels = bitmap.getWidth() * bitmap.getHeight();
+        if (mUnpackedMask == null || mUnpackedMask.length != pixels) {
+            mUnpackedMask = new byte[pixels];
+            mUnpackedFrame = new byte[pixels * 4];
+        }
+        bitmap.unpack(mUnpackedMask);
+        for (int i = 0, j = 0; i < pixels; i++, j += 4) {
+            byte value = mUnpackedMask[i];
+            mUnpackedFrame[j] = value;
+            mUnpackedFrame[j + 1] = value;
+            mUnpackedFrame[j + 2] = value;
+            mUnpackedFrame[j + 3] = (byte) 255;
+        }
+        return mUnpackedFrame;
+    }
+    
+    private boolean uploadTexture(byte[] imageData, int width, int height) {
+        if (mTextureId == 0) {
+            Log.w(TAG, "Texture not initialized");
+            return false;
+        }
+        
+        // Only the part of the frame on screen is needed. Picking a sub-rectangle
+        // out of the full rows takes GL_UNPACK_ROW_LENGTH or a pixel buffer,
+        // which ES2 lacks.
+        mTransform.update(width, height, mViewWidth, mViewHeight, mFrameRotation, mScaleMode);
+        boolean crop = mCropUpload && mShaderManager.isGles3() && mTransform.isValid() && mTransform.isCropped();
+        int uploadWidth = crop ? mTransform.getCropWidth() : width;
+        int uploadHeight = crop ? mTransform.getCropHeight() : height;
+        
         // Update texture dimensions if changed
-        if (mTextureWidth != width || mTextureHeight != height) {
-            mTextureWidth = width;
-            mTextureHeight = height;
-            Log.d(TAG, "Updating texture size: " + width + "x" + height);
+        if (mTextureWidth != uploadWidth || mTextureHeight != uploadHeight) {
+            mTextureWidth = uploadWidth;
+            mTextureHeight = uploadHeight;
+            Log.d(TAG, "Updating texture size: " + uploadWidth + "x" + uploadHeight
+                    + (crop ? " cropped from " + width + "x" + height : ""));
         }
         
         try {
-            // Bind texture and upload data
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextureId);
-            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, ByteBuffer.wrap(imageData));
+            ByteBuffer mapped = mShaderManager.isGles3() ? mLiveUploader.begin(uploadWidth * uploadHeight * 4) : null;
+            if (mapped != null) {
+                // Copying the rows into the buffer is the whole CPU cost of the upload
+                if (crop) {
+                    int rowBytes = uploadWidth * 4;
+                    int offset = (mTransform.getCropY() * width + mTransform.getCropX()) * 4;
+                    for (int row = 0; row < uploadHeight; row++) {
+                        mapped.put(imageData, offset, rowBytes);
+                        offset += width * 4;
+                    }
+                } else {
+                    mapped.put(imageData, 0, uploadWidth * uploadHeight * 4);
+                }
+                if (!mLiveUploader.finish(mState, mTextureId, GLES20.GL_RGBA, uploadWidth, uploadHeight)) {
+                    return false;
+                }
+            } else {
+                // Bind texture and upload data
+                mState.bindTexture(0, mTextureId);
+                ByteBuffer pixels = ByteBuffer.wrap(imageData);
+                if (crop) {
+                    pixels.position((mTransform.getCropY() * width + mTransform.getCropX()) * 4);
+                    GLES20.glPixelStorei(GLES30.GL_UNPACK_ROW_LENGTH, width);
+                }
+                GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, uploadWidth, uploadHeight, 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, pixels);
+                if (crop) {
+                    GLES20.glPixelStorei(GLES30.GL_UNPACK_ROW_LENGTH, 0);
+                }
+                mLiveUploader.invalidateTexture();
+            }
             
             // Check for OpenGL errors
             int error = GLES20.glGetError();
             if (error != GLES20.GL_NO_ERROR) {
                 Log.e(TAG, "OpenGL error in updateTexture: " + error);
+                return false;
             }
+            mUploadBytes.addAndGet((long) uploadWidth * uploadHeight * 4);
+            mLiveImageWidth = uploadWidth;
+            mLiveImageHeight = uploadHeight;
+            mLiveCropped = crop;
+            return true;
         } catch (Exception e) {
             Log.e(TAG, "Error updating texture: " + e.getMessage(), e);
+            return false;
         }
     }
     
+    /**
+     * Start timing resume-to-first-frame; called when the view resumes.
+     */
+    public void onResume() {
+        mResumeTimeNs = System.nanoTime();
+    }
+    
+    /**
+     * Delete all GL objects. Must run on the GL thread with the context current.
+     */
     public void cleanup() {
-        if (mTextureId != 0) {
-            GLES20.glDeleteTextures(1, new int[]{mTextureId}, 0);
-            mTextureId = 0;
+        if (mStill != null) {
+            mStill.release();
+            mStill = null;
+        }
+        mTemporal.release();
+        mTemporal.setProgram(0);
+        mLiveUploader.release();
+        mPackedUploader.release();
+        for (HardwareBufferTexture texture : mHardwareTextures) {
+            texture.release();
         }
-        if (mProgram != 0) {
-            GLES20.glDeleteProgram(mProgram);
-            mProgram = 0;
+        mLiveHardwareTexture = 0;
+        if (mHardwareQueue != null) {
+            mHardwareQueue.close();
         }
+        mResources.releaseAll();
+        mProgram = 0;
+        mPackedProgram = 0;
+        mPolylineProgram = 0;
+        mTextureId = 0;
+        mPackedTextureId = 0;
     }
 }
@@ -0,0 +1,275 @@
+package com.edgedetection.opengl;
+
+import android.util.Log;
+
+/**
+ * Maps camera frames onto the view without distortion.
+ *
+ * From the frame size, view size, sensor rotation and scale mode it derives
+ * the quad vertices that rotate the frame upright and either letterbox it
+ * (FIT) or fill the view and crop the overflow (FILL), together with the
+ * rectangle of frame pixels that is actually visible. Everything is computed
+ * in {@link #update} only when one of the inputs changed, so drawing a frame
+ * costs no transform math at all.
+ *
+ * Two vertex sets are kept: one for a texture holding the whole frame and
+ * one for a texture holding only the visible crop.
+ */
+public class FrameTransform {
+
+    private static final String TAG = "FrameTransform";
+
+    /**
+     * How the frame is fitted to a view of a different aspect ratio.
+     */
+    public enum ScaleMode {
+        /** Show the whole frame, with black bars along one axis. */
+        FIT,
+        /** Fill the whole view, cropping the frame along one axis. */
+        FILL
+    }
+
+    private static final int FLOATS_PER_VERTEX = 5;
+
+    // Inputs of the last update
+    private int mFrameWidth = 0;
+    private int mFrameHeight = 0;
+    private int mViewWidth = 0;
+    private int mViewHeight = 0;
+    private int mRotation = 0;
+    private ScaleMode mScaleMode = ScaleMode.FILL;
+
+    private final float[] mVertices = new float[4 * FLOATS_PER_VERTEX];
+    private final float[] mCroppedVertices = new float[4 * FLOATS_PER_VERTEX];
+    // Rows of the affine map from frame pixels to clip space
+    private final float[] mPixelToClipX = new float[3];
+    private final float[] mPixelToClipY = new float[3];
+    private int mCropX;
+    private int mCropY;
+    private int mCropWidth;
+    private int mCropHeight;
+    // Incremented whenever the vertices change
+    private int mGeneration = 0;
+
+    /**
+     * Recompute the transform if any input changed.
+     *
+     * @param rotation Clockwise rotation in degrees that turns the frame upright; 0, 90, 180 or 270
+     * @return true if the vertices or crop changed
+     */
+    public boolean update(int frameWidth, int frameHeight, int viewWidth, int viewHeight,
+                          int rotation, ScaleMode scaleMode) {
+        rotation = ((rotation % 360) + 360) % 360 / 90 * 90;
+        if (frameWidth == mFrameWidth && frameHeight == mFrameHeight
+                && viewWidth == mViewWidth && viewHeight == mViewHeight
+                && rotation == mRotation && scaleMode == mScaleMode) {
+            return false;
+        }
+        mFrameWidth = frameWidth;
+        mFrameHeight = frameHeight;
+        mViewWidth = viewWidth;
+        mViewHeight = viewHeight;
+        mRotation = rotation;
+        mScaleMode = scaleMode;
+        if (!isValid()) {
+            return false;
+        }
+
+        // Size of the upright frame, then its scale to view pixels
+        boolean swapped = rotation == 90 || rotation == 270;
+        float uprightWidth = swapped ? frameHeight : frameWidth;
+        float uprightHeight = swapped ? frameWidth : frameHeight;
+        float scaleX = viewWidth / uprightWidth;
+        float scaleY = viewHeight / uprightHeight;
+        float scale = scaleMode == ScaleMode.FIT ? Math.min(scaleX, scaleY) : Math.max(scaleX, scaleY);
+
+        // Extent of the scaled frame relative to the view, above 1 where it overflows
+        float extentX = uprightWidth * scale / viewWidth;
+        float extentY = uprightHeight * scale / viewHeight;
+        // Quad half-size in clip space, and the visible fraction of the upright frame
+        float quadX = Math.min(extentX, 1f);
+        float quadY = Math.min(extentY, 1f);
+        float visibleX = Math.min(1f / extentX, 1f);
+        float visibleY = Math.min(1f / extentY, 1f);
+        float left = 0.5f - visibleX / 2f;
+        float right = 0.5f + visibleX / 2f;
+        float top = 0.5f - visibleY / 2f;
+        float bottom = 0.5f + visibleY / 2f;
+
+        // Triangle strip order: bottom left, bottom right, top left, top right
+        setVertex(mVertices, 0, -quadX, -quadY, left, bottom);
+        setVertex(mVertices, 1, quadX, -quadY, right, bottom);
+        setVertex(mVertices, 2, -quadX, quadY, left, top);
+        setVertex(mVertices, 3, quadX, quadY, right, top);
+
+        // Frame pixels covered by the visible texture coordinates
+        float minU = 1f;
+        float maxU = 0f;
+        float minV = 1f;
+        float maxV = 0f;
+        for (int i = 0; i < 4; i++) {
+            float u = mVertices[i * FLOATS_PER_VERTEX + 3];
+            float v = mVertices[i * FLOATS_PER_VERTEX + 4];
+            minU = Math.min(minU, u);
+            maxU = Math.max(maxU, u);
+            minV = Math.min(minV, v);
+            maxV = Math.max(maxV, v);
+        }
+        mCropX = clamp((int) Math.floor(minU * frameWidth), 0, frameWidth - 1);
+        mCropY = clamp((int) Math.floor(minV * frameHeight), 0, frameHeight - 1);
+        mCropWidth = clamp((int) Math.ceil(maxU * frameWidth), mCropX + 1, frameWidth) - mCropX;
+        mCropHeight = clamp((int) Math.ceil(maxV * frameHeight), mCropY + 1, frameHeight) - mCropY;
+
+        // Same quad, with coordinates relative to the crop
+        System.arraycopy(mVertices, 0, mCroppedVertices, 0, mVertices.length);
+        for (int i = 0; i < 4; i++) {
+            int offset = i * FLOATS_PER_VERTEX;
+            mCroppedVertices[offset + 3] = (mVertices[offset + 3] * frameWidth - mCropX) / mCropWidth;
+            mCroppedVertices[offset + 4] = (mVertices[offset + 4] * frameHeight - mCropY) / mCropHeight;
+        }
+
+        computePixelToClip(frameWidth, frameHeight);
+
+        mGeneration++;
+        Log.d(TAG, "Frame " + frameWidth + "x" + frameHeight + " rotated " + rotation + " " + scaleMode
+                + " into " + viewWidth + "x" + viewHeight + ", visible " + mCropWidth + "x" + mCropHeight
+                + " at " + mCropX + "," + mCropY);
+        return true;
+    }
+
+    public boolean isValid() {
+        return mFrameWidth > 0 && mFrameHeight > 0 && mViewWidth > 0 && mViewHeight > 0;
+    }
+
+    /**
+     * Quad vertices for a texture holding the whole frame.
+     */
+    public float[] getVertices() {
+        return mVertices;
+    }
+
+    /**
+     * Quad vertices for a texture holding only the crop rectangle.
+     */
+    public float[] getCroppedVertices() {
+        return mCroppedVertices;
+    }
+
+    /**
+     * Whether part of the frame is outside the view and need not be uploaded.
+     */
+    public boolean isCropped() {
+        return mCropWidth < mFrameWidth || mCropHeight < mFrameHeight;
+    }
+
+    public int getCropX() {
+        return mCropX;
+    }
+
+    public int getCropY() {
+        return mCropY;
+    }
+
+    public int getCropWidth() {
+        return mCropWidth;
+    }
+
+    public int getCropHeight() {
+        return mCropHeight;
+    }
+
+    public int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Clip-space x of frame pixel (px, py) is
+     * {@code r[0] * px + r[1] * py + r[2]} for the returned row r; used to
+     * draw geometry in frame coordinates, such as traced edges, exactly over
+     * the quad.
+     */
+    public float[] getPixelToClipX() {
+        return mPixelToClipX;
+    }
+
+    /**
+     * Row of the same map for clip-space y, see {@link #getPixelToClipX()}.
+     */
+    public float[] getPixelToClipY() {
+        return mPixelToClipY;
+    }
+
+    /**
+     * The quad maps texture coordinates to clip space affinely, so three of
+     * its corners determine the map; fold in the pixel to texture scale.
+     */
+    private void computePixelToClip(int frameWidth, int frameHeight) {
+        float x0 = mVertices[0];
+        float y0 = mVertices[1];
+        float u0 = mVertices[3];
+        float v0 = mVertices[4];
+        float dx1 = mVertices[FLOATS_PER_VERTEX] - x0;
+        float dy1 = mVertices[FLOATS_PER_VERTEX + 1] - y0;
+        float du1 = mVertices[FLOATS_PER_VERTEX + 3] - u0;
+        float dv1 = mVertices[FLOATS_PER_VERTEX + 4] - v0;
+        float dx2 = mVertices[2 * FLOATS_PER_VERTEX] - x0;
+        float dy2 = mVertices[2 * FLOATS_PER_VERTEX + 1] - y0;
+        float du2 = mVertices[2 * FLOATS_PER_VERTEX + 3] - u0;
+        float dv2 = mVertices[2 * FLOATS_PER_VERTEX + 4] - v0;
+
+        // Invert the 2x2 texture coordinate basis; the quad is never degenerate here
+        float det = du1 * dv2 - du2 * dv1;
+        float iuu = dv2 / det;
+        float iuv = -du2 / det;
+        float ivu = -dv1 / det;
+        float ivv = du1 / det;
+
+        // d(clip)/du and d(clip)/dv
+        float xu = dx1 * iuu + dx2 * ivu;
+        float xv = dx1 * iuv + dx2 * ivv;
+        float yu = dy1 * iuu + dy2 * ivu;
+        float yv = dy1 * iuv + dy2 * ivv;
+
+        // Pixel centres sit half a pixel into each texel
+        mPixelToClipX[0] = xu / frameWidth;
+        mPixelToClipX[1] = xv / frameHeight;
+        mPixelToClipX[2] = x0 - xu * u0 - xv * v0 + (xu * 0.5f / frameWidth + xv * 0.5f / frameHeight);
+        mPixelToClipY[0] = yu / frameWidth;
+        mPixelToClipY[1] = yv / frameHeight;
+        mPixelToClipY[2] = y0 - yu * u0 - yv * v0 + (yu * 0.5f / frameWidth + yv * 0.5f / frameHeight);
+    }
+
+    /**
+     * @param a Horizontal position in the upright frame, 0 left to 1 right
+     * @param b Vertical position in the upright frame, 0 top to 1 bottom
+     */
+    private void setVertex(float[] vertices, int index, float x, float y, float a, float b) {
+        int offset = index * FLOATS_PER_VERTEX;
+        vertices[offset] = x;
+        vertices[offset + 1] = y;
+        vertices[offset + 2] = 0f;
+        // Undo the rotation to find the texture coordinate in the sensor frame
+        switch (mRotation) {
+            case 90:
+                vertices[offset + 3] = b;
+                vertices[offset + 4] = 1f - a;
+                break;
+            case 180:
+                vertices[offset + 3] = 1f - a;
+                vertices[offset + 4] = 1f - b;
+                break;
+            case 270:
+                vertices[offset + 3] = 1f - b;
+                vertices[offset + 4] = a;
+                break;
+            default:
+                vertices[offset + 3] = a;
+                vertices[offset + 4] = b;
+                break;
+        }
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
@@ -0,0 +1,59 @@
+package com.edgedetection.opengl;
+
+import android.opengl.GLSurfaceView;
+import android.util.Log;
+
+import javax.microedition.khronos.egl.EGL10;
+import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.egl.EGLContext;
+import javax.microedition.khronos.egl.EGLDisplay;
+
+/**
+ * Creates an OpenGL ES 3 context where the driver offers one and an ES 2
+ * context otherwise, and remembers which it got. Pixel buffers, vertex
+ * arrays, fences and program binaries are only used on version 3.
+ */
+public class GlContextFactory implements GLSurfaceView.EGLContextFactory {
+
+    private static final String TAG = "GlContextFactory";
+    private static final int EGL_CONTEXT_CLIENT_VERSION = 0x3098;
+
+    // Written on the GL thread before onSurfaceCreated, read there too
+    private volatile int mClientVersion = 0;
+
+    @Override
+    public EGLContext createContext(EGL10 egl, EGLDisplay display, EGLConfig config) {
+        EGLContext context = createContext(egl, display, config, 3);
+        if (context != null) {
+            mClientVersion = 3;
+            return context;
+        }
+        Log.i(TAG, "OpenGL ES 3 unavailable, falling back to ES 2");
+        context = createContext(egl, display, config, 2);
+        mClientVersion = context != null ? 2 : 0;
+        return context != null ? context : EGL10.EGL_NO_CONTEXT;
+    }
+
+    @Override
+    public void destroyContext(EGL10 egl, EGLDisplay display, EGLContext context) {
+        if (!egl.eglDestroyContext(display, context)) {
+            Log.e(TAG, "eglDestroyContext failed: 0x" + Integer.toHexString(egl.eglGetError()));
+        }
+    }
+
+    /**
+     * Client version of the current context, 0 before one was created.
+     */
+    public int getClientVersion() {
+        return mClientVersion;
+    }
+
+    private static EGLContext createContext(EGL10 egl, EGLDisplay display, EGLConfig config, int version) {
+        int[] attributes = {EGL_CONTEXT_CLIENT_VERSION, version, EGL10.EGL_NONE};
+        EGLContext context = egl.eglCreateContext(display, config, EGL10.EGL_NO_CONTEXT, attributes);
+        if (context == null || context == EGL10.EGL_NO_CONTEXT) {
+            return null;
+        }
+        return context;
+    }
+}
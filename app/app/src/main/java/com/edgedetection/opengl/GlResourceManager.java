@@ -0,0 +1,174 @@
+package com.edgedetection.opengl;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+import com.edgedetection.metrics.PipelineMetrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Owns the renderer's GL objects across EGL context loss.
+ *
+ * Each resource is created lazily on first use and reference counted. When
+ * the context is recreated every resource is marked stale instead of being
+ * rebuilt up front; it is recreated the next time it is used, so a resume
+ * that keeps its context costs nothing and one that loses it only rebuilds
+ * what is actually drawn.
+ *
+ * Must only be used on the GL thread.
+ */
+public class GlResourceManager {
+
+    private static final String TAG = "GlResourceManager";
+
+    /**
+     * Creates the GL object in the current context and returns its name, or 0 on failure.
+     */
+    public interface Creator {
+        int create();
+    }
+
+    /**
+     * Deletes a GL object created by the matching {@link Creator}.
+     */
+    public interface Deleter {
+        void delete(int id);
+    }
+
+    /**
+     * A lazily created, reference counted GL object.
+     */
+    public final class Resource {
+        private final String mName;
+        private final Creator mCreator;
+        private final Deleter mDeleter;
+        private int mId = 0;
+        private int mGeneration = -1;
+        private int mRefCount = 1;
+
+        private Resource(String name, Creator creator, Deleter deleter) {
+            mName = name;
+            mCreator = creator;
+            mDeleter = deleter;
+        }
+
+        /**
+         * The object in the current context, creating it if needed.
+         *
+         * @return GL name, or 0 if creation failed
+         */
+        public int get() {
+            if (mRefCount <= 0) {
+                throw new IllegalStateException("Resource " + mName + " used after release");
+            }
+            if (mId == 0 || mGeneration != mContextGeneration) {
+                if (mGeneration != -1) {
+                    mRecreated.incrementAndGet();
+                }
+                mId = mCreator.create();
+                mGeneration = mContextGeneration;
+                mCreated.incrementAndGet();
+                if (mId == 0) {
+                    Log.e(TAG, "Failed to create " + mName);
+                }
+            }
+            return mId;
+        }
+
+        public boolean isCreated() {
+            return mId != 0 && mGeneration == mContextGeneration;
+        }
+
+        public Resource retain() {
+            mRefCount++;
+            return this;
+        }
+
+        /**
+         * Drop one reference; the object is deleted with the last one.
+         */
+        public void release() {
+            if (mRefCount <= 0) {
+                return;
+            }
+            if (--mRefCount == 0) {
+                delete();
+                mResources.remove(this);
+            }
+        }
+
+        private void delete() {
+            // Objects of a lost context are already gone with it
+            if (isCreated()) {
+                mDeleter.delete(mId);
+            }
+            mId = 0;
+        }
+    }
+
+    private final List<Resource> mResources = new ArrayList<>();
+    private final GlStateCache mState;
+    private int mContextGeneration = 0;
+
+    private final AtomicLong mCreated = PipelineMetrics.counter("gl.resources.created");
+    private final AtomicLong mRecreated = PipelineMetrics.counter("gl.resources.recreated");
+    private final AtomicLong mContexts = PipelineMetrics.counter("gl.contexts.created");
+
+    public GlResourceManager(GlStateCache state) {
+        mState = state;
+    }
+
+    /**
+     * Register a resource holding one reference.
+     */
+    public Resource create(String name, Creator creator, Deleter deleter) {
+        Resource resource = new Resource(name, creator, deleter);
+        mResources.add(resource);
+        return resource;
+    }
+
+    /**
+     * A 2D texture with clamped edges and the given filters.
+     */
+    public Resource texture(String name, int minFilter, int magFilter) {
+        return create(name, () -> {
+            int[] textures = new int[1];
+            GLES20.glGenTextures(1, textures, 0);
+            mState.bindTexture(0, textures[0]);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, minFilter);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, magFilter);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+            Log.d(TAG, "Texture " + name + " generated with ID: " + textures[0]);
+            return textures[0];
+        }, id -> {
+            mState.onTextureDeleted(id);
+            GLES20.glDeleteTextures(1, new int[]{id}, 0);
+        });
+    }
+
+    /**
+     * A new EGL context was created; every resource is rebuilt on next use.
+     */
+    public void onContextCreated() {
+        mContextGeneration++;
+        mContexts.incrementAndGet();
+    }
+
+    /**
+     * Delete every GL object now. Resources stay registered and are created
+     * again if used after this, so a late draw cannot touch deleted names.
+     */
+    public void releaseAll() {
+        for (Resource resource : mResources) {
+            resource.delete();
+        }
+    }
+
+    public int getResourceCount() {
+        return mResources.size();
+    }
+}
@@ -0,0 +1,170 @@
+package com.edgedetection.opengl;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import com.edgedetection.metrics.PipelineMetrics;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shadows the GL bindings the renderer changes every frame and skips calls
+ * that would not change anything. Every redundant call is counted so a
+ * regression in the draw path shows up in the metrics rather than only in a
+ * GPU profiler.
+ *
+ * Code that binds through GLES20 directly must call {@link #invalidate()}
+ * afterwards. Must only be used on the GL thread.
+ */
+public class GlStateCache {
+
+    private static final int UNKNOWN = -1;
+    private static final int MAX_TEXTURE_UNITS = 4;
+
+    private int mProgram = UNKNOWN;
+    private int mActiveUnit = UNKNOWN;
+    private final int[] mTextures = new int[MAX_TEXTURE_UNITS];
+    private int mArrayBuffer = UNKNOWN;
+    private int mVertexArray = UNKNOWN;
+    private int mFramebuffer = UNKNOWN;
+    // Mesh whose attribute pointers are set up when vertex arrays are unavailable
+    private Object mMesh;
+
+    private boolean mVertexArraysSupported = false;
+
+    private final AtomicLong mChanges = PipelineMetrics.counter("gl.state.changes");
+    private final AtomicLong mRedundant = PipelineMetrics.counter("gl.state.redundant");
+
+    public GlStateCache() {
+        invalidate();
+    }
+
+    /**
+     * A new context starts with unknown bindings.
+     *
+     * @param gles3 Whether the context supports vertex array objects
+     */
+    public void onContextCreated(boolean gles3) {
+        mVertexArraysSupported = gles3;
+        invalidate();
+    }
+
+    public boolean supportsVertexArrays() {
+        return mVertexArraysSupported;
+    }
+
+    /**
+     * Forget all cached bindings so the next call of each kind reaches GL.
+     */
+    public void invalidate() {
+        mProgram = UNKNOWN;
+        mActiveUnit = UNKNOWN;
+        Arrays.fill(mTextures, UNKNOWN);
+        mArrayBuffer = UNKNOWN;
+        mVertexArray = UNKNOWN;
+        mFramebuffer = UNKNOWN;
+        mMesh = null;
+    }
+
+    public void useProgram(int program) {
+        if (changed(mProgram, program)) {
+            mProgram = program;
+            GLES20.glUseProgram(program);
+        }
+    }
+
+    /**
+     * Bind a 2D texture to a texture unit, making that unit active so
+     * uploads that follow go to this texture.
+     *
+     * @param unit Texture unit index, below 4
+     */
+    public void bindTexture(int unit, int texture) {
+        if (changed(mActiveUnit, unit)) {
+            mActiveUnit = unit;
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + unit);
+        }
+        if (changed(mTextures[unit], texture)) {
+            mTextures[unit] = texture;
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+        }
+    }
+
+    /**
+     * A texture is being deleted; GL unbinds it from every unit.
+     */
+    public void onTextureDeleted(int texture) {
+        for (int i = 0; i < MAX_TEXTURE_UNITS; i++) {
+            if (mTextures[i] == texture) {
+                mTextures[i] = 0;
+            }
+        }
+    }
+
+    public void bindArrayBuffer(int buffer) {
+        if (changed(mArrayBuffer, buffer)) {
+            mArrayBuffer = buffer;
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffer);
+        }
+    }
+
+    public void bindVertexArray(int vertexArray) {
+        if (changed(mVertexArray, vertexArray)) {
+            mVertexArray = vertexArray;
+            GLES30.glBindVertexArray(vertexArray);
+        }
+    }
+
+    public void bindFramebuffer(int framebuffer) {
+        if (changed(mFramebuffer, framebuffer)) {
+            mFramebuffer = framebuffer;
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer);
+        }
+    }
+
+    /**
+     * Without vertex arrays, attribute pointers are global; track which mesh
+     * they currently describe.
+     *
+     * @return true if the caller must set up its attribute pointers
+     */
+    boolean setCurrentMesh(Object mesh) {
+        if (mMesh == mesh) {
+            mRedundant.incrementAndGet();
+            return false;
+        }
+        mMesh = mesh;
+        mChanges.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Prepare for client-side vertex arrays, which need no vertex array
+     * object and no buffer bound.
+     */
+    public void unbindMesh() {
+        if (mVertexArraysSupported) {
+            bindVertexArray(0);
+        }
+        bindArrayBuffer(0);
+        mMesh = null;
+    }
+
+    public long getChangeCount() {
+        return mChanges.get();
+    }
+
+    public long getRedundantCount() {
+        return mRedundant.get();
+    }
+
+    private boolean changed(int current, int requested) {
+        if (current == requested) {
+            mRedundant.incrementAndGet();
+            return false;
+        }
+        mChanges.incrementAndGet();
+        return true;
+    }
+}
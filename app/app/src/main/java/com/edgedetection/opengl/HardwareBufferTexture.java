@@ -0,0 +1,91 @@
+package com.edgedetection.opengl;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+import com.edgedetection.EdgeDetector;
+import com.edgedetection.output.EdgeBufferQueue;
+
+/**
+ * A texture whose storage is a hardware buffer from an {@link EdgeBufferQueue}
+ * slot. The EGLImage is created once per buffer; after that the texture sees
+ * every frame written into the buffer without any upload.
+ *
+ * Must only be used on the GL thread.
+ */
+class HardwareBufferTexture {
+
+    private static final String TAG = "HardwareBufferTexture";
+
+    private final GlStateCache mState;
+    private int mTexture = 0;
+    private long mImage = 0;
+    // Slot generation the image was created for
+    private int mGeneration = -1;
+
+    HardwareBufferTexture(GlStateCache state) {
+        mState = state;
+    }
+
+    /**
+     * @return Texture sampling the slot's buffer, or 0 if it cannot be imported
+     */
+    int bind(EdgeBufferQueue.Slot slot) {
+        if (mImage != 0 && slot.getGeneration() == mGeneration) {
+            return mTexture;
+        }
+        destroyImage();
+
+        if (mTexture == 0) {
+            int[] textures = new int[1];
+            GLES20.glGenTextures(1, textures, 0);
+            mTexture = textures[0];
+            mState.bindTexture(0, mTexture);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        }
+
+        long image = EdgeDetector.createHardwareBufferImage(slot.getBuffer());
+        if (image == 0) {
+            return 0;
+        }
+        mState.bindTexture(0, mTexture);
+        if (!EdgeDetector.bindHardwareBufferImage(image)) {
+            EdgeDetector.destroyHardwareBufferImage(image);
+            return 0;
+        }
+        mImage = image;
+        mGeneration = slot.getGeneration();
+        Log.d(TAG, "Imported " + slot.getWidth() + "x" + slot.getHeight() + " buffer of slot "
+                + slot.getIndex() + " as texture " + mTexture);
+        return mTexture;
+    }
+
+    void release() {
+        destroyImage();
+        if (mTexture != 0) {
+            mState.onTextureDeleted(mTexture);
+            GLES20.glDeleteTextures(1, new int[]{mTexture}, 0);
+            mTexture = 0;
+        }
+    }
+
+    /**
+     * The EGL context was recreated and took the texture and image with it.
+     */
+    void onContextLost() {
+        mTexture = 0;
+        mImage = 0;
+        mGeneration = -1;
+    }
+
+    private void destroyImage() {
+        if (mImage != 0) {
+            EdgeDetector.destroyHardwareBufferImage(mImage);
+            mImage = 0;
+        }
+        mGeneration = -1;
+    }
+}
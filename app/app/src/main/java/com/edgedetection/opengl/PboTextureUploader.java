@@ -0,0 +1,174 @@
+package com.edgedetection.opengl;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.util.Log;
+
+import com.edgedetection.EdgeDetector;
+import com.edgedetection.metrics.LatencyHistogram;
+import com.edgedetection.metrics.PipelineMetrics;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Streams frames into one texture through a ring of pixel buffer objects.
+ *
+ * A plain glTexImage2D from client memory makes the driver copy the whole
+ * frame before the call returns. Here the frame is written into a mapped
+ * pixel unpack buffer instead, and the texture update is sourced from that
+ * buffer, so the driver can schedule the transfer without holding up the GL
+ * thread. Consecutive frames use different buffers, so writing a frame never
+ * waits for the transfer of the one before it.
+ *
+ * Needs a GLES3 context and the native library, which issues the texture
+ * update with a buffer offset. Usage per frame: {@link #begin}, write exactly the
+ * requested bytes, then {@link #finish}. Must only be used on the GL thread.
+ */
+public class PboTextureUploader {
+
+    private static final String TAG = "PboTextureUploader";
+
+    public static final int RING_SIZE = 3;
+
+    private final int[] mBuffers = new int[RING_SIZE];
+    private final int[] mBufferSizes = new int[RING_SIZE];
+    private int mNext = 0;
+    // Buffer mapped by begin, or -1
+    private int mMapped = -1;
+
+    // Texture storage last allocated through this uploader
+    private int mTexture = 0;
+    private int mTextureWidth = 0;
+    private int mTextureHeight = 0;
+    private int mTextureFormat = 0;
+
+    // Time spent waiting for the driver to hand out a buffer
+    private final LatencyHistogram mStallTime = PipelineMetrics.histogram("upload.pbo.stall");
+    // Time from unmapping the written buffer to the texture update being queued
+    private final LatencyHistogram mUploadTime = PipelineMetrics.histogram("upload.pbo.upload");
+
+    /**
+     * Map the next buffer of the ring for writing.
+     *
+     * @param size Bytes the frame needs
+     * @return Buffer to write the frame into from position 0, or null if
+     *         mapping failed and the frame must be uploaded directly
+     */
+    public ByteBuffer begin(int size) {
+        if (!EdgeDetector.isLibraryLoaded()) {
+            return null;
+        }
+        if (mMapped != -1) {
+            Log.w(TAG, "begin called twice without finish");
+            cancel();
+        }
+        int index = mNext;
+        if (mBuffers[index] == 0) {
+            GLES20.glGenBuffers(RING_SIZE, mBuffers, 0);
+        }
+
+        long start = System.nanoTime();
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, mBuffers[index]);
+        if (mBufferSizes[index] < size) {
+            GLES20.glBufferData(GLES30.GL_PIXEL_UNPACK_BUFFER, size, null, GLES20.GL_STREAM_DRAW);
+            mBufferSizes[index] = size;
+        }
+        // Invalidating lets the driver hand out fresh memory rather than wait
+        // for a transfer still reading the old contents
+        ByteBuffer mapped = (ByteBuffer) GLES30.glMapBufferRange(GLES30.GL_PIXEL_UNPACK_BUFFER, 0, size,
+                GLES30.GL_MAP_WRITE_BIT | GLES30.GL_MAP_INVALIDATE_BUFFER_BIT);
+        mStallTime.record(System.nanoTime() - start);
+
+        if (mapped == null) {
+            Log.w(TAG, "Could not map pixel buffer: " + GLES20.glGetError());
+            GLES20.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, 0);
+            return null;
+        }
+        mMapped = index;
+        mNext = (index + 1) % RING_SIZE;
+        return mapped;
+    }
+
+    /**
+     * Unmap the buffer written since {@link #begin} and queue the texture
+     * update from it. The texture is left bound to unit 0.
+     *
+     * @param format GL_RGBA or GL_LUMINANCE, with unsigned byte components
+     * @return false if the buffer contents were lost and nothing was uploaded
+     */
+    public boolean finish(GlStateCache state, int texture, int format, int width, int height) {
+        if (mMapped == -1) {
+            return false;
+        }
+        mMapped = -1;
+        long start = System.nanoTime();
+        if (!GLES30.glUnmapBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER)) {
+            // The driver may discard mapped memory, e.g. on a mode switch
+            Log.w(TAG, "Pixel buffer contents lost");
+            GLES20.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, 0);
+            return false;
+        }
+
+        // With an unpack buffer bound the pixels argument is an offset into it
+        state.bindTexture(0, texture);
+        if (texture != mTexture || width != mTextureWidth || height != mTextureHeight || format != mTextureFormat) {
+            EdgeDetector.texImage2DFromPixelBuffer(GLES20.GL_TEXTURE_2D, 0, format, width, height,
+                    format, GLES20.GL_UNSIGNED_BYTE, 0);
+            mTexture = texture;
+            mTextureWidth = width;
+            mTextureHeight = height;
+            mTextureFormat = format;
+        } else {
+            EdgeDetector.texSubImage2DFromPixelBuffer(GLES20.GL_TEXTURE_2D, 0, 0, 0, width, height,
+                    format, GLES20.GL_UNSIGNED_BYTE, 0);
+        }
+        // Every other texture upload reads client memory and must not see the buffer
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, 0);
+        mUploadTime.record(System.nanoTime() - start);
+        return true;
+    }
+
+    /**
+     * Texture storage was replaced outside this uploader, e.g. by a direct
+     * upload; the next frame reallocates it.
+     */
+    public void invalidateTexture() {
+        mTexture = 0;
+    }
+
+    /**
+     * Delete the buffers; they are recreated on the next frame.
+     */
+    public void release() {
+        cancel();
+        if (mBuffers[0] != 0) {
+            GLES20.glDeleteBuffers(RING_SIZE, mBuffers, 0);
+        }
+        forgetBuffers();
+    }
+
+    /**
+     * The EGL context was recreated and took the buffers with it.
+     */
+    public void onContextLost() {
+        mMapped = -1;
+        forgetBuffers();
+    }
+
+    private void cancel() {
+        if (mMapped != -1) {
+            mMapped = -1;
+            GLES30.glUnmapBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER);
+            GLES20.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, 0);
+        }
+    }
+
+    private void forgetBuffers() {
+        for (int i = 0; i < RING_SIZE; i++) {
+            mBuffers[i] = 0;
+            mBufferSizes[i] = 0;
+        }
+        mNext = 0;
+        mTexture = 0;
+    }
+}
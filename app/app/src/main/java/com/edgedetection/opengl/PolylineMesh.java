@@ -0,0 +1,117 @@
+package com.edgedetection.opengl;
+
+import android.opengl.GLES20;
+
+import com.edgedetection.EdgePolylines;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * Traced edge polylines in a vertex buffer, drawn as one line strip each.
+ *
+ * Points are uploaded as 16-bit frame pixel coordinates, a quarter of the
+ * bytes of an RGBA frame per edge pixel even before simplification, and
+ * mapped to the screen in the vertex shader. Uses the default vertex array
+ * and tracks its attribute setup through {@link GlStateCache#setCurrentMesh}
+ * like a {@link QuadMesh} without vertex array objects.
+ *
+ * Must only be used on the GL thread.
+ */
+class PolylineMesh {
+
+    private static final int BYTES_PER_POINT = 4;
+
+    private final GlStateCache mState;
+    private final GlResourceManager.Resource mBuffer;
+    private ShortBuffer mPointData = allocate(1024);
+    private int[] mOffsets = new int[1];
+    private int mPolylineCount = 0;
+    private int mPointCount = 0;
+    // Points the GL buffer has room for
+    private int mBufferCapacity = 0;
+    private boolean mDirty = false;
+
+    PolylineMesh(String name, GlResourceManager resources, GlStateCache state) {
+        mState = state;
+        mBuffer = resources.create(name + ".vbo", () -> {
+            int[] buffers = new int[1];
+            GLES20.glGenBuffers(1, buffers, 0);
+            mBufferCapacity = 0;
+            mDirty = true;
+            return buffers[0];
+        }, id -> {
+            mState.invalidate();
+            GLES20.glDeleteBuffers(1, new int[]{id}, 0);
+        });
+    }
+
+    /**
+     * Copy the polylines; the buffer is updated on the next draw.
+     */
+    void setPolylines(EdgePolylines polylines) {
+        int pointCount = polylines.getPointCount();
+        if (mPointData.capacity() < pointCount * 2) {
+            mPointData = allocate(pointCount * 3);
+        }
+        int[] points = polylines.getPoints();
+        mPointData.clear();
+        for (int i = 0; i < pointCount * 2; i++) {
+            mPointData.put((short) points[i]);
+        }
+        mPointData.flip();
+
+        int polylineCount = polylines.getPolylineCount();
+        if (mOffsets.length < polylineCount + 1) {
+            mOffsets = new int[polylineCount * 3 / 2 + 1];
+        }
+        System.arraycopy(polylines.getOffsets(), 0, mOffsets, 0, polylineCount + 1);
+        mPolylineCount = polylineCount;
+        mPointCount = pointCount;
+        mDirty = true;
+    }
+
+    /**
+     * Draw with the currently bound program.
+     */
+    void draw() {
+        int buffer = mBuffer.get();
+        if (buffer == 0 || mPointCount == 0) {
+            return;
+        }
+        if (mState.supportsVertexArrays()) {
+            mState.bindVertexArray(0);
+        }
+        mState.bindArrayBuffer(buffer);
+        if (mDirty) {
+            mPointData.position(0);
+            if (mPointCount > mBufferCapacity) {
+                // Orphan and grow with headroom so later frames fit without reallocating
+                mBufferCapacity = mPointCount * 3 / 2;
+                GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, mBufferCapacity * BYTES_PER_POINT,
+                        null, GLES20.GL_DYNAMIC_DRAW);
+            }
+            GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, 0, mPointCount * BYTES_PER_POINT, mPointData);
+            mDirty = false;
+        }
+        if (mState.setCurrentMesh(this)) {
+            GLES20.glVertexAttribPointer(QuadMesh.POSITION_LOCATION, 2, GLES20.GL_SHORT, false, BYTES_PER_POINT, 0);
+            GLES20.glEnableVertexAttribArray(QuadMesh.POSITION_LOCATION);
+            // The quad's texture coordinates hold 4 vertices; keep them out of line draws
+            GLES20.glDisableVertexAttribArray(QuadMesh.TEX_COORD_LOCATION);
+        }
+
+        for (int i = 0; i < mPolylineCount; i++) {
+            int first = mOffsets[i];
+            int count = mOffsets[i + 1] - first;
+            if (count >= 2) {
+                GLES20.glDrawArrays(GLES20.GL_LINE_STRIP, first, count);
+            }
+        }
+    }
+
+    private static ShortBuffer allocate(int shorts) {
+        return ByteBuffer.allocateDirect(shorts * 2).order(ByteOrder.nativeOrder()).asShortBuffer();
+    }
+}
@@ -0,0 +1,121 @@
+package com.edgedetection.opengl;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * A textured quad drawn as a 4-vertex triangle strip from a GPU-resident
+ * vertex buffer. On GLES3 the attribute layout is recorded once in a vertex
+ * array object, so drawing is a bind and a draw call.
+ *
+ * Programs drawing a mesh must use {@link #POSITION_LOCATION} and
+ * {@link #TEX_COORD_LOCATION} for aPosition and aTexCoord; ShaderManager
+ * binds them before linking. Must only be used on the GL thread.
+ */
+public class QuadMesh {
+
+    public static final int POSITION_LOCATION = 0;
+    public static final int TEX_COORD_LOCATION = 1;
+
+    // X, Y, Z, U, V
+    private static final int FLOATS_PER_VERTEX = 5;
+    private static final int STRIDE = FLOATS_PER_VERTEX * 4;
+    private static final int VERTEX_COUNT = 4;
+
+    private final GlStateCache mState;
+    private final FloatBuffer mVertexData;
+    private final GlResourceManager.Resource mBuffer;
+    private final GlResourceManager.Resource mVertexArray;
+    private boolean mDirty = false;
+
+    /**
+     * @param vertices Four vertices of X, Y, Z, U, V in triangle strip order
+     */
+    public QuadMesh(String name, float[] vertices, GlResourceManager resources, GlStateCache state) {
+        mState = state;
+
+        ByteBuffer bb = ByteBuffer.allocateDirect(VERTEX_COUNT * STRIDE);
+        bb.order(ByteOrder.nativeOrder());
+        mVertexData = bb.asFloatBuffer();
+        mVertexData.put(vertices);
+        mVertexData.position(0);
+
+        mBuffer = resources.create(name + ".vbo", () -> {
+            int[] buffers = new int[1];
+            GLES20.glGenBuffers(1, buffers, 0);
+            mState.bindArrayBuffer(buffers[0]);
+            mVertexData.position(0);
+            GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, VERTEX_COUNT * STRIDE, mVertexData, GLES20.GL_STATIC_DRAW);
+            mDirty = false;
+            return buffers[0];
+        }, id -> {
+            mState.invalidate();
+            GLES20.glDeleteBuffers(1, new int[]{id}, 0);
+        });
+
+        mVertexArray = resources.create(name + ".vao", () -> {
+            if (!mState.supportsVertexArrays()) {
+                return 0;
+            }
+            int buffer = mBuffer.get();
+            int[] arrays = new int[1];
+            GLES30.glGenVertexArrays(1, arrays, 0);
+            mState.bindVertexArray(arrays[0]);
+            // The buffer binding is captured by glVertexAttribPointer, not by the array
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffer);
+            setAttributePointers();
+            mState.bindVertexArray(0);
+            mState.invalidate();
+            return arrays[0];
+        }, id -> {
+            mState.invalidate();
+            GLES30.glDeleteVertexArrays(1, new int[]{id}, 0);
+        });
+    }
+
+    /**
+     * Replace the vertices; the buffer is updated on the next draw.
+     */
+    public void setVertices(float[] vertices) {
+        mVertexData.position(0);
+        mVertexData.put(vertices, 0, VERTEX_COUNT * FLOATS_PER_VERTEX);
+        mVertexData.position(0);
+        mDirty = true;
+    }
+
+    /**
+     * Draw with the currently bound program and textures.
+     */
+    public void draw() {
+        int buffer = mBuffer.get();
+        if (buffer == 0) {
+            return;
+        }
+        if (mDirty) {
+            mState.bindArrayBuffer(buffer);
+            GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, 0, VERTEX_COUNT * STRIDE, mVertexData);
+            mDirty = false;
+        }
+
+        int vertexArray = mState.supportsVertexArrays() ? mVertexArray.get() : 0;
+        if (vertexArray != 0) {
+            mState.bindVertexArray(vertexArray);
+        } else if (mState.setCurrentMesh(this)) {
+            mState.bindArrayBuffer(buffer);
+            setAttributePointers();
+        }
+
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, VERTEX_COUNT);
+    }
+
+    private static void setAttributePointers() {
+        GLES20.glVertexAttribPointer(POSITION_LOCATION, 3, GLES20.GL_FLOAT, false, STRIDE, 0);
+        GLES20.glEnableVertexAttribArray(POSITION_LOCATION);
+        GLES20.glVertexAttribPointer(TEX_COORD_LOCATION, 2, GLES20.GL_FLOAT, false, STRIDE, 3 * 4);
+        GLES20.glEnableVertexAttribArray(TEX_COORD_LOCATION);
+    }
+}
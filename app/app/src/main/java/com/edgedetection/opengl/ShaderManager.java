@@ -0,0 +1,305 @@
+package com.edgedetection.opengl;
+
+import android.content.Context;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.util.Log;
+
+import com.edgedetection.metrics.PipelineMetrics;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Builds shader programs from GLSL assets, caching what it can.
+ *
+ * Shader source is read from assets once and kept in memory. On GLES3
+ * contexts each linked program is also saved to disk with
+ * glGetProgramBinary, keyed by a hash of its source and the driver's
+ * renderer and version strings, so the next surface or process can skip
+ * compiling and linking entirely. A binary the driver rejects, e.g. after a
+ * driver update it cannot detect through the version string, is deleted and
+ * the program is rebuilt from source.
+ *
+ * Programs are not cached across contexts; call {@link #getProgram} again
+ * after the EGL context was recreated. Must be called on the GL thread.
+ */
+public class ShaderManager {
+
+    private static final String TAG = "ShaderManager";
+    private static final String CACHE_DIR = "shader_cache";
+    // Bumped whenever linking changes in a way the source hash cannot see
+    private static final int CACHE_FORMAT_VERSION = 2;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final Context mContext;
+    private final File mCacheDir;
+    private final Map<String, String> mSources = new HashMap<>();
+
+    // Per-context driver details, refreshed by onContextCreated
+    private boolean mGles3 = false;
+    private boolean mBinariesSupported = false;
+    private String mDriverId = "";
+
+    public ShaderManager(Context context) {
+        mContext = context;
+        mCacheDir = new File(context.getCacheDir(), CACHE_DIR);
+    }
+
+    /**
+     * Query the new context for program binary support. Call at the start of
+     * onSurfaceCreated, before building any program.
+     *
+     * @param clientVersion Version the context was created with, 0 if unknown
+     */
+    public void onContextCreated(int clientVersion) {
+        String version = GLES20.glGetString(GLES20.GL_VERSION);
+        String renderer = GLES20.glGetString(GLES20.GL_RENDERER);
+        mDriverId = renderer + "|" + version;
+
+        int[] formats = new int[1];
+        // A version 2 context may still report ES 3, but only promises ES 2
+        boolean gles3 = clientVersion >= 3 && version != null && version.startsWith("OpenGL ES 3");
+        if (gles3) {
+            GLES20.glGetIntegerv(GLES30.GL_NUM_PROGRAM_BINARY_FORMATS, formats, 0);
+        }
+        mGles3 = gles3;
+        mBinariesSupported = gles3 && formats[0] > 0;
+        Log.d(TAG, "Driver " + mDriverId + ", program binaries: " + mBinariesSupported);
+    }
+
+    public boolean isGles3() {
+        return mGles3;
+    }
+
+    /**
+     * Build a program from two asset files. aPosition and aTexCoord are bound
+     * to {@link QuadMesh#POSITION_LOCATION} and {@link QuadMesh#TEX_COORD_LOCATION}.
+     *
+     * @return Linked program, or 0 on failure
+     */
+    public int getProgram(String vertexShaderFile, String fragmentShaderFile) {
+        long start = System.nanoTime();
+        String name = programName(fragmentShaderFile);
+
+        String vertexSource = getSource(vertexShaderFile);
+        String fragmentSource = getSource(fragmentShaderFile);
+        if (vertexSource.isEmpty() || fragmentSource.isEmpty()) {
+            return 0;
+        }
+
+        String key = mBinariesSupported ? cacheKey(vertexSource, fragmentSource) : null;
+        int program = key != null ? loadBinary(key) : 0;
+        boolean fromBinary = program != 0;
+        if (!fromBinary) {
+            program = buildProgram(vertexSource, fragmentSource, key != null);
+            if (program != 0 && key != null) {
+                saveBinary(program, key);
+            }
+        }
+
+        long elapsedNs = System.nanoTime() - start;
+        PipelineMetrics.histogram("shader.load." + name).record(elapsedNs);
+        PipelineMetrics.counter(fromBinary ? "shader.cache.hits" : "shader.cache.misses").incrementAndGet();
+        Log.d(TAG, "Program " + name + " ready in " + elapsedNs / 1000 + "us"
+                + (fromBinary ? " from cached binary" : " from source"));
+        return program;
+    }
+
+    private String getSource(String filename) {
+        String source = mSources.get(filename);
+        if (source == null) {
+            source = loadShaderFromAssets(filename);
+            if (!source.isEmpty()) {
+                mSources.put(filename, source);
+            }
+        }
+        return source;
+    }
+
+    private String loadShaderFromAssets(String filename) {
+        try (InputStream inputStream = mContext.getAssets().open(filename)) {
+            byte[] buffer = new byte[4096];
+            StringBuilder builder = new StringBuilder();
+            int read;
+            while ((read = inputStream.read(buffer)) > 0) {
+                builder.append(new String(buffer, 0, read, UTF8));
+            }
+            return builder.toString();
+        } catch (Exception e) {
+            Log.e(TAG, "Error loading shader from assets: " + e.getMessage());
+            return "";
+        }
+    }
+
+    private int buildProgram(String vertexSource, String fragmentSource, boolean retrievable) {
+        int vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, vertexSource);
+        int fragmentShader = loadShader(GLES20.GL_FRAGMENT_SHADER, fragmentSource);
+        if (vertexShader == 0 || fragmentShader == 0) {
+            GLES20.glDeleteShader(vertexShader);
+            GLES20.glDeleteShader(fragmentShader);
+            return 0;
+        }
+
+        int program = GLES20.glCreateProgram();
+        GLES20.glAttachShader(program, vertexShader);
+        GLES20.glAttachShader(program, fragmentShader);
+        GLES20.glBindAttribLocation(program, QuadMesh.POSITION_LOCATION, "aPosition");
+        GLES20.glBindAttribLocation(program, QuadMesh.TEX_COORD_LOCATION, "aTexCoord");
+        if (retrievable) {
+            GLES30.glProgramParameteri(program, GLES30.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GLES20.GL_TRUE);
+        }
+        GLES20.glLinkProgram(program);
+
+        // Shaders are owned by the program once linked
+        GLES20.glDeleteShader(vertexShader);
+        GLES20.glDeleteShader(fragmentShader);
+
+        if (!isLinked(program)) {
+            Log.e(TAG, "Shader program linking failed: " + GLES20.glGetProgramInfoLog(program));
+            GLES20.glDeleteProgram(program);
+            return 0;
+        }
+        return program;
+    }
+
+    private int loadShader(int type, String shaderCode) {
+        int shader = GLES20.glCreateShader(type);
+        GLES20.glShaderSource(shader, shaderCode);
+        GLES20.glCompileShader(shader);
+
+        // Check compilation status
+        int[] compileStatus = new int[1];
+        GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compileStatus, 0);
+        if (compileStatus[0] != GLES20.GL_TRUE) {
+            String error = GLES20.glGetShaderInfoLog(shader);
+            Log.e(TAG, "Shader compilation failed: " + error);
+            GLES20.glDeleteShader(shader);
+            return 0;
+        }
+
+        return shader;
+    }
+
+    private int loadBinary(String key) {
+        File file = new File(mCacheDir, key + ".bin");
+        if (!file.isFile()) {
+            return 0;
+        }
+
+        int program = 0;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            if (in.readInt() != CACHE_FORMAT_VERSION) {
+                throw new IllegalStateException("Unknown cache format");
+            }
+            int format = in.readInt();
+            int length = in.readInt();
+            if (length <= 0 || length > file.length()) {
+                throw new IllegalStateException("Truncated binary");
+            }
+            byte[] binary = new byte[length];
+            in.readFully(binary);
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+            buffer.put(binary).position(0);
+            program = GLES20.glCreateProgram();
+            GLES30.glProgramBinary(program, format, buffer, length);
+            if (isLinked(program)) {
+                return program;
+            }
+            Log.w(TAG, "Driver rejected cached program binary " + key);
+        } catch (Exception e) {
+            Log.w(TAG, "Error reading cached program binary: " + e.getMessage());
+        }
+
+        if (program != 0) {
+            GLES20.glDeleteProgram(program);
+        }
+        if (!file.delete()) {
+            Log.w(TAG, "Could not delete stale program binary " + file);
+        }
+        return 0;
+    }
+
+    private void saveBinary(int program, String key) {
+        int[] length = new int[1];
+        GLES20.glGetProgramiv(program, GLES30.GL_PROGRAM_BINARY_LENGTH, length, 0);
+        if (length[0] <= 0) {
+            return;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(length[0]);
+        int[] written = new int[1];
+        int[] format = new int[1];
+        GLES30.glGetProgramBinary(program, length[0], written, 0, format, 0, buffer);
+        if (GLES20.glGetError() != GLES20.GL_NO_ERROR || written[0] <= 0) {
+            Log.w(TAG, "Could not retrieve program binary");
+            return;
+        }
+        byte[] binary = new byte[written[0]];
+        buffer.position(0);
+        buffer.get(binary);
+
+        // Write to a temporary file first so a crash never leaves a partial binary
+        if (!mCacheDir.isDirectory() && !mCacheDir.mkdirs()) {
+            Log.w(TAG, "Could not create shader cache directory");
+            return;
+        }
+        File file = new File(mCacheDir, key + ".bin");
+        File temp = new File(mCacheDir, key + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(temp))) {
+            out.writeInt(CACHE_FORMAT_VERSION);
+            out.writeInt(format[0]);
+            out.writeInt(binary.length);
+            out.write(binary);
+        } catch (Exception e) {
+            Log.w(TAG, "Error writing program binary: " + e.getMessage());
+            temp.delete();
+            return;
+        }
+        if (!temp.renameTo(file)) {
+            Log.w(TAG, "Could not store program binary " + file);
+            temp.delete();
+        }
+    }
+
+    private String cacheKey(String vertexSource, String fragmentSource) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(vertexSource.getBytes(UTF8));
+            digest.update((byte) 0);
+            digest.update(fragmentSource.getBytes(UTF8));
+            digest.update((byte) 0);
+            digest.update(mDriverId.getBytes(UTF8));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (Exception e) {
+            Log.w(TAG, "Cannot hash shader source: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static boolean isLinked(int program) {
+        int[] linkStatus = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
+        return linkStatus[0] == GLES20.GL_TRUE;
+    }
+
+    private static String programName(String fragmentShaderFile) {
+        String name = fragmentShaderFile.substring(fragmentShaderFile.lastIndexOf('/') + 1);
+        int dot = name.indexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+}
@@ -0,0 +1,249 @@
+package com.edgedetection.opengl;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+/**
+ * Smooths flickering edges over time on the GPU.
+ *
+ * Each new frame is blended with the accumulated history into one of two
+ * offscreen textures, and the two swap roles every frame (ping-pong), so the
+ * history never has to leave the GPU. Two blends are supported: an
+ * exponential moving average, and a peak hold where edges light up at once
+ * and then fade by the decay factor every frame.
+ *
+ * All methods except the mode and decay setters must be called on the GL thread.
+ */
+public class TemporalEdgeFilter {
+
+    private static final String TAG = "TemporalEdgeFilter";
+
+    public static final float DEFAULT_DECAY = 0.7f;
+
+    /**
+     * How new frames are combined with the history.
+     */
+    public enum Mode {
+        /** No filtering, frames are drawn as they arrive. */
+        OFF(0),
+        /** Exponential moving average: history * decay + current * (1 - decay). */
+        AVERAGE(1),
+        /** Peak hold: max(current, history * decay). */
+        PERSISTENCE(2);
+
+        private final int mShaderValue;
+
+        Mode(int shaderValue) {
+            mShaderValue = shaderValue;
+        }
+    }
+
+    // Full-screen quad with V flipped relative to the on-screen quad, so row 0
+    // of the render target holds the top image row and the result can be
+    // drawn with the regular quad
+    private static final float[] TARGET_VERTEX_DATA = {
+        // X, Y, Z, U, V
+        -1.0f, -1.0f, 0.0f, 0.0f, 0.0f,  // Bottom left
+         1.0f, -1.0f, 0.0f, 1.0f, 0.0f,  // Bottom right
+        -1.0f,  1.0f, 0.0f, 0.0f, 1.0f,  // Top left
+         1.0f,  1.0f, 0.0f, 1.0f, 1.0f   // Top right
+    };
+
+    private final GlStateCache mState;
+    private final QuadMesh mQuad;
+
+    private int mProgram;
+    private int mCurrentPackedHandle;
+    private int mImageSizeHandle;
+    private int mModeHandle;
+    private int mDecayHandle;
+
+    private final int[] mTextures = new int[2];
+    private final int[] mFramebuffers = new int[2];
+    private int mWidth = 0;
+    private int mHeight = 0;
+    // Index of the target holding the latest result
+    private int mResult = 0;
+    private boolean mHistoryValid = false;
+    private volatile boolean mResetPending = false;
+
+    private volatile Mode mMode = Mode.OFF;
+    private volatile float mDecay = DEFAULT_DECAY;
+
+    public TemporalEdgeFilter(GlResourceManager resources, GlStateCache state) {
+        mState = state;
+        mQuad = new QuadMesh("quad.temporal", TARGET_VERTEX_DATA, resources, state);
+    }
+
+    /**
+     * Safe to call from any thread; takes effect on the next frame.
+     */
+    public void setMode(Mode mode) {
+        if (mode != mMode) {
+            mResetPending = true;
+        }
+        mMode = mode;
+    }
+
+    public Mode getMode() {
+        return mMode;
+    }
+
+    /**
+     * @param decay Weight of the history per frame, 0 to 1; higher is smoother but lags more
+     */
+    public void setDecay(float decay) {
+        mDecay = Math.max(0f, Math.min(0.99f, decay));
+    }
+
+    public float getDecay() {
+        return mDecay;
+    }
+
+    public boolean isEnabled() {
+        return mMode != Mode.OFF && mProgram != 0;
+    }
+
+    /**
+     * Use a newly linked program built from temporal_fragment_shader.glsl.
+     */
+    public void setProgram(int program) {
+        mProgram = program;
+        if (program == 0) {
+            return;
+        }
+        mCurrentPackedHandle = GLES20.glGetUniformLocation(program, "uCurrentPacked");
+        mImageSizeHandle = GLES20.glGetUniformLocation(program, "uImageSize");
+        mModeHandle = GLES20.glGetUniformLocation(program, "uMode");
+        mDecayHandle = GLES20.glGetUniformLocation(program, "uDecay");
+
+        // Samplers never change, set them once
+        mState.useProgram(program);
+        GLES20.glUniform1i(GLES20.glGetUniformLocation(program, "uTexture"), 0);
+        GLES20.glUniform1i(GLES20.glGetUniformLocation(program, "uHistory"), 1);
+    }
+
+    /**
+     * Blend a newly uploaded frame into the history.
+     *
+     * @param sourceTexture Texture holding the frame
+     * @param packed Whether the texture is a packed 1-bit edge map
+     * @param viewWidth Viewport width to restore afterwards
+     * @param viewHeight Viewport height to restore afterwards
+     * @return false if the render targets could not be created
+     */
+    public boolean accumulate(int sourceTexture, boolean packed, int width, int height,
+                              int viewWidth, int viewHeight) {
+        Mode mode = mMode;
+        if (mode == Mode.OFF || mProgram == 0 || !ensureTargets(width, height)) {
+            return false;
+        }
+        if (mResetPending) {
+            mResetPending = false;
+            mHistoryValid = false;
+        }
+
+        int target = 1 - mResult;
+        mState.bindFramebuffer(mFramebuffers[target]);
+        GLES20.glViewport(0, 0, width, height);
+        mState.useProgram(mProgram);
+        mState.bindTexture(1, mTextures[mResult]);
+        mState.bindTexture(0, sourceTexture);
+
+        GLES20.glUniform1i(mCurrentPackedHandle, packed ? 1 : 0);
+        GLES20.glUniform2f(mImageSizeHandle, width, height);
+        GLES20.glUniform1i(mModeHandle, mode.mShaderValue);
+        // The first frame after a reset has no history to blend with
+        GLES20.glUniform1f(mDecayHandle, mHistoryValid ? mDecay : 0f);
+
+        mQuad.draw();
+
+        mState.bindFramebuffer(0);
+        GLES20.glViewport(0, 0, viewWidth, viewHeight);
+
+        mResult = target;
+        mHistoryValid = true;
+        return true;
+    }
+
+    /**
+     * Texture with the latest filtered frame, or 0 if nothing has been accumulated.
+     */
+    public int getResultTexture() {
+        return mHistoryValid ? mTextures[mResult] : 0;
+    }
+
+    /**
+     * Start over from the next frame, e.g. after the filter was switched on again.
+     */
+    public void reset() {
+        mHistoryValid = false;
+    }
+
+    /**
+     * Delete the render targets; they are recreated on the next accumulate.
+     */
+    public void release() {
+        if (mFramebuffers[0] != 0) {
+            mState.bindFramebuffer(0);
+            mState.onTextureDeleted(mTextures[0]);
+            mState.onTextureDeleted(mTextures[1]);
+            GLES20.glDeleteFramebuffers(2, mFramebuffers, 0);
+            GLES20.glDeleteTextures(2, mTextures, 0);
+        }
+        forgetTargets();
+    }
+
+    /**
+     * The EGL context was recreated and took the targets and program with it.
+     */
+    public void onContextLost() {
+        forgetTargets();
+        mProgram = 0;
+    }
+
+    private void forgetTargets() {
+        mFramebuffers[0] = mFramebuffers[1] = 0;
+        mTextures[0] = mTextures[1] = 0;
+        mWidth = 0;
+        mHeight = 0;
+        mHistoryValid = false;
+    }
+
+    private boolean ensureTargets(int width, int height) {
+        if (mFramebuffers[0] != 0 && width == mWidth && height == mHeight) {
+            return true;
+        }
+        release();
+
+        GLES20.glGenTextures(2, mTextures, 0);
+        GLES20.glGenFramebuffers(2, mFramebuffers, 0);
+        for (int i = 0; i < 2; i++) {
+            mState.bindTexture(0, mTextures[i]);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
+                    GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+
+            mState.bindFramebuffer(mFramebuffers[i]);
+            GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                    GLES20.GL_TEXTURE_2D, mTextures[i], 0);
+            int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+            if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+                Log.e(TAG, "Temporal framebuffer incomplete: " + status);
+                release();
+                return false;
+            }
+        }
+        mState.bindFramebuffer(0);
+
+        mWidth = width;
+        mHeight = height;
+        mResult = 0;
+        mHistoryValid = false;
+        Log.d(TAG, "Temporal targets created: " + width + "x" + height);
+        return true;
+    }
+}
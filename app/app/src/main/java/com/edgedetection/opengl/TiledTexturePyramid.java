@@ -0,0 +1,409 @@
+package com.edgedetection.opengl;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+import com.edgedetection.metrics.PipelineMetrics;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Displays a single-channel image that may be larger than GL_MAX_TEXTURE_SIZE
+ * by splitting it into square power-of-two tiles, each with its own mipmap
+ * chain. Besides the full-resolution level the image is kept at half,
+ * quarter and smaller resolutions down to a level that fits a single tile,
+ * and each frame is drawn from the coarsest level that still has at least
+ * one level pixel per screen pixel, so a zoomed-out view needs about as many
+ * tiles as a zoomed-in one.
+ *
+ * Tiles are uploaded lazily the first time they become visible, at most
+ * {@code MAX_UPLOADS_PER_FRAME} per frame, with the single-tile level drawn
+ * underneath until they arrive, and evicted again once too many are
+ * resident, so pan and zoom only ever pay for the part of the image on
+ * screen.
+ *
+ * The constructor only builds the coarse levels on the CPU and may run on
+ * any thread; all other methods must be called on the GL thread.
+ */
+public class TiledTexturePyramid {
+
+    private static final String TAG = "TiledTexturePyramid";
+
+    // Upper bound on tile edge, kept small enough that one upload fits in a frame
+    private static final int MAX_TILE_SIZE = 512;
+    // 32 tiles of 512x512 luminance plus mipmaps is roughly 11MB of GPU memory
+    private static final int MAX_RESIDENT_TILES = 32;
+    // Tile uploads per frame; a tile is a 256KB copy plus mipmap generation
+    private static final int MAX_UPLOADS_PER_FRAME = 2;
+
+    /**
+     * The image at 1 / 2^n of its resolution, with its tiles.
+     */
+    private static final class Level {
+        final byte[] pixels;
+        final int width;
+        final int height;
+        final int tilesX;
+        final int tilesY;
+        final int[] textureIds;
+        // Drawn in the current frame, so not to be evicted
+        final boolean[] drawn;
+
+        Level(byte[] pixels, int width, int height, int tileSize) {
+            this.pixels = pixels;
+            this.width = width;
+            this.height = height;
+            tilesX = (width + tileSize - 1) / tileSize;
+            tilesY = (height + tileSize - 1) / tileSize;
+            textureIds = new int[tilesX * tilesY];
+            drawn = new boolean[tilesX * tilesY];
+        }
+    }
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mTileSize;
+    // Finest first; the last one is a single tile
+    private final Level[] mLevels;
+    private int mResidentCount = 0;
+    private int mUploadsThisFrame = 0;
+
+    private final ByteBuffer mTileBuffer;
+    private final byte[] mZeroRow;
+    private final FloatBuffer mQuad;
+
+    private final GlStateCache mState;
+
+    private final AtomicLong mTileUploads = PipelineMetrics.counter("still.tiles.uploaded");
+    private final AtomicLong mTilesDeferred = PipelineMetrics.counter("still.tiles.deferred");
+
+    /**
+     * @param pixels Row-major 8-bit pixels, width * height bytes
+     * @param maxTextureSize Value of GL_MAX_TEXTURE_SIZE for the current context
+     */
+    public TiledTexturePyramid(byte[] pixels, int width, int height, int maxTextureSize, GlStateCache state) {
+        mState = state;
+        mWidth = width;
+        mHeight = height;
+        mTileSize = tileSizeFor(maxTextureSize);
+
+        int levelCount = 1;
+        while (Math.max(width, height) > mTileSize << (levelCount - 1)) {
+            levelCount++;
+        }
+        mLevels = new Level[levelCount];
+        mLevels[0] = new Level(pixels, width, height, mTileSize);
+        for (int i = 1; i < levelCount; i++) {
+            mLevels[i] = downsample(mLevels[i - 1], mTileSize);
+        }
+
+        mTileBuffer = ByteBuffer.allocateDirect(mTileSize * mTileSize);
+        mZeroRow = new byte[mTileSize];
+
+        ByteBuffer bb = ByteBuffer.allocateDirect(4 * 5 * 4);
+        bb.order(ByteOrder.nativeOrder());
+        mQuad = bb.asFloatBuffer();
+
+        Log.d(TAG, "Still " + width + "x" + height + " split into " + mLevels[0].tilesX + "x"
+                + mLevels[0].tilesY + " tiles of " + mTileSize + "px, " + levelCount + " levels");
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Draw the visible tiles with the currently bound program.
+     *
+     * @param scale Screen pixels per image pixel
+     * @param centerX Image x coordinate shown at the centre of the view
+     * @param centerY Image y coordinate shown at the centre of the view
+     */
+    public void draw(int positionHandle, int texCoordHandle, int textureHandle,
+                     int viewWidth, int viewHeight, float scale, float centerX, float centerY) {
+        if (viewWidth <= 0 || viewHeight <= 0 || scale <= 0) {
+            return;
+        }
+
+        GLES20.glUniform1i(textureHandle, 0);
+        // Tile quads change every frame, so they stay client-side arrays
+        mState.unbindMesh();
+        for (Level level : mLevels) {
+            Arrays.fill(level.drawn, false);
+        }
+        mUploadsThisFrame = 0;
+
+        int chosen = chooseLevel(viewWidth, viewHeight, scale, centerX, centerY);
+        int coarsest = mLevels.length - 1;
+        // Upload what the budget allows first, so the coarse backdrop is
+        // only drawn while some tile is still missing
+        if (!uploadVisibleTiles(chosen, viewWidth, viewHeight, scale, centerX, centerY) && chosen != coarsest) {
+            uploadVisibleTiles(coarsest, viewWidth, viewHeight, scale, centerX, centerY);
+            drawLevel(coarsest, positionHandle, texCoordHandle, viewWidth, viewHeight, scale, centerX, centerY);
+        }
+        drawLevel(chosen, positionHandle, texCoordHandle, viewWidth, viewHeight, scale, centerX, centerY);
+
+        evictHiddenTiles();
+    }
+
+    /**
+     * Delete every resident tile texture.
+     */
+    public void release() {
+        for (Level level : mLevels) {
+            for (int i = 0; i < level.textureIds.length; i++) {
+                if (level.textureIds[i] != 0) {
+                    mState.onTextureDeleted(level.textureIds[i]);
+                    GLES20.glDeleteTextures(1, level.textureIds, i);
+                    level.textureIds[i] = 0;
+                }
+            }
+        }
+        mResidentCount = 0;
+    }
+
+    /**
+     * The EGL context was recreated and took the textures with it; forget
+     * them without calling into GL so they are uploaded again on demand.
+     */
+    public void onContextLost() {
+        for (Level level : mLevels) {
+            Arrays.fill(level.textureIds, 0);
+        }
+        mResidentCount = 0;
+    }
+
+    /**
+     * The coarsest level with at least one level pixel per screen pixel,
+     * made coarser still if its visible tiles would not fit the resident
+     * budget next to the single-tile level.
+     */
+    private int chooseLevel(int viewWidth, int viewHeight, float scale, float centerX, float centerY) {
+        int level = 0;
+        while (level < mLevels.length - 1 && scale * (2 << level) <= 1f) {
+            level++;
+        }
+        while (level < mLevels.length - 1
+                && visibleTileCount(level, viewWidth, viewHeight, scale, centerX, centerY) > MAX_RESIDENT_TILES - 1) {
+            level++;
+        }
+        return level;
+    }
+
+    private int visibleTileCount(int levelIndex, int viewWidth, int viewHeight, float scale,
+                                 float centerX, float centerY) {
+        Level level = mLevels[levelIndex];
+        int count = 0;
+        for (int ty = 0; ty < level.tilesY; ty++) {
+            for (int tx = 0; tx < level.tilesX; tx++) {
+                if (isTileVisible(levelIndex, tx, ty, viewWidth, viewHeight, scale, centerX, centerY)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return True if every visible tile of the level is resident
+     */
+    private boolean uploadVisibleTiles(int levelIndex, int viewWidth, int viewHeight, float scale,
+                                       float centerX, float centerY) {
+        Level level = mLevels[levelIndex];
+        boolean complete = true;
+        for (int ty = 0; ty < level.tilesY; ty++) {
+            for (int tx = 0; tx < level.tilesX; tx++) {
+                int index = ty * level.tilesX + tx;
+                if (level.textureIds[index] == 0
+                        && isTileVisible(levelIndex, tx, ty, viewWidth, viewHeight, scale, centerX, centerY)
+                        && !uploadTile(level, tx, ty)) {
+                    complete = false;
+                }
+            }
+        }
+        return complete;
+    }
+
+    private void drawLevel(int levelIndex, int positionHandle, int texCoordHandle,
+                           int viewWidth, int viewHeight, float scale, float centerX, float centerY) {
+        Level level = mLevels[levelIndex];
+        // Level pixels cover this many image pixels
+        int factor = 1 << levelIndex;
+        for (int ty = 0; ty < level.tilesY; ty++) {
+            for (int tx = 0; tx < level.tilesX; tx++) {
+                int index = ty * level.tilesX + tx;
+                if (level.textureIds[index] == 0
+                        || !isTileVisible(levelIndex, tx, ty, viewWidth, viewHeight, scale, centerX, centerY)) {
+                    continue;
+                }
+                level.drawn[index] = true;
+
+                int x0 = tx * mTileSize;
+                int y0 = ty * mTileSize;
+                int x1 = Math.min(x0 + mTileSize, level.width);
+                int y1 = Math.min(y0 + mTileSize, level.height);
+
+                // Tile bounds in screen pixels, y pointing down
+                float sx0 = viewWidth / 2f + (x0 * factor - centerX) * scale;
+                float sx1 = viewWidth / 2f + (x1 * factor - centerX) * scale;
+                float sy0 = viewHeight / 2f + (y0 * factor - centerY) * scale;
+                float sy1 = viewHeight / 2f + (y1 * factor - centerY) * scale;
+
+                float nx0 = sx0 / viewWidth * 2f - 1f;
+                float nx1 = sx1 / viewWidth * 2f - 1f;
+                float ny0 = 1f - sy0 / viewHeight * 2f;
+                float ny1 = 1f - sy1 / viewHeight * 2f;
+                float u1 = (x1 - x0) / (float) mTileSize;
+                float v1 = (y1 - y0) / (float) mTileSize;
+
+                mQuad.position(0);
+                mQuad.put(nx0).put(ny1).put(0f).put(0f).put(v1);   // Bottom left
+                mQuad.put(nx1).put(ny1).put(0f).put(u1).put(v1);   // Bottom right
+                mQuad.put(nx0).put(ny0).put(0f).put(0f).put(0f);   // Top left
+                mQuad.put(nx1).put(ny0).put(0f).put(u1).put(0f);   // Top right
+
+                mQuad.position(0);
+                GLES20.glVertexAttribPointer(positionHandle, 3, GLES20.GL_FLOAT, false, 5 * 4, mQuad);
+                GLES20.glEnableVertexAttribArray(positionHandle);
+                mQuad.position(3);
+                GLES20.glVertexAttribPointer(texCoordHandle, 2, GLES20.GL_FLOAT, false, 5 * 4, mQuad);
+                GLES20.glEnableVertexAttribArray(texCoordHandle);
+
+                mState.bindTexture(0, level.textureIds[index]);
+                GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+            }
+        }
+    }
+
+    private boolean isTileVisible(int levelIndex, int tx, int ty, int viewWidth, int viewHeight,
+                                  float scale, float centerX, float centerY) {
+        Level level = mLevels[levelIndex];
+        int factor = 1 << levelIndex;
+        int x0 = tx * mTileSize * factor;
+        int y0 = ty * mTileSize * factor;
+        int x1 = Math.min((tx + 1) * mTileSize, level.width) * factor;
+        int y1 = Math.min((ty + 1) * mTileSize, level.height) * factor;
+        float sx0 = viewWidth / 2f + (x0 - centerX) * scale;
+        float sx1 = viewWidth / 2f + (x1 - centerX) * scale;
+        float sy0 = viewHeight / 2f + (y0 - centerY) * scale;
+        float sy1 = viewHeight / 2f + (y1 - centerY) * scale;
+        return sx1 >= 0 && sx0 <= viewWidth && sy1 >= 0 && sy0 <= viewHeight;
+    }
+
+    /**
+     * Upload one tile, unless this frame's upload budget is spent. The
+     * single-tile level is exempt, since it stands in for everything else.
+     */
+    private boolean uploadTile(Level level, int tx, int ty) {
+        if (level != mLevels[mLevels.length - 1] && mUploadsThisFrame >= MAX_UPLOADS_PER_FRAME) {
+            mTilesDeferred.incrementAndGet();
+            return false;
+        }
+        mUploadsThisFrame++;
+
+        int index = ty * level.tilesX + tx;
+        int x0 = tx * mTileSize;
+        int y0 = ty * mTileSize;
+        int width = Math.min(x0 + mTileSize, level.width) - x0;
+        int height = Math.min(y0 + mTileSize, level.height) - y0;
+
+        // Copy the tile out of the level, padding partial tiles with black
+        mTileBuffer.clear();
+        for (int row = 0; row < mTileSize; row++) {
+            if (row < height) {
+                mTileBuffer.put(level.pixels, (y0 + row) * level.width + x0, width);
+                mTileBuffer.put(mZeroRow, 0, mTileSize - width);
+            } else {
+                mTileBuffer.put(mZeroRow);
+            }
+        }
+        mTileBuffer.position(0);
+
+        int[] textures = new int[1];
+        GLES20.glGenTextures(1, textures, 0);
+        mState.bindTexture(0, textures[0]);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR_MIPMAP_LINEAR);
+        // Nearest when magnified so individual edge pixels stay crisp
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_LUMINANCE, mTileSize, mTileSize, 0,
+                GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, mTileBuffer);
+        GLES20.glGenerateMipmap(GLES20.GL_TEXTURE_2D);
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 4);
+
+        int error = GLES20.glGetError();
+        if (error != GLES20.GL_NO_ERROR) {
+            Log.e(TAG, "OpenGL error uploading tile " + index + ": " + error);
+            mState.onTextureDeleted(textures[0]);
+            GLES20.glDeleteTextures(1, textures, 0);
+            return false;
+        }
+
+        level.textureIds[index] = textures[0];
+        mResidentCount++;
+        mTileUploads.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Delete tiles not drawn this frame while over budget. The single-tile
+     * level is kept, it is the stand-in while tiles upload.
+     */
+    private void evictHiddenTiles() {
+        for (int l = 0; l < mLevels.length - 1 && mResidentCount > MAX_RESIDENT_TILES; l++) {
+            Level level = mLevels[l];
+            for (int i = 0; i < level.textureIds.length && mResidentCount > MAX_RESIDENT_TILES; i++) {
+                if (level.textureIds[i] != 0 && !level.drawn[i]) {
+                    mState.onTextureDeleted(level.textureIds[i]);
+                    GLES20.glDeleteTextures(1, level.textureIds, i);
+                    level.textureIds[i] = 0;
+                    mResidentCount--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Half the resolution, rounded up. Each pixel keeps the brightest of its
+     * 2x2 block: stills are mostly one-pixel edges, which an average would
+     * fade to a quarter of their brightness.
+     */
+    private static Level downsample(Level source, int tileSize) {
+        int width = (source.width + 1) / 2;
+        int height = (source.height + 1) / 2;
+        byte[] pixels = new byte[width * height];
+        for (int y = 0; y < height; y++) {
+            int row0 = 2 * y * source.width;
+            int row1 = Math.min(2 * y + 1, source.height - 1) * source.width;
+            for (int x = 0; x < width; x++) {
+                int x0 = 2 * x;
+                int x1 = Math.min(x0 + 1, source.width - 1);
+                int max = Math.max(
+                        Math.max(source.pixels[row0 + x0] & 0xFF, source.pixels[row0 + x1] & 0xFF),
+                        Math.max(source.pixels[row1 + x0] & 0xFF, source.pixels[row1 + x1] & 0xFF));
+                pixels[y * width + x] = (byte) max;
+            }
+        }
+        return new Level(pixels, width, height, tileSize);
+    }
+
+    private static int tileSizeFor(int maxTextureSize) {
+        // Power of two so every tile can be mipmapped on GLES2
+        int size = MAX_TILE_SIZE;
+        while (size > 64 && size > maxTextureSize) {
+            size >>= 1;
+        }
+        return size;
+    }
+}
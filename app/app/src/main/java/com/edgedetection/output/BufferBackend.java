@@ -0,0 +1,38 @@
+package com.edgedetection.output;
+
+/**
+ * Memory and GPU fences behind an {@link EdgeBufferQueue}.
+ *
+ * The queue decides who owns a buffer at any time; the backend only
+ * allocates buffers and tells whether the GPU has finished with one. Handles
+ * are opaque and never 0.
+ */
+public interface BufferBackend {
+
+    /**
+     * @return Buffer handle, or 0 if the buffer could not be allocated
+     */
+    long allocate(int width, int height);
+
+    /**
+     * Free a buffer the queue no longer hands out. May be called on any thread.
+     */
+    void free(long buffer);
+
+    /**
+     * Insert a fence after every GPU command issued so far. Called on the GL thread.
+     *
+     * @return Fence handle, or 0 if the commands already completed
+     */
+    long createFence();
+
+    /**
+     * Called on the GL thread, never blocks.
+     */
+    boolean isFenceSignaled(long fence);
+
+    /**
+     * Called on the GL thread.
+     */
+    void deleteFence(long fence);
+}
@@ -0,0 +1,76 @@
+package com.edgedetection.output;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Heap-backed stand-in for {@link HardwareBufferBackend} that needs neither
+ * a device nor a GL context, so {@link EdgeBufferQueue} can be exercised on
+ * a plain JVM. Fences stay unsignaled until {@link #signal(long)} or
+ * {@link #signalAll()} is called, which lets a caller play the GPU.
+ */
+public class CpuBufferBackend implements BufferBackend {
+
+    private final Map<Long, byte[]> mBuffers = new HashMap<>();
+    private final Set<Long> mPendingFences = new HashSet<>();
+    private long mNextHandle = 1;
+    private long mNextFence = 1;
+
+    @Override
+    public synchronized long allocate(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            return 0;
+        }
+        long handle = mNextHandle++;
+        mBuffers.put(handle, new byte[width * height * 4]);
+        return handle;
+    }
+
+    @Override
+    public synchronized void free(long buffer) {
+        if (mBuffers.remove(buffer) == null) {
+            throw new IllegalStateException("Buffer " + buffer + " freed twice or never allocated");
+        }
+    }
+
+    @Override
+    public synchronized long createFence() {
+        long fence = mNextFence++;
+        mPendingFences.add(fence);
+        return fence;
+    }
+
+    @Override
+    public synchronized boolean isFenceSignaled(long fence) {
+        return !mPendingFences.contains(fence);
+    }
+
+    @Override
+    public synchronized void deleteFence(long fence) {
+        mPendingFences.remove(fence);
+    }
+
+    /**
+     * Pixels of a live buffer, RGBA with no row padding.
+     */
+    public synchronized byte[] getPixels(long buffer) {
+        return mBuffers.get(buffer);
+    }
+
+    public synchronized void signal(long fence) {
+        mPendingFences.remove(fence);
+    }
+
+    /**
+     * Complete all outstanding GPU work.
+     */
+    public synchronized void signalAll() {
+        mPendingFences.clear();
+    }
+
+    public synchronized int getLiveBufferCount() {
+        return mBuffers.size();
+    }
+}
@@ -0,0 +1,278 @@
+package com.edgedetection.output;
+
+import android.util.Log;
+
+import com.edgedetection.metrics.PipelineMetrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands output buffers back and forth between the thread that renders edges
+ * into them and the GL thread that samples them.
+ *
+ * Every slot is owned by exactly one side at a time:
+ * <pre>
+ * FREE -> WRITING (dequeue) -> READY (queue) -> IN_USE (acquire)
+ *      -> RELEASING (next acquire, fenced) -> FREE (fence signaled)
+ * </pre>
+ * A slot only becomes writable again once the GPU fence inserted after its
+ * last draw has signaled, so the producer never overwrites pixels the GPU is
+ * still reading and never has to wait for the GPU either. If the GL thread
+ * falls behind, an unconsumed READY slot is overwritten by the next frame.
+ */
+public class EdgeBufferQueue {
+
+    private static final String TAG = "EdgeBufferQueue";
+
+    public static final int DEFAULT_SLOT_COUNT = 3;
+
+    private enum State { FREE, WRITING, READY, IN_USE, RELEASING }
+
+    /**
+     * One buffer and its bookkeeping. Only the owner of a slot may touch its buffer.
+     */
+    public static final class Slot {
+        private final int mIndex;
+        private State mState = State.FREE;
+        private long mBuffer = 0;
+        private int mWidth = 0;
+        private int mHeight = 0;
+        // Incremented whenever mBuffer is replaced
+        private int mGeneration = 0;
+        private long mFence = 0;
+        private long mCaptureTimeNs = 0;
+
+        private Slot(int index) {
+            mIndex = index;
+        }
+
+        public int getIndex() {
+            return mIndex;
+        }
+
+        public long getBuffer() {
+            return mBuffer;
+        }
+
+        public int getWidth() {
+            return mWidth;
+        }
+
+        public int getHeight() {
+            return mHeight;
+        }
+
+        /**
+         * Changes whenever the slot's buffer was reallocated, e.g. after a
+         * frame size change, so GL objects made from the old one can be dropped.
+         */
+        public int getGeneration() {
+            return mGeneration;
+        }
+
+        public long getCaptureTimeNs() {
+            return mCaptureTimeNs;
+        }
+    }
+
+    private final BufferBackend mBackend;
+    private final Slot[] mSlots;
+    private Slot mReady;
+    private Slot mInUse;
+    private boolean mClosed = false;
+
+    private final AtomicLong mAllocated = PipelineMetrics.counter("output.buffers.allocated");
+    private final AtomicLong mSuperseded = PipelineMetrics.counter("output.frames.superseded");
+    private final AtomicLong mUnavailable = PipelineMetrics.counter("output.frames.unavailable");
+
+    public EdgeBufferQueue(BufferBackend backend, int slotCount) {
+        mBackend = backend;
+        mSlots = new Slot[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            mSlots[i] = new Slot(i);
+        }
+    }
+
+    /**
+     * Producer: take a slot to write the next frame into, allocating or
+     * resizing its buffer as needed.
+     *
+     * @return Slot in WRITING state, or null if every slot is busy and the
+     *         frame has to be skipped
+     */
+    public synchronized Slot dequeue(int width, int height) {
+        if (mClosed) {
+            return null;
+        }
+        Slot slot = findSlot(State.FREE);
+        if (slot == null && mReady != null) {
+            // The GL thread has not picked up the last frame; replace it
+            slot = mReady;
+            mReady = null;
+            mSuperseded.incrementAndGet();
+        }
+        if (slot == null) {
+            mUnavailable.incrementAndGet();
+            return null;
+        }
+
+        if (slot.mBuffer == 0 || slot.mWidth != width || slot.mHeight != height) {
+            if (slot.mBuffer != 0) {
+                mBackend.free(slot.mBuffer);
+                slot.mBuffer = 0;
+            }
+            long buffer = mBackend.allocate(width, height);
+            if (buffer == 0) {
+                Log.e(TAG, "Could not allocate " + width + "x" + height + " output buffer");
+                slot.mState = State.FREE;
+                return null;
+            }
+            slot.mBuffer = buffer;
+            slot.mWidth = width;
+            slot.mHeight = height;
+            slot.mGeneration++;
+            mAllocated.incrementAndGet();
+        }
+        slot.mState = State.WRITING;
+        return slot;
+    }
+
+    /**
+     * Producer: the frame is complete and may be shown.
+     */
+    public synchronized void queue(Slot slot, long captureTimeNs) {
+        checkState(slot, State.WRITING);
+        if (mClosed) {
+            freeSlot(slot);
+            return;
+        }
+        if (mReady != null) {
+            mReady.mState = State.FREE;
+            mSuperseded.incrementAndGet();
+        }
+        slot.mCaptureTimeNs = captureTimeNs;
+        slot.mState = State.READY;
+        mReady = slot;
+    }
+
+    /**
+     * Producer: nothing was written, give the slot back.
+     */
+    public synchronized void cancel(Slot slot) {
+        checkState(slot, State.WRITING);
+        if (mClosed) {
+            freeSlot(slot);
+            return;
+        }
+        slot.mState = State.FREE;
+    }
+
+    /**
+     * Consumer, GL thread: take the newest complete frame. The slot shown
+     * until now is fenced and returns to the producer once the GPU is done
+     * with it.
+     *
+     * @return Newly acquired slot, or null if no new frame arrived
+     */
+    public synchronized Slot acquire() {
+        reclaim();
+        if (mReady == null || mClosed) {
+            return null;
+        }
+        if (mInUse != null) {
+            long fence = mBackend.createFence();
+            if (fence == 0) {
+                mInUse.mState = State.FREE;
+            } else {
+                mInUse.mFence = fence;
+                mInUse.mState = State.RELEASING;
+            }
+        }
+        mInUse = mReady;
+        mReady = null;
+        mInUse.mState = State.IN_USE;
+        return mInUse;
+    }
+
+    /**
+     * Consumer, GL thread: the slot currently shown, or null.
+     */
+    public synchronized Slot getCurrent() {
+        return mInUse;
+    }
+
+    /**
+     * Consumer, GL thread: return slots whose fences have signaled to the producer.
+     */
+    public synchronized void reclaim() {
+        for (Slot slot : mSlots) {
+            if (slot.mState == State.RELEASING && mBackend.isFenceSignaled(slot.mFence)) {
+                mBackend.deleteFence(slot.mFence);
+                slot.mFence = 0;
+                slot.mState = State.FREE;
+            }
+        }
+    }
+
+    /**
+     * The EGL context was recreated; its fences and pending GPU work are gone.
+     */
+    public synchronized void onContextLost() {
+        for (Slot slot : mSlots) {
+            if (slot.mState == State.RELEASING) {
+                slot.mFence = 0;
+                slot.mState = State.FREE;
+            }
+        }
+    }
+
+    /**
+     * GL thread: free every buffer. A slot still being written is freed when
+     * the producer queues or cancels it.
+     */
+    public synchronized void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        for (Slot slot : mSlots) {
+            if (slot.mState == State.RELEASING) {
+                mBackend.deleteFence(slot.mFence);
+                slot.mFence = 0;
+            }
+            if (slot.mState != State.WRITING) {
+                freeSlot(slot);
+            }
+        }
+        mReady = null;
+        mInUse = null;
+    }
+
+    public synchronized boolean isClosed() {
+        return mClosed;
+    }
+
+    private Slot findSlot(State state) {
+        for (Slot slot : mSlots) {
+            if (slot.mState == state) {
+                return slot;
+            }
+        }
+        return null;
+    }
+
+    private void freeSlot(Slot slot) {
+        if (slot.mBuffer != 0) {
+            mBackend.free(slot.mBuffer);
+            slot.mBuffer = 0;
+            slot.mGeneration++;
+        }
+        slot.mState = State.FREE;
+    }
+
+    private static void checkState(Slot slot, State expected) {
+        if (slot.mState != expected) {
+            throw new IllegalStateException("Slot " + slot.mIndex + " is " + slot.mState + ", expected " + expected);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.edgedetection.output;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+import android.util.Log;
+
+import com.edgedetection.EdgeDetector;
+
+/**
+ * AHardwareBuffers that native code writes and the GPU samples through an
+ * EGLImage, with GL sync objects as fences. Fences need a GLES3 context;
+ * without one {@link #createFence()} waits for the GPU instead.
+ */
+public class HardwareBufferBackend implements BufferBackend {
+
+    private static final String TAG = "HardwareBufferBackend";
+
+    private final boolean mGles3;
+
+    /**
+     * @param gles3 Whether the GL context supports sync objects
+     */
+    public HardwareBufferBackend(boolean gles3) {
+        mGles3 = gles3;
+    }
+
+    /**
+     * Whether hardware buffers can be allocated at all on this device.
+     */
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+                && EdgeDetector.isLibraryLoaded()
+                && EdgeDetector.isHardwareBufferSupported();
+    }
+
+    @Override
+    public long allocate(int width, int height) {
+        return EdgeDetector.allocateHardwareBuffer(width, height);
+    }
+
+    @Override
+    public void free(long buffer) {
+        EdgeDetector.releaseHardwareBuffer(buffer);
+    }
+
+    @Override
+    public long createFence() {
+        if (!mGles3) {
+            GLES20.glFinish();
+            return 0;
+        }
+        long fence = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        // Make sure the fence reaches the GPU, or polling it could never succeed
+        GLES20.glFlush();
+        if (fence == 0) {
+            Log.w(TAG, "glFenceSync failed, waiting for the GPU instead");
+            GLES20.glFinish();
+        }
+        return fence;
+    }
+
+    @Override
+    public boolean isFenceSignaled(long fence) {
+        int result = GLES30.glClientWaitSync(fence, 0, 0);
+        if (result == GLES30.GL_WAIT_FAILED) {
+            // A fence that cannot be waited on would hold its buffer forever
+            Log.w(TAG, "glClientWaitSync failed: " + GLES20.glGetError());
+            return true;
+        }
+        return result != GLES30.GL_TIMEOUT_EXPIRED;
+    }
+
+    @Override
+    public void deleteFence(long fence) {
+        GLES30.glDeleteSync(fence);
+    }
+}
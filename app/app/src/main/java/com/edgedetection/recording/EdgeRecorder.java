@@ -0,0 +1,342 @@
+package com.edgedetection.recording;
+
+import android.util.Log;
+
+import com.edgedetection.EdgeBitmap;
+import com.edgedetection.metrics.LatencyHistogram;
+import com.edgedetection.metrics.PipelineMetrics;
+import com.edgedetection.stream.EdgeMapEncoder;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records packed edge maps to disk without blocking the camera thread.
+ *
+ * {@link #record} copies the frame into one of a fixed ring of recycled
+ * bitmaps and hands it to a writer thread, which run-length encodes it with
+ * {@link EdgeMapEncoder} and appends it to the current segment file through
+ * a memory mapping. When every bitmap in the ring is waiting to be written,
+ * or the disk is too full for another segment, the frame is dropped instead.
+ *
+ * A recording is a directory of segments and an index, little-endian:
+ * <pre>
+ * segment-NNNNN.edges   'E' 'R' 'E' 'C', uint32 version, then records of
+ *                       uint32 length, int64 capture time, encoded frame
+ * index.bin             'E' 'I' 'D' 'X', uint32 version, then per frame
+ *                       int64 frame id, int64 capture time, uint32 segment,
+ *                       uint32 offset of the encoded frame, uint32 length
+ * </pre>
+ * Segments are mapped at their full size and truncated to what was written
+ * when they are finished; the index only lists finished records, so a
+ * recording cut short by a crash is readable up to the last index flush.
+ * {@link RecordingReader} seeks through a recording by the index.
+ *
+ * Records {@code recorder.frames.written}, {@code recorder.frames.dropped},
+ * {@code recorder.bytes.written} and {@code recorder.queue.depth}, and the
+ * writer's {@code recorder.encode} and {@code recorder.write} times.
+ */
+public class EdgeRecorder implements Closeable {
+
+    private static final String TAG = "EdgeRecorder";
+
+    public static final int VERSION = 1;
+    public static final int FILE_HEADER_SIZE = 8;
+    public static final int RECORD_HEADER_SIZE = 12;
+    public static final int INDEX_ENTRY_SIZE = 28;
+    public static final String INDEX_FILE = "index.bin";
+
+    public static final int DEFAULT_RING_SIZE = 8;
+    public static final long DEFAULT_SEGMENT_BYTES = 32L * 1024 * 1024;
+    // Free space left to the rest of the system when starting a segment
+    private static final long MIN_FREE_BYTES = 64L * 1024 * 1024;
+    // Index entries buffered before they are written out
+    private static final int INDEX_BATCH = 64;
+    private static final long CLOSE_TIMEOUT_MS = 2000;
+
+    private static final class Slot {
+        EdgeBitmap bitmap;
+        long frameId;
+        long captureTimeNs;
+    }
+
+    private final File mDirectory;
+    private final long mSegmentBytes;
+    private final ArrayBlockingQueue<Slot> mFree;
+    private final ArrayBlockingQueue<Slot> mPending;
+    private final Thread mWriter;
+    // Held while checking mClosing and queueing, so close() cannot slip in
+    // between and leave a frame behind the writer's last look at the queue
+    private final Object mCloseLock = new Object();
+    private volatile boolean mClosing = false;
+    private volatile boolean mFailed = false;
+    private final long mStartNs = System.nanoTime();
+
+    // Writer thread only
+    private final EdgeMapEncoder mEncoder = new EdgeMapEncoder();
+    private final ByteBuffer mIndexBatch =
+            ByteBuffer.allocate(INDEX_BATCH * INDEX_ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private FileChannel mIndexChannel;
+    private RandomAccessFile mSegmentFile;
+    private MappedByteBuffer mSegment;
+    private int mSegmentNumber = -1;
+
+    private final AtomicLong mFramesWritten = PipelineMetrics.counter("recorder.frames.written");
+    private final AtomicLong mFramesDropped = PipelineMetrics.counter("recorder.frames.dropped");
+    private final AtomicLong mBytesWritten = PipelineMetrics.counter("recorder.bytes.written");
+    private final AtomicLong mQueueDepth = PipelineMetrics.counter("recorder.queue.depth");
+    private final LatencyHistogram mEncodeTime = PipelineMetrics.histogram("recorder.encode");
+    private final LatencyHistogram mWriteTime = PipelineMetrics.histogram("recorder.write");
+
+    public EdgeRecorder(File directory) throws IOException {
+        this(directory, DEFAULT_RING_SIZE, DEFAULT_SEGMENT_BYTES);
+    }
+
+    /**
+     * Create the recording directory and its index and start the writer.
+     *
+     * @param ringSize Frames that may wait for the writer before new ones are dropped
+     * @param segmentBytes Size each segment file is mapped at
+     */
+    public EdgeRecorder(File directory, int ringSize, long segmentBytes) throws IOException {
+        if (ringSize <= 0 || segmentBytes <= FILE_HEADER_SIZE + RECORD_HEADER_SIZE
+                || segmentBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid ring size " + ringSize + " or segment size " + segmentBytes);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        mDirectory = directory;
+        mSegmentBytes = segmentBytes;
+
+        mIndexChannel = new FileOutputStream(new File(directory, INDEX_FILE)).getChannel();
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.put((byte) 'E').put((byte) 'I').put((byte) 'D').put((byte) 'X').putInt(VERSION);
+        header.flip();
+        mIndexChannel.write(header);
+
+        mFree = new ArrayBlockingQueue<>(ringSize);
+        mPending = new ArrayBlockingQueue<>(ringSize);
+        for (int i = 0; i < ringSize; i++) {
+            mFree.add(new Slot());
+        }
+        mQueueDepth.set(0);
+
+        mWriter = new Thread(this::runWriter, "EdgeRecorder");
+        mWriter.start();
+    }
+
+    public static String segmentName(int segment) {
+        return String.format(Locale.US, "segment-%05d.edges", segment);
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * Queue a frame for writing. Only copies the bitmap, so it is cheap
+     * enough for the camera thread.
+     *
+     * @return False if the frame was dropped
+     */
+    public boolean record(EdgeBitmap bitmap, long frameId, long captureTimeNs) {
+        if (mClosing || mFailed) {
+            return false;
+        }
+        Slot slot = mFree.poll();
+        if (slot == null) {
+            mFramesDropped.incrementAndGet();
+            return false;
+        }
+        if (slot.bitmap == null || !slot.bitmap.sameSize(bitmap)) {
+            slot.bitmap = new EdgeBitmap(bitmap.getWidth(), bitmap.getHeight());
+        }
+        slot.bitmap.copyFrom(bitmap);
+        slot.frameId = frameId;
+        slot.captureTimeNs = captureTimeNs;
+        synchronized (mCloseLock) {
+            if (!mClosing) {
+                // Never full, there are only as many slots as it holds
+                mPending.offer(slot);
+                mQueueDepth.set(mPending.size());
+                return true;
+            }
+        }
+        mFree.offer(slot);
+        return false;
+    }
+
+    /**
+     * Frames waiting for the writer.
+     */
+    public int getQueueDepth() {
+        return mPending.size();
+    }
+
+    /**
+     * Average encoded bytes written per second since the recorder started.
+     */
+    public double getWriteBytesPerSecond() {
+        double seconds = (System.nanoTime() - mStartNs) / 1_000_000_000.0;
+        return seconds > 0 ? mBytesWritten.get() / seconds : 0;
+    }
+
+    /**
+     * Write what is queued, finish the current segment and the index, and
+     * stop the writer. Frames recorded afterwards are dropped.
+     */
+    @Override
+    public void close() {
+        synchronized (mCloseLock) {
+            mClosing = true;
+        }
+        try {
+            mWriter.join(CLOSE_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (mWriter.isAlive()) {
+            Log.w(TAG, "Writer still draining after " + CLOSE_TIMEOUT_MS + " ms");
+        }
+    }
+
+    private void runWriter() {
+        try {
+            while (!mClosing || !mPending.isEmpty()) {
+                Slot slot = mPending.poll(100, TimeUnit.MILLISECONDS);
+                if (slot == null) {
+                    continue;
+                }
+                mQueueDepth.set(mPending.size());
+                try {
+                    if (!mFailed) {
+                        write(slot);
+                    } else {
+                        mFramesDropped.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Error writing recording, dropping further frames: " + e.getMessage(), e);
+                    mFailed = true;
+                    mFramesDropped.incrementAndGet();
+                } finally {
+                    mFree.offer(slot);
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Writer interrupted");
+        } finally {
+            try {
+                finishSegment();
+                flushIndex();
+                mIndexChannel.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error finishing recording: " + e.getMessage(), e);
+            }
+            Log.i(TAG, String.format(Locale.US, "Recorded %d frames, %d bytes to %s, %d dropped",
+                    mFramesWritten.get(), mBytesWritten.get(), mDirectory, mFramesDropped.get()));
+        }
+    }
+
+    private void write(Slot slot) throws IOException {
+        long encodeStart = System.nanoTime();
+        int length = mEncoder.encode(slot.bitmap, (int) slot.frameId);
+        long writeStart = System.nanoTime();
+        mEncodeTime.record(writeStart - encodeStart);
+
+        int recordSize = RECORD_HEADER_SIZE + length;
+        if (mSegment == null || mSegment.remaining() < recordSize) {
+            if (!startSegment(recordSize)) {
+                mFramesDropped.incrementAndGet();
+                return;
+            }
+        }
+
+        int offset = mSegment.position() + RECORD_HEADER_SIZE;
+        mSegment.putInt(length);
+        mSegment.putLong(slot.captureTimeNs);
+        mSegment.put(mEncoder.getBuffer(), 0, length);
+
+        mIndexBatch.putLong(slot.frameId);
+        mIndexBatch.putLong(slot.captureTimeNs);
+        mIndexBatch.putInt(mSegmentNumber);
+        mIndexBatch.putInt(offset);
+        mIndexBatch.putInt(length);
+        if (!mIndexBatch.hasRemaining()) {
+            flushIndex();
+        }
+
+        mWriteTime.record(System.nanoTime() - writeStart);
+        mFramesWritten.incrementAndGet();
+        mBytesWritten.addAndGet(recordSize);
+    }
+
+    /**
+     * Finish the current segment and map the next one, unless the disk
+     * would be left with less than {@code MIN_FREE_BYTES}. Pages of a mapping
+     * get their blocks when first written, so running out of space halfway
+     * through a segment would fault instead of throwing; checking for room
+     * for the whole segment up front avoids that.
+     *
+     * @return False if the disk is too full; the frame is dropped and the
+     *         check repeated for the next one
+     */
+    private boolean startSegment(int recordSize) throws IOException {
+        finishSegment();
+
+        long size = Math.max(mSegmentBytes, (long) FILE_HEADER_SIZE + recordSize);
+        if (mDirectory.getUsableSpace() < size + MIN_FREE_BYTES) {
+            return false;
+        }
+
+        mSegmentNumber++;
+        mSegmentFile = new RandomAccessFile(new File(mDirectory, segmentName(mSegmentNumber)), "rw");
+        mSegmentFile.setLength(size);
+        mSegment = mSegmentFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        mSegment.order(ByteOrder.LITTLE_ENDIAN);
+        mSegment.put((byte) 'E').put((byte) 'R').put((byte) 'E').put((byte) 'C').putInt(VERSION);
+        return true;
+    }
+
+    /**
+     * Flush the mapped segment, cut the file to the bytes used and write the
+     * index entries pointing into it.
+     */
+    private void finishSegment() throws IOException {
+        if (mSegment == null) {
+            return;
+        }
+        int used = mSegment.position();
+        mSegment.force();
+        mSegment = null;
+        try {
+            mSegmentFile.setLength(used);
+        } catch (IOException e) {
+            // Some platforms refuse while the mapping is still alive; the
+            // reader only goes by the index, so the tail is just wasted space
+            Log.w(TAG, "Could not truncate " + segmentName(mSegmentNumber) + ": " + e.getMessage());
+        }
+        mSegmentFile.close();
+        mSegmentFile = null;
+        flushIndex();
+    }
+
+    private void flushIndex() throws IOException {
+        mIndexBatch.flip();
+        while (mIndexBatch.hasRemaining()) {
+            mIndexChannel.write(mIndexBatch);
+        }
+        mIndexBatch.clear();
+    }
+}
@@ -0,0 +1,144 @@
+package com.edgedetection.recording;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Random access to a recording made by {@link EdgeRecorder}.
+ *
+ * The index is loaded up front and segments are mapped read-only the first
+ * time a frame in them is read, so seeking to any frame costs a binary
+ * search and a copy. Frames come back in {@link com.edgedetection.stream.EdgeMapEncoder}
+ * format, to be expanded with {@code EdgeMapEncoder.decode}.
+ *
+ * Not thread-safe.
+ */
+public class RecordingReader implements Closeable {
+
+    private final File mDirectory;
+    private final long[] mFrameIds;
+    private final long[] mCaptureTimes;
+    private final int[] mSegments;
+    private final int[] mOffsets;
+    private final int[] mLengths;
+    private final RandomAccessFile[] mSegmentFiles;
+    private final MappedByteBuffer[] mSegmentMaps;
+
+    public RecordingReader(File directory) throws IOException {
+        mDirectory = directory;
+        ByteBuffer index;
+        try (RandomAccessFile file = new RandomAccessFile(new File(directory, EdgeRecorder.INDEX_FILE), "r")) {
+            index = ByteBuffer.allocate((int) file.length()).order(ByteOrder.LITTLE_ENDIAN);
+            file.readFully(index.array());
+        }
+        if (index.remaining() < EdgeRecorder.FILE_HEADER_SIZE
+                || index.get() != 'E' || index.get() != 'I' || index.get() != 'D' || index.get() != 'X') {
+            throw new IOException("Not a recording index in " + directory);
+        }
+        int version = index.getInt();
+        if (version != EdgeRecorder.VERSION) {
+            throw new IOException("Unsupported recording version " + version);
+        }
+
+        // A partly written last entry is ignored
+        int count = index.remaining() / EdgeRecorder.INDEX_ENTRY_SIZE;
+        mFrameIds = new long[count];
+        mCaptureTimes = new long[count];
+        mSegments = new int[count];
+        mOffsets = new int[count];
+        mLengths = new int[count];
+        int segmentCount = 0;
+        for (int i = 0; i < count; i++) {
+            mFrameIds[i] = index.getLong();
+            mCaptureTimes[i] = index.getLong();
+            mSegments[i] = index.getInt();
+            mOffsets[i] = index.getInt();
+            mLengths[i] = index.getInt();
+            segmentCount = Math.max(segmentCount, mSegments[i] + 1);
+        }
+        mSegmentFiles = new RandomAccessFile[segmentCount];
+        mSegmentMaps = new MappedByteBuffer[segmentCount];
+    }
+
+    public int getFrameCount() {
+        return mFrameIds.length;
+    }
+
+    public long getFrameId(int frame) {
+        return mFrameIds[frame];
+    }
+
+    public long getCaptureTimeNs(int frame) {
+        return mCaptureTimes[frame];
+    }
+
+    /**
+     * Encoded size of a frame, the buffer size {@link #readFrame} needs.
+     */
+    public int getFrameLength(int frame) {
+        return mLengths[frame];
+    }
+
+    /**
+     * The last frame captured at or before the given time, or 0 if the time
+     * precedes the recording.
+     */
+    public int findFrame(long captureTimeNs) {
+        int low = 0;
+        int high = mCaptureTimes.length - 1;
+        int found = 0;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (mCaptureTimes[mid] <= captureTimeNs) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Copy a frame's encoded edge map into the buffer.
+     *
+     * @return Number of bytes copied
+     */
+    public int readFrame(int frame, byte[] out) throws IOException {
+        int length = mLengths[frame];
+        if (out.length < length) {
+            throw new IllegalArgumentException("Frame " + frame + " needs " + length + " bytes");
+        }
+        ByteBuffer segment = segment(mSegments[frame]).duplicate();
+        segment.position(mOffsets[frame]);
+        segment.get(out, 0, length);
+        return length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (int i = 0; i < mSegmentFiles.length; i++) {
+            mSegmentMaps[i] = null;
+            if (mSegmentFiles[i] != null) {
+                mSegmentFiles[i].close();
+                mSegmentFiles[i] = null;
+            }
+        }
+    }
+
+    private MappedByteBuffer segment(int segment) throws IOException {
+        if (mSegmentMaps[segment] == null) {
+            RandomAccessFile file = new RandomAccessFile(
+                    new File(mDirectory, EdgeRecorder.segmentName(segment)), "r");
+            mSegmentFiles[segment] = file;
+            mSegmentMaps[segment] = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        }
+        return mSegmentMaps[segment];
+    }
+}
@@ -0,0 +1,33 @@
+package com.edgedetection.soak;
+
+import android.os.Debug;
+
+/**
+ * ART's own GC counters and the malloc heap.
+ */
+final class AndroidRuntimeSampler extends RuntimeSampler {
+
+    @Override
+    long gcCount() {
+        return runtimeStat("art.gc.gc-count");
+    }
+
+    @Override
+    long gcTimeMs() {
+        return runtimeStat("art.gc.gc-time");
+    }
+
+    @Override
+    long nativeHeapBytes() {
+        return Debug.getNativeHeapAllocatedSize();
+    }
+
+    private static long runtimeStat(String name) {
+        String value = Debug.getRuntimeStat(name);
+        try {
+            return value != null ? Long.parseLong(value) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.edgedetection.soak;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+
+/**
+ * GC counters from the management beans of a desktop JVM. The JVM does not
+ * report the malloc heap, so native growth shows in the resident size only.
+ */
+final class JvmRuntimeSampler extends RuntimeSampler {
+
+    @Override
+    long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, collector.getCollectionCount());
+        }
+        return count;
+    }
+
+    @Override
+    long gcTimeMs() {
+        long time = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, collector.getCollectionTime());
+        }
+        return time;
+    }
+
+    @Override
+    long nativeHeapBytes() {
+        return -1;
+    }
+}
@@ -0,0 +1,81 @@
+package com.edgedetection.soak;
+
+import com.edgedetection.memory.NativeMemory;
+import com.edgedetection.recording.RecordingReader;
+import com.edgedetection.stream.EdgeMapEncoder;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Replays a recording made by {@link com.edgedetection.recording.EdgeRecorder}
+ * in a loop. Recordings hold edge maps rather than camera images, so the
+ * detection runs on outlines of real scenes; each map is decoded and turned
+ * into RGBA like a camera frame, which counts against throughput but not
+ * against the measured latency.
+ */
+public final class RecordingFrameSource implements SoakRunner.FrameSource {
+
+    private final File mDirectory;
+    private final RecordingReader mReader;
+    private byte[] mEncoded = new byte[0];
+    private byte[] mMask = new byte[0];
+    private final Mat mGray = NativeMemory.newMat("soak.recording.gray");
+    private final Mat mFrame = NativeMemory.newMat("soak.recording.rgba");
+    private int mNext = 0;
+
+    public RecordingFrameSource(File directory) throws IOException {
+        mDirectory = directory;
+        mReader = new RecordingReader(directory);
+        if (mReader.getFrameCount() == 0) {
+            mReader.close();
+            throw new IOException("No frames recorded in " + directory);
+        }
+    }
+
+    @Override
+    public Mat next() {
+        int frame = mNext;
+        mNext = (mNext + 1) % mReader.getFrameCount();
+        try {
+            int length = mReader.getFrameLength(frame);
+            if (mEncoded.length < length) {
+                mEncoded = new byte[length];
+            }
+            mReader.readFrame(frame, mEncoded);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot read frame " + frame + " of " + mDirectory, e);
+        }
+
+        int width = EdgeMapEncoder.readWidth(mEncoded);
+        int height = EdgeMapEncoder.readHeight(mEncoded);
+        if (mMask.length != width * height) {
+            mMask = new byte[width * height];
+        }
+        EdgeMapEncoder.decode(mEncoded, mReader.getFrameLength(frame), mMask);
+        mGray.create(height, width, CvType.CV_8UC1);
+        mGray.put(0, 0, mMask);
+        Imgproc.cvtColor(mGray, mFrame, Imgproc.COLOR_GRAY2RGBA);
+        return mFrame;
+    }
+
+    @Override
+    public String describe() {
+        return "recording " + mDirectory.getName() + " (" + mReader.getFrameCount() + " frames)";
+    }
+
+    @Override
+    public void close() {
+        NativeMemory.release(mGray);
+        NativeMemory.release(mFrame);
+        try {
+            mReader.close();
+        } catch (IOException e) {
+            // Read-only mappings, nothing to lose
+        }
+    }
+}
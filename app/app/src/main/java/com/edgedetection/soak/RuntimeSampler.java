@@ -0,0 +1,102 @@
+package com.edgedetection.soak;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * Process and device readings taken at each soak sample.
+ *
+ * Heap use, resident size, CPU frequency and temperature come from APIs and
+ * files Android and desktop Linux share; GC counts and the native heap need
+ * a runtime of their own, so {@link #forCurrentRuntime()} picks the subclass
+ * and the other one's classes are never loaded. Readings that are not
+ * available are -1.
+ */
+abstract class RuntimeSampler {
+
+    private static final File CPU_DIR = new File("/sys/devices/system/cpu");
+    private static final File THERMAL_DIR = new File("/sys/class/thermal");
+
+    static RuntimeSampler forCurrentRuntime() {
+        if ("Dalvik".equals(System.getProperty("java.vm.name"))) {
+            return new AndroidRuntimeSampler();
+        }
+        return new JvmRuntimeSampler();
+    }
+
+    /** Collections since the process started. */
+    abstract long gcCount();
+
+    /** Milliseconds spent collecting since the process started. */
+    abstract long gcTimeMs();
+
+    /** Bytes malloc'ed by native code, OpenCV buffers included. */
+    abstract long nativeHeapBytes();
+
+    long heapUsedBytes() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    long residentBytes() {
+        try (BufferedReader reader = new BufferedReader(new FileReader("/proc/self/status"))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("VmRSS:")) {
+                    // "VmRSS:    123456 kB"
+                    return Long.parseLong(line.substring(6).replace("kB", "").trim()) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Not Linux, or hidden from us
+        }
+        return -1;
+    }
+
+    /**
+     * Highest current frequency over all cores; thermal throttling shows up
+     * as this dropping while the load stays the same.
+     */
+    long cpuFrequencyKhz() {
+        long highest = -1;
+        File[] cpus = CPU_DIR.listFiles();
+        if (cpus == null) {
+            return -1;
+        }
+        for (File cpu : cpus) {
+            if (cpu.getName().matches("cpu\\d+")) {
+                highest = Math.max(highest, readLong(new File(cpu, "cpufreq/scaling_cur_freq")));
+            }
+        }
+        return highest;
+    }
+
+    /**
+     * Hottest readable thermal zone in millidegrees Celsius. Many devices
+     * keep the zones from apps, so this is often -1 on Android.
+     */
+    long temperatureMilliC() {
+        long hottest = -1;
+        File[] zones = THERMAL_DIR.listFiles();
+        if (zones == null) {
+            return -1;
+        }
+        for (File zone : zones) {
+            if (zone.getName().startsWith("thermal_zone")) {
+                hottest = Math.max(hottest, readLong(new File(zone, "temp")));
+            }
+        }
+        return hottest;
+    }
+
+    static long readLong(File file) {
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line = reader.readLine();
+            return line != null ? Long.parseLong(line.trim()) : -1;
+        } catch (IOException | NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package com.edgedetection.soak;
+
+import com.edgedetection.EdgeAnalytics;
+import com.edgedetection.EdgeDetector;
+import com.edgedetection.memory.NativeMemory;
+import com.edgedetection.metrics.LatencyHistogram;
+import com.edgedetection.metrics.PipelineMetrics;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long-running benchmark of the native detection, for the slow effects a
+ * short benchmark never sees: thermal throttling, native memory growth and
+ * garbage collection.
+ *
+ * Frames from a {@link FrameSource} are run through
+ * {@link EdgeDetector#detectEdgesCached} back to back, each as a new frame,
+ * for the configured duration. Every interval one CSV row is written with
+ * the throughput and latency percentiles of that interval and the heap,
+ * native memory, GC, CPU frequency and temperature readings at its end,
+ * and a last, shorter row for the frames after the final full interval; the
+ * rows are flushed as they are written, so a soak that dies still leaves
+ * its time series. The first line is a {@code #} comment naming the build
+ * label, source and runtime, so files from different builds can be lined
+ * up against each other.
+ *
+ * Uses no Android API itself, so it runs on device, started by
+ * {@link com.edgedetection.MainActivityFallback} with a {@code soak_minutes}
+ * extra, and from {@link #main} on a desktop JVM with OpenCV's Java library
+ * and the host build of the edge detection library (see the README) on
+ * {@code java.library.path}; the pipeline classes' logging there needs a
+ * mockable {@code android.jar} on the classpath, as for JVM unit tests, and
+ * the {@code soak} Gradle task sets up both.
+ */
+public final class SoakRunner {
+
+    /**
+     * Where soak frames come from; called only from the thread running the soak.
+     */
+    public interface FrameSource {
+        /** The next RGBA frame, which may be the same Mat refilled. */
+        Mat next();
+
+        String describe();
+
+        void close();
+    }
+
+    public static final String COLUMNS = "elapsed_s,frames,fps,p50_ms,p95_ms,p99_ms,max_ms,"
+            + "heap_bytes,native_heap_bytes,native_mats_bytes,rss_bytes,gc_count,gc_time_ms,"
+            + "cpu_khz,temp_mc,edge_density";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final FrameSource mSource;
+    private final long mDurationNs;
+    private final long mIntervalNs;
+    private final String mLabel;
+    private int mLowerThreshold = 50;
+    private int mUpperThreshold = 150;
+    private int mBlurSize = 5;
+    private volatile boolean mStopped = false;
+
+    // Latency of the current interval; the whole run goes to soak.frame
+    private final LatencyHistogram mIntervalLatency = new LatencyHistogram();
+    private final LatencyHistogram mFrameTime = PipelineMetrics.histogram("soak.frame");
+
+    /**
+     * @param label Identifies the build in the output, e.g. a version or commit
+     */
+    public SoakRunner(FrameSource source, long durationMs, long intervalMs, String label) {
+        if (durationMs <= 0 || intervalMs <= 0) {
+            throw new IllegalArgumentException("Invalid duration " + durationMs + " or interval " + intervalMs);
+        }
+        mSource = source;
+        mDurationNs = TimeUnit.MILLISECONDS.toNanos(durationMs);
+        mIntervalNs = TimeUnit.MILLISECONDS.toNanos(intervalMs);
+        mLabel = label;
+    }
+
+    public void setThresholds(int lowerThreshold, int upperThreshold, int blurSize) {
+        mLowerThreshold = lowerThreshold;
+        mUpperThreshold = upperThreshold;
+        mBlurSize = blurSize;
+    }
+
+    /**
+     * End the run after the current frame; safe from any thread.
+     */
+    public void stop() {
+        mStopped = true;
+    }
+
+    /**
+     * Run the soak on the calling thread until the duration is up or
+     * {@link #stop()} is called. Closes the source, not the writer.
+     *
+     * @return Number of samples written
+     */
+    public int run(Writer out) throws IOException {
+        if (!EdgeDetector.isLibraryLoaded()) {
+            mSource.close();
+            throw new IllegalStateException("Native library not loaded");
+        }
+        RuntimeSampler sampler = RuntimeSampler.forCurrentRuntime();
+        long context = EdgeDetector.createContext();
+        EdgeAnalytics analytics = new EdgeAnalytics();
+        analytics.attach(context);
+        Mat edges = NativeMemory.newMat("soak.edges");
+        int samples = 0;
+        try {
+            out.write(String.format(Locale.US, "# soak label=%s source=%s runtime=%s %s interval_ms=%d thresholds=%d/%d/%d%n",
+                    mLabel, mSource.describe(), System.getProperty("java.vm.name"),
+                    System.getProperty("java.vm.version"), TimeUnit.NANOSECONDS.toMillis(mIntervalNs),
+                    mLowerThreshold, mUpperThreshold, mBlurSize));
+            out.write(COLUMNS + "\n");
+            out.flush();
+
+            long start = System.nanoTime();
+            long intervalStart = start;
+            long frameId = 0;
+            long intervalFrames = 0;
+            while (!mStopped) {
+                long now = System.nanoTime();
+                if (now - intervalStart >= mIntervalNs) {
+                    writeSample(out, sampler, analytics, now - start, intervalFrames, now - intervalStart);
+                    samples++;
+                    intervalStart = now;
+                    intervalFrames = 0;
+                    mIntervalLatency.reset();
+                }
+                if (now - start >= mDurationNs) {
+                    break;
+                }
+
+                Mat frame = mSource.next();
+                long detectStart = System.nanoTime();
+                EdgeDetector.detectEdgesCached(context, ++frameId, frame.getNativeObjAddr(),
+                        edges.getNativeObjAddr(), mLowerThreshold, mUpperThreshold, mBlurSize);
+                long detectNs = System.nanoTime() - detectStart;
+                mIntervalLatency.record(detectNs);
+                mFrameTime.record(detectNs);
+                intervalFrames++;
+            }
+            // The frames since the last full interval, over however long they took
+            if (intervalFrames > 0) {
+                long now = System.nanoTime();
+                writeSample(out, sampler, analytics, now - start, intervalFrames, now - intervalStart);
+                samples++;
+            }
+        } finally {
+            analytics.detach(context);
+            EdgeDetector.releaseContext(context);
+            NativeMemory.release(edges);
+            mSource.close();
+        }
+        return samples;
+    }
+
+    private void writeSample(Writer out, RuntimeSampler sampler, EdgeAnalytics analytics,
+                             long elapsedNs, long frames, long intervalNs) throws IOException {
+        NativeMemory.sample();
+        out.write(String.format(Locale.US, "%.1f,%d,%.2f,%.3f,%.3f,%.3f,%.3f,%d,%d,%d,%d,%d,%d,%d,%d,%.5f%n",
+                elapsedNs / 1_000_000_000.0,
+                frames,
+                frames * 1_000_000_000.0 / intervalNs,
+                mIntervalLatency.getPercentileMs(50),
+                mIntervalLatency.getPercentileMs(95),
+                mIntervalLatency.getPercentileMs(99),
+                mIntervalLatency.getMaxMs(),
+                sampler.heapUsedBytes(),
+                sampler.nativeHeapBytes(),
+                PipelineMetrics.counter("native.bytes.live").get(),
+                sampler.residentBytes(),
+                sampler.gcCount(),
+                sampler.gcTimeMs(),
+                sampler.cpuFrequencyKhz(),
+                sampler.temperatureMilliC(),
+                analytics.getDensity()));
+        out.flush();
+    }
+
+    /**
+     * Command line entry for desktop JVMs:
+     * <pre>
+     * --minutes N       duration, default 60
+     * --interval S      seconds between samples, default 10
+     * --recording DIR   replay a recording instead of the synthetic source
+     * --size WxH        synthetic frame size, default 640x480
+     * --label NAME      build label written to the output, default "dev"
+     * --out FILE        CSV output, default standard output
+     * </pre>
+     */
+    public static void main(String[] args) throws IOException {
+        long minutes = 60;
+        long intervalSeconds = 10;
+        File recording = null;
+        int width = 640;
+        int height = 480;
+        String label = "dev";
+        File output = null;
+        for (int i = 0; i < args.length; i++) {
+            String value = i + 1 < args.length ? args[i + 1] : null;
+            switch (args[i]) {
+                case "--minutes":
+                    minutes = Long.parseLong(value);
+                    break;
+                case "--interval":
+                    intervalSeconds = Long.parseLong(value);
+                    break;
+                case "--recording":
+                    recording = new File(value);
+                    break;
+                case "--size":
+                    String[] size = value.split("x");
+                    width = Integer.parseInt(size[0]);
+                    height = Integer.parseInt(size[1]);
+                    break;
+                case "--label":
+                    label = value;
+                    break;
+                case "--out":
+                    output = new File(value);
+                    break;
+                default:
+                    System.err.println("Unknown option " + args[i]);
+                    System.exit(2);
+                    return;
+            }
+            i++;
+        }
+
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+        if (!EdgeDetector.loadLibrary()) {
+            System.err.println("Cannot load the edge_detection library");
+            System.exit(1);
+            return;
+        }
+
+        FrameSource source = recording != null
+                ? new RecordingFrameSource(recording)
+                : new SyntheticFrameSource(width, height);
+        SoakRunner runner = new SoakRunner(source, TimeUnit.MINUTES.toMillis(minutes),
+                TimeUnit.SECONDS.toMillis(intervalSeconds), label);
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                output != null ? new FileOutputStream(output) : System.out, UTF8))) {
+            int samples = runner.run(out);
+            System.err.println("Soak finished with " + samples + " samples; " + PipelineMetrics.summary());
+        }
+    }
+}
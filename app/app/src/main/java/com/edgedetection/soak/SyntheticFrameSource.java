@@ -0,0 +1,66 @@
+package com.edgedetection.soak;
+
+import com.edgedetection.memory.NativeMemory;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.util.Locale;
+
+/**
+ * A checkerboard drifting diagonally, a handful of frames generated up front
+ * and cycled so producing a frame costs nothing during the run.
+ */
+public final class SyntheticFrameSource implements SoakRunner.FrameSource {
+
+    private static final int FRAME_COUNT = 32;
+    private static final int SQUARE = 32;
+    // Drift per frame in pixels, so consecutive frames differ everywhere
+    private static final int STEP = 3;
+
+    private final Mat[] mFrames = new Mat[FRAME_COUNT];
+    private final int mWidth;
+    private final int mHeight;
+    private int mNext = 0;
+
+    public SyntheticFrameSource(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        byte[] pixels = new byte[width * height * 4];
+        for (int f = 0; f < FRAME_COUNT; f++) {
+            int shift = f * STEP;
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    byte value = (((x + shift) / SQUARE + (y + shift) / SQUARE) & 1) == 0 ? (byte) 40 : (byte) 215;
+                    int i = (y * width + x) * 4;
+                    pixels[i] = value;
+                    pixels[i + 1] = value;
+                    pixels[i + 2] = value;
+                    pixels[i + 3] = (byte) 255;
+                }
+            }
+            mFrames[f] = NativeMemory.newMat("soak.synthetic", height, width, CvType.CV_8UC4);
+            mFrames[f].put(0, 0, pixels);
+        }
+    }
+
+    @Override
+    public Mat next() {
+        Mat frame = mFrames[mNext];
+        mNext = (mNext + 1) % FRAME_COUNT;
+        return frame;
+    }
+
+    @Override
+    public String describe() {
+        return String.format(Locale.US, "synthetic %dx%d", mWidth, mHeight);
+    }
+
+    @Override
+    public void close() {
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            NativeMemory.release(mFrames[i]);
+            mFrames[i] = null;
+        }
+    }
+}
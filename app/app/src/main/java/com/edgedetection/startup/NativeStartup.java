@@ -0,0 +1,198 @@
+package com.edgedetection.startup;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.edgedetection.EdgeDetector;
+import com.edgedetection.memory.MatScope;
+import com.edgedetection.memory.NativeMemory;
+import com.edgedetection.metrics.LatencyHistogram;
+import com.edgedetection.metrics.PipelineMetrics;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Cold start of the native side, off the main thread.
+ *
+ * {@link #start()} loads OpenCV and the edge detection library on a
+ * background thread while the activity inflates its views, then pushes a
+ * synthetic frame through the detection calls so OpenCV's lazy setup, its
+ * worker pool and first-time allocations are paid before the camera opens
+ * rather than by the first real frame. Activities start the camera from
+ * {@link #whenReady}.
+ *
+ * Records {@code startup.load} and {@code startup.warmup}, plus the time to
+ * the first processed camera frame as {@code startup.first_frame} (since
+ * {@link #start()}) and {@code startup.first_frame_since_process_ms}.
+ */
+public final class NativeStartup {
+
+    private static final String TAG = "NativeStartup";
+
+    // Warm-up frame size, about the size live frames are processed at
+    private static final int WARMUP_WIDTH = 640;
+    private static final int WARMUP_HEIGHT = 480;
+    // Side of the squares in the warm-up pattern, so Canny has edges to follow
+    private static final int WARMUP_SQUARE = 32;
+
+    /**
+     * Called on the main thread once loading and warm-up are over.
+     */
+    public interface Listener {
+        void onNativeReady(boolean loaded);
+    }
+
+    private static final Object sLock = new Object();
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+    // Guarded by sLock
+    private static final List<Listener> sListeners = new ArrayList<>();
+    private static Thread sThread;
+    private static boolean sReady = false;
+    private static boolean sLoaded = false;
+
+    private static volatile long sStartNs;
+    private static volatile boolean sFirstFrameReported = false;
+
+    private static final LatencyHistogram sLoadTime = PipelineMetrics.histogram("startup.load");
+    private static final LatencyHistogram sWarmUpTime = PipelineMetrics.histogram("startup.warmup");
+    private static final LatencyHistogram sFirstFrameTime = PipelineMetrics.histogram("startup.first_frame");
+
+    private NativeStartup() {
+    }
+
+    /**
+     * Begin loading. Only the first call in a process does anything, so
+     * every activity can call this first thing in onCreate.
+     */
+    public static void start() {
+        synchronized (sLock) {
+            if (sThread != null) {
+                return;
+            }
+            sStartNs = System.nanoTime();
+            sThread = new Thread(NativeStartup::run, "NativeStartup");
+            sThread.start();
+        }
+    }
+
+    public static boolean isReady() {
+        synchronized (sLock) {
+            return sReady;
+        }
+    }
+
+    /**
+     * Run the listener on the main thread once the native side is ready;
+     * right away if it already is. Must be called on the main thread.
+     */
+    public static void whenReady(Listener listener) {
+        boolean loaded;
+        synchronized (sLock) {
+            if (!sReady) {
+                sListeners.add(listener);
+                return;
+            }
+            loaded = sLoaded;
+        }
+        listener.onNativeReady(loaded);
+    }
+
+    /**
+     * Called by the camera thread after each processed frame; records the
+     * time to the first one and is a volatile read afterwards.
+     */
+    public static void onFrameProcessed() {
+        if (sFirstFrameReported) {
+            return;
+        }
+        sFirstFrameReported = true;
+        long sinceStartNs = System.nanoTime() - sStartNs;
+        long sinceProcessMs = SystemClock.elapsedRealtime() - Process.getStartElapsedRealtime();
+        sFirstFrameTime.record(sinceStartNs);
+        PipelineMetrics.counter("startup.first_frame_since_process_ms").set(sinceProcessMs);
+        Log.i(TAG, String.format(Locale.US, "First processed frame %.1f ms after startup, %d ms after process start",
+                sinceStartNs / 1_000_000.0, sinceProcessMs));
+    }
+
+    private static void run() {
+        long loadStart = System.nanoTime();
+        boolean loaded = loadLibraries();
+        long loadNs = System.nanoTime() - loadStart;
+        sLoadTime.record(loadNs);
+
+        long warmUpNs = 0;
+        if (loaded) {
+            long warmUpStart = System.nanoTime();
+            warmUp();
+            warmUpNs = System.nanoTime() - warmUpStart;
+            sWarmUpTime.record(warmUpNs);
+        }
+        Log.i(TAG, String.format(Locale.US, "Native libraries %s in %.1f ms, warm-up %.1f ms",
+                loaded ? "loaded" : "failed", loadNs / 1_000_000.0, warmUpNs / 1_000_000.0));
+
+        List<Listener> listeners;
+        synchronized (sLock) {
+            sReady = true;
+            sLoaded = loaded;
+            listeners = new ArrayList<>(sListeners);
+            sListeners.clear();
+        }
+        for (Listener listener : listeners) {
+            sMainHandler.post(() -> listener.onNativeReady(loaded));
+        }
+    }
+
+    /**
+     * The edge detection library links against OpenCV's, so they load one
+     * after the other; the time saved is the main thread's, not the loader's.
+     */
+    private static boolean loadLibraries() {
+        try {
+            System.loadLibrary("opencv_java4");
+            Log.i(TAG, "OpenCV library loaded successfully!");
+        } catch (UnsatisfiedLinkError e) {
+            Log.e(TAG, "Failed to load OpenCV library: " + e.getMessage());
+            return false;
+        }
+        return EdgeDetector.loadLibrary();
+    }
+
+    /**
+     * Run the detection calls the activities use once on a checkerboard, in a
+     * context of its own that is thrown away afterwards.
+     */
+    private static void warmUp() {
+        long context = EdgeDetector.createContext();
+        try (MatScope scope = NativeMemory.scope("startup.warmup")) {
+            byte[] pixels = new byte[WARMUP_WIDTH * WARMUP_HEIGHT * 4];
+            for (int y = 0; y < WARMUP_HEIGHT; y++) {
+                for (int x = 0; x < WARMUP_WIDTH; x++) {
+                    byte value = ((x / WARMUP_SQUARE + y / WARMUP_SQUARE) & 1) == 0 ? 0 : (byte) 255;
+                    int i = (y * WARMUP_WIDTH + x) * 4;
+                    pixels[i] = value;
+                    pixels[i + 1] = value;
+                    pixels[i + 2] = value;
+                    pixels[i + 3] = (byte) 255;
+                }
+            }
+            Mat frame = scope.newMat(WARMUP_HEIGHT, WARMUP_WIDTH, CvType.CV_8UC4);
+            frame.put(0, 0, pixels);
+            Mat edges = scope.newMat();
+
+            EdgeDetector.detectEdgesCached(context, 1, frame.getNativeObjAddr(), edges.getNativeObjAddr(), 50, 150, 5);
+            EdgeDetector.detectEdges(frame.getNativeObjAddr(), edges.getNativeObjAddr(), 50, 150, 5);
+        } catch (Exception e) {
+            Log.w(TAG, "Warm-up failed: " + e.getMessage(), e);
+        } finally {
+            EdgeDetector.releaseContext(context);
+        }
+    }
+}
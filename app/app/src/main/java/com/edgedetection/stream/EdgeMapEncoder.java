@@ -0,0 +1,237 @@
+package com.edgedetection.stream;
+
+import com.edgedetection.EdgeBitmap;
+import com.edgedetection.EdgePolylines;
+
+/**
+ * Compact wire format for binary edge maps.
+ *
+ * A Canny mask is mostly long runs of background broken by thin edges, so
+ * run-length coding with variable-length integers is typically 20-50x
+ * smaller than the 8-bit mask and needs no image codec on either side.
+ *
+ * Layout, little-endian:
+ * <pre>
+ *   0  'E' 'M'          magic
+ *   2  uint8            format version (1)
+ *   3  uint8            encoding ({@link #ENCODING_RLE} or {@link #ENCODING_POLYLINES})
+ *   4  uint32           frame id
+ *   8  uint16           width
+ *  10  uint16           height
+ *  12  payload
+ * </pre>
+ * RLE payload: alternating background / edge run lengths in row-major
+ * order, starting with background (possibly 0).
+ * <p>
+ * Polyline payload: the polyline count, then for each polyline its point
+ * count followed by every point as x and y deltas from the previous point,
+ * continuing across polylines from an implicit (0, 0). Deltas are zigzag
+ * coded so small negative steps stay small.
+ * <p>
+ * All integers are unsigned LEB128: 7 bits per byte, high bit set on every
+ * byte except the last.
+ *
+ * Instances reuse their output buffer and are not thread-safe.
+ */
+public class EdgeMapEncoder {
+
+    public static final int HEADER_SIZE = 12;
+    public static final int VERSION = 1;
+    public static final int ENCODING_RLE = 1;
+    public static final int ENCODING_POLYLINES = 2;
+
+    private byte[] mBuffer = new byte[0];
+    private int mLength = 0;
+    private int[] mRuns = new int[0];
+
+    /**
+     * Encode an 8-bit mask where any non-zero byte is an edge.
+     *
+     * @return Number of bytes written to {@link #getBuffer()}
+     */
+    public int encode(byte[] mask, int width, int height, int frameId) {
+        int pixels = width * height;
+        if (mask.length < pixels) {
+            throw new IllegalArgumentException("Invalid edge map " + width + "x" + height);
+        }
+        byte[] out = startFrame(width, height, frameId);
+
+        int pos = HEADER_SIZE;
+        boolean edge = false;
+        int run = 0;
+        for (int i = 0; i < pixels; i++) {
+            if ((mask[i] != 0) != edge) {
+                pos = writeVarint(out, pos, run);
+                edge = !edge;
+                run = 0;
+            }
+            run++;
+        }
+        pos = writeVarint(out, pos, run);
+
+        mLength = pos;
+        return pos;
+    }
+
+    /**
+     * Encode a packed edge map. Runs are found a word at a time, so this is
+     * considerably faster than {@link #encode(byte[], int, int, int)} on
+     * sparse maps.
+     *
+     * @return Number of bytes written to {@link #getBuffer()}
+     */
+    public int encode(EdgeBitmap bitmap, int frameId) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        byte[] out = startFrame(width, height, frameId);
+
+        if (mRuns.length < width * height + 1) {
+            mRuns = new int[width * height + 1];
+        }
+        int count = bitmap.exportRuns(mRuns);
+
+        int pos = HEADER_SIZE;
+        for (int i = 0; i < count; i++) {
+            pos = writeVarint(out, pos, mRuns[i]);
+        }
+
+        mLength = pos;
+        return pos;
+    }
+
+    /**
+     * Encode traced polylines; for sparse edges this is usually several
+     * times smaller than the RLE map of the same frame.
+     *
+     * @return Number of bytes written to {@link #getBuffer()}
+     */
+    public int encode(EdgePolylines polylines, int frameId) {
+        int polylineCount = polylines.getPolylineCount();
+        int pointCount = polylines.getPointCount();
+        // Counts take at most 5 bytes, zigzag deltas of 16-bit coordinates at most 3
+        int worstCase = HEADER_SIZE + 5 * (polylineCount + 1) + 6 * pointCount;
+        byte[] out = startFrame(polylines.getWidth(), polylines.getHeight(), frameId,
+                ENCODING_POLYLINES, worstCase);
+
+        int[] points = polylines.getPoints();
+        int[] offsets = polylines.getOffsets();
+        int pos = writeVarint(out, HEADER_SIZE, polylineCount);
+        int lastX = 0;
+        int lastY = 0;
+        for (int i = 0; i < polylineCount; i++) {
+            pos = writeVarint(out, pos, offsets[i + 1] - offsets[i]);
+            for (int p = offsets[i]; p < offsets[i + 1]; p++) {
+                int x = points[2 * p];
+                int y = points[2 * p + 1];
+                pos = writeVarint(out, pos, zigzag(x - lastX));
+                pos = writeVarint(out, pos, zigzag(y - lastY));
+                lastX = x;
+                lastY = y;
+            }
+        }
+
+        mLength = pos;
+        return pos;
+    }
+
+    public byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    public static int readWidth(byte[] data) {
+        return (data[8] & 0xFF) | (data[9] & 0xFF) << 8;
+    }
+
+    public static int readHeight(byte[] data) {
+        return (data[10] & 0xFF) | (data[11] & 0xFF) << 8;
+    }
+
+    public static int readFrameId(byte[] data) {
+        return (data[4] & 0xFF) | (data[5] & 0xFF) << 8 | (data[6] & 0xFF) << 16 | (data[7] & 0xFF) << 24;
+    }
+
+    /**
+     * Expand an encoded edge map back into an 8-bit mask of 0 and 255.
+     *
+     * @param mask Output of at least width * height bytes
+     */
+    public static void decode(byte[] data, int length, byte[] mask) {
+        if (length < HEADER_SIZE || data[0] != 'E' || data[1] != 'M' || data[3] != ENCODING_RLE) {
+            throw new IllegalArgumentException("Not an RLE edge map");
+        }
+        int pixels = readWidth(data) * readHeight(data);
+        int pos = HEADER_SIZE;
+        int pixel = 0;
+        boolean edge = false;
+        while (pos < length && pixel < pixels) {
+            int run = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = data[pos++] & 0xFF;
+                run |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0 && pos < length);
+
+            int end = Math.min(pixels, pixel + run);
+            java.util.Arrays.fill(mask, pixel, end, edge ? (byte) 0xFF : 0);
+            pixel = end;
+            edge = !edge;
+        }
+    }
+
+    /**
+     * Size the output buffer for the worst case of an RLE map and write the header.
+     */
+    private byte[] startFrame(int width, int height, int frameId) {
+        // Every run is at least one pixel and a varint never needs more bytes
+        // than the run it encodes, except the possibly empty first run
+        return startFrame(width, height, frameId, ENCODING_RLE, HEADER_SIZE + width * height + 1);
+    }
+
+    private byte[] startFrame(int width, int height, int frameId, int encoding, int worstCase) {
+        if (width <= 0 || height <= 0 || width > 0xFFFF || height > 0xFFFF) {
+            throw new IllegalArgumentException("Invalid edge map " + width + "x" + height);
+        }
+
+        if (mBuffer.length < worstCase) {
+            mBuffer = new byte[worstCase];
+        }
+
+        byte[] out = mBuffer;
+        out[0] = 'E';
+        out[1] = 'M';
+        out[2] = (byte) VERSION;
+        out[3] = (byte) encoding;
+        writeInt(out, 4, frameId);
+        out[8] = (byte) width;
+        out[9] = (byte) (width >>> 8);
+        out[10] = (byte) height;
+        out[11] = (byte) (height >>> 8);
+        return out;
+    }
+
+    private static int writeVarint(byte[] out, int pos, int value) {
+        while ((value & ~0x7F) != 0) {
+            out[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[pos++] = (byte) value;
+        return pos;
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static void writeInt(byte[] out, int pos, int value) {
+        out[pos] = (byte) value;
+        out[pos + 1] = (byte) (value >>> 8);
+        out[pos + 2] = (byte) (value >>> 16);
+        out[pos + 3] = (byte) (value >>> 24);
+    }
+}
@@ -0,0 +1,382 @@
+package com.edgedetection.stream;
+
+import com.edgedetection.metrics.PipelineMetrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Minimal HTTP/WebSocket server that pushes encoded edge maps and frame
+ * statistics to web viewers.
+ *
+ * Endpoints:
+ * <ul>
+ *   <li>{@code ws://host:port/edges} - binary messages in {@link EdgeMapEncoder}
+ *       format, each preceded by a JSON text message with the frame stats</li>
+ *   <li>{@code http://host:port/stats} - latest stats as JSON</li>
+ * </ul>
+ *
+ * The server binds to loopback only; viewers on a desktop reach the device
+ * through {@code adb forward tcp:8765 tcp:8765}. {@link #publish} never blocks
+ * the caller: each client has a small queue and a writer thread, and frames
+ * are dropped for clients that cannot keep up.
+ */
+public class EdgeStreamServer implements Closeable {
+
+    public static final int DEFAULT_PORT = 8765;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final int CLIENT_QUEUE_FRAMES = 2;
+    private static final int MAX_HEADER_BYTES = 8192;
+
+    private final int mPort;
+    private final CopyOnWriteArrayList<Client> mClients = new CopyOnWriteArrayList<>();
+    private ServerSocket mServerSocket;
+    private Thread mAcceptThread;
+    private volatile boolean mRunning = false;
+    private volatile String mLatestStats = "{}";
+
+    private final AtomicLong mFramesSent = PipelineMetrics.counter("stream.frames.sent");
+    private final AtomicLong mFramesDropped = PipelineMetrics.counter("stream.frames.dropped");
+    private final AtomicLong mBytesSent = PipelineMetrics.counter("stream.bytes.sent");
+
+    public EdgeStreamServer() {
+        this(DEFAULT_PORT);
+    }
+
+    /**
+     * @param port TCP port, or 0 to pick a free one
+     */
+    public EdgeStreamServer(int port) {
+        mPort = port;
+    }
+
+    public synchronized void start() throws IOException {
+        if (mRunning) {
+            return;
+        }
+        mServerSocket = new ServerSocket(mPort, 4, InetAddress.getLoopbackAddress());
+        mRunning = true;
+        mAcceptThread = new Thread(this::acceptLoop, "EdgeStreamAccept");
+        mAcceptThread.setDaemon(true);
+        mAcceptThread.start();
+    }
+
+    /**
+     * @return The bound port, useful when started with port 0
+     */
+    public int getPort() {
+        return mServerSocket != null ? mServerSocket.getLocalPort() : mPort;
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    public boolean hasClients() {
+        return !mClients.isEmpty();
+    }
+
+    /**
+     * Update the stats served at /stats without sending a frame.
+     */
+    public void updateStats(String statsJson) {
+        mLatestStats = statsJson;
+    }
+
+    /**
+     * Queue an encoded edge map and its stats for every connected viewer.
+     *
+     * @param encoded Buffer from {@link EdgeMapEncoder#getBuffer()}; copied before returning
+     * @param statsJson JSON object with the frame statistics
+     */
+    public void publish(byte[] encoded, int length, String statsJson) {
+        mLatestStats = statsJson;
+        if (mClients.isEmpty()) {
+            return;
+        }
+        byte[] payload = new byte[length];
+        System.arraycopy(encoded, 0, payload, 0, length);
+        Message message = new Message(statsJson.getBytes(UTF8), payload);
+        for (Client client : mClients) {
+            if (!client.mQueue.offer(message)) {
+                mFramesDropped.incrementAndGet();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        mRunning = false;
+        closeQuietly(mServerSocket);
+        for (Client client : mClients) {
+            client.close();
+        }
+        mClients.clear();
+    }
+
+    /**
+     * Frame statistics as a JSON object for the viewer.
+     */
+    public static String formatStats(long frameId, double fps, int width, int height,
+                                     double processingMs, double latencyMs, int encodedBytes,
+                                     double encodeMs) {
+        return String.format(Locale.US,
+                "{\"frame\":%d,\"fps\":%.1f,\"width\":%d,\"height\":%d,\"processingMs\":%.2f,"
+                        + "\"latencyMs\":%.2f,\"bytes\":%d,\"encodeMs\":%.3f}",
+                frameId, fps, width, height, processingMs, latencyMs, encodedBytes, encodeMs);
+    }
+
+    private void acceptLoop() {
+        while (mRunning) {
+            try {
+                Socket socket = mServerSocket.accept();
+                socket.setTcpNoDelay(true);
+                Thread handler = new Thread(() -> handleConnection(socket), "EdgeStreamClient");
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException e) {
+                // Socket closed by close(), or a transient accept failure
+            }
+        }
+    }
+
+    private void handleConnection(Socket socket) {
+        try {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            String[] request = readRequest(in);
+            if (request == null) {
+                socket.close();
+                return;
+            }
+            String path = request[0];
+            String webSocketKey = request[1];
+
+            if (webSocketKey != null && path.startsWith("/edges")) {
+                String accept = base64(MessageDigest.getInstance("SHA-1")
+                        .digest((webSocketKey + WEBSOCKET_GUID).getBytes(ASCII)));
+                out.write(("HTTP/1.1 101 Switching Protocols\r\n"
+                        + "Upgrade: websocket\r\n"
+                        + "Connection: Upgrade\r\n"
+                        + "Sec-WebSocket-Accept: " + accept + "\r\n\r\n").getBytes(ASCII));
+                out.flush();
+
+                Client client = new Client(socket, out);
+                mClients.add(client);
+                client.mWriter.start();
+                // Reader keeps running on this thread until the viewer disconnects
+                client.readUntilClosed(in);
+            } else if (path.startsWith("/stats")) {
+                writeHttp(out, "200 OK", "application/json", mLatestStats.getBytes(UTF8));
+                socket.close();
+            } else {
+                writeHttp(out, "404 Not Found", "text/plain", "Not found".getBytes(UTF8));
+                socket.close();
+            }
+        } catch (Exception e) {
+            closeQuietly(socket);
+        }
+    }
+
+    /**
+     * @return {path, Sec-WebSocket-Key or null}, or null on a malformed request
+     */
+    private static String[] readRequest(InputStream in) throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        int matched = 0;
+        while (matched < 4) {
+            int b = in.read();
+            if (b < 0 || header.size() > MAX_HEADER_BYTES) {
+                return null;
+            }
+            header.write(b);
+            matched = (b == (matched % 2 == 0 ? '\r' : '\n')) ? matched + 1 : (b == '\r' ? 1 : 0);
+        }
+
+        String[] lines = new String(header.toByteArray(), ASCII).split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length < 2 || !"GET".equals(requestLine[0])) {
+            return null;
+        }
+        String key = null;
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0 && lines[i].substring(0, colon).trim().equalsIgnoreCase("Sec-WebSocket-Key")) {
+                key = lines[i].substring(colon + 1).trim();
+            }
+        }
+        return new String[]{requestLine[1], key};
+    }
+
+    private static void writeHttp(OutputStream out, String status, String contentType, byte[] body)
+            throws IOException {
+        out.write(("HTTP/1.1 " + status + "\r\n"
+                + "Content-Type: " + contentType + "\r\n"
+                + "Content-Length: " + body.length + "\r\n"
+                + "Access-Control-Allow-Origin: *\r\n"
+                + "Connection: close\r\n\r\n").getBytes(ASCII));
+        out.write(body);
+        out.flush();
+    }
+
+    private static void writeFrame(OutputStream out, int opcode, byte[] payload) throws IOException {
+        // Server-to-client frames are never masked
+        byte[] header = new byte[10];
+        int headerLength;
+        header[0] = (byte) (0x80 | opcode);
+        if (payload.length < 126) {
+            header[1] = (byte) payload.length;
+            headerLength = 2;
+        } else if (payload.length < 65536) {
+            header[1] = 126;
+            header[2] = (byte) (payload.length >>> 8);
+            header[3] = (byte) payload.length;
+            headerLength = 4;
+        } else {
+            header[1] = 127;
+            long length = payload.length;
+            for (int i = 0; i < 8; i++) {
+                header[2 + i] = (byte) (length >>> (56 - 8 * i));
+            }
+            headerLength = 10;
+        }
+        out.write(header, 0, headerLength);
+        out.write(payload);
+    }
+
+    private static String base64(byte[] data) {
+        final String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < data.length; i += 3) {
+            int b0 = data[i] & 0xFF;
+            int b1 = i + 1 < data.length ? data[i + 1] & 0xFF : 0;
+            int b2 = i + 2 < data.length ? data[i + 2] & 0xFF : 0;
+            sb.append(alphabet.charAt(b0 >>> 2));
+            sb.append(alphabet.charAt(((b0 & 0x03) << 4) | (b1 >>> 4)));
+            sb.append(i + 1 < data.length ? alphabet.charAt(((b1 & 0x0F) << 2) | (b2 >>> 6)) : '=');
+            sb.append(i + 2 < data.length ? alphabet.charAt(b2 & 0x3F) : '=');
+        }
+        return sb.toString();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            if (closeable != null) {
+                closeable.close();
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static final class Message {
+        final byte[] mStats;
+        final byte[] mEdgeMap;
+
+        Message(byte[] stats, byte[] edgeMap) {
+            mStats = stats;
+            mEdgeMap = edgeMap;
+        }
+    }
+
+    private final class Client {
+        final Socket mSocket;
+        final OutputStream mOut;
+        final BlockingQueue<Message> mQueue = new ArrayBlockingQueue<>(CLIENT_QUEUE_FRAMES);
+        final Thread mWriter;
+        volatile boolean mOpen = true;
+
+        Client(Socket socket, OutputStream out) {
+            mSocket = socket;
+            mOut = out;
+            mWriter = new Thread(this::writeLoop, "EdgeStreamWriter");
+            mWriter.setDaemon(true);
+        }
+
+        void writeLoop() {
+            try {
+                while (mOpen) {
+                    Message message = mQueue.take();
+                    writeFrame(mOut, 0x1, message.mStats);
+                    writeFrame(mOut, 0x2, message.mEdgeMap);
+                    mOut.flush();
+                    mFramesSent.incrementAndGet();
+                    mBytesSent.addAndGet(message.mStats.length + message.mEdgeMap.length);
+                }
+            } catch (InterruptedException | IOException e) {
+                // Viewer went away or server is closing
+            } finally {
+                close();
+            }
+        }
+
+        /**
+         * Consume client frames so pings and close requests are noticed.
+         * Viewers never send data, so payloads are skipped.
+         */
+        void readUntilClosed(InputStream in) {
+            try {
+                while (mOpen) {
+                    int b0 = in.read();
+                    int b1 = in.read();
+                    if (b0 < 0 || b1 < 0) {
+                        break;
+                    }
+                    int opcode = b0 & 0x0F;
+                    long length = b1 & 0x7F;
+                    if (length == 126) {
+                        length = (in.read() << 8) | in.read();
+                    } else if (length == 127) {
+                        length = 0;
+                        for (int i = 0; i < 8; i++) {
+                            length = (length << 8) | in.read();
+                        }
+                    }
+                    long skip = length + ((b1 & 0x80) != 0 ? 4 : 0);
+                    while (skip > 0) {
+                        long skipped = in.skip(skip);
+                        if (skipped <= 0) {
+                            if (in.read() < 0) {
+                                return;
+                            }
+                            skipped = 1;
+                        }
+                        skip -= skipped;
+                    }
+                    if (opcode == 0x8) {
+                        break;
+                    }
+                }
+            } catch (SocketException e) {
+                // Closed from the writer side
+            } catch (IOException e) {
+                // Connection reset by viewer
+            } finally {
+                close();
+            }
+        }
+
+        void close() {
+            mOpen = false;
+            mClients.remove(this);
+            mWriter.interrupt();
+            closeQuietly(mSocket);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.edgedetection;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Packing and unpacking cost per frame at camera sizes, on the host JVM.
+ * Run with {@code ./gradlew :app:jmh -PjmhIncludes=EdgeBitmap}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EdgeBitmapBenchmark {
+
+    @Param({"640x480", "1280x720", "1920x1080"})
+    public String size;
+
+    // Typical Canny output is a few percent edges
+    @Param({"0.05"})
+    public double density;
+
+    private byte[] mMask;
+    private byte[] mUnpacked;
+    private EdgeBitmap mBitmap;
+
+    @Setup
+    public void setUp() {
+        String[] parts = size.split("x");
+        int width = Integer.parseInt(parts[0]);
+        int height = Integer.parseInt(parts[1]);
+        mMask = EdgeBitmapTest.randomMask(new Random(42), width, height, density);
+        mUnpacked = new byte[width * height];
+        mBitmap = new EdgeBitmap(width, height);
+        mBitmap.pack(mMask);
+    }
+
+    @Benchmark
+    public long[] pack() {
+        mBitmap.pack(mMask);
+        return mBitmap.getWords();
+    }
+
+    @Benchmark
+    public byte[] unpack() {
+        mBitmap.unpack(mUnpacked);
+        return mUnpacked;
+    }
+}
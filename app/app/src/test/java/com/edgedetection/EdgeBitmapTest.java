@@ -0,0 +1,193 @@
+package com.edgedetection;
+
+import com.edgedetection.stream.EdgeMapEncoder;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EdgeBitmapTest {
+
+    // Either side of the 64-bit word boundary, plus a single column
+    private static final int[] WIDTHS = {1, 63, 64, 65};
+    private static final int HEIGHT = 7;
+
+    @Test
+    public void packUnpackRoundTrip() {
+        Random random = new Random(1);
+        for (int width : WIDTHS) {
+            byte[] mask = randomMask(random, width, HEIGHT, 0.3);
+            EdgeBitmap bitmap = new EdgeBitmap(width, HEIGHT);
+            bitmap.pack(mask);
+
+            byte[] unpacked = new byte[width * HEIGHT];
+            bitmap.unpack(unpacked);
+            for (int i = 0; i < mask.length; i++) {
+                byte expected = mask[i] != 0 ? (byte) 255 : 0;
+                assertEquals("width " + width + " pixel " + i, expected, unpacked[i]);
+                assertEquals(mask[i] != 0, bitmap.get(i % width, i / width));
+            }
+        }
+    }
+
+    @Test
+    public void packLeavesRowPaddingZero() {
+        for (int width : WIDTHS) {
+            byte[] mask = new byte[width * HEIGHT];
+            Arrays.fill(mask, (byte) 1);
+            EdgeBitmap bitmap = new EdgeBitmap(width, HEIGHT);
+            bitmap.pack(mask);
+
+            int wordsPerRow = bitmap.getWordsPerRow();
+            assertEquals((width + 63) / 64, wordsPerRow);
+            long[] words = bitmap.getWords();
+            for (int y = 0; y < HEIGHT; y++) {
+                long last = words[y * wordsPerRow + wordsPerRow - 1];
+                int bits = width - (wordsPerRow - 1) * 64;
+                long expected = bits == 64 ? -1L : (1L << bits) - 1;
+                assertEquals("width " + width + " row " + y, expected, last);
+            }
+            assertEquals(width * HEIGHT, bitmap.popcount());
+        }
+    }
+
+    @Test
+    public void popcountOrAndMatchByteMasks() {
+        Random random = new Random(2);
+        for (int width : WIDTHS) {
+            byte[] a = randomMask(random, width, HEIGHT, 0.4);
+            byte[] b = randomMask(random, width, HEIGHT, 0.4);
+            EdgeBitmap bitmapA = new EdgeBitmap(width, HEIGHT);
+            EdgeBitmap bitmapB = new EdgeBitmap(width, HEIGHT);
+            bitmapA.pack(a);
+            bitmapB.pack(b);
+
+            int countA = 0;
+            byte[] union = new byte[a.length];
+            byte[] intersection = new byte[a.length];
+            for (int i = 0; i < a.length; i++) {
+                if (a[i] != 0) {
+                    countA++;
+                }
+                union[i] = (a[i] != 0 || b[i] != 0) ? (byte) 255 : 0;
+                intersection[i] = (a[i] != 0 && b[i] != 0) ? (byte) 255 : 0;
+            }
+            assertEquals("width " + width, countA, bitmapA.popcount());
+            assertEquals(countA / (double) (width * HEIGHT), bitmapA.density(), 1e-12);
+
+            EdgeBitmap or = new EdgeBitmap(width, HEIGHT);
+            or.copyFrom(bitmapA);
+            or.or(bitmapB);
+            byte[] unpacked = new byte[a.length];
+            or.unpack(unpacked);
+            assertArrayEquals("or, width " + width, union, unpacked);
+
+            EdgeBitmap and = new EdgeBitmap(width, HEIGHT);
+            and.copyFrom(bitmapA);
+            and.and(bitmapB);
+            and.unpack(unpacked);
+            assertArrayEquals("and, width " + width, intersection, unpacked);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void orRejectsOtherSize() {
+        new EdgeBitmap(64, 2).or(new EdgeBitmap(65, 2));
+    }
+
+    @Test
+    public void exportRunsMatchesByteMaskEncoding() {
+        Random random = new Random(3);
+        for (int width : WIDTHS) {
+            byte[] empty = new byte[width * HEIGHT];
+            byte[] full = new byte[width * HEIGHT];
+            Arrays.fill(full, (byte) 255);
+            byte[] lastPixel = new byte[width * HEIGHT];
+            lastPixel[lastPixel.length - 1] = 1;
+            byte[][] masks = {
+                    randomMask(random, width, HEIGHT, 0.05),
+                    randomMask(random, width, HEIGHT, 0.5),
+                    empty, full, lastPixel,
+            };
+            for (byte[] mask : masks) {
+                EdgeBitmap bitmap = new EdgeBitmap(width, HEIGHT);
+                bitmap.pack(mask);
+
+                EdgeMapEncoder fromMask = new EdgeMapEncoder();
+                EdgeMapEncoder fromBitmap = new EdgeMapEncoder();
+                int maskLength = fromMask.encode(mask, width, HEIGHT, 9);
+                int bitmapLength = fromBitmap.encode(bitmap, 9);
+                assertArrayEquals("width " + width,
+                        Arrays.copyOf(fromMask.getBuffer(), maskLength),
+                        Arrays.copyOf(fromBitmap.getBuffer(), bitmapLength));
+
+                int[] runs = new int[width * HEIGHT + 1];
+                int count = bitmap.exportRuns(runs);
+                int total = 0;
+                for (int i = 0; i < count; i++) {
+                    total += runs[i];
+                }
+                assertEquals(width * HEIGHT, total);
+            }
+        }
+    }
+
+    @Test
+    public void writeToLaysOutRowsLittleEndian() {
+        EdgeBitmap bitmap = new EdgeBitmap(70, 2);
+        bitmap.set(0, 0, true);
+        bitmap.set(9, 0, true);
+        bitmap.set(63, 0, true);
+        bitmap.set(65, 1, true);
+        assertEquals(16, bitmap.getRowBytes());
+
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 2 * 16).order(ByteOrder.BIG_ENDIAN);
+        buffer.position(4);
+        bitmap.writeTo(buffer);
+        assertEquals(4 + 2 * 16, buffer.position());
+        assertEquals(ByteOrder.BIG_ENDIAN, buffer.order());
+
+        byte[] expected = new byte[4 + 2 * 16];
+        expected[4] = 0x01;                 // pixel 0 of row 0
+        expected[4 + 1] = 0x02;             // pixel 9
+        expected[4 + 7] = (byte) 0x80;      // pixel 63, top bit of the first word
+        expected[4 + 16 + 8] = 0x02;        // pixel 65 of row 1, second word
+        assertArrayEquals(expected, buffer.array());
+    }
+
+    @Test
+    public void setAndClear() {
+        EdgeBitmap bitmap = new EdgeBitmap(65, 1);
+        bitmap.set(64, 0, true);
+        assertTrue(bitmap.get(64, 0));
+        assertFalse(bitmap.get(0, 0));
+        bitmap.set(64, 0, false);
+        assertEquals(0, bitmap.popcount());
+        bitmap.set(3, 0, true);
+        bitmap.clear();
+        assertEquals(0, bitmap.popcount());
+    }
+
+    /**
+     * Mask with the given share of edge pixels, shared by the tests and
+     * benchmarks of everything that consumes edge masks.
+     */
+    public static byte[] randomMask(Random random, int width, int height, double density) {
+        byte[] mask = new byte[width * height];
+        for (int i = 0; i < mask.length; i++) {
+            if (random.nextDouble() < density) {
+                // Any non-zero byte counts as an edge, not just 255
+                mask[i] = (byte) (1 + random.nextInt(255));
+            }
+        }
+        return mask;
+    }
+}
@@ -0,0 +1,139 @@
+package com.edgedetection;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the processor with stand-in detectors, so no native library is
+ * needed; frames carry no Mats.
+ */
+public class ParallelEdgeProcessorTest {
+
+    private static final int WORKERS = 4;
+    private static final int MAX_IN_FLIGHT = 8;
+    private static final int FRAMES = 64;
+    private static final long TIMEOUT_MS = 10000;
+
+    /**
+     * Takes longer on earlier frames of every window, so later frames
+     * finish first.
+     */
+    private static final class SlowFirstDetector extends FrameDetector {
+        private final List<Long> mCompleted;
+        private final AtomicInteger mReleased;
+
+        SlowFirstDetector(String name, List<Long> completed, AtomicInteger released) {
+            super(name);
+            mCompleted = completed;
+            mReleased = released;
+        }
+
+        @Override
+        long process(DetectedFrame frame, int lowerThreshold, int upperThreshold, int blurSize,
+                     int processingScale, OutputSource outputs) {
+            try {
+                Thread.sleep((WORKERS - frame.getSequence() % WORKERS) * 5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (mCompleted) {
+                mCompleted.add(frame.getSequence());
+            }
+            return 0;
+        }
+
+        @Override
+        void release() {
+            mReleased.incrementAndGet();
+        }
+    }
+
+    @Test
+    public void deliversInSubmissionOrder() throws InterruptedException {
+        List<Long> completed = new ArrayList<>();
+        List<Long> delivered = new ArrayList<>();
+        AtomicInteger released = new AtomicInteger();
+        AtomicInteger maxPending = new AtomicInteger();
+        AtomicInteger pending = new AtomicInteger();
+
+        ParallelEdgeProcessor processor = new ParallelEdgeProcessor(WORKERS, MAX_IN_FLIGHT, result -> {
+            synchronized (delivered) {
+                delivered.add(result.getSequence());
+            }
+            pending.decrementAndGet();
+        }, name -> new SlowFirstDetector(name, completed, released));
+
+        for (int i = 0; i < FRAMES; i++) {
+            maxPending.set(Math.max(maxPending.get(), pending.incrementAndGet()));
+            assertEquals(i, processor.submit(null, i));
+        }
+        processor.drain();
+
+        List<Long> expected = new ArrayList<>();
+        for (long i = 0; i < FRAMES; i++) {
+            expected.add(i);
+        }
+        assertEquals(expected, delivered);
+        assertNotEquals("Workers should finish out of order", expected, completed);
+        assertTrue("At most " + MAX_IN_FLIGHT + " frames in flight, saw " + maxPending.get(),
+                maxPending.get() <= MAX_IN_FLIGHT + 1);
+
+        processor.shutdown();
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (released.get() < WORKERS) {
+            assertTrue("Workers did not release their detectors", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void trySubmitRefusesBeyondWindow() throws InterruptedException {
+        Object gate = new Object();
+        boolean[] open = {false};
+        ParallelEdgeProcessor processor = new ParallelEdgeProcessor(1, 2, result -> {
+        }, name -> new FrameDetector(name) {
+            @Override
+            long process(DetectedFrame frame, int lowerThreshold, int upperThreshold, int blurSize,
+                         int processingScale, OutputSource outputs) {
+                synchronized (gate) {
+                    while (!open[0]) {
+                        try {
+                            gate.wait();
+                        } catch (InterruptedException e) {
+                            return 0;
+                        }
+                    }
+                }
+                return 0;
+            }
+        });
+
+        assertEquals(0, processor.trySubmit(null, 0));
+        assertEquals(1, processor.trySubmit(null, 0));
+        assertEquals(-1, processor.trySubmit(null, 0));
+
+        synchronized (gate) {
+            open[0] = true;
+            gate.notifyAll();
+        }
+        processor.drain();
+        assertEquals(2, processor.trySubmit(null, 0));
+        processor.drain();
+        processor.shutdown();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void submitAfterShutdownFails() throws InterruptedException {
+        ParallelEdgeProcessor processor = new ParallelEdgeProcessor(1, 1, result -> {
+        });
+        processor.shutdown();
+        processor.submit(null, 0);
+    }
+}
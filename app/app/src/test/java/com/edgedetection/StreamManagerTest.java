@@ -0,0 +1,208 @@
+package com.edgedetection;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the manager on one worker with stand-in detectors, so no native
+ * library is needed; frames carry no Mats. The worker can be held inside a
+ * frame to line up queues before anything is processed.
+ */
+public class StreamManagerTest {
+
+    private static final long TIMEOUT_MS = 5000;
+
+    // "stream:sequence" in the order the worker processed them
+    private final List<String> mProcessed = new ArrayList<>();
+    private final CountDownLatch mEntered = new CountDownLatch(1);
+    private final CountDownLatch mGate = new CountDownLatch(1);
+    private final AtomicInteger mReleased = new AtomicInteger();
+    private StreamManager mManager;
+
+    private final class HeldDetector extends FrameDetector {
+        private final String mName;
+
+        HeldDetector(String name) {
+            super(name);
+            mName = name;
+        }
+
+        @Override
+        long process(DetectedFrame frame, int lowerThreshold, int upperThreshold, int blurSize,
+                     int processingScale, OutputSource outputs) {
+            mEntered.countDown();
+            try {
+                assertTrue(mGate.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (mProcessed) {
+                mProcessed.add(mName + ":" + frame.getSequence());
+            }
+            return 0;
+        }
+
+        @Override
+        void release() {
+            mReleased.incrementAndGet();
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mManager = new StreamManager(1, 2, HeldDetector::new);
+    }
+
+    @After
+    public void tearDown() {
+        mGate.countDown();
+        mManager.shutdown();
+    }
+
+    @Test
+    public void offerDropsOldestBeyondQueueBound() throws InterruptedException {
+        StreamManager.Stream stream = mManager.addStream("live", (s, frame) -> {
+        });
+        holdWorker(stream);
+
+        for (int i = 1; i <= 5; i++) {
+            assertEquals(i, stream.offer(null, i));
+            assertTrue(stream.getPendingCount() <= 2);
+        }
+        assertEquals(2, stream.getPendingCount());
+        assertEquals(3, stream.getDroppedCount());
+
+        mGate.countDown();
+        awaitProcessed(stream, 3);
+        assertEquals(Arrays.asList("live:0", "live:4", "live:5"), processed());
+    }
+
+    @Test
+    public void submitBlocksWhileQueueFull() throws InterruptedException {
+        StreamManager.Stream stream = mManager.addStream("replay", (s, frame) -> {
+        });
+        holdWorker(stream);
+        stream.submit(null, 1);
+        stream.submit(null, 2);
+
+        CountDownLatch submitted = new CountDownLatch(1);
+        Thread producer = new Thread(() -> {
+            try {
+                stream.submit(null, 3);
+                submitted.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        producer.start();
+        assertFalse("Submit should block", submitted.await(100, TimeUnit.MILLISECONDS));
+        assertEquals(2, stream.getPendingCount());
+
+        mGate.countDown();
+        assertTrue(submitted.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        awaitProcessed(stream, 4);
+        assertEquals(0, stream.getDroppedCount());
+        assertEquals(Arrays.asList("replay:0", "replay:1", "replay:2", "replay:3"), processed());
+    }
+
+    @Test
+    public void streamsTakeTurns() throws InterruptedException {
+        StreamManager manager = new StreamManager(1, 4, HeldDetector::new);
+        try {
+            StreamManager.Stream a = manager.addStream("a", (s, frame) -> {
+            });
+            StreamManager.Stream b = manager.addStream("b", (s, frame) -> {
+            });
+            StreamManager.Stream c = manager.addStream("c", (s, frame) -> {
+            });
+            holdWorker(a);
+            // a floods its queue first, yet b and c are not starved
+            for (int i = 0; i < 3; i++) {
+                a.submit(null, 0);
+            }
+            for (int i = 0; i < 3; i++) {
+                b.submit(null, 0);
+                c.submit(null, 0);
+            }
+
+            mGate.countDown();
+            awaitProcessed(a, 4);
+            awaitProcessed(b, 3);
+            awaitProcessed(c, 3);
+            assertEquals(Arrays.asList(
+                    "a:0", "b:0", "c:0",
+                    "a:1", "b:1", "c:1",
+                    "a:2", "b:2", "c:2",
+                    "a:3"), processed());
+        } finally {
+            manager.shutdown();
+        }
+    }
+
+    @Test
+    public void removeStreamDropsQueueAndReleasesDetector() throws InterruptedException {
+        AtomicInteger delivered = new AtomicInteger();
+        StreamManager.Stream stream = mManager.addStream("removed", (s, frame) -> delivered.incrementAndGet());
+        holdWorker(stream);
+        stream.offer(null, 1);
+        stream.offer(null, 2);
+
+        mManager.removeStream(stream);
+        assertEquals(0, stream.getPendingCount());
+        assertEquals(-1, stream.offer(null, 3));
+        assertEquals("Detector in use", 0, mReleased.get());
+
+        // The frame being processed is still delivered, then the detector freed
+        mGate.countDown();
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (mReleased.get() < 1) {
+            assertTrue("Detector not released", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        assertEquals(1, delivered.get());
+        assertEquals(Arrays.asList("removed:0"), processed());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void duplicateNameFails() {
+        mManager.addStream("same", (s, frame) -> {
+        });
+        mManager.addStream("same", (s, frame) -> {
+        });
+    }
+
+    /**
+     * Queue frame 0 and wait until the worker is inside it.
+     */
+    private void holdWorker(StreamManager.Stream stream) throws InterruptedException {
+        assertEquals(0, stream.offer(null, 0));
+        assertTrue(mEntered.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    private static void awaitProcessed(StreamManager.Stream stream, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (stream.getProcessedCount() < count) {
+            assertTrue(stream.getName() + " processed " + stream.getProcessedCount(),
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private List<String> processed() {
+        synchronized (mProcessed) {
+            return new ArrayList<>(mProcessed);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.edgedetection.opengl;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FrameTransformTest {
+
+    private static final float EPSILON = 1e-5f;
+
+    @Test
+    public void pixelCentresMapToClipSpace() {
+        FrameTransform transform = new FrameTransform();
+        assertTrue(transform.update(4, 2, 400, 200, 0, FrameTransform.ScaleMode.FIT));
+
+        // Top left pixel in the top left quarter of clip space, y pointing up
+        assertClip(transform, 0, 0, -0.75f, 0.5f);
+        assertClip(transform, 3, 1, 0.75f, -0.5f);
+        assertFalse(transform.isCropped());
+    }
+
+    @Test
+    public void rotationTurnsFrameClockwise() {
+        FrameTransform transform = new FrameTransform();
+        assertTrue(transform.update(4, 2, 200, 400, 90, FrameTransform.ScaleMode.FIT));
+
+        // The sensor's top left corner ends up top right
+        assertClip(transform, 0, 0, 0.5f, 0.75f);
+        assertClip(transform, 3, 1, -0.5f, -0.75f);
+    }
+
+    @Test
+    public void fillCropsOverflow() {
+        FrameTransform transform = new FrameTransform();
+        assertTrue(transform.update(400, 300, 800, 300, 0, FrameTransform.ScaleMode.FILL));
+
+        assertTrue(transform.isCropped());
+        assertEquals(0, transform.getCropX());
+        assertEquals(75, transform.getCropY());
+        assertEquals(400, transform.getCropWidth());
+        assertEquals(150, transform.getCropHeight());
+        // The quad covers the view; the cropped texture is used whole
+        float[] vertices = transform.getVertices();
+        float[] cropped = transform.getCroppedVertices();
+        for (int i = 0; i < 4; i++) {
+            assertEquals(1f, Math.abs(vertices[i * 5]), EPSILON);
+            assertEquals(1f, Math.abs(vertices[i * 5 + 1]), EPSILON);
+            float v = cropped[i * 5 + 4];
+            assertTrue(Math.abs(v) < EPSILON || Math.abs(v - 1f) < EPSILON);
+        }
+    }
+
+    @Test
+    public void fitLetterboxes() {
+        FrameTransform transform = new FrameTransform();
+        assertTrue(transform.update(400, 300, 800, 300, 0, FrameTransform.ScaleMode.FIT));
+
+        assertFalse(transform.isCropped());
+        assertEquals(400, transform.getCropWidth());
+        assertEquals(300, transform.getCropHeight());
+        // Half the view width, bars on both sides
+        float[] vertices = transform.getVertices();
+        for (int i = 0; i < 4; i++) {
+            assertEquals(0.5f, Math.abs(vertices[i * 5]), EPSILON);
+            assertEquals(1f, Math.abs(vertices[i * 5 + 1]), EPSILON);
+        }
+    }
+
+    @Test
+    public void updatesOnlyWhenInputsChange() {
+        FrameTransform transform = new FrameTransform();
+        assertTrue(transform.update(640, 480, 1080, 1920, 450, FrameTransform.ScaleMode.FILL));
+        int generation = transform.getGeneration();
+
+        // 450 and 90 degrees are the same rotation
+        assertFalse(transform.update(640, 480, 1080, 1920, 90, FrameTransform.ScaleMode.FILL));
+        assertEquals(generation, transform.getGeneration());
+
+        assertTrue(transform.update(640, 480, 1080, 1920, 90, FrameTransform.ScaleMode.FIT));
+        assertEquals(generation + 1, transform.getGeneration());
+    }
+
+    @Test
+    public void emptyViewIsInvalid() {
+        FrameTransform transform = new FrameTransform();
+        assertFalse(transform.update(640, 480, 0, 0, 0, FrameTransform.ScaleMode.FIT));
+        assertFalse(transform.isValid());
+        assertEquals(0, transform.getGeneration());
+    }
+
+    private static void assertClip(FrameTransform transform, int px, int py, float x, float y) {
+        float[] rowX = transform.getPixelToClipX();
+        float[] rowY = transform.getPixelToClipY();
+        assertEquals(x, rowX[0] * px + rowX[1] * py + rowX[2], EPSILON);
+        assertEquals(y, rowY[0] * px + rowY[1] * py + rowY[2], EPSILON);
+    }
+}
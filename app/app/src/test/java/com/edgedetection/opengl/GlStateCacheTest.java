@@ -0,0 +1,137 @@
+package com.edgedetection.opengl;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks which binds the cache lets through. GL calls are no-ops on the JVM,
+ * so the change and redundant counters stand in for them.
+ */
+public class GlStateCacheTest {
+
+    private GlStateCache mState;
+    private long mChanges;
+    private long mRedundant;
+
+    @Before
+    public void setUp() {
+        mState = new GlStateCache();
+        mState.onContextCreated(true);
+        mark();
+    }
+
+    @Test
+    public void repeatedBindsAreSkipped() {
+        mState.useProgram(3);
+        mState.useProgram(3);
+        mState.bindArrayBuffer(5);
+        mState.bindArrayBuffer(5);
+        mState.bindFramebuffer(0);
+        mState.bindFramebuffer(0);
+        mState.bindVertexArray(2);
+        mState.bindVertexArray(2);
+        assertCounts(4, 4);
+
+        mState.useProgram(4);
+        assertCounts(1, 0);
+    }
+
+    @Test
+    public void textureBindsTrackUnitAndTexture() {
+        mState.bindTexture(0, 10);
+        assertCounts(2, 0);
+
+        // Same unit, same texture
+        mState.bindTexture(0, 10);
+        assertCounts(0, 2);
+
+        // Switching units activates the unit and binds on it
+        mState.bindTexture(1, 11);
+        assertCounts(2, 0);
+
+        // Back to unit 0, whose texture is still bound
+        mState.bindTexture(0, 10);
+        assertCounts(1, 1);
+    }
+
+    @Test
+    public void deletedTextureIsRebound() {
+        mState.bindTexture(0, 10);
+        mState.bindTexture(1, 10);
+        mark();
+
+        // GL unbinds a deleted texture, and its name may be reused
+        mState.onTextureDeleted(10);
+        mState.bindTexture(1, 10);
+        assertCounts(1, 1);
+        mState.bindTexture(0, 10);
+        assertCounts(2, 0);
+    }
+
+    @Test
+    public void invalidateForgetsBindings() {
+        mState.useProgram(3);
+        mState.bindArrayBuffer(5);
+        mState.bindTexture(0, 10);
+        mState.invalidate();
+        mark();
+
+        mState.useProgram(3);
+        mState.bindArrayBuffer(5);
+        mState.bindTexture(0, 10);
+        assertCounts(4, 0);
+    }
+
+    @Test
+    public void newContextForgetsBindings() {
+        mState.useProgram(3);
+        mState.onContextCreated(false);
+        assertFalse(mState.supportsVertexArrays());
+        mark();
+
+        mState.useProgram(3);
+        assertCounts(1, 0);
+    }
+
+    @Test
+    public void meshAttributesSetUpOncePerMesh() {
+        Object first = new Object();
+        Object second = new Object();
+        assertTrue(mState.setCurrentMesh(first));
+        assertFalse(mState.setCurrentMesh(first));
+        assertTrue(mState.setCurrentMesh(second));
+        assertCounts(2, 1);
+
+        // Client-side arrays overwrite the pointers
+        mState.unbindMesh();
+        assertTrue(mState.setCurrentMesh(second));
+    }
+
+    @Test
+    public void unbindMeshSkipsVertexArrayWithoutSupport() {
+        mState.onContextCreated(false);
+        mark();
+        mState.unbindMesh();
+        assertCounts(1, 0);
+
+        mState.onContextCreated(true);
+        mark();
+        mState.unbindMesh();
+        assertCounts(2, 0);
+    }
+
+    private void mark() {
+        mChanges = mState.getChangeCount();
+        mRedundant = mState.getRedundantCount();
+    }
+
+    private void assertCounts(long changes, long redundant) {
+        assertEquals("changes", changes, mState.getChangeCount() - mChanges);
+        assertEquals("redundant", redundant, mState.getRedundantCount() - mRedundant);
+        mark();
+    }
+}
@@ -0,0 +1,200 @@
+package com.edgedetection.output;
+
+import com.edgedetection.metrics.PipelineMetrics;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives the queue from one thread, with {@link CpuBufferBackend} standing in
+ * for the GPU.
+ */
+public class EdgeBufferQueueTest {
+
+    private static final int WIDTH = 8;
+    private static final int HEIGHT = 4;
+
+    private CpuBufferBackend mBackend;
+    private EdgeBufferQueue mQueue;
+
+    @Before
+    public void setUp() {
+        mBackend = new CpuBufferBackend();
+        mQueue = new EdgeBufferQueue(mBackend, EdgeBufferQueue.DEFAULT_SLOT_COUNT);
+    }
+
+    @Test
+    public void dequeueQueueAcquireRelease() {
+        EdgeBufferQueue.Slot first = mQueue.dequeue(WIDTH, HEIGHT);
+        assertNotNull(first);
+        assertNotEquals(0, first.getBuffer());
+        assertEquals(WIDTH, first.getWidth());
+        assertEquals(HEIGHT, first.getHeight());
+        assertEquals(WIDTH * HEIGHT * 4, mBackend.getPixels(first.getBuffer()).length);
+        assertNull("Nothing queued yet", mQueue.acquire());
+
+        mQueue.queue(first, 100);
+        assertSame(first, mQueue.acquire());
+        assertSame(first, mQueue.getCurrent());
+        assertEquals(100, first.getCaptureTimeNs());
+        assertNull("No new frame", mQueue.acquire());
+
+        // The shown slot is not handed back to the producer
+        EdgeBufferQueue.Slot second = mQueue.dequeue(WIDTH, HEIGHT);
+        assertNotSame(first, second);
+        mQueue.queue(second, 200);
+        assertSame(second, mQueue.acquire());
+
+        // The first slot is released once the GPU is done with it
+        mBackend.signalAll();
+        mQueue.reclaim();
+        EdgeBufferQueue.Slot third = mQueue.dequeue(WIDTH, HEIGHT);
+        EdgeBufferQueue.Slot fourth = mQueue.dequeue(WIDTH, HEIGHT);
+        assertNotSame(second, third);
+        assertNotSame(second, fourth);
+        assertNotSame(third, fourth);
+        assertEquals(3, mBackend.getLiveBufferCount());
+    }
+
+    @Test
+    public void reclaimWaitsForFence() {
+        EdgeBufferQueue.Slot a = showNextFrame(1);
+        showNextFrame(2);
+        EdgeBufferQueue.Slot c = showNextFrame(3);
+        assertSame(c, mQueue.getCurrent());
+
+        // a and b are fenced, c is shown: nothing to write into
+        long unavailable = PipelineMetrics.counter("output.frames.unavailable").get();
+        mQueue.reclaim();
+        assertNull(mQueue.dequeue(WIDTH, HEIGHT));
+        assertEquals(unavailable + 1, PipelineMetrics.counter("output.frames.unavailable").get());
+
+        // CpuBufferBackend numbers fences from 1; a was fenced first
+        mBackend.signal(1);
+        assertNull("Not reclaimed until the consumer looks", mQueue.dequeue(WIDTH, HEIGHT));
+        mQueue.reclaim();
+        EdgeBufferQueue.Slot reused = mQueue.dequeue(WIDTH, HEIGHT);
+        assertSame(a, reused);
+        assertNull("b is still fenced", mQueue.dequeue(WIDTH, HEIGHT));
+        assertEquals(3, mBackend.getLiveBufferCount());
+    }
+
+    @Test
+    public void newerFrameSupersedesUnacquiredOne() {
+        long superseded = PipelineMetrics.counter("output.frames.superseded").get();
+        EdgeBufferQueue.Slot older = mQueue.dequeue(WIDTH, HEIGHT);
+        mQueue.queue(older, 1);
+        EdgeBufferQueue.Slot newer = mQueue.dequeue(WIDTH, HEIGHT);
+        mQueue.queue(newer, 2);
+
+        assertSame(newer, mQueue.acquire());
+        assertEquals(2, newer.getCaptureTimeNs());
+        assertEquals(superseded + 1, PipelineMetrics.counter("output.frames.superseded").get());
+
+        // The superseded slot went straight back to the producer
+        assertSame(older, mQueue.dequeue(WIDTH, HEIGHT));
+    }
+
+    @Test
+    public void dequeueTakesOverReadySlotWhenNoneFree() {
+        EdgeBufferQueue queue = new EdgeBufferQueue(mBackend, 2);
+        EdgeBufferQueue.Slot shown = queue.dequeue(WIDTH, HEIGHT);
+        queue.queue(shown, 1);
+        assertSame(shown, queue.acquire());
+        EdgeBufferQueue.Slot ready = queue.dequeue(WIDTH, HEIGHT);
+        queue.queue(ready, 2);
+
+        // The GL thread has not picked up frame 2 yet
+        assertSame(ready, queue.dequeue(WIDTH, HEIGHT));
+        assertNull("The taken over frame is no longer ready", queue.acquire());
+        assertSame(shown, queue.getCurrent());
+    }
+
+    @Test
+    public void resizeReallocates() {
+        EdgeBufferQueue queue = new EdgeBufferQueue(mBackend, 1);
+        EdgeBufferQueue.Slot slot = queue.dequeue(WIDTH, HEIGHT);
+        long buffer = slot.getBuffer();
+        int generation = slot.getGeneration();
+        queue.cancel(slot);
+
+        assertSame(slot, queue.dequeue(WIDTH, HEIGHT));
+        assertEquals("Same size keeps the buffer", buffer, slot.getBuffer());
+        queue.cancel(slot);
+
+        assertSame(slot, queue.dequeue(WIDTH * 2, HEIGHT));
+        assertNotEquals(buffer, slot.getBuffer());
+        assertNotEquals(generation, slot.getGeneration());
+        assertNull("Old buffer freed", mBackend.getPixels(buffer));
+        assertEquals(1, mBackend.getLiveBufferCount());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void queueTwiceFails() {
+        EdgeBufferQueue.Slot slot = mQueue.dequeue(WIDTH, HEIGHT);
+        mQueue.queue(slot, 1);
+        mQueue.queue(slot, 2);
+    }
+
+    @Test
+    public void closeWhileWritingFreesOnQueue() {
+        showNextFrame(1);
+        showNextFrame(2);
+        EdgeBufferQueue.Slot writing = mQueue.dequeue(WIDTH, HEIGHT);
+        assertEquals(3, mBackend.getLiveBufferCount());
+
+        mQueue.close();
+        assertTrue(mQueue.isClosed());
+        assertEquals("Producer still owns its buffer", 1, mBackend.getLiveBufferCount());
+        assertNotNull(mBackend.getPixels(writing.getBuffer()));
+        assertNull(mQueue.getCurrent());
+
+        mQueue.queue(writing, 3);
+        assertEquals(0, mBackend.getLiveBufferCount());
+        assertEquals(0, writing.getBuffer());
+        assertNull(mQueue.acquire());
+        assertNull(mQueue.dequeue(WIDTH, HEIGHT));
+
+        // Closing again must not free anything twice
+        mQueue.close();
+    }
+
+    @Test
+    public void closeWhileWritingFreesOnCancel() {
+        EdgeBufferQueue.Slot writing = mQueue.dequeue(WIDTH, HEIGHT);
+        mQueue.close();
+        assertEquals(1, mBackend.getLiveBufferCount());
+        mQueue.cancel(writing);
+        assertEquals(0, mBackend.getLiveBufferCount());
+    }
+
+    @Test
+    public void contextLossDropsFences() {
+        showNextFrame(1);
+        showNextFrame(2);
+        showNextFrame(3);
+        assertNull(mQueue.dequeue(WIDTH, HEIGHT));
+
+        // Fences of the old context will never signal
+        mQueue.onContextLost();
+        assertNotNull(mQueue.dequeue(WIDTH, HEIGHT));
+        assertNotNull(mQueue.dequeue(WIDTH, HEIGHT));
+        assertNull(mQueue.dequeue(WIDTH, HEIGHT));
+    }
+
+    private EdgeBufferQueue.Slot showNextFrame(long captureTimeNs) {
+        EdgeBufferQueue.Slot slot = mQueue.dequeue(WIDTH, HEIGHT);
+        assertNotNull(slot);
+        mQueue.queue(slot, captureTimeNs);
+        assertSame(slot, mQueue.acquire());
+        return slot;
+    }
+}
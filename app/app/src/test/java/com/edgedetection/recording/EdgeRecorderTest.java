@@ -0,0 +1,196 @@
+package com.edgedetection.recording;
+
+import com.edgedetection.EdgeBitmap;
+import com.edgedetection.EdgeBitmapTest;
+import com.edgedetection.metrics.PipelineMetrics;
+import com.edgedetection.stream.EdgeMapEncoder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Records into a temporary directory and reads the recording back.
+ */
+public class EdgeRecorderTest {
+
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+    // Room for a handful of sparse frames, so recordings span several segments
+    private static final long SEGMENT_BYTES = 2048;
+    private static final long TIMEOUT_MS = 5000;
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = Files.createTempDirectory("edge-recording").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    @Test
+    public void roundTripAcrossSegments() throws IOException, InterruptedException {
+        List<byte[]> masks = new ArrayList<>();
+        Random random = new Random(47);
+        EdgeRecorder recorder = new EdgeRecorder(mDirectory, 4, SEGMENT_BYTES);
+        EdgeBitmap bitmap = new EdgeBitmap(WIDTH, HEIGHT);
+        for (int i = 0; i < 40; i++) {
+            bitmap.pack(EdgeBitmapTest.randomMask(random, WIDTH, HEIGHT, 0.05));
+            // Decoding yields 0 and 255, whatever non-zero values went in
+            byte[] mask = new byte[WIDTH * HEIGHT];
+            bitmap.unpack(mask);
+            masks.add(mask);
+            recordWhenFree(recorder, bitmap, 100 + i, 1000L * i);
+        }
+        recorder.close();
+        assertTrue("Expected several segments",
+                new File(mDirectory, EdgeRecorder.segmentName(2)).isFile());
+
+        try (RecordingReader reader = new RecordingReader(mDirectory)) {
+            assertEquals(masks.size(), reader.getFrameCount());
+            byte[] data = new byte[0];
+            byte[] decoded = new byte[WIDTH * HEIGHT];
+            for (int i = 0; i < masks.size(); i++) {
+                assertEquals(100 + i, reader.getFrameId(i));
+                assertEquals(1000L * i, reader.getCaptureTimeNs(i));
+                if (data.length < reader.getFrameLength(i)) {
+                    data = new byte[reader.getFrameLength(i)];
+                }
+                int length = reader.readFrame(i, data);
+                assertEquals(100 + i, EdgeMapEncoder.readFrameId(data));
+                EdgeMapEncoder.decode(data, length, decoded);
+                assertArrayEquals("Frame " + i, masks.get(i), decoded);
+            }
+        }
+    }
+
+    @Test
+    public void findFrameSeeksByCaptureTime() throws IOException, InterruptedException {
+        EdgeRecorder recorder = new EdgeRecorder(mDirectory, 4, SEGMENT_BYTES);
+        EdgeBitmap bitmap = new EdgeBitmap(WIDTH, HEIGHT);
+        for (int i = 0; i < 10; i++) {
+            recordWhenFree(recorder, bitmap, i, 1000L * (i + 1));
+        }
+        recorder.close();
+
+        try (RecordingReader reader = new RecordingReader(mDirectory)) {
+            assertEquals(0, reader.findFrame(0));
+            assertEquals(0, reader.findFrame(1000));
+            assertEquals(4, reader.findFrame(5999));
+            assertEquals(5, reader.findFrame(6000));
+            assertEquals(9, reader.findFrame(Long.MAX_VALUE));
+        }
+    }
+
+    @Test
+    public void closeWritesEveryQueuedFrame() throws IOException {
+        long written = PipelineMetrics.counter("recorder.frames.written").get();
+        EdgeRecorder recorder = new EdgeRecorder(mDirectory, 8, SEGMENT_BYTES);
+        EdgeBitmap bitmap = new EdgeBitmap(WIDTH, HEIGHT);
+        bitmap.pack(EdgeBitmapTest.randomMask(new Random(1), WIDTH, HEIGHT, 0.05));
+        // As many frames as the ring holds never drop, however slow the writer
+        for (int i = 0; i < 8; i++) {
+            assertTrue(recorder.record(bitmap, i, i));
+        }
+        recorder.close();
+        assertFalse("Recorded after close", recorder.record(bitmap, 8, 8));
+        assertEquals(8, PipelineMetrics.counter("recorder.frames.written").get() - written);
+
+        try (RecordingReader reader = new RecordingReader(mDirectory)) {
+            assertEquals(8, reader.getFrameCount());
+        }
+    }
+
+    @Test
+    public void everyAcceptedFrameIsWrittenWhenClosedMidRecording() throws IOException, InterruptedException {
+        for (int round = 0; round < 20; round++) {
+            File directory = new File(mDirectory, "round" + round);
+            EdgeRecorder recorder = new EdgeRecorder(directory, 4, SEGMENT_BYTES);
+            EdgeBitmap bitmap = new EdgeBitmap(WIDTH, HEIGHT);
+            int[] accepted = {0};
+            Thread producer = new Thread(() -> {
+                for (int i = 0; i < 10000; i++) {
+                    if (recorder.record(bitmap, i, i)) {
+                        accepted[0]++;
+                    }
+                }
+            });
+            producer.start();
+            Thread.sleep(round % 5);
+            recorder.close();
+            producer.join();
+
+            try (RecordingReader reader = new RecordingReader(directory)) {
+                assertEquals("Round " + round, accepted[0], reader.getFrameCount());
+            }
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void partialIndexEntryIsIgnored() throws IOException, InterruptedException {
+        EdgeRecorder recorder = new EdgeRecorder(mDirectory, 4, SEGMENT_BYTES);
+        EdgeBitmap bitmap = new EdgeBitmap(WIDTH, HEIGHT);
+        for (int i = 0; i < 3; i++) {
+            recordWhenFree(recorder, bitmap, i, i);
+        }
+        recorder.close();
+
+        // As if the process died while appending the last entry
+        try (RandomAccessFile index = new RandomAccessFile(new File(mDirectory, EdgeRecorder.INDEX_FILE), "rw")) {
+            index.setLength(index.length() - 5);
+        }
+        try (RecordingReader reader = new RecordingReader(mDirectory)) {
+            assertEquals(2, reader.getFrameCount());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsForeignIndex() throws IOException {
+        Files.write(new File(mDirectory, EdgeRecorder.INDEX_FILE).toPath(), new byte[] {'N', 'O', 'P', 'E', 1, 0, 0, 0});
+        new RecordingReader(mDirectory);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSegmentSmallerThanOneRecord() throws IOException {
+        new EdgeRecorder(mDirectory, 4, EdgeRecorder.FILE_HEADER_SIZE + EdgeRecorder.RECORD_HEADER_SIZE);
+    }
+
+    /**
+     * Retry while the ring is full, so no frame of the test is dropped.
+     */
+    private static void recordWhenFree(EdgeRecorder recorder, EdgeBitmap bitmap, long frameId, long captureTimeNs)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!recorder.record(bitmap, frameId, captureTimeNs)) {
+            assertTrue("Writer stalled", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.edgedetection.soak;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Covers the procfs and sysfs parsing and the JVM readings; the ART ones
+ * need a device.
+ */
+public class RuntimeSamplerTest {
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("sampler", ".txt");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void readsFirstLineAsNumber() throws IOException {
+        // As in scaling_cur_freq, with a trailing newline and a second line ignored
+        write(" 1804800\n0\n");
+        assertEquals(1804800, RuntimeSampler.readLong(mFile));
+        write("-5000");
+        assertEquals(-5000, RuntimeSampler.readLong(mFile));
+    }
+
+    @Test
+    public void unreadableValuesAreMinusOne() throws IOException {
+        write("");
+        assertEquals(-1, RuntimeSampler.readLong(mFile));
+        write("enabled\n");
+        assertEquals(-1, RuntimeSampler.readLong(mFile));
+        assertEquals(-1, RuntimeSampler.readLong(new File(mFile.getPath() + ".missing")));
+    }
+
+    @Test
+    public void desktopJvmGetsManagementBeanReadings() {
+        RuntimeSampler sampler = RuntimeSampler.forCurrentRuntime();
+        assertTrue(sampler instanceof JvmRuntimeSampler);
+        assertTrue(sampler.gcCount() >= 0);
+        assertTrue(sampler.gcTimeMs() >= 0);
+        assertEquals(-1, sampler.nativeHeapBytes());
+        assertTrue(sampler.heapUsedBytes() > 0);
+    }
+
+        private void write(String contents) throws IOException {
+        try (Writer writer = new FileWriter(mFile)) {
+            writer.write(contents);
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.edgedetection.stream;
+
+import com.edgedetection.EdgeBitmapTest;
+import com.edgedetection.metrics.PipelineMetrics;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Talks to the server over loopback the way the web viewer does.
+ */
+public class EdgeStreamServerTest {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    // Example handshake from RFC 6455 section 1.3
+    private static final String KEY = "dGhlIHNhbXBsZSBub25jZQ==";
+    private static final String ACCEPT = "s3pPLMBiTxaQ9kYGzzhZRbK+xOo=";
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+    private static final long TIMEOUT_MS = 5000;
+
+    private EdgeStreamServer mServer;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new EdgeStreamServer(0);
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.close();
+    }
+
+    @Test
+    public void streamsEncodedFramesToWebSocketClient() throws Exception {
+        long sentBefore = PipelineMetrics.counter("stream.frames.sent").get();
+        long bytesBefore = PipelineMetrics.counter("stream.bytes.sent").get();
+
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), mServer.getPort())) {
+            socket.setSoTimeout((int) TIMEOUT_MS);
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET /edges HTTP/1.1\r\n"
+                    + "Host: localhost\r\n"
+                    + "Upgrade: websocket\r\n"
+                    + "Connection: Upgrade\r\n"
+                    + "Sec-WebSocket-Key: " + KEY + "\r\n"
+                    + "Sec-WebSocket-Version: 13\r\n\r\n").getBytes(ASCII));
+            out.flush();
+
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            String response = readHeader(in);
+            assertTrue(response, response.startsWith("HTTP/1.1 101 "));
+            assertTrue(response, response.contains("\r\nSec-WebSocket-Accept: " + ACCEPT + "\r\n"));
+            waitForClient();
+
+            // A sparse map fits the 16-bit length form, a dense one needs the 64-bit form
+            Random random = new Random(7);
+            byte[][] expected = {
+                    encode(EdgeBitmapTest.randomMask(random, WIDTH, HEIGHT, 0.01), 1),
+                    encode(EdgeBitmapTest.randomMask(random, WIDTH, HEIGHT, 0.3), 2),
+            };
+            String lastStats = null;
+            for (int frame = 0; frame < expected.length; frame++) {
+                lastStats = EdgeStreamServer.formatStats(frame + 1, 30, WIDTH, HEIGHT, 1, 2,
+                        expected[frame].length, 0);
+                mServer.publish(expected[frame], expected[frame].length, lastStats);
+            }
+
+            long statsBytes = 0;
+            for (int frame = 0; frame < expected.length; frame++) {
+                byte[] stats = readFrame(in, 0x1);
+                statsBytes += stats.length;
+                assertTrue(new String(stats, UTF8).startsWith("{\"frame\":" + (frame + 1) + ","));
+                assertArrayEquals("frame " + (frame + 1), expected[frame], readFrame(in, 0x2));
+                assertEquals(frame + 1, EdgeMapEncoder.readFrameId(expected[frame]));
+            }
+            assertEquals(lastStats, httpGet("/stats"));
+
+            long payloadBytes = statsBytes + expected[0].length + expected[1].length;
+            waitForCounter("stream.frames.sent", sentBefore + 2);
+            waitForCounter("stream.bytes.sent", bytesBefore + payloadBytes);
+        }
+    }
+
+    @Test
+    public void statsServedWithoutClients() throws Exception {
+        String stats = EdgeStreamServer.formatStats(42, 29.5, WIDTH, HEIGHT, 3.25, 8.5, 1234, 0.75);
+        mServer.updateStats(stats);
+        assertEquals(stats, httpGet("/stats"));
+        assertTrue(stats.contains("\"frame\":42"));
+        assertTrue(stats.contains("\"bytes\":1234"));
+        assertTrue(stats.contains("\"encodeMs\":0.750"));
+    }
+
+    @Test
+    public void encodedSizeGrowsWithDensity() {
+        Random random = new Random(11);
+        double[] densities = {0.01, 0.05, 0.2};
+        EdgeMapEncoder encoder = new EdgeMapEncoder();
+        byte[] decoded = new byte[WIDTH * HEIGHT];
+        int previous = 0;
+        for (double density : densities) {
+            byte[] mask = EdgeBitmapTest.randomMask(random, WIDTH, HEIGHT, density);
+            int bytes = encoder.encode(mask, WIDTH, HEIGHT, 1);
+            assertTrue("Density " + density + " not compressed", bytes < WIDTH * HEIGHT);
+            assertTrue("Density " + density + " no larger than a sparser mask", bytes > previous);
+            EdgeMapEncoder.decode(encoder.getBuffer(), bytes, decoded);
+            for (int i = 0; i < mask.length; i++) {
+                assertEquals("Pixel " + i, mask[i] != 0, decoded[i] != 0);
+            }
+            previous = bytes;
+        }
+    }
+
+    private void waitForClient() throws InterruptedException {
+        // The server registers the client just after writing the handshake
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!mServer.hasClients()) {
+            assertTrue("Client not registered", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private static void waitForCounter(String name, long expected) throws InterruptedException {
+        // Counters are bumped by the writer thread after the flush
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (PipelineMetrics.counter(name).get() < expected) {
+            assertTrue(name + " below " + expected, System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private String httpGet(String path) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), mServer.getPort())) {
+            socket.setSoTimeout((int) TIMEOUT_MS);
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(ASCII));
+            out.flush();
+            InputStream in = socket.getInputStream();
+            String header = readHeader(in);
+            assertTrue(header, header.startsWith("HTTP/1.1 200 "));
+            assertTrue(header, header.contains("Content-Type: application/json"));
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                body.write(buffer, 0, read);
+            }
+            return new String(body.toByteArray(), UTF8);
+        }
+    }
+
+    private static String readHeader(InputStream in) throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        while (true) {
+            int b = in.read();
+            assertTrue("Connection closed in header", b >= 0);
+            header.write(b);
+            byte[] bytes = header.toByteArray();
+            int n = bytes.length;
+            if (n >= 4 && bytes[n - 4] == '\r' && bytes[n - 3] == '\n' && bytes[n - 2] == '\r' && bytes[n - 1] == '\n') {
+                return new String(bytes, ASCII);
+            }
+        }
+    }
+
+    private static byte[] readFrame(DataInputStream in, int opcode) throws IOException {
+        int b0 = in.readUnsignedByte();
+        int b1 = in.readUnsignedByte();
+        assertEquals("FIN and opcode", 0x80 | opcode, b0);
+        assertEquals("Server frames are unmasked", 0, b1 & 0x80);
+        long length = b1 & 0x7F;
+        if (length == 126) {
+            length = in.readUnsignedShort();
+        } else if (length == 127) {
+            length = in.readLong();
+        }
+        byte[] payload = new byte[(int) length];
+        in.readFully(payload);
+        return payload;
+    }
+
+    private static byte[] encode(byte[] mask, int frameId) {
+        EdgeMapEncoder encoder = new EdgeMapEncoder();
+        int length = encoder.encode(mask, WIDTH, HEIGHT, frameId);
+        return Arrays.copyOf(encoder.getBuffer(), length);
+    }
+}
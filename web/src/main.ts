@@ -10,6 +10,18 @@ interface FrameStats {
     frameCount: number;
 }
 
+// Stats JSON sent by the Android app ahead of every binary edge map
+interface StreamStats {
+    frame: number;
+    fps: number;
+    width: number;
+    height: number;
+    processingMs: number;
+    latencyMs: number;
+    bytes: number;
+    encodeMs: number;
+}
+
 interface ImageData {
     src: string;
     width: number;
@@ -23,6 +35,7 @@ class OpenCVWebViewer {
     private canvasContext!: CanvasRenderingContext2D;
     private toggleButton!: HTMLButtonElement;
     private loadButton!: HTMLButtonElement;
+    private streamButton!: HTMLButtonElement;
     private overlayText!: HTMLDivElement;
     private themeToggle!: HTMLButtonElement;
     private themeIcon!: HTMLSpanElement;
@@ -39,6 +52,11 @@ class OpenCVWebViewer {
     private lastUpdateTime: number = 0;
     private isDarkTheme: boolean = false;
 
+    // Live edge map stream from the device
+    private socket: WebSocket | null = null;
+    private simulationTimer: number | null = null;
+    private streamImage: globalThis.ImageData | null = null;
+
     constructor() {
         this.initializeElements();
         this.setupEventListeners();
@@ -52,6 +70,7 @@ class OpenCVWebViewer {
         this.frameCanvas = document.getElementById('frameCanvas') as HTMLCanvasElement;
         this.toggleButton = document.getElementById('toggleView') as HTMLButtonElement;
         this.loadButton = document.getElementById('loadImage') as HTMLButtonElement;
+        this.streamButton = document.getElementById('connectStream') as HTMLButtonElement;
         this.overlayText = document.getElementById('overlayText') as HTMLDivElement;
         this.themeToggle = document.getElementById('themeToggle') as HTMLButtonElement;
         this.themeIcon = document.getElementById('themeIcon') as HTMLSpanElement;
@@ -69,6 +88,7 @@ class OpenCVWebViewer {
     private setupEventListeners(): void {
         this.toggleButton.addEventListener('click', () => this.toggleViewMode());
         this.loadButton.addEventListener('click', () => this.loadSampleImage());
+        this.streamButton.addEventListener('click', () => this.toggleStream());
         this.themeToggle.addEventListener('click', () => this.toggleTheme());
         
         // Image load event
@@ -189,11 +209,19 @@ class OpenCVWebViewer {
 
     private startFrameSimulation(): void {
         // Simulate frame updates for demo purposes
-        setInterval(() => {
+        this.simulationTimer = window.setInterval(() => {
             this.simulateFrameUpdate();
         }, 1000 / 30); // 30 FPS simulation
     }
 
+    private stopFrameSimulation(): void {
+        if (this.simulationTimer !== null) {
+            window.clearInterval(this.simulationTimer);
+            this.simulationTimer = null;
+        }
+        this.lastUpdateTime = 0;
+    }
+
     private simulateFrameUpdate(): void {
         const now = performance.now();
         
@@ -240,6 +268,121 @@ class OpenCVWebViewer {
         this.canvasContext.fillRect(0, 0, this.frameCanvas.width, this.frameCanvas.height);
     }
 
+    private streamUrl(): string {
+        // Default assumes `adb forward tcp:8765 tcp:8765`; override with ?stream=ws://host:port/edges
+        const override = new URLSearchParams(window.location.search).get('stream');
+        return override || 'ws://localhost:8765/edges';
+    }
+
+    private toggleStream(): void {
+        if (this.socket) {
+            this.socket.close();
+            return;
+        }
+
+        const url = this.streamUrl();
+        const socket = new WebSocket(url);
+        socket.binaryType = 'arraybuffer';
+        this.socket = socket;
+        this.streamButton.textContent = 'Connecting...';
+        this.updateOverlayText(`Connecting to ${url}...`);
+
+        socket.addEventListener('open', () => {
+            this.stopFrameSimulation();
+            this.streamButton.textContent = 'Disconnect Stream';
+            this.updateOverlayText(`Streaming live edges from ${url}`);
+            // Edge maps are drawn straight onto the canvas
+            if (!this.isCanvasMode) {
+                this.toggleViewMode();
+            }
+        });
+
+        socket.addEventListener('message', (event: MessageEvent) => {
+            if (typeof event.data === 'string') {
+                this.onStreamStats(JSON.parse(event.data) as StreamStats);
+            } else {
+                this.onStreamFrame(event.data as ArrayBuffer);
+            }
+        });
+
+        socket.addEventListener('close', () => {
+            this.socket = null;
+            this.streamButton.textContent = 'Connect Live Stream';
+            this.updateOverlayText('Live stream disconnected');
+            if (this.simulationTimer === null) {
+                this.startFrameSimulation();
+            }
+        });
+
+        socket.addEventListener('error', () => {
+            console.error('Edge stream error:', url);
+            this.updateOverlayText(`Could not connect to ${url}`);
+        });
+    }
+
+    private onStreamStats(stats: StreamStats): void {
+        this.frameCounter++;
+        this.updateFrameStats({
+            fps: Math.round(stats.fps),
+            resolution: `${stats.width}x${stats.height}`,
+            processingTime: stats.processingMs,
+            frameCount: this.frameCounter
+        });
+        this.updateOverlayText(
+            `Frame ${stats.frame}: latency ${stats.latencyMs.toFixed(1)}ms, ` +
+            `${(stats.bytes / 1024).toFixed(1)}KB encoded in ${stats.encodeMs.toFixed(2)}ms`
+        );
+    }
+
+    /**
+     * Decode a run-length encoded edge map (see EdgeMapEncoder on the Android side)
+     * and draw it onto the canvas as white edges on black.
+     */
+    private onStreamFrame(buffer: ArrayBuffer): void {
+        const data = new Uint8Array(buffer);
+        if (data.length < 12 || data[0] !== 0x45 || data[1] !== 0x4d || data[3] !== 1) {
+            console.warn('Ignoring unknown edge map message');
+            return;
+        }
+        const width = data[8] | (data[9] << 8);
+        const height = data[10] | (data[11] << 8);
+
+        if (!this.streamImage || this.streamImage.width !== width || this.streamImage.height !== height) {
+            this.frameCanvas.width = width;
+            this.frameCanvas.height = height;
+            this.streamImage = this.canvasContext.createImageData(width, height);
+        }
+
+        const pixels = this.streamImage.data;
+        const total = width * height;
+        let pos = 12;
+        let pixel = 0;
+        let edge = false;
+        while (pos < data.length && pixel < total) {
+            let run = 0;
+            let shift = 0;
+            let b: number;
+            do {
+                b = data[pos++];
+                run += (b & 0x7f) * Math.pow(2, shift);
+                shift += 7;
+            } while ((b & 0x80) !== 0 && pos < data.length);
+
+            const end = Math.min(total, pixel + run);
+            const value = edge ? 255 : 0;
+            for (let i = pixel * 4; i < end * 4; i += 4) {
+                pixels[i] = value;
+                pixels[i + 1] = value;
+                pixels[i + 2] = value;
+                pixels[i + 3] = 255;
+            }
+            pixel = end;
+            edge = !edge;
+        }
+
+        this.canvasContext.putImageData(this.streamImage, 0, 0);
+    }
+
     // Public methods for external interaction
     public updateFrameStats(stats: Partial<FrameStats>): void {
         Object.assign(this.currentStats, stats);
@@ -315,4 +458,4 @@ document.addEventListener('DOMContentLoaded', () => {
 
 // Export for potential module usage
 export { OpenCVWebViewer };
-export type { FrameStats, ImageData };
+export type { FrameStats, ImageData, StreamStats };